@@ -0,0 +1,72 @@
+#!/bin/bash
+# Records or compares benchmark baselines. Run from the root of the repository, with one device connected.
+#
+# Usage: ./benchmark/baseline.sh record            runs the benchmarks and saves benchmark/baseline/<model>-API<level>.json
+#        ./benchmark/baseline.sh compare [percent]  runs the benchmarks and compares their medians with that
+#                                                   device's baseline, failing if any is more than percent
+#                                                   (default 10) slower
+
+RESULTS=/sdcard/Android/data/com.mixpanel.android.benchmark.test/files/com.mixpanel.android.benchmark.test-benchmarkData.json
+
+if [ ! -f settings.gradle ] || [ ! -d benchmark ]; then
+    echo "Run this script from the root of the repository"
+    exit 1
+fi
+
+MODEL=$(adb shell getprop ro.product.model | tr -d '\r' | tr ' ' '_')
+LEVEL=$(adb shell getprop ro.build.version.sdk | tr -d '\r')
+if [ -z "$MODEL" ] || [ -z "$LEVEL" ]; then
+    echo "No device found"
+    exit 1
+fi
+BASELINE=benchmark/baseline/$MODEL-API$LEVEL.json
+
+run () {
+    adb shell rm -f $RESULTS
+    ./gradlew :benchmark:connectedAndroidTest || exit 1
+    adb pull $RESULTS "$1" || exit 1
+}
+
+case "$1" in
+    record)
+        mkdir -p benchmark/baseline
+        run "$BASELINE"
+        echo "Saved $BASELINE"
+        ;;
+    compare)
+        if [ ! -f "$BASELINE" ]; then
+            echo "There's no baseline for this device yet, record one with: $0 record"
+            exit 1
+        fi
+        CURRENT=$(mktemp)
+        run "$CURRENT"
+        python3 - "$BASELINE" "$CURRENT" "${2:-10}" <<'PYTHON'
+import json, sys
+
+def medians(path):
+    with open(path) as f:
+        results = json.load(f)
+    ret = {}
+    for benchmark in results["benchmarks"]:
+        metrics = benchmark.get("metrics", {}).get("timeNs", benchmark)
+        ret[benchmark["className"].split(".")[-1] + "." + benchmark["name"]] = metrics["median"]
+    return ret
+
+baseline, current, limit = medians(sys.argv[1]), medians(sys.argv[2]), float(sys.argv[3])
+failed = False
+for name in sorted(current):
+    if name not in baseline:
+        print("%-70s %12d ns  (no baseline)" % (name, current[name]))
+        continue
+    change = 100.0 * (current[name] - baseline[name]) / baseline[name]
+    slower = change > limit
+    failed = failed or slower
+    print("%-70s %12d ns  %+6.1f%%%s" % (name, current[name], change, "  SLOWER" if slower else ""))
+sys.exit(1 if failed else 0)
+PYTHON
+        ;;
+    *)
+        echo "Usage: $0 record|compare [percent]"
+        exit 1
+        ;;
+esac
@@ -0,0 +1,46 @@
+package com.mixpanel.android.mpmetrics;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Building the stored form of an event on the worker thread, with the default device properties.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AnalyticsMessagesBenchmark {
+
+    @Before
+    public void setUp() throws JSONException {
+        mMessages = new AnalyticsMessages(InstrumentationRegistry.getInstrumentation().getTargetContext());
+        final JSONObject properties = BenchmarkData.eventProperties();
+        properties.put("time", System.currentTimeMillis() / 1000);
+        properties.put("distinct_id", "benchmark distinct id");
+        mDescription = new AnalyticsMessages.EventDescription("Benchmark Event", properties, TOKEN, SERVICE_NAME);
+    }
+
+    @Test
+    public void prepareEventObject() throws JSONException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mMessages.prepareEventObject(mDescription);
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private AnalyticsMessages mMessages;
+    private AnalyticsMessages.EventDescription mDescription;
+
+    private static final String TOKEN = "Benchmark Token";
+    private static final String SERVICE_NAME = "Benchmark Service";
+}
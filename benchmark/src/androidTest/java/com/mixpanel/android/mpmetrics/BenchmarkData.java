@@ -0,0 +1,32 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Properties shaped like a typical app's events, shared by the benchmarks so their numbers are comparable.
+ */
+/* package */ class BenchmarkData {
+    public static JSONObject eventProperties() throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("Screen", "Checkout");
+        properties.put("Item Count", 3);
+        properties.put("Cart Value", 42.75);
+        properties.put("Coupon Applied", false);
+        properties.put("Payment Method", "card");
+        properties.put("Categories", new JSONArray().put("books").put("music").put("games"));
+        properties.put("Session Depth", 12);
+        properties.put("Referrer Campaign", "spring_sale_2019");
+        return properties;
+    }
+
+    public static JSONObject superProperties() throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("Plan", "premium");
+        properties.put("App Theme", "dark");
+        properties.put("Experiment Group", "B");
+        properties.put("Signed Up", "2019-01-02T03:04:05");
+        return properties;
+    }
+}
@@ -0,0 +1,73 @@
+package com.mixpanel.android.mpmetrics;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Reading a decide response with event bindings and a large section we don't use,
+ * streamed against a full org.json parse of the same response.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecideParseBenchmark {
+
+    @Before
+    public void setUp() throws DecideChecker.UnintelligibleMessageException, JSONException {
+        final StringBuilder bindings = new StringBuilder("[");
+        for (int i = 0; i < BINDINGS; i++) {
+            if (i > 0) {
+                bindings.append(",");
+            }
+            bindings.append("{\"event_name\": \"event ").append(i).append("\", \"event_type\": \"click\", ")
+                    .append("\"target_activity\": null, \"path\": [{\"prefix\": \"shortest\", \"index\": 0, \"id\": ").append(i).append("}]}");
+        }
+        bindings.append("]");
+        final StringBuilder ignored = new StringBuilder("[");
+        for (int i = 0; i < IGNORED_ENTRIES; i++) {
+            if (i > 0) {
+                ignored.append(",");
+            }
+            ignored.append("{\"key\": \"value ").append(i).append("\", \"list\": [1, 2, 3, 4.5]}");
+        }
+        ignored.append("]");
+        mResponse = "{\"notifications\": [], \"event_bindings\": " + bindings +
+                ", \"unused\": " + ignored + ", \"automatic_events\": true}";
+
+        final String expected = new JSONObject(mResponse).getJSONArray("event_bindings").toString();
+        final String streamed = DecideChecker.parseDecideResponse(mResponse).eventBindings.toString();
+        if (!expected.equals(streamed)) {
+            throw new IllegalStateException("Streamed event bindings don't match org.json: " + streamed);
+        }
+    }
+
+    @Test
+    public void orgJsonParse() throws JSONException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new JSONObject(mResponse).getJSONArray("event_bindings");
+        }
+    }
+
+    @Test
+    public void streamedParse() throws DecideChecker.UnintelligibleMessageException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            DecideChecker.parseDecideResponse(mResponse);
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private String mResponse;
+
+    private static final int BINDINGS = 200;
+    private static final int IGNORED_ENTRIES = 500;
+}
@@ -0,0 +1,121 @@
+package com.mixpanel.android.mpmetrics;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writing events to the queue database, reading a batch back out to send, and reading a batch
+ * once the install referrer has arrived and its properties are waiting to be added.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MPDbAdapterBenchmark {
+
+    @Before
+    public void setUp() throws JSONException {
+        mDb = new MPDbAdapter(InstrumentationRegistry.getInstrumentation().getTargetContext(), DB_NAME);
+        mDb.deleteDB();
+        final JSONObject properties = BenchmarkData.eventProperties();
+        properties.put("token", TOKEN);
+        properties.put("time", System.currentTimeMillis() / 1000);
+        properties.put("distinct_id", "benchmark distinct id");
+        mEvent = new JSONObject();
+        mEvent.put("event", "Benchmark Event");
+        mEvent.put("prop", properties);
+        mEvent.put("$mp_metadata", new JSONObject());
+    }
+
+    @After
+    public void tearDown() {
+        mDb.deleteDB();
+    }
+
+    @Test
+    public void addJSON() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        int added = 0;
+        while (state.keepRunning()) {
+            mDb.addJSON(mEvent, TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+            added++;
+            if (added == QUEUE_SIZE) {
+                // Keep the table the size a flush would leave it at, so later rows don't cost more
+                state.pauseTiming();
+                mDb.cleanupAllEvents(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME);
+                added = 0;
+                state.resumeTiming();
+            }
+        }
+    }
+
+    @Test
+    public void generateDataString() {
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            mDb.addJSON(mEvent, TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mDb.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        }
+    }
+
+    @Test
+    public void sendCycle() {
+        // A batch from the event buffer goes in, is read out to upload, and is cleared once sent
+        final JSONObject[] batch = new JSONObject[BATCH_SIZE];
+        final boolean[] isAutomatic = new boolean[BATCH_SIZE];
+        Arrays.fill(batch, mEvent);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mDb.addJSON(batch, isAutomatic, BATCH_SIZE, TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS);
+            final String[] data = mDb.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+            mDb.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+        }
+    }
+
+    @Test
+    public void generateDataStringWithPendingProperties() {
+        final JSONObject[] batch = new JSONObject[BATCH_SIZE];
+        final boolean[] isAutomatic = new boolean[BATCH_SIZE];
+        Arrays.fill(batch, mEvent);
+        for (int i = 0; i < REFERRER_QUEUE_SIZE; i += BATCH_SIZE) {
+            mDb.addJSON(batch, isAutomatic, BATCH_SIZE, TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS);
+        }
+        final Map<String, String> referrer = new HashMap<String, String>();
+        referrer.put("referrer", "utm_source=benchmark&utm_medium=cpc");
+        referrer.put("utm_source", "benchmark");
+        referrer.put("utm_medium", "cpc");
+        mDb.addPendingProperties(referrer, TOKEN, SERVICE_NAME);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mDb.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private MPDbAdapter mDb;
+    private JSONObject mEvent;
+
+    private static final String DB_NAME = "mixpanel_benchmark";
+    private static final String TOKEN = "Benchmark Token";
+    private static final String SERVICE_NAME = "Benchmark Service";
+    // A couple of uploads' worth, generateDataString reads at most 50
+    private static final int QUEUE_SIZE = 100;
+    private static final int BATCH_SIZE = 50;
+    // A long offline backlog, when the referrer is slow to resolve
+    private static final int REFERRER_QUEUE_SIZE = 2000;
+}
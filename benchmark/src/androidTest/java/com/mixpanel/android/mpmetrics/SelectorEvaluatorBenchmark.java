@@ -0,0 +1,58 @@
+package com.mixpanel.android.mpmetrics;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compiling and evaluating a display trigger selector against an event's properties.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SelectorEvaluatorBenchmark {
+
+    @Before
+    public void setUp() throws JSONException {
+        // Cast, comparison, boolean and list operators, like a trigger built in the Mixpanel UI
+        mSelector = new JSONObject("{\"operator\": \"and\", \"children\": [" +
+                "{\"operator\": \">\", \"children\": [" +
+                "{\"operator\": \"number\", \"children\": [{\"property\": \"event\", \"value\": \"Cart Value\"}]}," +
+                "{\"property\": \"literal\", \"value\": 20}]}," +
+                "{\"operator\": \"in\", \"children\": [{\"property\": \"event\", \"value\": \"Payment Method\"}," +
+                "{\"property\": \"literal\", \"value\": [\"card\", \"paypal\", \"gift card\"]}]}," +
+                "{\"operator\": \"not\", \"children\": [{\"property\": \"event\", \"value\": \"Coupon Applied\"}]}]}");
+        mProperties = BenchmarkData.eventProperties();
+    }
+
+    @Test
+    public void compile() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new SelectorEvaluator(mSelector);
+        }
+    }
+
+    @Test
+    public void evaluate() throws JSONException {
+        final SelectorEvaluator evaluator = new SelectorEvaluator(mSelector);
+        if (!evaluator.evaluate(mProperties)) {
+            throw new IllegalStateException("Selector should match the benchmark properties");
+        }
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            evaluator.evaluate(mProperties);
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private JSONObject mSelector;
+    private JSONObject mProperties;
+}
@@ -0,0 +1,79 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Future;
+
+/**
+ * The work MixpanelAPI.track does on the caller's thread: merging super properties, timed events and
+ * identity into the event's properties. Events are dropped before they reach the worker thread.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TrackBenchmark {
+
+    @Before
+    public void setUp() throws JSONException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mMessages = new AnalyticsMessages(context) {
+            @Override
+            public void eventsMessage(EventDescription eventDescription) {
+                // Dropped, only the caller's side of track is measured
+            }
+        };
+        final Future<SharedPreferences> referrerPreferences =
+                new SharedPreferencesLoader().loadPreferences(context, "com.mixpanel.android.benchmark.Referrer", null);
+        mMixpanel = new MixpanelAPI(context, referrerPreferences, TOKEN, false, null) {
+            @Override
+            /* package */ AnalyticsMessages getAnalyticsMessages() {
+                return mMessages;
+            }
+
+            @Override
+            /* package */ boolean sendAppOpen() {
+                return false;
+            }
+        };
+        mMixpanel.identify("benchmark distinct id");
+        mMixpanel.registerSuperProperties(BenchmarkData.superProperties());
+        mProperties = BenchmarkData.eventProperties();
+    }
+
+    @Test
+    public void track() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mMixpanel.track("Benchmark Event", mProperties);
+        }
+    }
+
+    @Test
+    public void trackWithTimedEvent() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mMixpanel.timeEvent("Benchmark Timed Event");
+            mMixpanel.track("Benchmark Timed Event", mProperties);
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private AnalyticsMessages mMessages;
+    private MixpanelAPI mMixpanel;
+    private JSONObject mProperties;
+
+    private static final String TOKEN = "Benchmark Token";
+}
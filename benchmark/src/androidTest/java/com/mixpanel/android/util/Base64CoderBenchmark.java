@@ -0,0 +1,51 @@
+package com.mixpanel.android.util;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Encoding a batch of events for upload, and decoding it again.
+ */
+@RunWith(AndroidJUnit4.class)
+public class Base64CoderBenchmark {
+
+    @Before
+    public void setUp() {
+        // About the size of a 50 event upload
+        mBytes = new byte[PAYLOAD_BYTES];
+        new Random(1234).nextBytes(mBytes);
+        mEncoded = Base64Coder.encode(mBytes);
+    }
+
+    @Test
+    public void encode() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Base64Coder.encode(mBytes);
+        }
+    }
+
+    @Test
+    public void decode() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            Base64Coder.decode(mEncoded);
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private byte[] mBytes;
+    private char[] mEncoded;
+
+    private static final int PAYLOAD_BYTES = 32 * 1024;
+}
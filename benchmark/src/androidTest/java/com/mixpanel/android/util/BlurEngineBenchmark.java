@@ -0,0 +1,133 @@
+package com.mixpanel.android.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.Debug;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Blurring a capture of a 1080p screen the way BackgroundCapture does (at half size, radius 20),
+ * with each engine and with the one-shot StackBlurManager.process they replaced.
+ *
+ * The benchmark library only records time, so the engines' allocations are checked against
+ * a fixed budget instead. Reused engines shouldn't allocate on the Java heap at all once warm.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BlurEngineBenchmark {
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mBitmap = halfAndHalf(WIDTH, HEIGHT);
+    }
+
+    @After
+    public void tearDown() {
+        if (null != mEngine) {
+            mEngine.release();
+        }
+        mBitmap.recycle();
+    }
+
+    @Test
+    public void stackBlurManagerProcess() {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            StackBlurManager.process(mBitmap, RADIUS);
+        }
+    }
+
+    @Test
+    public void downscaledStackBlur() {
+        mEngine = new BlurEngine.DownscaledStackBlur(DOWNSCALE);
+        run(mEngine);
+    }
+
+    @Test
+    public void renderScriptBlur() {
+        Assume.assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
+        mEngine = new BlurEngine.RenderScriptBlur(mContext);
+        run(mEngine);
+    }
+
+    @Test
+    public void downscaledStackBlurAllocations() {
+        mEngine = new BlurEngine.DownscaledStackBlur(DOWNSCALE);
+        checkAllocations(mEngine);
+    }
+
+    @Test
+    public void renderScriptBlurAllocations() {
+        Assume.assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1);
+        mEngine = new BlurEngine.RenderScriptBlur(mContext);
+        checkAllocations(mEngine);
+    }
+
+    private void run(BlurEngine engine) {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            engine.blur(mBitmap, RADIUS);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void checkAllocations(BlurEngine engine) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            engine.blur(mBitmap, RADIUS);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+            engine.blur(mBitmap, RADIUS);
+        }
+        final long allocatedBytes = Debug.getThreadAllocSize() / ALLOCATION_ITERATIONS;
+        Debug.stopAllocCounting();
+
+        if (allocatedBytes > ALLOCATION_BUDGET_BYTES) {
+            throw new IllegalStateException(engine.getClass().getSimpleName() + " allocated " + allocatedBytes +
+                    " bytes per blur, the budget is " + ALLOCATION_BUDGET_BYTES);
+        }
+    }
+
+    // Black on the left, white on the right
+    private static Bitmap halfAndHalf(int width, int height) {
+        final Bitmap ret = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(ret);
+        canvas.drawColor(Color.BLACK);
+        final Paint white = new Paint();
+        white.setColor(Color.WHITE);
+        canvas.drawRect(width / 2, 0, width, height, white);
+        return ret;
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private Context mContext;
+    private Bitmap mBitmap;
+    private BlurEngine mEngine;
+
+    private static final int WIDTH = 1080 / 2;
+    private static final int HEIGHT = 1920 / 2;
+    private static final int RADIUS = 20;
+    private static final int DOWNSCALE = 4;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ALLOCATION_ITERATIONS = 10;
+    private static final int ALLOCATION_BUDGET_BYTES = 1024;
+}
@@ -0,0 +1,74 @@
+package com.mixpanel.android.viewcrawler;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Reading a snapshot request from the editor, streamed against a full org.json parse of the same message.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EditorMessageBenchmark {
+
+    @Before
+    public void setUp() throws JSONException {
+        final StringBuilder classes = new StringBuilder("[");
+        for (int i = 0; i < CLASSES; i++) {
+            if (i > 0) {
+                classes.append(",");
+            }
+            classes.append("{\"name\": \"android.view.View").append(i).append("\", \"prop\": [{\"name\": \"alpha\", ")
+                    .append("\"get\": {\"selector\": \"getAlpha\", \"parameters\": [], \"result\": {\"type\": \"java.lang.Float\"}}}]}");
+        }
+        classes.append("]");
+        final StringBuilder imageHashes = new StringBuilder("[");
+        for (int i = 0; i < IMAGE_HASHES; i++) {
+            if (i > 0) {
+                imageHashes.append(",");
+            }
+            imageHashes.append("\"0123456789abcdef").append(i).append("\"");
+        }
+        imageHashes.append("]");
+        mMessage = "{\"type\": \"snapshot_request\", \"payload\": {\"image_hashes\": " + imageHashes +
+                ", \"config\": {\"classes\": " + classes + "}}}";
+
+        final JSONObject tree = new JSONObject(mMessage);
+        final JSONObject streamed = EditorConnection.readMessage(mMessage);
+        final String expectedConfig = tree.getJSONObject("payload").getJSONObject("config").toString();
+        if (!tree.getString("type").equals(streamed.getString("type")) ||
+                !expectedConfig.equals(streamed.getJSONObject("payload").getJSONObject("config").toString())) {
+            throw new IllegalStateException("Streamed snapshot request doesn't match org.json: " + streamed);
+        }
+    }
+
+    @Test
+    public void orgJsonRead() throws JSONException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            new JSONObject(mMessage).getString("type");
+        }
+    }
+
+    @Test
+    public void streamedRead() throws JSONException {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            EditorConnection.readMessage(mMessage).getString("type");
+        }
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private String mMessage;
+
+    private static final int CLASSES = 100;
+    private static final int IMAGE_HASHES = 300;
+}
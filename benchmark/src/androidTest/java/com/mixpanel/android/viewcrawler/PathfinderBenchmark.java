@@ -0,0 +1,113 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.content.Context;
+import android.view.View;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matching edit and event binding paths against a hierarchy of a few hundred views.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PathfinderBenchmark {
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mRoot = new LinearLayout(context);
+        for (int section = 0; section < SECTIONS; section++) {
+            final LinearLayout sectionView = new LinearLayout(context);
+            for (int row = 0; row < ROWS; row++) {
+                final LinearLayout rowView = new LinearLayout(context);
+                for (int cell = 0; cell < CELLS; cell++) {
+                    final TextView cellView = new TextView(context);
+                    cellView.setId(CELL_ID_BASE + cell);
+                    rowView.addView(cellView);
+                }
+                sectionView.addView(rowView);
+            }
+            mRoot.addView(sectionView);
+        }
+
+        mPathfinder = new Pathfinder();
+        mAccumulator = new CountingAccumulator();
+    }
+
+    @Test
+    public void findByIndexedPath() {
+        // What the editor records for a view without an id: class and index at every level
+        final List<Pathfinder.PathElement> path = new ArrayList<Pathfinder.PathElement>();
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.LinearLayout", -1, -1));
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.LinearLayout", SECTIONS - 1, -1));
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.LinearLayout", ROWS - 1, -1));
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, "android.widget.TextView", CELLS - 1, -1));
+        run(path);
+    }
+
+    @Test
+    public void findByShortestPrefixId() {
+        // Searches the whole tree depth first, for a view that is the last one visited
+        final List<Pathfinder.PathElement> path = new ArrayList<Pathfinder.PathElement>();
+        path.add(element(Pathfinder.PathElement.SHORTEST_PREFIX, null, SECTIONS * ROWS - 1, CELL_ID_BASE + CELLS - 1));
+        run(path);
+    }
+
+    @Test
+    public void findAllMatches() {
+        // An unindexed path matches every cell with the id, as event bindings on list rows do
+        final List<Pathfinder.PathElement> path = new ArrayList<Pathfinder.PathElement>();
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, null, -1, -1));
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, null, -1, -1));
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, null, -1, -1));
+        path.add(element(Pathfinder.PathElement.ZERO_LENGTH_PREFIX, null, -1, CELL_ID_BASE));
+        run(path);
+    }
+
+    private void run(List<Pathfinder.PathElement> path) {
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            mPathfinder.findTargetsInRoot(mRoot, path, mAccumulator);
+        }
+        if (0 == mAccumulator.count) {
+            throw new IllegalStateException("Path " + path + " didn't match anything");
+        }
+    }
+
+    private static Pathfinder.PathElement element(int prefix, String viewClass, int index, int id) {
+        return new Pathfinder.PathElement(prefix, viewClass, index, id, null, null);
+    }
+
+    private static class CountingAccumulator implements Pathfinder.Accumulator {
+        @Override
+        public void accumulate(View v) {
+            count++;
+        }
+
+        public int count;
+    }
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private LinearLayout mRoot;
+    private Pathfinder mPathfinder;
+    private CountingAccumulator mAccumulator;
+
+    private static final int SECTIONS = 5;
+    private static final int ROWS = 10;
+    private static final int CELLS = 6;
+    private static final int CELL_ID_BASE = 1000;
+}
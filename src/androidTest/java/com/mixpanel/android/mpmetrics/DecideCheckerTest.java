@@ -84,6 +84,20 @@ public class DecideCheckerTest extends AndroidTestCase {
         mEventBinder.bindingsSeen.clear();
     }
 
+    public void testImageRetryAfterHoldsBackDecide() {
+        mDecideChecker.addDecideCheck(mDecideMessages1);
+        mDecideChecker.noteImageRetryAfter(new RemoteService.ServiceUnavailableException("Service Unavailable", "60"));
+
+        try {
+            mDecideChecker.runDecideCheck(mDecideMessages1.getToken(), mDecideMessages1.getServiceName(), mPoster);
+            fail("Decide should wait for the image host");
+        } catch (final RemoteService.ServiceUnavailableException e) {
+            assertTrue(e.getRetryAfter() > 0);
+            assertTrue(e.getRetryAfter() <= 60);
+        }
+        assertUpdatesSeen(new JSONArray[] {});
+    }
+
     public void testDecideResponses() throws DecideChecker.UnintelligibleMessageException, JSONException {
         {
             final String nonsense = "I AM NONSENSE";
@@ -230,6 +244,22 @@ public class DecideCheckerTest extends AndroidTestCase {
         assertFalse(mDecideMessages1.shouldTrackAutomaticEvent());
     }
 
+    public void testStreamedSectionsMatchTree() throws DecideChecker.UnintelligibleMessageException, JSONException {
+        final String response = "{\"unknown\": {\"nested\": [1, 2, {\"deep\": null}]}, " +
+                "\"variants\": [{\"id\": 1, \"experiment_id\": 2, \"actions\": [], \"tweaks\": [{\"name\": \"t\", \"value\": 1.5}]}], " +
+                "\"event_bindings\": [{\"event_name\": \"e\", \"path\": [{\"index\": 0}], \"big\": 4294901760}], " +
+                "\"integrations\": \"not an array\", \"automatic_events\": true}";
+        final JSONObject tree = new JSONObject(response);
+
+        final DecideChecker.Result parsed = DecideChecker.parseDecideResponse(response);
+        assertEquals(tree.getJSONArray("variants").toString(), parsed.variants.toString());
+        assertEquals(tree.getJSONArray("event_bindings").toString(), parsed.eventBindings.toString());
+        assertEquals(4294901760L, parsed.eventBindings.getJSONObject(0).get("big"));
+        assertNull(parsed.integrations);
+        assertTrue(parsed.automaticEvents);
+        assertTrue(parsed.notifications.isEmpty());
+    }
+
     private void assertUpdatesSeen(JSONArray[] expected) {
         assertEquals(expected.length, mEventBinder.bindingsSeen.size());
         for (int bindingCallIx = 0; bindingCallIx < expected.length; bindingCallIx++) {
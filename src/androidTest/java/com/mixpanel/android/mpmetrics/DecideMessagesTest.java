@@ -108,6 +108,28 @@ public class DecideMessagesTest extends AndroidTestCase {
         assertNull(mDecideMessages.getNotification(testEvent2, false));
     }
 
+    public void testTriggeredInappsInListOrder() throws JSONException, BadDecideObjectException {
+        final String miniTemplate = "{\"display_triggers\": %s, \"body\": \"A\", \"image_tint_color\": 4294967295, \"border_color\": 4294967295, \"message_id\": 85151, \"bg_color\": 3858759680, \"extras\": {}, \"image_url\": \"https://cdn.mxpnl.com/site_media/images/engage/inapp_messages/mini/icon_megaphone.png\", \"cta_url\": null, \"type\": \"mini\", \"id\": %d, \"body_color\": 4294967295}";
+        final List<InAppNotification> triggered = new ArrayList<>();
+        triggered.add(new MiniInAppNotification(new JSONObject(String.format(miniTemplate,
+                "[{\"event\": \"named_event\", \"selector\": {\"operator\": \"defined\", \"children\": [{\"property\": \"event\", \"value\": \"never\"}]}}]", 3000))));
+        triggered.add(new MiniInAppNotification(new JSONObject(String.format(miniTemplate,
+                "[{\"event\": \"$any_event\"}, {\"event\": \"named_event\"}]", 3001))));
+        triggered.add(new MiniInAppNotification(new JSONObject(String.format(miniTemplate,
+                "[{\"event\": \"named_event\"}]", 3002))));
+        mDecideMessages.reportResults(new ArrayList<InAppNotification>(), triggered, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+
+        final AnalyticsMessages.EventDescription named = new AnalyticsMessages.EventDescription("named_event", new JSONObject(), "TEST TOKEN", null);
+        final AnalyticsMessages.EventDescription other = new AnalyticsMessages.EventDescription("other_event", new JSONObject(), "TEST TOKEN", null);
+
+        // 3000 doesn't match its selector, and 3001 comes before 3002
+        assertEquals(3001, mDecideMessages.getNotification(named, true).getId());
+        assertEquals(3001, mDecideMessages.getNotification(other, false).getId());
+        assertNull(mDecideMessages.getNotification(other, false));
+        assertEquals(3002, mDecideMessages.getNotification(named, false).getId());
+        assertNull(mDecideMessages.getNotification(named, false));
+    }
+
     public void testDuplicateIds() throws JSONException, BadDecideObjectException {
 
         mDecideMessages.reportResults(mSomeNotifications, mSomeTriggeredNotifications, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
@@ -180,6 +202,33 @@ public class DecideMessagesTest extends AndroidTestCase {
         assertNull(mListenerCalls.peek());
     }
 
+    public void testNotificationsReportedLater() {
+        final List<InAppNotification> none = new ArrayList<InAppNotification>();
+        mDecideMessages.setDistinctId("USER 1");
+        mDecideMessages.reportResults(none, none, mSomeBindings, mSomeVariants, mIsAutomaticEventsEnabled, null);
+        mListenerCalls.clear();
+        assertNull(mDecideMessages.getNotification(false));
+        assertTrue(mDecideMessages.isNewNotification(mSomeNotifications.get(0).getId()));
+
+        // Loaded for a user we've since switched away from
+        mDecideMessages.reportNotifications("USER 0", mSomeNotifications, none);
+        assertNull(mListenerCalls.peek());
+        assertNull(mDecideMessages.getNotification(true));
+
+        mDecideMessages.reportNotifications("USER 1", mSomeNotifications.subList(0, 1), none);
+        assertEquals(mListenerCalls.poll(), "CALLED");
+        assertFalse(mDecideMessages.isNewNotification(mSomeNotifications.get(0).getId()));
+        assertEquals(mSomeNotifications.get(0), mDecideMessages.getNotification(true));
+
+        mDecideMessages.reportNotifications("USER 1", none, mSomeTriggeredNotifications);
+        assertEquals(mListenerCalls.poll(), "CALLED");
+        assertTrue(mDecideMessages.hasNotificationsAvailable());
+
+        // Already reported
+        mDecideMessages.reportNotifications("USER 1", mSomeNotifications.subList(0, 1), none);
+        assertNull(mListenerCalls.peek());
+    }
+
     private BlockingQueue<String> mListenerCalls;
     private DecideMessages.OnNewResultsListener mMockListener;
     private UpdatesFromMixpanel mMockUpdates;
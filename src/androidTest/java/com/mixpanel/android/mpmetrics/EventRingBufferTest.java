@@ -0,0 +1,254 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+public class EventRingBufferTest extends AndroidTestCase {
+
+    public void testCapacityAndOrder() {
+        final EventRingBuffer buffer = new EventRingBuffer(5);
+        assertEquals(8, buffer.capacity());
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(buffer.offer(event(0, i)));
+        }
+        assertFalse(buffer.offer(event(0, 8)));
+        assertEquals(8, buffer.size());
+
+        final AnalyticsMessages.EventDescription[] out = new AnalyticsMessages.EventDescription[3];
+        assertEquals(3, buffer.drainTo(out));
+        assertEquals(0, sequenceOf(out[0]));
+        assertEquals(2, sequenceOf(out[2]));
+        assertEquals(5, buffer.size());
+
+        // Room again, and the new events come out after the old ones
+        assertTrue(buffer.offer(event(0, 8)));
+        final AnalyticsMessages.EventDescription[] rest = new AnalyticsMessages.EventDescription[16];
+        assertEquals(6, buffer.drainTo(rest));
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i + 3, sequenceOf(rest[i]));
+        }
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.drainTo(rest));
+    }
+
+    public void testManyProducers() throws InterruptedException {
+        final EventRingBuffer buffer = new EventRingBuffer(64);
+        final int producers = 4;
+        final int eventsEach = 20000;
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsEach; i++) {
+                        final AnalyticsMessages.EventDescription event = event(producer, i);
+                        while (!buffer.offer(event)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        // Each producer's events must come out in the order it added them
+        final int[] next = new int[producers];
+        final AnalyticsMessages.EventDescription[] out = new AnalyticsMessages.EventDescription[buffer.capacity()];
+        int received = 0;
+        while (received < producers * eventsEach) {
+            final int count = buffer.drainTo(out);
+            for (int i = 0; i < count; i++) {
+                final int producer = Integer.parseInt(out[i].getEventName());
+                assertEquals(next[producer], sequenceOf(out[i]));
+                next[producer]++;
+            }
+            received += count;
+            if (count == 0) {
+                Thread.yield();
+            }
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, buffer.size());
+    }
+
+    public void testBufferedEventsAreWrittenTogether() throws Exception {
+        final BlockingQueue<String> requestBodies = new LinkedBlockingQueue<String>();
+        final RemoteService poster = new HttpService() {
+            @Override
+            public void checkIsMixpanelBlocked() {
+                // No network in tests
+            }
+
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+
+            @Override
+            public byte[] performRequest(String endpointUrl, String token, String jsonPayload, SSLSocketFactory socketFactory)
+                    throws ServiceUnavailableException, IOException {
+                requestBodies.add(jsonPayload);
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.EventBufferWindow", 60 * 1000); // Only drained by the flush
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushInterval", -1);
+        final MPConfig config = new MPConfig(metaData, getContext(), false);
+
+        final MPDbAdapter dbAdapter = new MPDbAdapter(getContext(), "mixpanel_event_ring_buffer_test");
+        dbAdapter.deleteDB();
+
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return dbAdapter;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                messages.eventsMessage(new AnalyticsMessages.EventDescription("Buffered Event", new JSONObject().put("seq", i), TOKEN, SERVICE_NAME));
+            }
+            messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, SERVICE_NAME));
+
+            final String body = requestBodies.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(body);
+            final JSONArray events = new JSONArray(body);
+            assertEquals(10, events.length());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i, events.getJSONObject(i).getJSONObject("prop").getInt("seq"));
+            }
+            assertEquals(1, messages.getPipelineMetrics().getDbInsert().getCount());
+            assertEquals(0, messages.getPipelineMetrics().getEventBufferSpills());
+        } finally {
+            messages.hardKill();
+            dbAdapter.deleteDB();
+        }
+    }
+
+    public void testEventsTrackedDuringUploadAreWrittenBetweenRequests() throws Exception {
+        final BlockingQueue<String> requestBodies = new LinkedBlockingQueue<String>();
+        final CountDownLatch releaseFirstRequest = new CountDownLatch(1);
+        final RemoteService poster = new HttpService() {
+            @Override
+            public void checkIsMixpanelBlocked() {
+                // No network in tests
+            }
+
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+
+            @Override
+            public byte[] performRequest(String endpointUrl, String token, String jsonPayload, SSLSocketFactory socketFactory)
+                    throws ServiceUnavailableException, IOException {
+                requestBodies.add(jsonPayload);
+                try {
+                    releaseFirstRequest.await(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.EventBufferWindow", 60 * 1000); // Longer than the test
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushInterval", -1);
+        final MPConfig config = new MPConfig(metaData, getContext(), false);
+
+        final MPDbAdapter dbAdapter = new MPDbAdapter(getContext(), "mixpanel_event_ring_buffer_test");
+        dbAdapter.deleteDB();
+
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return dbAdapter;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        try {
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("Before Upload", new JSONObject(), TOKEN, SERVICE_NAME));
+            messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, SERVICE_NAME));
+            assertNotNull(requestBodies.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+
+            // The worker is stuck in the upload, so this event can only be written once the request returns
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("During Upload", new JSONObject(), TOKEN, SERVICE_NAME));
+            messages.drainEventBuffer();
+            releaseFirstRequest.countDown();
+
+            // Written after the first request and sent by the same upload, not left for the buffering window
+            final String body = requestBodies.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(body);
+            final JSONArray events = new JSONArray(body);
+            assertEquals(1, events.length());
+            assertEquals("During Upload", events.getJSONObject(0).getString("event"));
+        } finally {
+            releaseFirstRequest.countDown();
+            messages.hardKill();
+            dbAdapter.deleteDB();
+        }
+    }
+
+    private static AnalyticsMessages.EventDescription event(int producer, int sequence) {
+        final JSONObject properties = new JSONObject();
+        try {
+            properties.put("seq", sequence);
+        } catch (final JSONException e) {
+            throw new RuntimeException(e);
+        }
+        return new AnalyticsMessages.EventDescription(Integer.toString(producer), properties, TOKEN, SERVICE_NAME);
+    }
+
+    private static int sequenceOf(AnalyticsMessages.EventDescription event) {
+        return event.getProperties().optInt("seq", -1);
+    }
+
+    private static final String TOKEN = "Test Event Ring Buffer";
+    private static final String SERVICE_NAME = "Test Service";
+    private static final int POLL_WAIT_SECONDS = 10;
+}
@@ -14,7 +14,9 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
@@ -176,6 +178,31 @@ public class HttpTest extends AndroidTestCase {
         }
     }
 
+    public void testRequestGivesUpAtDeadline() throws IOException, RemoteService.ServiceUnavailableException {
+        // Accepts the connection but never answers, so only the deadline can end the read
+        final ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            final long start = System.currentTimeMillis();
+            final HttpService service = new HttpService(start + 500);
+            try {
+                service.performRequest("http://127.0.0.1:" + server.getLocalPort() + "/", null, null, null);
+                fail("A request to a server that never answers should time out");
+            } catch (final SocketTimeoutException e) {
+                ; // Expected
+            }
+            assertTrue(System.currentTimeMillis() - start < 2000);
+
+            try {
+                service.performRequest("http://127.0.0.1:" + server.getLocalPort() + "/", null, null, null);
+                fail("A request after the deadline should fail without connecting");
+            } catch (final SocketTimeoutException e) {
+                ; // Expected
+            }
+        } finally {
+            server.close();
+        }
+    }
+
     public void runBasicSucceed() throws InterruptedException {
         mCleanupCalls.clear();
         mMetrics.track(SUCCEED_TEXT, null);
@@ -0,0 +1,310 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Process;
+import android.util.Log;
+
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pumps events through a real MixpanelAPI, AnalyticsMessages, database and HttpService at a steady
+ * rate, into a {@link MockIngestionServer}, and reports what came out the other end: how long events
+ * took to arrive, whether any were lost or sent twice, how much the database grew, and how much CPU
+ * the Mixpanel worker thread used.
+ *
+ * The SDK's own flush and retry timing is left alone, so a scenario with faults takes as long to drain
+ * as it would on a device, which is at least a minute after the last failure.
+ */
+/* package */ class LoadHarness {
+
+    public static final String SEQUENCE_PROPERTY = "load_seq";
+    public static final String SENT_NANOS_PROPERTY = "load_sent_nanos";
+
+    public static class Scenario {
+        public Scenario(String name, int eventsPerSecond, int durationSeconds, MockIngestionServer.FaultPlan faults) {
+            this.name = name;
+            this.eventsPerSecond = eventsPerSecond;
+            this.durationSeconds = durationSeconds;
+            this.faults = faults;
+        }
+
+        public int getEventCount() {
+            return eventsPerSecond * durationSeconds;
+        }
+
+        public final String name;
+        public final int eventsPerSecond;
+        public final int durationSeconds;
+        public final MockIngestionServer.FaultPlan faults;
+        public int flushIntervalMillis = 1000;
+        public int bulkUploadLimit = 40;
+        public int drainTimeoutSeconds = 60;
+    }
+
+    public static class Report {
+        public String scenario;
+        public int eventsSent;
+        public double achievedEventsPerSecond;
+        public int eventsDelivered;
+        public int eventsLost;
+        public int duplicateEvents;
+        public long drainMillis;
+        public long latencyP50Millis;
+        public long latencyP90Millis;
+        public long latencyP99Millis;
+        public long latencyMaxMillis;
+        public int requests;
+        public int serverErrors;
+        public int timeouts;
+        public int droppedConnections;
+        public int malformedRequests;
+        public long retries;
+        public long bytesSent;
+        public long databaseStartBytes;
+        public long databasePeakBytes;
+        public long databaseEndBytes;
+        public long workerCpuMillis;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Load scenario \"%s\": sent %d events at %.1f/s, delivered %d, lost %d, duplicated %d, drained in %dms\n" +
+                    "    delivery latency p50 %dms, p90 %dms, p99 %dms, max %dms\n" +
+                    "    %d requests: %d server errors, %d timeouts, %d dropped connections, %d malformed; %d retries, %d bytes accepted\n" +
+                    "    database %d bytes at start, %d at peak, %d at end\n" +
+                    "    worker thread CPU %dms",
+                    scenario, eventsSent, achievedEventsPerSecond, eventsDelivered, eventsLost, duplicateEvents, drainMillis,
+                    latencyP50Millis, latencyP90Millis, latencyP99Millis, latencyMaxMillis,
+                    requests, serverErrors, timeouts, droppedConnections, malformedRequests, retries, bytesSent,
+                    databaseStartBytes, databasePeakBytes, databaseEndBytes,
+                    workerCpuMillis);
+        }
+    }
+
+    public LoadHarness(Context context) {
+        mContext = context;
+    }
+
+    public Report run(Scenario scenario) throws IOException, InterruptedException, JSONException {
+        final MockIngestionServer server = new MockIngestionServer(scenario.faults);
+
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushInterval", scenario.flushIntervalMillis);
+        metaData.putInt("com.mixpanel.android.MPConfig.BulkUploadLimit", scenario.bulkUploadLimit);
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", true);
+        metaData.putBoolean("com.mixpanel.android.MPConfig.DisableViewCrawler", true);
+        final MPConfig config = new MPConfig(metaData, mContext, false) {
+            @Override
+            public String getEventsEndpoint(String serviceName) {
+                return server.getTrackUrl();
+            }
+        };
+
+        final RemoteService poster = new HttpService() {
+            @Override
+            public void checkIsMixpanelBlocked() {
+                // The mock server is all we talk to
+            }
+
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+        };
+
+        final MPDbAdapter dbAdapter = new MPDbAdapter(mContext, DATABASE_NAME);
+        dbAdapter.deleteDB();
+
+        final AnalyticsMessages messages = new AnalyticsMessages(mContext) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return dbAdapter;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        final AtomicInteger workerTid = new AtomicInteger(-1);
+        final CountDownLatch firstFlush = new CountDownLatch(1);
+        messages.getPipelineMetrics().addOnFlushListener(new PipelineMetrics.OnFlushListener() {
+            @Override
+            public void onFlush(PipelineMetrics metrics) {
+                workerTid.compareAndSet(-1, Process.myTid());
+                firstFlush.countDown();
+            }
+        });
+
+        final MixpanelAPI mixpanel = new MixpanelAPI(mContext, new TestUtils.EmptyPreferences(mContext), TOKEN, SERVICE_NAME, config, false, null) {
+            @Override
+            /* package */ AnalyticsMessages getAnalyticsMessages() {
+                return messages;
+            }
+
+            @Override
+            /* package */ boolean sendAppOpen() {
+                return false;
+            }
+        };
+
+        final File databaseFile = dbAdapter.getDatabaseFile();
+        final DatabaseSizeSampler sampler = new DatabaseSizeSampler(databaseFile);
+        try {
+            // An empty flush, to start the worker and find out which thread it is
+            mixpanel.flush();
+            if (!firstFlush.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Mixpanel worker didn't start");
+            }
+
+            final Report report = new Report();
+            report.scenario = scenario.name;
+            report.databaseStartBytes = databaseFile.length();
+            final long cpuStart = readThreadCpuMillis(workerTid.get());
+            sampler.start();
+
+            final int eventCount = scenario.getEventCount();
+            final long periodNanos = TimeUnit.SECONDS.toNanos(1) / scenario.eventsPerSecond;
+            final long pumpStart = System.nanoTime();
+            for (int seq = 0; seq < eventCount; seq++) {
+                final long due = pumpStart + seq * periodNanos;
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                final JSONObject properties = new JSONObject();
+                properties.put(SEQUENCE_PROPERTY, seq);
+                properties.put(SENT_NANOS_PROPERTY, System.nanoTime());
+                mixpanel.track(EVENT_NAME, properties);
+            }
+            final long pumpEnd = System.nanoTime();
+            report.eventsSent = eventCount;
+            report.achievedEventsPerSecond = eventCount / ((pumpEnd - pumpStart) / 1e9);
+
+            mixpanel.flush();
+            server.awaitUniqueEvents(eventCount, TimeUnit.SECONDS.toMillis(scenario.drainTimeoutSeconds));
+            report.drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pumpEnd);
+
+            sampler.stop();
+            report.workerCpuMillis = readThreadCpuMillis(workerTid.get()) - cpuStart;
+            report.databasePeakBytes = sampler.getPeakBytes();
+            report.databaseEndBytes = databaseFile.length();
+
+            final LatencyHistogram latency = server.getDeliveryLatency();
+            report.eventsDelivered = server.getUniqueEvents();
+            report.eventsLost = server.getMissingEvents(eventCount);
+            report.duplicateEvents = server.getDuplicateEvents();
+            report.latencyP50Millis = latency.getPercentileMicros(50) / 1000;
+            report.latencyP90Millis = latency.getPercentileMicros(90) / 1000;
+            report.latencyP99Millis = latency.getPercentileMicros(99) / 1000;
+            report.latencyMaxMillis = latency.getMaxMicros() / 1000;
+            report.requests = server.getRequests();
+            report.serverErrors = server.getServerErrors();
+            report.timeouts = server.getTimeouts();
+            report.droppedConnections = server.getDroppedConnections();
+            report.malformedRequests = server.getMalformedRequests();
+            report.retries = messages.getPipelineMetrics().getRetries();
+            report.bytesSent = messages.getPipelineMetrics().getBytesSent();
+
+            Log.i(LOGTAG, report.toString() + "\n    faults: " + scenario.faults);
+            return report;
+        } finally {
+            sampler.stop();
+            messages.hardKill();
+            server.close();
+            dbAdapter.deleteDB();
+        }
+    }
+
+    private static class DatabaseSizeSampler implements Runnable {
+        public DatabaseSizeSampler(File databaseFile) {
+            mDatabaseFile = databaseFile;
+            mPeakBytes = new AtomicLong(databaseFile.length());
+        }
+
+        public void start() {
+            mThread = new Thread(this, "DatabaseSizeSampler");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        public void stop() throws InterruptedException {
+            if (null != mThread) {
+                mThread.interrupt();
+                mThread.join();
+                mThread = null;
+            }
+        }
+
+        public long getPeakBytes() {
+            return mPeakBytes.get();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final long size = mDatabaseFile.length();
+                if (size > mPeakBytes.get()) {
+                    mPeakBytes.set(size);
+                }
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private final File mDatabaseFile;
+        private final AtomicLong mPeakBytes;
+        private Thread mThread;
+
+        private static final long SAMPLE_INTERVAL_MILLIS = 100;
+    }
+
+    // Reads utime + stime from /proc, which counts in clock ticks of 1/100 second on Android
+    private static long readThreadCpuMillis(int tid) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader("/proc/self/task/" + tid + "/stat"));
+        try {
+            final String stat = reader.readLine();
+            // The thread name is in parentheses and may have spaces in it
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            final long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+            return ticks * 10;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private final Context mContext;
+
+    private static final String TOKEN = "Load Harness Token";
+    private static final String SERVICE_NAME = "Load Harness Service";
+    private static final String EVENT_NAME = "Load Harness Event";
+    private static final String DATABASE_NAME = "mixpanel_load_harness";
+    private static final String LOGTAG = "MixpanelAPI.LoadHarness";
+}
@@ -0,0 +1,136 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+/**
+ * End to end load scenarios, run with {@link LoadHarness}. Only the short steady state scenario runs
+ * with the rest of the tests. The fault scenarios take several minutes each, because the library waits
+ * at least a minute before retrying a failed upload, so they only run when asked for:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class com.mixpanel.android.mpmetrics.LoadHarnessTest \
+ *     -e mixpanelLoadTest true [-e loadEventsPerSecond 200] [-e loadDurationSeconds 60] \
+ *     com.mixpanel.android.mpmetrics.test/android.test.InstrumentationTestRunner
+ * </pre>
+ *
+ * Each scenario logs its report under the tag MixpanelAPI.LoadHarness.
+ */
+public class LoadHarnessTest extends InstrumentationTestCase {
+
+    public void testSteadyState() throws Exception {
+        final LoadHarness.Scenario scenario = scenario("steady state", 50, 5,
+                new MockIngestionServer.FaultPlan().setLatency(20, 20));
+        final LoadHarness.Report report = run(scenario);
+
+        assertEquals(0, report.eventsLost);
+        assertEquals(0, report.duplicateEvents);
+        assertEquals(0, report.retries);
+        assertEquals(0, report.malformedRequests);
+    }
+
+    public void testServerErrors() throws Exception {
+        if (!isLoadTestEnabled()) {
+            return;
+        }
+        final LoadHarness.Scenario scenario = scenario("server errors", 50, 10,
+                new MockIngestionServer.FaultPlan().setLatency(20, 20).setServerErrors(0.5, 503, -1).setFaultyRequests(6));
+        final LoadHarness.Report report = run(scenario);
+
+        assertEquals(0, report.eventsLost);
+        assertEquals(0, report.duplicateEvents);
+        assertEquals(report.serverErrors, report.retries);
+    }
+
+    public void testRetryAfter() throws Exception {
+        if (!isLoadTestEnabled()) {
+            return;
+        }
+        final LoadHarness.Scenario scenario = scenario("retry after", 50, 10,
+                new MockIngestionServer.FaultPlan().setServerErrors(1.0, 503, 120).setFaultyRequests(1));
+        final LoadHarness.Report report = run(scenario);
+
+        assertEquals(0, report.eventsLost);
+        assertEquals(0, report.duplicateEvents);
+        assertEquals(1, report.retries);
+    }
+
+    public void testTimeouts() throws Exception {
+        if (!isLoadTestEnabled()) {
+            return;
+        }
+        final LoadHarness.Scenario scenario = scenario("timeouts", 20, 10,
+                new MockIngestionServer.FaultPlan().setLatency(20, 20).setTimeouts(0.5, 35000).setFaultyRequests(4));
+        final LoadHarness.Report report = run(scenario);
+
+        // A lost response means the batch is sent again, so duplicates are expected here
+        assertEquals(0, report.eventsLost);
+        assertTrue(report.duplicateEvents <= report.timeouts * scenario.bulkUploadLimit);
+    }
+
+    public void testDroppedConnections() throws Exception {
+        if (!isLoadTestEnabled()) {
+            return;
+        }
+        final LoadHarness.Scenario scenario = scenario("dropped connections", 50, 10,
+                new MockIngestionServer.FaultPlan().setLatency(20, 20).setDroppedConnections(0.3).setFaultyRequests(10));
+        final LoadHarness.Report report = run(scenario);
+
+        assertEquals(0, report.eventsLost);
+        assertEquals(0, report.duplicateEvents);
+    }
+
+    public void testBurst() throws Exception {
+        if (!isLoadTestEnabled()) {
+            return;
+        }
+        final LoadHarness.Scenario scenario = scenario("burst", 1000, 30,
+                new MockIngestionServer.FaultPlan().setLatency(100, 100));
+        final LoadHarness.Report report = run(scenario);
+
+        assertEquals(0, report.eventsLost);
+        assertEquals(0, report.duplicateEvents);
+    }
+
+    private LoadHarness.Report run(LoadHarness.Scenario scenario) throws Exception {
+        return new LoadHarness(getInstrumentation().getTargetContext()).run(scenario);
+    }
+
+    // Applies any rate and duration given as instrumentation arguments
+    private LoadHarness.Scenario scenario(String name, int eventsPerSecond, int durationSeconds, MockIngestionServer.FaultPlan faults) {
+        final Bundle arguments = getArguments();
+        final int rate = Integer.parseInt(arguments.getString("loadEventsPerSecond", Integer.toString(eventsPerSecond)));
+        final int duration = Integer.parseInt(arguments.getString("loadDurationSeconds", Integer.toString(durationSeconds)));
+        final LoadHarness.Scenario scenario = new LoadHarness.Scenario(name, rate, duration, faults);
+        if (faults.getFaultyRequests() != Integer.MAX_VALUE) {
+            // Backoff doubles from a minute with every failure, up to ten minutes
+            scenario.drainTimeoutSeconds = 15 * 60;
+        }
+        return scenario;
+    }
+
+    private boolean isLoadTestEnabled() {
+        final boolean enabled = "true".equals(getArguments().getString("mixpanelLoadTest"));
+        if (!enabled) {
+            Log.i(LOGTAG, "Skipping " + getName() + ", run with -e mixpanelLoadTest true to include it");
+        }
+        return enabled;
+    }
+
+    @SuppressWarnings("deprecation")
+    private Bundle getArguments() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
+                getInstrumentation() instanceof InstrumentationTestRunner) {
+            final Bundle arguments = ((InstrumentationTestRunner) getInstrumentation()).getArguments();
+            if (null != arguments) {
+                return arguments;
+            }
+        }
+        return new Bundle();
+    }
+
+    private static final String LOGTAG = "MixpanelAPI.LoadHarness";
+}
@@ -3,6 +3,7 @@ package com.mixpanel.android.mpmetrics;
 import android.os.Build;
 import android.os.Bundle;
 import android.test.AndroidTestCase;
+import com.mixpanel.android.util.MPTrace;
 import com.mixpanel.android.viewcrawler.ViewCrawler;
 
 public class MPConfigTest extends AndroidTestCase {
@@ -87,6 +88,71 @@ public class MPConfigTest extends AndroidTestCase {
         assertFalse(config.DEBUG);
     }
 
+    public void testSetEnableTracing() throws Exception {
+        final Bundle metaData = new Bundle();
+        MPConfig config = mpConfig(metaData);
+        assertFalse(config.getEnableTracing());
+        assertFalse(MPTrace.isEnabled());
+
+        final MixpanelAPI mixpanelAPI = mixpanelApi(config);
+        mixpanelAPI.setEnableTracing(true);
+        assertTrue(config.getEnableTracing());
+        assertTrue(MPTrace.isEnabled());
+
+        // Sections and counters should never throw, whatever the API level
+        final boolean traced = MPTrace.beginSection(MPTrace.TRACK);
+        assertEquals(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2, traced);
+        MPTrace.setCounter(MPTrace.COUNTER_QUEUE_DEPTH, 10);
+        MPTrace.endSection(traced);
+
+        mixpanelAPI.setEnableTracing(false);
+        assertFalse(config.getEnableTracing());
+        assertFalse(MPTrace.isEnabled());
+        assertFalse(MPTrace.beginSection(MPTrace.TRACK));
+    }
+
+    public void testTracingToggledWithinSection() throws Exception {
+        try {
+            // Turned on part way through, the section that was skipped must not be ended
+            MPTrace.setEnabled(false);
+            final boolean skipped = MPTrace.beginSection(MPTrace.TRACK);
+            MPTrace.setEnabled(true);
+            assertFalse(skipped);
+            MPTrace.endSection(skipped);
+
+            // Turned off part way through, the section that was begun is still ended
+            final boolean begun = MPTrace.beginSection(MPTrace.TRACK);
+            MPTrace.setEnabled(false);
+            assertEquals(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2, begun);
+            MPTrace.endSection(begun);
+        } finally {
+            MPTrace.setEnabled(false);
+        }
+    }
+
+    public void testEnableTracingMetaData() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putBoolean("com.mixpanel.android.MPConfig.EnableTracing", true);
+        try {
+            MPConfig config = mpConfig(metaData);
+            assertTrue(config.getEnableTracing());
+            assertTrue(MPTrace.isEnabled());
+        } finally {
+            MPTrace.setEnabled(false);
+        }
+    }
+
+    public void testQueueStoreMetaData() throws Exception {
+        final Bundle metaData = new Bundle();
+        assertEquals(MPConfig.QUEUE_STORE_DATABASE, mpConfig(metaData).getQueueStore());
+
+        metaData.putString("com.mixpanel.android.MPConfig.QueueStore", "journal");
+        assertEquals(MPConfig.QUEUE_STORE_JOURNAL, mpConfig(metaData).getQueueStore());
+
+        metaData.putString("com.mixpanel.android.MPConfig.QueueStore", "carrier pigeon");
+        assertEquals(MPConfig.QUEUE_STORE_DATABASE, mpConfig(metaData).getQueueStore());
+    }
+
     public void testDisableViewCrawlerDefaultsToFalse() throws Exception {
         final Bundle metaData = new Bundle();
 
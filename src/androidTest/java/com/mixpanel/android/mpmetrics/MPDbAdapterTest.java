@@ -0,0 +1,95 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class MPDbAdapterTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mUseJsonFunctions = true;
+        mDb = new MPDbAdapter(getContext(), "mixpanel_db_adapter_test") {
+            @Override
+            protected boolean useJsonFunctions(SQLiteDatabase db) {
+                return mUseJsonFunctions && super.useJsonFunctions(db);
+            }
+        };
+        mDb.deleteDB();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.deleteDB();
+        super.tearDown();
+    }
+
+    public void testPushAnonymousUpdatesWithJsonFunctions() throws JSONException {
+        checkPushAnonymousUpdates();
+    }
+
+    public void testPushAnonymousUpdatesInChunks() throws JSONException {
+        mUseJsonFunctions = false;
+        checkPushAnonymousUpdates();
+    }
+
+    public void testPendingProperties() throws JSONException {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("referrer", "utm_source=test");
+        assertEquals(0, mDb.addPendingProperties(properties, TOKEN, SERVICE_NAME));
+
+        mDb.addJSON(new JSONObject().put("seq", 0).put("prop", new JSONObject().put("referrer", "old")), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        mDb.addJSON(new JSONObject().put("seq", 1).put("prop", new JSONObject()), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        mDb.addJSON(new JSONObject().put("prop", new JSONObject()), OTHER_TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        assertEquals(2, mDb.addPendingProperties(properties, TOKEN, SERVICE_NAME));
+
+        // Only events queued before the properties get them
+        mDb.addJSON(new JSONObject().put("seq", 2).put("prop", new JSONObject()), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        String[] data = mDb.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        JSONArray events = new JSONArray(data[1]);
+        assertEquals("utm_source=test", events.getJSONObject(0).getJSONObject("prop").getString("referrer"));
+        assertEquals("utm_source=test", events.getJSONObject(1).getJSONObject("prop").getString("referrer"));
+        assertFalse(events.getJSONObject(2).getJSONObject("prop").has("referrer"));
+        assertFalse(new JSONArray(mDb.generateDataString(MPDbAdapter.Table.EVENTS, OTHER_TOKEN, true)[1]).getJSONObject(0).getJSONObject("prop").has("referrer"));
+
+        // Once the events they cover are sent, the properties are gone
+        mDb.cleanupEvents("2", MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+        mDb.addJSON(new JSONObject().put("seq", 3).put("prop", new JSONObject()), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        events = new JSONArray(mDb.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[1]);
+        assertEquals(2, events.length());
+        assertFalse(events.getJSONObject(0).getJSONObject("prop").has("referrer"));
+    }
+
+    private void checkPushAnonymousUpdates() throws JSONException {
+        for (int i = 0; i < 600; i++) {
+            mDb.addJSON(new JSONObject().put("$set", new JSONObject().put("seq", i)), TOKEN, SERVICE_NAME, MPDbAdapter.Table.ANONYMOUS_PEOPLE, i % 2 == 0);
+        }
+        mDb.addJSON(new JSONObject().put("$set", new JSONObject()), OTHER_TOKEN, SERVICE_NAME, MPDbAdapter.Table.ANONYMOUS_PEOPLE, false);
+
+        assertEquals(600, mDb.pushAnonymousUpdatesToPeopleDb(TOKEN, SERVICE_NAME, "identified"));
+        assertNull(mDb.generateDataString(MPDbAdapter.Table.ANONYMOUS_PEOPLE, TOKEN, true));
+        assertNotNull(mDb.generateDataString(MPDbAdapter.Table.ANONYMOUS_PEOPLE, OTHER_TOKEN, true));
+
+        // In the order they were queued, and the automatic flag goes with them
+        String[] data = mDb.generateDataString(MPDbAdapter.Table.PEOPLE, TOKEN, true);
+        assertEquals("600", data[2]);
+        final JSONObject first = new JSONArray(data[1]).getJSONObject(0);
+        assertEquals("identified", first.getString("$distinct_id"));
+        assertEquals(0, first.getJSONObject("$set").getInt("seq"));
+        assertEquals("300", mDb.generateDataString(MPDbAdapter.Table.PEOPLE, TOKEN, false)[2]);
+    }
+
+    private MPDbAdapter mDb;
+    private boolean mUseJsonFunctions;
+
+    private static final String TOKEN = "Test Database Token";
+    private static final String OTHER_TOKEN = "Other Database Token";
+    private static final String SERVICE_NAME = "Test Service";
+}
@@ -0,0 +1,258 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MPJournalStoreTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new MPJournalStore(getContext(), JOURNAL_NAME);
+        mStore.deleteDB();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.deleteDB();
+        super.tearDown();
+    }
+
+    public void testAddReadAndCleanup() throws JSONException {
+        for (int i = 0; i < 60; i++) {
+            assertEquals(i + 1, mStore.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, i % 10 == 0));
+        }
+
+        String[] data = mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals("60", data[2]);
+        JSONArray events = new JSONArray(data[1]);
+        assertEquals(50, events.length());
+        assertEquals(0, events.getJSONObject(0).getInt("seq"));
+        assertEquals(49, events.getJSONObject(49).getInt("seq"));
+
+        assertEquals("54", mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false)[2]);
+
+        mStore.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+        data = mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals("10", data[2]);
+        assertEquals(50, new JSONArray(data[1]).getJSONObject(0).getInt("seq"));
+
+        mStore.cleanupAutomaticEvents(TOKEN, SERVICE_NAME);
+        assertEquals("9", mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[2]);
+
+        mStore.cleanupAllEvents(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME);
+        assertNull(mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true));
+    }
+
+    public void testReopen() throws JSONException {
+        for (int i = 0; i < 20; i++) {
+            mStore.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+        mStore.cleanupEvents(mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[0],
+                MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+        mStore.addJSON(event(20), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("referrer", "test");
+        assertEquals(1, mStore.addPendingProperties(properties, TOKEN, SERVICE_NAME));
+
+        final MPJournalStore reopened = new MPJournalStore(getContext(), JOURNAL_NAME);
+        final String[] data = reopened.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals("1", data[2]);
+        final JSONObject event = new JSONArray(data[1]).getJSONObject(0);
+        assertEquals(20, event.getInt("seq"));
+        assertEquals("test", event.getJSONObject("prop").getString("referrer"));
+
+        // New records go after the old ones
+        reopened.addJSON(event(21), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        final JSONArray events = new JSONArray(reopened.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[1]);
+        assertEquals(21, events.getJSONObject(1).getInt("seq"));
+    }
+
+    public void testPendingProperties() throws JSONException {
+        for (int i = 0; i < 3; i++) {
+            mStore.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+        final Map<String, String> referrer = new HashMap<String, String>();
+        referrer.put("referrer", "test");
+        assertEquals(3, mStore.addPendingProperties(referrer, TOKEN, SERVICE_NAME));
+        final Map<String, String> campaign = new HashMap<String, String>();
+        campaign.put("campaign", "spring");
+        assertEquals(3, mStore.addPendingProperties(campaign, TOKEN, SERVICE_NAME));
+        mStore.addJSON(event(3), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+
+        // Still there after reopening, and only for the events queued before them
+        final MPJournalStore reopened = new MPJournalStore(getContext(), JOURNAL_NAME);
+        String[] data = reopened.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        JSONArray events = new JSONArray(data[1]);
+        assertEquals("test", events.getJSONObject(2).getJSONObject("prop").getString("referrer"));
+        assertEquals("spring", events.getJSONObject(2).getJSONObject("prop").getString("campaign"));
+        assertFalse(events.getJSONObject(3).getJSONObject("prop").has("referrer"));
+
+        // Once the events they cover are sent, the properties are gone
+        reopened.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+        reopened.addJSON(event(4), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        events = new JSONArray(new MPJournalStore(getContext(), JOURNAL_NAME).generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[1]);
+        assertEquals(1, events.length());
+        assertFalse(events.getJSONObject(0).getJSONObject("prop").has("referrer"));
+    }
+
+    public void testPushAnonymousUpdates() throws JSONException {
+        mStore.addJSON(new JSONObject().put("$set", new JSONObject().put("a", 1)), TOKEN, SERVICE_NAME, MPDbAdapter.Table.ANONYMOUS_PEOPLE, false);
+        mStore.addJSON(new JSONObject().put("$set", new JSONObject().put("b", 2)), TOKEN, SERVICE_NAME, MPDbAdapter.Table.ANONYMOUS_PEOPLE, false);
+
+        assertEquals(2, mStore.pushAnonymousUpdatesToPeopleDb(TOKEN, SERVICE_NAME, "identified"));
+        assertNull(mStore.generateDataString(MPDbAdapter.Table.ANONYMOUS_PEOPLE, TOKEN, true));
+
+        final JSONArray people = new JSONArray(mStore.generateDataString(MPDbAdapter.Table.PEOPLE, TOKEN, true)[1]);
+        assertEquals(2, people.length());
+        assertEquals("identified", people.getJSONObject(0).getString("$distinct_id"));
+        assertEquals(2, people.getJSONObject(1).getJSONObject("$set").getInt("b"));
+    }
+
+    public void testExpiry() {
+        mStore.addJSON(new JSONObject(), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        assertEquals(0, mStore.cleanupEvents(System.currentTimeMillis() - 60 * 1000, MPDbAdapter.Table.EVENTS));
+        assertEquals(1, mStore.cleanupEvents(System.currentTimeMillis() + 1, MPDbAdapter.Table.EVENTS));
+        assertNull(mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true));
+    }
+
+    public void testSentSegmentsAreDeleted() throws JSONException {
+        final char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        for (int round = 0; round < 30; round++) {
+            for (int i = 0; i < 100; i++) {
+                mStore.addJSON(event(i).put("padding", new String(padding)), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+            }
+            String[] data;
+            while (null != (data = mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true))) {
+                mStore.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+            }
+        }
+
+        // About 3MB went through, but only the newest segment is left
+        assertEquals(1, journalDirectory().list().length);
+    }
+
+    public void testDamagedFrameIsIgnored() throws Exception {
+        mStore.addJSON(event(1), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        mStore.addJSON(event(2), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+
+        // Damage the last byte written, as if the device lost power part way through writing it
+        final File segment = journalDirectory().listFiles()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            final byte[] contents = new byte[(int) file.length()];
+            file.readFully(contents);
+            int last = contents.length - 1;
+            while (contents[last] == 0) {
+                last--;
+            }
+            file.seek(last);
+            file.write(contents[last] ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        final MPJournalStore reopened = new MPJournalStore(getContext(), JOURNAL_NAME);
+        String[] data = reopened.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals("1", data[2]);
+        assertEquals(1, new JSONArray(data[1]).getJSONObject(0).getInt("seq"));
+
+        assertEquals(2, reopened.addJSON(event(3), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false));
+        data = new MPJournalStore(getContext(), JOURNAL_NAME).generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals(3, new JSONArray(data[1]).getJSONObject(1).getInt("seq"));
+    }
+
+    public void testMigrateFromDatabase() throws JSONException {
+        final MPDbAdapter database = new MPDbAdapter(getContext(), "mixpanel_journal_migration_test");
+        database.deleteDB();
+        database.addJSON(event(1), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        database.addJSON(event(2), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, true);
+        database.addJSON(new JSONObject().put("$set", new JSONObject()), TOKEN, SERVICE_NAME, MPDbAdapter.Table.PEOPLE, false);
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("referrer", "test");
+        database.addPendingProperties(properties, TOKEN, SERVICE_NAME);
+
+        mStore.migrateFrom(database);
+        assertFalse(database.getDatabaseFile().exists());
+
+        final String[] data = mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        assertEquals("2", data[2]);
+        assertEquals(2, new JSONArray(data[1]).getJSONObject(1).getInt("seq"));
+        assertEquals("test", new JSONArray(data[1]).getJSONObject(1).getJSONObject("prop").getString("referrer"));
+        assertEquals("1", mStore.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, false)[2]);
+        assertNotNull(mStore.generateDataString(MPDbAdapter.Table.PEOPLE, TOKEN, true));
+    }
+
+    public void testInterruptedMigrationResumes() throws JSONException {
+        final char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        final MPDbAdapter database = new MPDbAdapter(getContext(), "mixpanel_journal_migration_test") {
+            @Override
+            boolean visitAllRecords(long[] afterIds, final RecordVisitor visitor) throws IOException {
+                return super.visitAllRecords(afterIds, new RecordVisitor() {
+                    @Override
+                    public void visit(Table table, long id, String data, long createdAt, boolean isAutomaticRecord, String token, String serviceName) throws IOException {
+                        if (mFailMigration && id > 150) {
+                            throw new IOException("Interrupted");
+                        }
+                        visitor.visit(table, id, data, createdAt, isAutomaticRecord, token, serviceName);
+                    }
+                });
+            }
+        };
+        database.deleteDB();
+        for (int i = 0; i < 200; i++) {
+            database.addJSON(event(i).put("padding", new String(padding)), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+
+        // Some frames were committed before the move stopped, and the database is kept for the rest
+        mFailMigration = true;
+        mStore.migrateFrom(database);
+        assertTrue(database.getDatabaseFile().exists());
+        final int moved = mStore.countRecords(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME);
+        assertTrue(moved > 0 && moved <= 150);
+
+        mFailMigration = false;
+        final MPJournalStore reopened = new MPJournalStore(getContext(), JOURNAL_NAME);
+        reopened.migrateFrom(database);
+        assertFalse(database.getDatabaseFile().exists());
+        assertEquals(200, reopened.countRecords(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME));
+        String[] data;
+        int seq = 0;
+        while (null != (data = reopened.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true))) {
+            final JSONArray events = new JSONArray(data[1]);
+            for (int i = 0; i < events.length(); i++) {
+                assertEquals(seq++, events.getJSONObject(i).getInt("seq"));
+            }
+            reopened.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, true);
+        }
+        assertEquals(200, seq);
+    }
+
+    private File journalDirectory() {
+        return getContext().getDatabasePath(JOURNAL_NAME);
+    }
+
+    private static JSONObject event(int sequence) throws JSONException {
+        return new JSONObject().put("seq", sequence).put("prop", new JSONObject());
+    }
+
+    private MPJournalStore mStore;
+    private boolean mFailMigration;
+
+    private static final String JOURNAL_NAME = "mixpanel_journal_test";
+    private static final String TOKEN = "Test Journal Token";
+    private static final String SERVICE_NAME = "Test Service";
+}
@@ -11,6 +11,8 @@ import android.os.Bundle;
 import android.test.AndroidTestCase;
 
 import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.mockito.Mockito.*;
 
@@ -159,6 +161,52 @@ public class MixpanelNotificationBuilderTest extends AndroidTestCase {
         }
     }
 
+    public void testDeferredImagesLoadedAfterText() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            final Intent intent = new Intent();
+            intent.putExtra("mp_message", "MESSAGE");
+            intent.putExtra("mp_img", VALID_IMAGE_URL);
+            intent.putExtra("mp_icnm_l", VALID_IMAGE_URL);
+
+            final Bitmap fakeBitmap = getFakeBitmap();
+            when(mpPushSpy.getBitmapFromUrl(eq(VALID_IMAGE_URL), anyLong())).thenReturn(fakeBitmap);
+
+            assertNotNull(mpPushSpy.createTextNotification(intent));
+            verify(mpPushSpy, never()).getBitmapFromUrl(anyString());
+            verify(mpPushSpy, never()).getBitmapFromUrl(anyString(), anyLong());
+            verify(mpPushSpy).setBigTextStyle("MESSAGE");
+            assertTrue(mpPushSpy.hasPendingImages());
+
+            assertNotNull(mpPushSpy.loadPendingImages(5000));
+            verify(mpPushSpy, times(2)).getBitmapFromUrl(eq(VALID_IMAGE_URL), anyLong());
+            verify(builderSpy).setLargeIcon(fakeBitmap);
+            verify(mpPushSpy).setBigPictureStyle(fakeBitmap);
+            verify(builderSpy).setOnlyAlertOnce(true);
+            assertFalse(mpPushSpy.hasPendingImages());
+        }
+    }
+
+    public void testDeferredImagesDeadline() {
+        final Intent intent = new Intent();
+        intent.putExtra("mp_message", "MESSAGE");
+        intent.putExtra("mp_icnm_l", VALID_IMAGE_URL);
+
+        final Bitmap fakeBitmap = getFakeBitmap();
+        when(mpPushSpy.getBitmapFromUrl(eq(VALID_IMAGE_URL), anyLong())).thenAnswer(new Answer<Bitmap>() {
+            @Override
+            public Bitmap answer(InvocationOnMock invocation) throws InterruptedException {
+                Thread.sleep(2000);
+                return fakeBitmap;
+            }
+        });
+
+        assertNotNull(mpPushSpy.createTextNotification(intent));
+        final long start = System.currentTimeMillis();
+        assertNull(mpPushSpy.loadPendingImages(100));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        verify(builderSpy, never()).setLargeIcon(any(Bitmap.class));
+    }
+
     public void testThumbnailImageUsingResourceName() {
         final Intent intent = new Intent();
         intent.putExtra("mp_message", "MESSAGE");
@@ -0,0 +1,403 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A stand-in for Mixpanel's ingestion endpoint on the loopback interface, for load testing the
+ * whole pipeline through the real HttpService. It accepts batches of events, remembers which
+ * load harness events it has seen (by their "load_seq" property) and how long each took to arrive,
+ * and can be told to misbehave with a {@link FaultPlan}.
+ */
+/* package */ class MockIngestionServer {
+
+    /**
+     * What the server does to each request. Faults are chosen with a seeded Random, so the same plan
+     * gives the same sequence of responses from run to run, and only the first getFaultyRequests()
+     * requests can be faulted, so that the client can recover and deliver everything afterward.
+     */
+    public static class FaultPlan {
+        public FaultPlan setLatency(int latencyMillis, int jitterMillis) {
+            mLatencyMillis = latencyMillis;
+            mJitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Answer this fraction of requests with the given 5xx status, and a Retry-After header
+         * unless retryAfterSeconds is negative.
+         */
+        public FaultPlan setServerErrors(double rate, int status, int retryAfterSeconds) {
+            mErrorRate = rate;
+            mErrorStatus = status;
+            mRetryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        /**
+         * Accept the events in this fraction of requests, but hold the response for stallMillis and then
+         * hang up. With a stall longer than the client's read timeout this looks like a lost response,
+         * and the client will send the same events again.
+         */
+        public FaultPlan setTimeouts(double rate, int stallMillis) {
+            mTimeoutRate = rate;
+            mStallMillis = stallMillis;
+            return this;
+        }
+
+        /**
+         * Hang up on this fraction of requests without reading them or answering.
+         */
+        public FaultPlan setDroppedConnections(double rate) {
+            mDropRate = rate;
+            return this;
+        }
+
+        public FaultPlan setFaultyRequests(int faultyRequests) {
+            mFaultyRequests = faultyRequests;
+            return this;
+        }
+
+        public int getFaultyRequests() {
+            return mFaultyRequests;
+        }
+
+        public FaultPlan setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "latency %d+-%dms, errors %.2f (%d, Retry-After %d), timeouts %.2f (%dms), drops %.2f, first %d requests",
+                    mLatencyMillis, mJitterMillis, mErrorRate, mErrorStatus, mRetryAfterSeconds,
+                    mTimeoutRate, mStallMillis, mDropRate, mFaultyRequests);
+        }
+
+        private int mLatencyMillis = 0;
+        private int mJitterMillis = 0;
+        private double mErrorRate = 0;
+        private int mErrorStatus = 503;
+        private int mRetryAfterSeconds = -1;
+        private double mTimeoutRate = 0;
+        private int mStallMillis = 35000; // HttpService gives up reading after 30 seconds
+        private double mDropRate = 0;
+        private int mFaultyRequests = Integer.MAX_VALUE;
+        private long mSeed = 1234;
+    }
+
+    public MockIngestionServer(FaultPlan plan) throws IOException {
+        mPlan = plan;
+        mRandom = new Random(plan.mSeed);
+        mDeliveries = new HashMap<Long, Integer>();
+        mDeliveryLatency = new LatencyHistogram();
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mConnections = Executors.newCachedThreadPool();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "MockIngestionServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public String getTrackUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/track/";
+    }
+
+    /**
+     * Waits until at least eventCount distinct load harness events have been accepted. Returns false on timeout.
+     */
+    public synchronized boolean awaitUniqueEvents(int eventCount, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mDeliveries.size() < eventCount) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized int getUniqueEvents() {
+        return mDeliveries.size();
+    }
+
+    /**
+     * @return how many times load harness events arrived after they had already been accepted
+     */
+    public synchronized int getDuplicateEvents() {
+        return mDuplicateEvents;
+    }
+
+    /**
+     * @return the number of the first count sequence numbers that have never arrived
+     */
+    public synchronized int getMissingEvents(int count) {
+        int missing = 0;
+        for (long seq = 0; seq < count; seq++) {
+            if (!mDeliveries.containsKey(seq)) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    public synchronized int getOtherEvents() {
+        return mOtherEvents;
+    }
+
+    public synchronized int getRequests() {
+        return mRequests;
+    }
+
+    public synchronized int getServerErrors() {
+        return mServerErrors;
+    }
+
+    public synchronized int getTimeouts() {
+        return mTimeouts;
+    }
+
+    public synchronized int getDroppedConnections() {
+        return mDroppedConnections;
+    }
+
+    public synchronized int getMalformedRequests() {
+        return mMalformedRequests;
+    }
+
+    /**
+     * From the call to track to the first time the server saw the event.
+     */
+    public LatencyHistogram getDeliveryLatency() {
+        return mDeliveryLatency;
+    }
+
+    public void close() {
+        try {
+            mServerSocket.close();
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not close server socket", e);
+        }
+        mConnections.shutdownNow();
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            } catch (final SocketException e) {
+                ; // Closed
+            } catch (final IOException e) {
+                Log.e(LOGTAG, "Accept failed", e);
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+            final Fault fault = nextFault();
+            if (fault == Fault.DROP) {
+                return;
+            }
+
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final String body = readRequestBody(in);
+            if (body == null) {
+                return;
+            }
+
+            final long latency = mPlan.mLatencyMillis + (mPlan.mJitterMillis > 0 ? nextJitter() : 0);
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            final OutputStream out = socket.getOutputStream();
+            if (fault == Fault.SERVER_ERROR) {
+                final StringBuilder response = new StringBuilder();
+                response.append("HTTP/1.1 ").append(mPlan.mErrorStatus).append(" Unavailable\r\n");
+                if (mPlan.mRetryAfterSeconds >= 0) {
+                    response.append("Retry-After: ").append(mPlan.mRetryAfterSeconds).append("\r\n");
+                }
+                response.append("Content-Length: 0\r\nConnection: close\r\n\r\n");
+                out.write(response.toString().getBytes("UTF-8"));
+                out.flush();
+                return;
+            }
+
+            recordEvents(body);
+            if (fault == Fault.TIMEOUT) {
+                Thread.sleep(mPlan.mStallMillis);
+                return;
+            }
+
+            out.write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 2\r\nConnection: close\r\n\r\n1\n".getBytes("UTF-8"));
+            out.flush();
+        } catch (final InterruptedException e) {
+            ; // Server is closing
+        } catch (final IOException e) {
+            Log.i(LOGTAG, "Connection failed", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (final IOException e) {
+                ; // Nothing to do
+            }
+        }
+    }
+
+    private enum Fault { NONE, SERVER_ERROR, TIMEOUT, DROP }
+
+    private synchronized Fault nextFault() {
+        mRequests++;
+        if (mRequests > mPlan.mFaultyRequests) {
+            return Fault.NONE;
+        }
+
+        final double roll = mRandom.nextDouble();
+        if (roll < mPlan.mDropRate) {
+            mDroppedConnections++;
+            return Fault.DROP;
+        } else if (roll < mPlan.mDropRate + mPlan.mErrorRate) {
+            mServerErrors++;
+            return Fault.SERVER_ERROR;
+        } else if (roll < mPlan.mDropRate + mPlan.mErrorRate + mPlan.mTimeoutRate) {
+            mTimeouts++;
+            return Fault.TIMEOUT;
+        }
+        return Fault.NONE;
+    }
+
+    private synchronized int nextJitter() {
+        return mRandom.nextInt(mPlan.mJitterMillis + 1);
+    }
+
+    private synchronized void recordEvents(String body) {
+        final long now = System.nanoTime();
+        try {
+            final JSONArray events = new JSONArray(body);
+            for (int i = 0; i < events.length(); i++) {
+                final JSONObject properties = events.getJSONObject(i).optJSONObject("prop");
+                if (null == properties || !properties.has(LoadHarness.SEQUENCE_PROPERTY)) {
+                    mOtherEvents++;
+                    continue;
+                }
+
+                final long seq = properties.getLong(LoadHarness.SEQUENCE_PROPERTY);
+                final Integer previous = mDeliveries.get(seq);
+                if (null == previous) {
+                    mDeliveries.put(seq, 1);
+                    mDeliveryLatency.recordNanos(now - properties.getLong(LoadHarness.SENT_NANOS_PROPERTY));
+                } else {
+                    mDeliveries.put(seq, previous + 1);
+                    mDuplicateEvents++;
+                }
+            }
+        } catch (final JSONException e) {
+            Log.e(LOGTAG, "Could not read request body", e);
+            mMalformedRequests++;
+        }
+        notifyAll();
+    }
+
+    // Returns null if the request isn't a well formed POST with a Content-Length
+    private String readRequestBody(InputStream in) throws IOException {
+        final String requestLine = readLine(in);
+        if (null == requestLine || !requestLine.startsWith("POST ")) {
+            markMalformed();
+            return null;
+        }
+
+        int contentLength = -1;
+        String header;
+        while (null != (header = readLine(in)) && header.length() > 0) {
+            final int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                contentLength = Integer.parseInt(header.substring(colon + 1).trim());
+            }
+        }
+        if (contentLength < 0) {
+            markMalformed();
+            return null;
+        }
+
+        final byte[] body = new byte[contentLength];
+        int read = 0;
+        while (read < contentLength) {
+            final int count = in.read(body, read, contentLength - read);
+            if (count < 0) {
+                markMalformed();
+                return null;
+            }
+            read += count;
+        }
+        return new String(body, "UTF-8");
+    }
+
+    private synchronized void markMalformed() {
+        mMalformedRequests++;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                final byte[] bytes = line.toByteArray();
+                final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, "US-ASCII");
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    private final FaultPlan mPlan;
+    private final Random mRandom;
+    private final Map<Long, Integer> mDeliveries;
+    private final LatencyHistogram mDeliveryLatency;
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mConnections;
+    private final Thread mThread;
+    private int mRequests;
+    private int mServerErrors;
+    private int mTimeouts;
+    private int mDroppedConnections;
+    private int mMalformedRequests;
+    private int mDuplicateEvents;
+    private int mOtherEvents;
+
+    private static final int SOCKET_TIMEOUT_MILLIS = 60000;
+    private static final String LOGTAG = "MixpanelAPI.MockIngestion";
+}
@@ -0,0 +1,186 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.mixpanel.android.util.HttpService;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteService;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+public class PipelineMetricsTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mRequestBodies = new LinkedBlockingQueue<String>();
+        mFlushes = new LinkedBlockingQueue<PipelineMetrics>();
+        mFailRequests = false;
+        mOutOfSpace = false;
+
+        final RemoteService poster = new HttpService() {
+            @Override
+            public void checkIsMixpanelBlocked() {
+                // No network in tests
+            }
+
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+
+            @Override
+            public byte[] performRequest(String endpointUrl, String token, String jsonPayload, SSLSocketFactory socketFactory)
+                    throws ServiceUnavailableException, IOException {
+                if (mFailRequests) {
+                    throw new IOException("Test failure");
+                }
+                mRequestBodies.add(jsonPayload);
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final MPConfig config = new MPConfig(new Bundle(), getContext(), false) {
+            @Override
+            public String getEventsEndpoint(String serviceName) {
+                return "EVENTS ENDPOINT";
+            }
+
+            @Override
+            public int getFlushInterval() {
+                return -1; // Only flush when the test asks
+            }
+        };
+
+        mDbAdapter = new MPDbAdapter(getContext(), "mixpanel_pipeline_metrics_test") {
+            @Override
+            protected boolean belowMemThreshold() {
+                return !mOutOfSpace && super.belowMemThreshold();
+            }
+        };
+        mDbAdapter.deleteDB();
+
+        mMessages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected MPDbAdapter makeDbAdapter(Context context) {
+                return mDbAdapter;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context) {
+                return config;
+            }
+        };
+        mMessages.getPipelineMetrics().addOnFlushListener(new PipelineMetrics.OnFlushListener() {
+            @Override
+            public void onFlush(PipelineMetrics metrics) {
+                mFlushes.add(metrics);
+            }
+        });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMessages.hardKill();
+        mDbAdapter.deleteDB();
+        super.tearDown();
+    }
+
+    public void testHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMicros(50));
+
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordMicros(i);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000, histogram.getMeanMicros());
+        assertEquals(10000, histogram.getMaxMicros());
+        assertWithinBucketError(5000, histogram.getPercentileMicros(50));
+        assertWithinBucketError(9900, histogram.getPercentileMicros(99));
+        assertEquals(10000, histogram.getPercentileMicros(100));
+        assertWithinBucketError(1, histogram.getPercentileMicros(0));
+    }
+
+    public void testHistogramBuckets() {
+        long previousIndex = -1;
+        for (long value = 0; value < 100000; value++) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index >= previousIndex);
+            final long highest = LatencyHistogram.highestValueInBucket(index);
+            assertTrue(highest >= value);
+            assertWithinBucketError(value, highest);
+            previousIndex = index;
+        }
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(-5);
+        histogram.recordMicros(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_MICROS, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_MICROS, histogram.getPercentileMicros(100));
+    }
+
+    public void testPipelineCounters() throws Exception {
+        final PipelineMetrics metrics = mMessages.getPipelineMetrics();
+
+        // A successful upload
+        mMessages.eventsMessage(new AnalyticsMessages.EventDescription("First Event", new JSONObject(), TOKEN, SERVICE_NAME));
+        mMessages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, SERVICE_NAME));
+        assertNotNull(mFlushes.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        final String body = mRequestBodies.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(body);
+        assertEquals(body.getBytes("UTF-8").length, metrics.getBytesSent());
+        assertEquals(1, metrics.getDbInsert().getCount());
+        assertEquals(1, metrics.getHttpRequest().getCount());
+        assertTrue(metrics.getBatchBuild().getCount() >= 1);
+        assertTrue(metrics.getWorkerQueueWait().getCount() >= 2);
+        assertEquals(0, metrics.getRetries());
+
+        // No room to store an event, which also flushes whatever else is queued
+        mOutOfSpace = true;
+        mMessages.eventsMessage(new AnalyticsMessages.EventDescription("Dropped Event", new JSONObject(), TOKEN, SERVICE_NAME));
+        assertNotNull(mFlushes.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, metrics.getRowsDroppedOutOfMemory());
+        mOutOfSpace = false;
+
+        // A failed upload is retried later
+        mFailRequests = true;
+        mMessages.eventsMessage(new AnalyticsMessages.EventDescription("Retried Event", new JSONObject(), TOKEN, SERVICE_NAME));
+        mMessages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, SERVICE_NAME));
+        assertNotNull(mFlushes.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, metrics.getRetries());
+        assertEquals(body.getBytes("UTF-8").length, metrics.getBytesSent());
+    }
+
+    private static void assertWithinBucketError(long expected, long actual) {
+        assertTrue("Expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= Math.max(1, expected / 16));
+    }
+
+    private MPDbAdapter mDbAdapter;
+    private AnalyticsMessages mMessages;
+    private BlockingQueue<String> mRequestBodies;
+    private BlockingQueue<PipelineMetrics> mFlushes;
+    private volatile boolean mFailRequests;
+    private volatile boolean mOutOfSpace;
+
+    private static final String TOKEN = "Test Pipeline Metrics";
+    private static final String SERVICE_NAME = "Test Service";
+    private static final int POLL_WAIT_SECONDS = 10;
+}
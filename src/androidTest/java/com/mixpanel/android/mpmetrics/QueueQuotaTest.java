@@ -0,0 +1,154 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class QueueQuotaTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = new MPDbAdapter(getContext(), "mixpanel_queue_quota_test");
+        mDatabase.deleteDB();
+        mJournal = new MPJournalStore(getContext(), "mixpanel_queue_quota_journal_test");
+        mJournal.deleteDB();
+        mMaximumQueuedRecords = 0;
+        mMaximumDatabaseSize = 0;
+
+        final MPConfig config = new MPConfig(new Bundle(), getContext(), false) {
+            @Override
+            public int getMaximumQueuedRecords() {
+                return mMaximumQueuedRecords;
+            }
+
+            @Override
+            public int getMaximumDatabaseSize() {
+                return mMaximumDatabaseSize;
+            }
+        };
+        mMetrics = new PipelineMetrics();
+        mQuota = new QueueQuota(config, mMetrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.deleteDB();
+        mJournal.deleteDB();
+        super.tearDown();
+    }
+
+    public void testEvictionOrder() throws JSONException {
+        checkEvictionOrder(mDatabase);
+        checkEvictionOrder(mJournal);
+    }
+
+    public void testLimitedExpiry() throws JSONException {
+        checkLimitedExpiry(mDatabase);
+        checkLimitedExpiry(mJournal);
+    }
+
+    public void testMaximumQueuedRecords() throws JSONException {
+        checkMaximumQueuedRecords(mDatabase);
+        checkMaximumQueuedRecords(mJournal);
+    }
+
+    public void testMakeRoom() throws JSONException {
+        checkMakeRoom(mDatabase);
+        checkMakeRoom(mJournal);
+    }
+
+    public void testMaximumDatabaseSize() throws JSONException {
+        final JSONObject padded = event(0).put("padding", new String(new char[1000]).replace('\0', 'x'));
+        for (int i = 0; i < 200; i++) {
+            mJournal.addJSON(padded, TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+        mMaximumDatabaseSize = 170 * 1000;
+        mQuota.expire(mJournal);
+
+        assertTrue(mJournal.getQueuedBytes() <= mMaximumDatabaseSize);
+        assertTrue(mMetrics.getRowsEvicted() > 0);
+    }
+
+    private void checkEvictionOrder(MPQueueStore store) throws JSONException {
+        for (int i = 0; i < 10; i++) {
+            store.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, i % 3 == 0);
+        }
+        store.addJSON(event(100), OTHER_TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, true);
+
+        // Automatic events 0, 3, 6 and 9 go first, then the oldest, 1 and 2. The other project is untouched.
+        assertEquals(6, store.evictRecords(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, 6));
+        assertEquals(4, store.countRecords(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME));
+        assertEquals(5, store.countRecords(MPDbAdapter.Table.EVENTS, null, null));
+        final JSONArray events = new JSONArray(store.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[1]);
+        assertEquals(4, events.getJSONObject(0).getInt("seq"));
+        assertEquals(5, events.getJSONObject(1).getInt("seq"));
+        assertEquals(7, events.getJSONObject(2).getInt("seq"));
+        assertEquals(8, events.getJSONObject(3).getInt("seq"));
+
+        // Without a token, every project
+        assertEquals(5, store.evictRecords(MPDbAdapter.Table.EVENTS, null, null, 100));
+        assertEquals(0, store.countRecords(MPDbAdapter.Table.EVENTS, null, null));
+    }
+
+    private void checkLimitedExpiry(MPQueueStore store) throws JSONException {
+        for (int i = 0; i < 10; i++) {
+            store.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+        final long future = System.currentTimeMillis() + 1000;
+        assertEquals(0, store.cleanupEvents(future - 60 * 1000, MPDbAdapter.Table.EVENTS, 4));
+        assertEquals(4, store.cleanupEvents(future, MPDbAdapter.Table.EVENTS, 4));
+        assertEquals(4, store.cleanupEvents(future, MPDbAdapter.Table.EVENTS, 4));
+        assertEquals(8, new JSONArray(store.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[1]).getJSONObject(0).getInt("seq"));
+        assertEquals(2, store.cleanupEvents(future, MPDbAdapter.Table.EVENTS, 4));
+        assertNull(store.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true));
+    }
+
+    private void checkMaximumQueuedRecords(MPQueueStore store) throws JSONException {
+        mMaximumQueuedRecords = 20;
+        final long evictedBefore = mMetrics.getRowsEvicted();
+        int queued = 0;
+        for (int i = 0; i < 25; i++) {
+            queued = store.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+            queued = mQuota.enforceLimits(store, MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME, queued, 1);
+            assertTrue(queued <= mMaximumQueuedRecords);
+        }
+        assertEquals(queued, store.countRecords(MPDbAdapter.Table.EVENTS, TOKEN, SERVICE_NAME));
+
+        // The newest events are kept
+        final JSONArray events = new JSONArray(store.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true)[1]);
+        assertEquals(24, events.getJSONObject(events.length() - 1).getInt("seq"));
+        assertEquals(25 - queued, mMetrics.getRowsEvicted() - evictedBefore);
+        mMaximumQueuedRecords = 0;
+    }
+
+    private void checkMakeRoom(MPQueueStore store) throws JSONException {
+        assertFalse(mQuota.makeRoom(store));
+        for (int i = 0; i < 30; i++) {
+            store.addJSON(event(i), TOKEN, SERVICE_NAME, MPDbAdapter.Table.EVENTS, false);
+        }
+        store.addJSON(event(0), TOKEN, SERVICE_NAME, MPDbAdapter.Table.PEOPLE, false);
+
+        assertTrue(mQuota.makeRoom(store));
+        assertEquals(27, store.countRecords(MPDbAdapter.Table.EVENTS, null, null));
+        assertEquals(0, store.countRecords(MPDbAdapter.Table.PEOPLE, null, null));
+    }
+
+    private static JSONObject event(int sequence) throws JSONException {
+        return new JSONObject().put("seq", sequence);
+    }
+
+    private MPDbAdapter mDatabase;
+    private MPJournalStore mJournal;
+    private QueueQuota mQuota;
+    private PipelineMetrics mMetrics;
+    private int mMaximumQueuedRecords;
+    private int mMaximumDatabaseSize;
+
+    private static final String TOKEN = "Test Queue Quota Token";
+    private static final String OTHER_TOKEN = "Other Queue Quota Token";
+    private static final String SERVICE_NAME = "Test Service";
+}
@@ -0,0 +1,102 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Logs the number of selector evaluations per second for selectors shaped like the ones in
+ * SelectorEvaluatorTest. Timings aren't pass/fail, but every case checks that the selector matches
+ * the properties it should, doesn't match a second set of properties that it shouldn't, and gives
+ * the same answer on every timed evaluation.
+ */
+public class SelectorEvaluatorBenchmarkTest extends AndroidTestCase {
+
+    public void testCasts() throws JSONException {
+        benchmark("number", "{\"operator\": \"==\", \"children\": [" +
+                "{\"operator\": \"number\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}," +
+                "{\"property\": \"literal\", \"value\": 59}]}", "{\"prop\": \"59\"}", "{\"prop\": \"58\"}");
+        benchmark("datetime", "{\"operator\": \">\", \"children\": [" +
+                "{\"operator\": \"datetime\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}," +
+                "{\"operator\": \"datetime\", \"children\": [{\"property\": \"literal\", \"value\": \"2019-01-01T00:00:00\"}]}]}",
+                "{\"prop\": \"2019-01-02T00:00:00\"}", "{\"prop\": \"2018-12-31T00:00:00\"}");
+        benchmark("string", "{\"operator\": \"==\", \"children\": [" +
+                "{\"operator\": \"string\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}," +
+                "{\"property\": \"literal\", \"value\": \"1\"}]}", "{\"prop\": 1}", "{\"prop\": 2}");
+    }
+
+    public void testBinaryOperators() throws JSONException {
+        benchmark("and/or", "{\"operator\": \"and\", \"children\": [" +
+                "{\"operator\": \"or\", \"children\": [{\"property\": \"event\", \"value\": \"prop1\"}, {\"property\": \"event\", \"value\": \"prop2\"}]}," +
+                "{\"operator\": \"not\", \"children\": [{\"property\": \"event\", \"value\": \"prop2\"}]}]}",
+                "{\"prop1\": true, \"prop2\": false}", "{\"prop1\": false, \"prop2\": false}");
+        benchmark("in", "{\"operator\": \"in\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}," +
+                "{\"property\": \"literal\", \"value\": [\"a\", \"b\", \"c\", \"d\", \"e\", \"f\", \"g\", \"h\", \"i\", \"j\", \"k\", \"l\"]}]}",
+                "{\"prop\": \"k\"}", "{\"prop\": \"z\"}");
+        benchmark("arithmetic", "{\"operator\": \"<=\", \"children\": [" +
+                "{\"operator\": \"%\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}, {\"property\": \"literal\", \"value\": 7}]}," +
+                "{\"operator\": \"+\", \"children\": [{\"property\": \"literal\", \"value\": 1}, {\"property\": \"literal\", \"value\": 2}]}]}",
+                "{\"prop\": 15}", "{\"prop\": 13}");
+        benchmark("equality", "{\"operator\": \"!=\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}," +
+                "{\"property\": \"literal\", \"value\": {\"a\": 1, \"b\": \"two\"}}]}",
+                "{\"prop\": {\"a\": 1, \"b\": \"three\"}}", "{\"prop\": {\"a\": 1, \"b\": \"two\"}}");
+    }
+
+    public void testUnaryOperators() throws JSONException {
+        benchmark("defined", "{\"operator\": \"not defined\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}", "{}", "{\"prop\": 1}");
+        benchmark("window", "{\"operator\": \">\", \"children\": [" +
+                "{\"operator\": \"datetime\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}," +
+                "{\"property\": \"literal\", \"value\": {\"window\": {\"unit\": \"day\", \"value\": 1}}}]}",
+                "{\"prop\": \"2999-01-02T00:00:00\"}", "{\"prop\": \"2019-01-02T00:00:00\"}");
+    }
+
+    public void testEvaluate() throws JSONException {
+        // The selector from SelectorEvaluatorTest.testEvaluate
+        benchmark("evaluate", "{\"operator\": \"and\", \"children\": [" +
+                "{\"operator\": \"not\", \"children\": [{\"property\": \"literal\", \"value\": false}]}," +
+                "{\"operator\": \"==\", \"children\": [" +
+                "{\"property\": \"event\", \"value\": \"prop\"}," +
+                "{\"operator\": \"number\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}" +
+                "]}]}", "{\"prop\": 1}", "{\"prop\": \"1\"}");
+    }
+
+    // The selector must match matchingJson and must not match otherJson. Only the matching case is timed
+    private void benchmark(String name, String selectorJson, String matchingJson, String otherJson) throws JSONException {
+        final JSONObject selector = new JSONObject(selectorJson);
+        final JSONObject properties = new JSONObject(matchingJson);
+
+        final long compileStart = System.nanoTime();
+        SelectorEvaluator evaluator = null;
+        for (int i = 0; i < COMPILE_ITERATIONS; i++) {
+            evaluator = new SelectorEvaluator(selector);
+        }
+        final long compileNanos = (System.nanoTime() - compileStart) / COMPILE_ITERATIONS;
+
+        assertTrue(name + " should match " + matchingJson, evaluator.evaluate(properties));
+        assertFalse(name + " shouldn't match " + otherJson, evaluator.evaluate(new JSONObject(otherJson)));
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            assertTrue(evaluator.evaluate(properties));
+        }
+
+        int matches = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (evaluator.evaluate(properties)) {
+                matches++;
+            }
+        }
+        final long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        assertEquals(ITERATIONS, matches);
+
+        Log.i(LOGTAG, name + ": " + (ITERATIONS * 1000000000L / elapsedNanos) + " evaluations/sec, compiled in " +
+                (compileNanos / 1000) + "us");
+    }
+
+    private static final int COMPILE_ITERATIONS = 100;
+    private static final int WARMUP_ITERATIONS = 1000;
+    private static final int ITERATIONS = 20000;
+
+    private static final String LOGTAG = "MixpanelAPI.SelectorBenchmark";
+}
@@ -11,6 +11,7 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 public class SelectorEvaluatorTest extends AndroidTestCase  {
     public void testGetType() {
@@ -1084,6 +1085,45 @@ public class SelectorEvaluatorTest extends AndroidTestCase  {
         assertTrue((boolean) SelectorEvaluator.evaluateOperator(node, prop));
     }
 
+    public void testDatetimeFollowsDefaultTimeZone() throws JSONException {
+        final JSONObject node = new JSONObject("{\"operator\": \"datetime\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}");
+        final JSONObject prop = new JSONObject("{\"prop\": \"2019-01-01T00:00:00\"}");
+        final TimeZone original = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+            final Date gmt = (Date) SelectorEvaluator.evaluateOperator(node, prop);
+            // The same text again, so a cached parse from the old zone would be returned if the zone were ignored
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT+02:00"));
+            final Date plusTwo = (Date) SelectorEvaluator.evaluateOperator(node, prop);
+            assertEquals(2 * 60 * 60 * 1000L, gmt.getTime() - plusTwo.getTime());
+        } finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
+    public void testDatetimeLiteralFollowsDefaultTimeZone() throws JSONException {
+        final JSONObject node = new JSONObject("{\"operator\": \"==\", \"children\": [" +
+                "{\"operator\": \"datetime\", \"children\": [{\"property\": \"event\", \"value\": \"prop\"}]}," +
+                "{\"operator\": \"datetime\", \"children\": [{\"property\": \"literal\", \"value\": \"2019-01-01T00:00:00\"}]}" +
+                "]}");
+        final JSONObject prop = new JSONObject("{\"prop\": \"2019-01-01T00:00:00\"}");
+        final TimeZone original = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+            // Compiled once, so a literal parsed at compile time would be left in GMT
+            final SelectorEvaluator evaluator = new SelectorEvaluator(node);
+            assertTrue(evaluator.evaluate(prop));
+
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT+02:00"));
+            assertTrue(evaluator.evaluate(prop));
+
+            TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+            assertTrue(evaluator.evaluate(prop));
+        } finally {
+            TimeZone.setDefault(original);
+        }
+    }
+
     public void testEvaluate() throws JSONException {
         JSONObject node = new JSONObject("{\"operator\": \"and\", " +
                 "\"children\": [" +
@@ -0,0 +1,58 @@
+package com.mixpanel.android.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+public class BlurEngineTest extends AndroidTestCase {
+
+    public void testEnginesBlurEdges() {
+        assertBlursEdge(new BlurEngine.DownscaledStackBlur(4));
+        assertBlursEdge(new BlurEngine.DownscaledStackBlur(1));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            assertBlursEdge(new BlurEngine.RenderScriptBlur(getContext()));
+        }
+    }
+
+    public void testReusedScratchAcrossSizes() {
+        final BlurEngine engine = new BlurEngine.DownscaledStackBlur(4);
+        final Bitmap big = halfAndHalf(400, 200);
+        final Bitmap small = halfAndHalf(100, 50);
+        engine.blur(big, 20);
+        engine.blur(small, 8);
+        engine.blur(big, 20);
+        assertIsGray(big.getPixel(200, 100));
+        assertIsGray(small.getPixel(50, 25));
+        engine.release();
+    }
+
+    private void assertBlursEdge(BlurEngine engine) {
+        final Bitmap bitmap = halfAndHalf(200, 100);
+        engine.blur(bitmap, 20);
+        assertIsGray(bitmap.getPixel(100, 50));
+
+        // Far from the edge, colors are left alone
+        assertTrue(Color.red(bitmap.getPixel(5, 50)) < 40);
+        assertTrue(Color.red(bitmap.getPixel(194, 50)) > 215);
+        engine.release();
+    }
+
+    private static void assertIsGray(int color) {
+        final int red = Color.red(color);
+        assertTrue("Expected a gray, got " + red, red > 64 && red < 192);
+    }
+
+    // Black on the left, white on the right
+    private static Bitmap halfAndHalf(int width, int height) {
+        final Bitmap ret = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(ret);
+        canvas.drawColor(Color.BLACK);
+        final Paint white = new Paint();
+        white.setColor(Color.WHITE);
+        canvas.drawRect(width / 2, 0, width, height, white);
+        return ret;
+    }
+}
@@ -0,0 +1,46 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+
+public class MPLogTest extends AndroidTestCase {
+
+    @Override
+    public void tearDown() throws Exception {
+        MPLog.setLevel(MPLog.WARN);
+        super.tearDown();
+    }
+
+    public void testFormat() {
+        assertEquals("no placeholders", MPLog.format("no placeholders", 1, "unused", null, null));
+        assertEquals("a 1 b two c", MPLog.format("a {} b {} c", 2, 1, "two", null));
+        assertEquals("1, 2, 3", MPLog.format("{}, {}, {}", 3, 1, 2, 3));
+        assertEquals("null and {}", MPLog.format("{} and {}", 1, null, null, null));
+        assertEquals("{} is not rescanned", MPLog.format("{} is not rescanned", 1, "{}", null, null));
+    }
+
+    public void testArgumentsAreOnlyFormattedWhenLogged() {
+        final CountingArgument argument = new CountingArgument();
+
+        MPLog.setLevel(MPLog.WARN);
+        MPLog.v("MixpanelAPI.MPLogTest", "Verbose {}", argument);
+        MPLog.d("MixpanelAPI.MPLogTest", "Debug {} {}", argument, argument);
+        MPLog.i("MixpanelAPI.MPLogTest", "Info {}", argument, new RuntimeException("Not logged"));
+        assertFalse(MPLog.isLoggable(MPLog.VERBOSE));
+        assertEquals(0, argument.count);
+
+        MPLog.setLevel(MPLog.VERBOSE);
+        assertTrue(MPLog.isLoggable(MPLog.VERBOSE));
+        MPLog.v("MixpanelAPI.MPLogTest", "Verbose {}", argument);
+        assertEquals(1, argument.count);
+    }
+
+    private static class CountingArgument {
+        @Override
+        public String toString() {
+            count++;
+            return "argument";
+        }
+
+        public int count = 0;
+    }
+}
@@ -0,0 +1,119 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A LoopbackWebSocketServer that agrees to permessage-deflate (RFC 7692) with context takeover when the
+ * client offers it. Compressed messages are inflated before they are counted, so payload counts and checksums
+ * are of the uncompressed bytes, and the compressed bytes are counted separately.
+ */
+/* package */ class DeflateLoopbackWebSocketServer extends LoopbackWebSocketServer {
+
+    public DeflateLoopbackWebSocketServer() throws IOException {
+        super();
+    }
+
+    public boolean wasNegotiated() {
+        return mNegotiated;
+    }
+
+    public synchronized long getWireBytes() {
+        return mWireBytes;
+    }
+
+    public synchronized int getCompressedMessageCount() {
+        return mCompressedMessages;
+    }
+
+    /**
+     * Sends text as a single compressed message, continuing the server's compression context.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public void sendCompressedText(String text) throws IOException {
+        final byte[] input = text.getBytes("UTF-8");
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[1024];
+        synchronized (mDeflater) {
+            mDeflater.setInput(input);
+            int written;
+            do {
+                written = mDeflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                compressed.write(chunk, 0, written);
+            } while (written == chunk.length);
+        }
+        final byte[] bytes = compressed.toByteArray();
+        final byte[] payload = new byte[bytes.length - TAIL.length];
+        System.arraycopy(bytes, 0, payload, 0, payload.length);
+        sendFrame(0xC1, payload); // fin, rsv1, TEXT
+    }
+
+    @Override
+    protected String extraResponseHeaders(Map<String, String> requestHeaders) {
+        final String offered = requestHeaders.get("sec-websocket-extensions");
+        mNegotiated = null != offered && offered.contains("permessage-deflate");
+        return mNegotiated ? "Sec-WebSocket-Extensions: permessage-deflate\r\n" : "";
+    }
+
+    @Override
+    protected byte[] onFramePayload(int firstByte, byte[] payload) throws IOException {
+        final int opcode = firstByte & 0x0f;
+        final boolean fin = (firstByte & 0x80) != 0;
+        if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+            mInCompressedMessage = (firstByte & 0x40) != 0;
+        } else if (opcode != OPCODE_CONTINUATION) {
+            return payload;
+        }
+
+        synchronized (this) {
+            mWireBytes += payload.length;
+        }
+        if (!mInCompressedMessage) {
+            return payload;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        inflate(payload, out);
+        if (fin) {
+            inflate(TAIL, out);
+            mInCompressedMessage = false;
+            synchronized (this) {
+                mCompressedMessages++;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void inflate(byte[] input, ByteArrayOutputStream out) throws IOException {
+        final byte[] chunk = new byte[4096];
+        mInflater.setInput(input);
+        try {
+            int read;
+            do {
+                read = mInflater.inflate(chunk);
+                out.write(chunk, 0, read);
+            } while (!mInflater.finished() && (read > 0 || !mInflater.needsInput()));
+        } catch (final DataFormatException e) {
+            throw new IOException("Bad compressed frame: " + e.getMessage());
+        }
+    }
+
+    private volatile boolean mNegotiated;
+    private boolean mInCompressedMessage;
+    private long mWireBytes;
+    private int mCompressedMessages;
+    private final Inflater mInflater = new Inflater(true);
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+    private static final int OPCODE_CONTINUATION = 0;
+    private static final int OPCODE_TEXT = 1;
+    private static final int OPCODE_BINARY = 2;
+}
@@ -0,0 +1,167 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.AndroidTestCase;
+import android.widget.TextView;
+
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the debounce wheel on a fake clock. Nothing posted to the handler runs until the test
+ * advances the clock, so ticks can be made as late as a test likes.
+ */
+public class DynamicEventTrackerTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("org.mockito.android.target", getContext().getCacheDir().getPath());
+
+        mNow = START_MILLIS;
+        mPosted = new ArrayList<Runnable>();
+        final Handler handler = new Handler(Looper.getMainLooper()) {
+            @Override
+            public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+                mPosted.add(msg.getCallback());
+                return true;
+            }
+        };
+        mMixpanel = mock(MixpanelAPI.class);
+        mTracker = new DynamicEventTracker(mMixpanel, handler) {
+            @Override
+            /* package */ long currentTimeMillis() {
+                return mNow;
+            }
+        };
+        mView = new TextView(getContext());
+        mView.setText("Button text");
+    }
+
+    public void testSendsOnlyTheLatestEventOnceQuiet() throws JSONException {
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        mNow += 100;
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        assertEquals(1, mPosted.size());
+
+        // Quiet from START_MILLIS + 100 until START_MILLIS + 1100
+        for (int i = 0; i < 4; i++) {
+            tick(250);
+        }
+        verify(mMixpanel, never()).track(anyString(), any(JSONObject.class));
+
+        tick(250);
+        assertSentOnceAt(START_MILLIS + 100);
+        assertTrue("An empty wheel shouldn't keep ticking", mPosted.isEmpty());
+    }
+
+    public void testBurstKeepsPostponing() throws JSONException {
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        for (int i = 0; i < 6; i++) {
+            tick(500);
+            mTracker.OnEvent(mView, EVENT_NAME, true);
+        }
+        verify(mMixpanel, never()).track(anyString(), any(JSONObject.class));
+
+        final long lastEvent = mNow;
+        for (int i = 0; i < 5; i++) {
+            tick(250);
+        }
+        assertSentOnceAt(lastEvent);
+    }
+
+    public void testLateTickSendsEverythingDue() throws JSONException {
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+
+        // Several revolutions of the wheel late
+        tick(5000);
+        assertSentOnceAt(START_MILLIS);
+        assertTrue(mPosted.isEmpty());
+    }
+
+    public void testLateTickKeepsRescheduledSlot() throws JSONException {
+        mNow = START_MILLIS + 100;
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        tick(150); // The slot is now in the wheel, due at START_MILLIS + 1100
+
+        // The handler falls behind, and while it is behind the view fires again. When it catches
+        // up the slot is rescheduled exactly one revolution after the bucket it was found in.
+        mNow = START_MILLIS + 4100;
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        mNow = START_MILLIS + 5000;
+        runPosted();
+        verify(mMixpanel, never()).track(anyString(), any(JSONObject.class));
+        assertEquals(1, mPosted.size());
+
+        tick(250);
+        assertSentOnceAt(START_MILLIS + 4100);
+        assertTrue(mPosted.isEmpty());
+
+        // The slot was disarmed, so the next event starts a new burst
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        assertEquals(1, mPosted.size());
+    }
+
+    public void testSignaturesDebounceIndependently() {
+        final TextView other = new TextView(getContext());
+        mTracker.OnEvent(mView, EVENT_NAME, true);
+        mNow += 600;
+        mTracker.OnEvent(other, EVENT_NAME, true);
+
+        // The first view is quiet after START_MILLIS + 1000, the other after START_MILLIS + 1600
+        tick(250);
+        tick(250);
+        verify(mMixpanel, times(1)).track(eq(EVENT_NAME), any(JSONObject.class));
+
+        for (int i = 0; i < 3; i++) {
+            tick(250);
+        }
+        verify(mMixpanel, times(2)).track(eq(EVENT_NAME), any(JSONObject.class));
+    }
+
+    public void testUndebouncedEventIsSentRightAway() throws JSONException {
+        mTracker.OnEvent(mView, EVENT_NAME, false);
+        assertSentOnceAt(START_MILLIS);
+        assertTrue(mPosted.isEmpty());
+    }
+
+    private void tick(long millis) {
+        mNow += millis;
+        runPosted();
+    }
+
+    private void runPosted() {
+        final List<Runnable> posted = new ArrayList<Runnable>(mPosted);
+        mPosted.clear();
+        for (final Runnable r : posted) {
+            r.run();
+        }
+    }
+
+    private void assertSentOnceAt(long eventMillis) throws JSONException {
+        final ArgumentCaptor<JSONObject> properties = ArgumentCaptor.forClass(JSONObject.class);
+        verify(mMixpanel, times(1)).track(eq(EVENT_NAME), properties.capture());
+        assertEquals(eventMillis / 1000, properties.getValue().getLong("time"));
+        assertEquals("Button text", properties.getValue().getString("$text"));
+    }
+
+    private long mNow;
+    private List<Runnable> mPosted;
+    private MixpanelAPI mMixpanel;
+    private DynamicEventTracker mTracker;
+    private TextView mView;
+
+    // A whole number of wheel ticks, so tick boundaries are easy to reason about
+    private static final long START_MILLIS = 1000000000000L;
+    private static final String EVENT_NAME = "button clicked";
+}
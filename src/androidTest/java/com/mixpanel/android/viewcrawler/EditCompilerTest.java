@@ -0,0 +1,145 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.view.View;
+
+import com.mixpanel.android.mpmetrics.ResourceIds;
+import com.mixpanel.android.mpmetrics.TestUtils;
+import com.mixpanel.android.util.ImageStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+
+public class EditCompilerTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws JSONException {
+        mProtocol = new CountingProtocol(getContext(), new TestUtils.TestResourceIds(new HashMap<String, Integer>()));
+        mCompiler = new EditCompiler(mProtocol);
+        mTextEdit = new JSONObject(
+            "{\"args\":[[\"Hello\",\"java.lang.CharSequence\"]],\"name\":\"c236\",\"path\":[{\"prefix\":\"shortest\",\"index\":0,\"id\":" + TestView.TEXT2_VIEW_ID + "}],\"change_type\": \"property\",\"property\":{\"name\":\"text\",\"get\":{\"selector\":\"getText\",\"parameters\":[],\"result\":{\"type\":\"java.lang.CharSequence\"}},\"set\":{\"selector\":\"setText\",\"parameters\":[{\"type\":\"java.lang.CharSequence\"}]},\"classname\":\"android.widget.TextView\"}}"
+        );
+        mBadEdit = new JSONObject("{\"path\":[{\"prefix\":\"shortest\",\"index\":0,\"id\":" + TestView.TEXT2_VIEW_ID + "}],\"change_type\": \"no such change\"}");
+        mClickEvent = new JSONObject(
+            "{\"path\":[{\"view_class\":\"com.mixpanel.android.viewcrawler.TestView\",\"index\":0},{\"view_class\":\"android.widget.Button\",\"index\":1}],\"event_type\":\"click\",\"event_name\":\"Commencing Count-Down\"}"
+        );
+        mListener = new ViewVisitor.OnEventListener() {
+            @Override
+            public void OnEvent(View host, String eventName, boolean debounce) {
+                // Never visited
+            }
+        };
+    }
+
+    public void testEditAppliedAgainIsReused() throws JSONException {
+        mCompiler.beginPass();
+        final EditProtocol.Edit first = mCompiler.compileEdit(mTextEdit, null, BAD_MESSAGE);
+        mCompiler.endPass();
+
+        // Equal JSON read from a new response is the same change
+        mCompiler.beginPass();
+        final EditProtocol.Edit second = mCompiler.compileEdit(new JSONObject(mTextEdit.toString()), null, BAD_MESSAGE);
+        mCompiler.endPass();
+
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(1, mProtocol.editsRead);
+    }
+
+    public void testEditMissingFromAPassIsDropped() {
+        mCompiler.beginPass();
+        final EditProtocol.Edit first = mCompiler.compileEdit(mTextEdit, null, BAD_MESSAGE);
+        mCompiler.endPass();
+
+        mCompiler.beginPass();
+        mCompiler.endPass();
+
+        mCompiler.beginPass();
+        final EditProtocol.Edit readAgain = mCompiler.compileEdit(mTextEdit, null, BAD_MESSAGE);
+        mCompiler.endPass();
+
+        assertNotSame(first, readAgain);
+        assertEquals(2, mProtocol.editsRead);
+    }
+
+    public void testBadEditIsRememberedAsBad() {
+        for (int i = 0; i < 3; i++) {
+            mCompiler.beginPass();
+            assertNull(mCompiler.compileEdit(mBadEdit, null, BAD_MESSAGE));
+            mCompiler.endPass();
+        }
+        assertEquals(1, mProtocol.editsRead);
+    }
+
+    public void testEditWithoutAssetsIsRetried() {
+        mProtocol.assetsAvailable = false;
+        mCompiler.beginPass();
+        assertNull(mCompiler.compileEdit(mTextEdit, null, BAD_MESSAGE));
+        mCompiler.endPass();
+
+        mProtocol.assetsAvailable = true;
+        mCompiler.beginPass();
+        assertNotNull(mCompiler.compileEdit(mTextEdit, null, BAD_MESSAGE));
+        mCompiler.endPass();
+
+        assertEquals(2, mProtocol.editsRead);
+    }
+
+    public void testEventBindingAppliedAgainIsReused() {
+        mCompiler.beginPass();
+        final ViewVisitor first = mCompiler.compileEventBinding(mClickEvent, mListener, BAD_MESSAGE);
+        mCompiler.endPass();
+
+        mCompiler.beginPass();
+        final ViewVisitor second = mCompiler.compileEventBinding(mClickEvent, mListener, BAD_MESSAGE);
+        mCompiler.endPass();
+
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(1, mProtocol.bindingsRead);
+    }
+
+    private static class CountingProtocol extends EditProtocol {
+        public CountingProtocol(Context context, ResourceIds resourceIds) {
+            super(context, resourceIds, new ImageStore(context, "EditCompilerTest") {
+                @Override
+                public Bitmap getImage(String url) {
+                    fail("Unexpected call to getImage");
+                    return null;
+                }
+            }, new TestView.MockOnLayoutErrorListener());
+        }
+
+        @Override
+        public Edit readEdit(JSONObject source) throws BadInstructionsException, CantGetEditAssetsException {
+            editsRead++;
+            if (!assetsAvailable) {
+                throw new CantGetEditAssetsException("Test images are unavailable");
+            }
+            return super.readEdit(source);
+        }
+
+        @Override
+        public ViewVisitor readEventBinding(JSONObject source, ViewVisitor.OnEventListener listener) throws BadInstructionsException {
+            bindingsRead++;
+            return super.readEventBinding(source, listener);
+        }
+
+        public int editsRead = 0;
+        public int bindingsRead = 0;
+        public boolean assetsAvailable = true;
+    }
+
+    private CountingProtocol mProtocol;
+    private EditCompiler mCompiler;
+    private JSONObject mTextEdit;
+    private JSONObject mBadEdit;
+    private JSONObject mClickEvent;
+    private ViewVisitor.OnEventListener mListener;
+
+    private static final String BAD_MESSAGE = "Bad change in test";
+}
@@ -0,0 +1,164 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.view.View;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies edits to plain views on the main thread, standing in for the root views of activities.
+ */
+public class EditStateTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mEditState = new EditState();
+        mRootView = new View(getContext());
+        mOtherRootView = new View(getContext());
+        mVisitor = new CountingVisitor();
+        mVisitsWhileApplying = -1;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        // Stops the bindings from visiting every second after the test
+        mEditState.setEdits(new HashMap<String, List<ViewVisitor>>());
+        super.tearDown();
+    }
+
+    public void testReappliedEditsStayBound() throws InterruptedException {
+        mEditState.setEdits(editsFor(ACTIVITY_NAME, mVisitor));
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                final int before = mVisitor.visits;
+                mEditState.applyIntendedEdits(mRootView, ACTIVITY_NAME);
+                mEditState.applyIntendedEdits(mRootView, ACTIVITY_NAME);
+                mVisitsWhileApplying = mVisitor.visits - before;
+            }
+        });
+        assertEquals("A new binding visits once as it is made", 1, mVisitsWhileApplying);
+
+        // The same visitor again, as it is when a change comes back from the cache
+        mEditState.setEdits(editsFor(ACTIVITY_NAME, mVisitor));
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                final int before = mVisitor.visits;
+                mEditState.applyIntendedEdits(mRootView, ACTIVITY_NAME);
+                mVisitsWhileApplying = mVisitor.visits - before;
+            }
+        });
+        assertEquals(0, mVisitsWhileApplying);
+        assertEquals(0, mVisitor.cleanups);
+    }
+
+    public void testEachRootGetsOneBinding() throws InterruptedException {
+        mEditState.setEdits(editsFor(null, mVisitor));
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                final int before = mVisitor.visits;
+                mEditState.applyIntendedEdits(mRootView, ACTIVITY_NAME);
+                mEditState.applyIntendedEdits(mOtherRootView, ACTIVITY_NAME);
+                mEditState.applyIntendedEdits(mRootView, ACTIVITY_NAME);
+                mEditState.applyIntendedEdits(mOtherRootView, ACTIVITY_NAME);
+                mVisitsWhileApplying = mVisitor.visits - before;
+            }
+        });
+        assertEquals(2, mVisitsWhileApplying);
+    }
+
+    public void testRemovedEditIsKilled() throws InterruptedException {
+        final CountingVisitor kept = new CountingVisitor();
+        final Map<String, List<ViewVisitor>> both = new HashMap<String, List<ViewVisitor>>();
+        both.put(ACTIVITY_NAME, Arrays.<ViewVisitor>asList(mVisitor, kept));
+        mEditState.setEdits(both);
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mEditState.applyIntendedEdits(mRootView, ACTIVITY_NAME);
+            }
+        });
+
+        mEditState.setEdits(editsFor(ACTIVITY_NAME, kept));
+        onMainThread(new Runnable() {
+            @Override
+            public void run() {
+                // Bindings are killed on the main thread, so this runs after the removed one is cleaned up
+            }
+        });
+        assertEquals(1, mVisitor.cleanups);
+        assertEquals(0, kept.cleanups);
+    }
+
+    private static Map<String, List<ViewVisitor>> editsFor(String activityName, ViewVisitor visitor) {
+        final Map<String, List<ViewVisitor>> edits = new HashMap<String, List<ViewVisitor>>();
+        edits.put(activityName, Collections.singletonList(visitor));
+        return edits;
+    }
+
+    private static void onMainThread(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        assertTrue(done.await(WAIT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    // Counts on the main thread. Bindings visit again every second, so tests count visits within a single task.
+    private static class CountingVisitor extends ViewVisitor {
+        public CountingVisitor() {
+            super(new ArrayList<Pathfinder.PathElement>());
+        }
+
+        @Override
+        public void visit(View rootView) {
+            visits++;
+        }
+
+        @Override
+        public void accumulate(View found) {
+            // Never called, visit doesn't search
+        }
+
+        @Override
+        public void cleanup() {
+            cleanups++;
+        }
+
+        @Override
+        protected String name() {
+            return "Counting Visitor";
+        }
+
+        public volatile int visits = 0;
+        public volatile int cleanups = 0;
+    }
+
+    private EditState mEditState;
+    private View mRootView;
+    private View mOtherRootView;
+    private CountingVisitor mVisitor;
+    private volatile int mVisitsWhileApplying;
+
+    private static final String ACTIVITY_NAME = "com.mixpanel.android.viewcrawler.EditStateTest.Activity";
+    private static final long WAIT_SECONDS = 10;
+}
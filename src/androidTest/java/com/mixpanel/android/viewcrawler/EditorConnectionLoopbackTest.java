@@ -0,0 +1,307 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.mixpanel.android.java_websocket.framing.CloseFrame;
+import com.mixpanel.android.java_websocket.util.ByteBufferPool;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+public class EditorConnectionLoopbackTest extends AndroidTestCase {
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mServer = new LoopbackWebSocketServer();
+        mEditor = new TestEditor();
+        mConnection = new EditorConnection(mServer.getURI(), mEditor, new Socket());
+        assertTrue(mServer.awaitConnected(5000));
+        assertTrue(mConnection.isConnected());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testPayloadArrivesIntact() throws IOException, InterruptedException {
+        final byte[] chunk = new byte[10000];
+        new Random(1234).nextBytes(chunk);
+
+        long expectedChecksum = 0;
+        final BufferedOutputStream out = mConnection.getBufferedOutputStream();
+        for (int i = 0; i < 50; i++) {
+            // Odd sized writes, so frames don't line up with writes
+            final int length = 1 + (i * 997) % chunk.length;
+            out.write(chunk, 0, length);
+            expectedChecksum = LoopbackWebSocketServer.checksum(expectedChecksum, chunk, 0, length);
+        }
+        out.flush();
+
+        long expectedBytes = 0;
+        for (int i = 0; i < 50; i++) {
+            expectedBytes += 1 + (i * 997) % chunk.length;
+        }
+        assertTrue(mServer.awaitPayloadBytes(expectedBytes, 5000));
+        assertEquals(expectedBytes, mServer.getPayloadBytes());
+        assertEquals(expectedChecksum, mServer.getChecksum());
+        assertFalse("This server never agrees to compression", mConnection.isCompressed());
+    }
+
+    public void testCompressedWhenServerAgrees() throws IOException, InterruptedException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return; // permessage-deflate isn't offered
+        }
+
+        final DeflateLoopbackWebSocketServer server = new DeflateLoopbackWebSocketServer();
+        final TestEditor editor = new TestEditor();
+        try {
+            final EditorConnection connection = new EditorConnection(server.getURI(), editor, new Socket());
+            assertTrue(server.awaitConnected(5000));
+            assertTrue(server.wasNegotiated());
+            assertTrue(connection.isCompressed());
+
+            // Two messages, so the second is compressed with the context left by the first
+            final StringBuilder message = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                message.append("{\"hashCode\":").append(i).append(",\"classes\":[\"android.widget.TextView\",\"android.view.View\"]},");
+            }
+            final byte[] bytes = message.toString().getBytes("UTF-8");
+            long expectedChecksum = 0;
+            for (int i = 0; i < 2; i++) {
+                final BufferedOutputStream out = connection.getBufferedOutputStream();
+                out.write(bytes);
+                out.close();
+                expectedChecksum = LoopbackWebSocketServer.checksum(expectedChecksum, bytes, 0, bytes.length);
+            }
+
+            final long expectedBytes = 2L * bytes.length;
+            assertTrue(server.awaitPayloadBytes(expectedBytes, 5000));
+            assertEquals(expectedBytes, server.getPayloadBytes());
+            assertEquals(expectedChecksum, server.getChecksum());
+            assertEquals(2, server.getCompressedMessageCount());
+            assertTrue("Sent " + server.getWireBytes() + " bytes for " + expectedBytes,
+                    server.getWireBytes() < expectedBytes / 4);
+
+            // Compressed messages from the editor are read too
+            server.sendCompressedText("{\"type\":\"snapshot_request\",\"payload\":{}}");
+            assertTrue(editor.awaitSnapshotRequest(5000));
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSelectorModeRoundTrip() throws IOException, InterruptedException {
+        final LoopbackWebSocketServer server = new LoopbackWebSocketServer();
+        final TestEditor editor = new TestEditor();
+        try {
+            // A null SSLContext is fine for a ws:// URI
+            final EditorConnection connection = new EditorConnection(server.getURI(), editor, (SSLContext) null);
+            assertTrue(server.awaitConnected(5000));
+            assertTrue(connection.isConnected());
+
+            final byte[] chunk = new byte[10000];
+            new Random(4321).nextBytes(chunk);
+            long expectedChecksum = 0;
+            final BufferedOutputStream out = connection.getBufferedOutputStream();
+            for (int i = 0; i < 200; i++) {
+                out.write(chunk);
+                expectedChecksum = LoopbackWebSocketServer.checksum(expectedChecksum, chunk, 0, chunk.length);
+            }
+            out.close();
+
+            final long expectedBytes = 200L * chunk.length;
+            assertTrue(server.awaitPayloadBytes(expectedBytes, 10000));
+            assertEquals(expectedBytes, server.getPayloadBytes());
+            assertEquals(expectedChecksum, server.getChecksum());
+
+            // Messages from the editor are read on the same thread
+            server.sendText("{\"type\":\"snapshot_request\",\"payload\":{}}");
+            assertTrue(editor.awaitSnapshotRequest(5000));
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testSupersededSnapshotIsAbandoned() throws IOException, InterruptedException {
+        final BufferedOutputStream stale = mConnection.getSnapshotOutputStream();
+        stale.write(new byte[100]);
+        stale.flush();
+
+        mServer.sendText("{\"type\":\"snapshot_request\",\"payload\":{}}");
+        assertTrue(mEditor.awaitSnapshotRequest(5000));
+
+        try {
+            stale.write(new byte[100]);
+            stale.flush();
+            fail("Writing a superseded snapshot should throw");
+        } catch (final EditorConnection.SnapshotSupersededException e) {
+            ; // Expected
+        }
+        try {
+            stale.close();
+        } catch (final EditorConnection.SnapshotSupersededException e) {
+            ; // The unsent tail is still superseded
+        }
+        assertEquals(1, mConnection.getDroppedSnapshots());
+
+        // Part of the message went out, so the connection is closed rather than the message ended
+        assertEquals(CloseFrame.GOING_AWAY, mServer.awaitCloseCode(5000));
+        assertEquals(100, mServer.getPayloadBytes() - CLOSE_PAYLOAD_BYTES);
+        assertEquals(0, mServer.getFinishedMessageCount());
+        assertFalse(mConnection.isValid());
+    }
+
+    public void testUnsentSupersededSnapshotSendsNothing() throws IOException, InterruptedException {
+        final BufferedOutputStream stale = mConnection.getSnapshotOutputStream();
+        stale.write(new byte[100]);
+
+        mServer.sendText("{\"type\":\"snapshot_request\",\"payload\":{}}");
+        assertTrue(mEditor.awaitSnapshotRequest(5000));
+
+        try {
+            stale.close();
+            fail("Flushing a superseded snapshot should throw");
+        } catch (final EditorConnection.SnapshotSupersededException e) {
+            ; // Expected
+        }
+        assertEquals(1, mConnection.getDroppedSnapshots());
+
+        // Nothing of the stale snapshot was sent, so the connection is still good for the newer one
+        assertTrue(mConnection.isValid());
+        final BufferedOutputStream fresh = mConnection.getSnapshotOutputStream();
+        fresh.write(new byte[100]);
+        fresh.close();
+        assertTrue(mServer.awaitPayloadBytes(100, 5000));
+        assertEquals(100, mServer.getPayloadBytes());
+        assertEquals(1, mServer.getFinishedMessageCount());
+    }
+
+    public void testWritersBlockWhenEditorStopsReading() throws InterruptedException {
+        mServer.setPaused(true);
+        final byte[] chunk = new byte[64 * 1024];
+        final int chunks = 512; // Much more than the kernel will buffer for a stalled loopback socket
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final BufferedOutputStream out = mConnection.getBufferedOutputStream();
+                    for (int i = 0; i < chunks; i++) {
+                        out.write(chunk);
+                    }
+                    out.close();
+                    done.countDown();
+                } catch (final IOException e) {
+                    Log.e(LOGTAG, "Write failed", e);
+                }
+            }
+        });
+        writer.start();
+
+        assertFalse(done.await(2000, TimeUnit.MILLISECONDS));
+        assertTrue("Queued " + mConnection.getMaxBufferedBytes() + " bytes",
+                mConnection.getMaxBufferedBytes() <= MAX_EXPECTED_BUFFERED_BYTES);
+
+        mServer.setPaused(false);
+        assertTrue(done.await(30000, TimeUnit.MILLISECONDS));
+        assertTrue(mServer.awaitPayloadBytes((long) chunks * chunk.length, 30000));
+        assertTrue(mConnection.getBlockedMillis() > 0);
+        assertEquals(0, mConnection.getDroppedSnapshots());
+    }
+
+    /**
+     * Not a pass/fail test, logs the throughput of snapshot sized writes through
+     * EditorConnection's output stream over loopback, and how much memory they allocate.
+     */
+    @SuppressWarnings("deprecation")
+    public void testWriteBenchmark() throws IOException, InterruptedException {
+        final byte[] chunk = new byte[8192];
+        new Random(5678).nextBytes(chunk);
+        final BufferedOutputStream out = mConnection.getBufferedOutputStream();
+
+        // Warm up the pool and the JIT
+        for (int i = 0; i < 128; i++) {
+            out.write(chunk);
+        }
+        out.flush();
+        long sent = 128L * chunk.length;
+        assertTrue(mServer.awaitPayloadBytes(sent, 10000));
+
+        final long poolBefore = ByteBufferPool.DEFAULT.getAllocatedBytes();
+        Debug.startAllocCounting();
+        Debug.resetGlobalAllocSize();
+        final long start = System.nanoTime();
+        final int writes = BENCHMARK_BYTES / chunk.length;
+        for (int i = 0; i < writes; i++) {
+            out.write(chunk);
+        }
+        out.flush();
+        sent += (long) writes * chunk.length;
+        assertTrue(mServer.awaitPayloadBytes(sent, 60000));
+        final long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        final long allocated = Debug.getGlobalAllocSize();
+        Debug.stopAllocCounting();
+        final long poolAllocated = ByteBufferPool.DEFAULT.getAllocatedBytes() - poolBefore;
+
+        final double megabytes = BENCHMARK_BYTES / (1024.0 * 1024.0);
+        Log.i(LOGTAG, "Loopback writes: " + (long) (megabytes * 1000000000L / elapsedNanos) + " MB/s, " +
+                (long) (allocated / megabytes) + " bytes allocated per MB (" +
+                (long) (poolAllocated / megabytes) + " by the frame buffer pool), " +
+                mServer.getFrameCount() + " frames");
+    }
+
+    private static class TestEditor implements EditorConnection.Editor {
+        public boolean awaitSnapshotRequest(long timeoutMillis) throws InterruptedException {
+            return mSnapshotRequested.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void sendSnapshot(JSONObject message) {
+            mSnapshotRequested.countDown();
+        }
+
+        @Override
+        public void performEdit(JSONObject message) {}
+
+        @Override
+        public void clearEdits(JSONObject message) {}
+
+        @Override
+        public void bindEvents(JSONObject message) {}
+
+        @Override
+        public void setTweaks(JSONObject message) {}
+
+        @Override
+        public void sendDeviceInfo() {}
+
+        @Override
+        public void cleanup() {}
+
+        private final CountDownLatch mSnapshotRequested = new CountDownLatch(1);
+    }
+
+    private LoopbackWebSocketServer mServer;
+    private TestEditor mEditor;
+    private EditorConnection mConnection;
+
+    private static final int CLOSE_PAYLOAD_BYTES = 2 + "Message abandoned".length();
+    private static final int BENCHMARK_BYTES = 32 * 1024 * 1024;
+    // EditorConnection's high water mark, plus the one fragment that may be queued on top of it
+    private static final long MAX_EXPECTED_BUFFERED_BYTES = 17 * 64 * 1024;
+    private static final String LOGTAG = "MixpanelAPI.WebSocketBenchmark";
+}
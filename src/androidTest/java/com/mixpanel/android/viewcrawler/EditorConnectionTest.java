@@ -0,0 +1,49 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class EditorConnectionTest extends AndroidTestCase {
+    public void testReadsOnlyNeededPayload() throws JSONException {
+        final JSONObject change = EditorConnection.readMessage(
+                "{\"type\": \"change_request\", \"id\": 12, \"payload\": {\"ignored\": {\"a\": [1, 2]}, \"actions\": [{\"name\": \"c\", \"path\": [], \"count\": 3}]}}");
+        assertEquals("change_request", change.getString("type"));
+        assertFalse(change.has("id"));
+        final JSONObject payload = change.getJSONObject("payload");
+        assertFalse(payload.has("ignored"));
+        assertEquals("[{\"name\":\"c\",\"path\":[],\"count\":3}]", payload.getJSONArray("actions").toString());
+
+        final JSONObject deviceInfo = EditorConnection.readMessage(
+                "{\"type\": \"device_info_request\", \"payload\": {\"big\": [\"stuff\"]}}");
+        assertEquals("device_info_request", deviceInfo.getString("type"));
+        assertEquals(0, deviceInfo.getJSONObject("payload").length());
+    }
+
+    public void testPayloadBeforeType() throws JSONException {
+        final JSONObject tweaks = EditorConnection.readMessage(
+                "{\"payload\": {\"tweaks\": [{\"name\": \"t\", \"value\": 1.5}], \"other\": null}, \"type\": \"tweak_request\"}");
+        assertEquals("tweak_request", tweaks.getString("type"));
+        assertEquals(1.5, tweaks.getJSONObject("payload").getJSONArray("tweaks").getJSONObject(0).getDouble("value"));
+        assertTrue(tweaks.getJSONObject("payload").isNull("other"));
+    }
+
+    public void testBadMessages() {
+        final String[] bad = { "I AM NONSENSE", "null", "{\"type\": \"snapshot_request\", \"payload\": {", "" };
+        for (final String message : bad) {
+            try {
+                EditorConnection.readMessage(message);
+                fail("Should have thrown on " + message);
+            } catch (final JSONException e) {
+                ; // OK
+            }
+        }
+
+        try {
+            assertFalse(EditorConnection.readMessage("{\"payload\": {}}").has("type"));
+        } catch (final JSONException e) {
+            fail("Messages without a type should be readable " + e);
+        }
+    }
+}
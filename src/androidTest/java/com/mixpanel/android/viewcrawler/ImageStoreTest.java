@@ -12,6 +12,9 @@ import com.mixpanel.android.util.RemoteService;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -63,6 +66,56 @@ public class ImageStoreTest extends AndroidTestCase {
         assertEquals(2, mService.queries);
     }
 
+    public void testDownsampledDecode() throws ImageStore.CantGetImageException {
+        final Bitmap full = mImageStore.getImage("HELLO_SAMPLED");
+        assertEquals(10, full.getWidth());
+
+        final Bitmap sampled = mImageStore.getImage("HELLO_SAMPLED", 4, 4);
+        assertEquals(5, sampled.getWidth());
+        assertEquals(5, sampled.getHeight());
+        assertEquals(0xFF00FF00, sampled.getPixel(4, 4));
+        assertEquals(1, mService.queries);
+    }
+
+    public void testDeleteStorageForgetsEverySize() throws ImageStore.CantGetImageException {
+        final Bitmap full = mImageStore.getImage("HELLO_DELETED");
+        final Bitmap sampled = mImageStore.getImage("HELLO_DELETED", 4, 4);
+        assertEquals(1, mService.queries);
+
+        mImageStore.deleteStorage("HELLO_DELETED");
+
+        assertNotSame(sampled, mImageStore.getImage("HELLO_DELETED", 4, 4));
+        assertEquals(2, mService.queries);
+        assertNotSame(full, mImageStore.getImage("HELLO_DELETED"));
+        assertEquals(2, mService.queries);
+    }
+
+    public void testConcurrentLoadsDownloadOnce() throws InterruptedException {
+        mService.gate = new CountDownLatch(1);
+        final int loaderCount = 4;
+        final CountDownLatch loaded = new CountDownLatch(loaderCount);
+        final AtomicInteger failures = new AtomicInteger(0);
+        for (int i = 0; i < loaderCount; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        mImageStore.getImage("HELLO_CONCURRENT");
+                    } catch (ImageStore.CantGetImageException e) {
+                        failures.incrementAndGet();
+                    }
+                    loaded.countDown();
+                }
+            }.start();
+        }
+
+        Thread.sleep(100); // Let every loader reach the download
+        mService.gate.countDown();
+        assertTrue(loaded.await(5, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(1, mService.queries);
+    }
+
     private static class PretendService implements RemoteService {
 
         public PretendService() {
@@ -85,12 +138,20 @@ public class ImageStoreTest extends AndroidTestCase {
         public byte[] performRequest(final String endpointUrl, final Map<String, Object> params, SSLSocketFactory socketFactory)
                 throws ServiceUnavailableException, IOException {
             queries++;
+            if (null != gate) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
             return response;
         }
 
-        public byte[] response;
-        public boolean online;
-        public int queries;
+        public volatile byte[] response;
+        public volatile boolean online;
+        public volatile int queries;
+        public volatile CountDownLatch gate;
     }
 
     private ImageStore mImageStore;
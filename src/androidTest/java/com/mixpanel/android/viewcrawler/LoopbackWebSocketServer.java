@@ -0,0 +1,296 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.util.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal websocket server on the loopback interface, for exercising EditorConnection without an editor.
+ * It accepts a single client, completes the RFC 6455 handshake, and then reads (and unmasks) frames,
+ * counting payload bytes and keeping a running checksum of them. It only sends what tests ask it to.
+ */
+/* package */ class LoopbackWebSocketServer {
+
+    public LoopbackWebSocketServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mConnected = new CountDownLatch(1);
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "LoopbackWebSocketServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public URI getURI() {
+        return URI.create("ws://127.0.0.1:" + mServerSocket.getLocalPort() + "/");
+    }
+
+    public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+        return mConnected.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until at least byteCount payload bytes have arrived. Returns false on timeout.
+     */
+    public synchronized boolean awaitPayloadBytes(long byteCount, long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mPayloadBytes < byteCount) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized long getPayloadBytes() {
+        return mPayloadBytes;
+    }
+
+    public synchronized long getChecksum() {
+        return mChecksum;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * The number of data frames received with the fin bit set, that is, the number of complete messages.
+     */
+    public synchronized int getFinishedMessageCount() {
+        return mFinishedMessageCount;
+    }
+
+    /**
+     * Waits for the client to send a close frame, and returns its status code, or -1 on timeout.
+     */
+    public synchronized int awaitCloseCode(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mCloseCode < 0) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return -1;
+            }
+            wait(remaining);
+        }
+        return mCloseCode;
+    }
+
+    public Map<String, String> getRequestHeaders() {
+        return mRequestHeaders;
+    }
+
+    /**
+     * Sends a single unfragmented text frame to the client.
+     */
+    public void sendText(String text) throws IOException {
+        sendFrame(0x81, text.getBytes("UTF-8")); // fin, TEXT
+    }
+
+    /**
+     * Sends a frame with the given first byte (fin, rsv and opcode bits) and an unmasked payload.
+     */
+    public void sendFrame(int firstByte, byte[] payload) throws IOException {
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(firstByte);
+        if (payload.length < 126) {
+            frame.write(payload.length);
+        } else {
+            frame.write(126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length);
+        }
+        frame.write(payload);
+        synchronized (mClient) {
+            final OutputStream out = mClient.getOutputStream();
+            out.write(frame.toByteArray());
+            out.flush();
+        }
+    }
+
+    /**
+     * While paused the server stops reading, so the client's writes back up.
+     */
+    public synchronized void setPaused(boolean paused) {
+        mPaused = paused;
+        notifyAll();
+    }
+
+    public void close() throws IOException {
+        setPaused(false);
+        mServerSocket.close();
+        if (null != mClient) {
+            mClient.close();
+        }
+    }
+
+    /**
+     * Returns extra response header lines (each ending in \r\n) to send with the handshake response.
+     */
+    protected String extraResponseHeaders(Map<String, String> requestHeaders) {
+        return "";
+    }
+
+    /**
+     * Called with each unmasked frame payload. Returns the bytes that count as the frame's payload.
+     */
+    protected byte[] onFramePayload(int firstByte, byte[] payload) throws IOException {
+        return payload;
+    }
+
+    private void serve() {
+        try {
+            mClient = mServerSocket.accept();
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(mClient.getInputStream()));
+            final OutputStream out = mClient.getOutputStream();
+            mRequestHeaders = readHeaders(in);
+            final String accept = acceptKey(mRequestHeaders.get("sec-websocket-key"));
+            final String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: Upgrade\r\n" +
+                    "Sec-WebSocket-Accept: " + accept + "\r\n" +
+                    extraResponseHeaders(mRequestHeaders) +
+                    "\r\n";
+            out.write(response.getBytes("US-ASCII"));
+            out.flush();
+            mConnected.countDown();
+
+            byte[] payload = new byte[0];
+            final byte[] mask = new byte[4];
+            while (true) {
+                synchronized (this) {
+                    while (mPaused) {
+                        wait();
+                    }
+                }
+                final int b1 = in.read();
+                if (b1 < 0) {
+                    return;
+                }
+                final int b2 = in.readUnsignedByte();
+                long length = b2 & 0x7f;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                final boolean masked = (b2 & 0x80) != 0;
+                if (masked) {
+                    in.readFully(mask);
+                }
+                if (payload.length < length) {
+                    payload = new byte[(int) length];
+                }
+                in.readFully(payload, 0, (int) length);
+                if (masked) {
+                    for (int i = 0; i < length; i++) {
+                        payload[i] ^= mask[i & 3];
+                    }
+                }
+
+                final byte[] frame = new byte[(int) length];
+                System.arraycopy(payload, 0, frame, 0, (int) length);
+                final byte[] counted = onFramePayload(b1, frame);
+                synchronized (this) {
+                    for (final byte b : counted) {
+                        mChecksum = mChecksum * 31 + b;
+                    }
+                    mPayloadBytes += counted.length;
+                    mFrameCount++;
+                    final int opcode = b1 & 0x0f;
+                    if (opcode == 0x8) {
+                        mCloseCode = length >= 2 ? ((frame[0] & 0xff) << 8) | (frame[1] & 0xff) : 0;
+                    } else if ((b1 & 0x80) != 0 && opcode <= 0x2) {
+                        mFinishedMessageCount++;
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (final IOException e) {
+            ; // Closed, we're done
+        } catch (final InterruptedException e) {
+            ; // Nothing to do but stop
+        } finally {
+            mConnected.countDown();
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        final Map<String, String> ret = new HashMap<String, String>();
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int previous = -1;
+        while (true) {
+            final int c = in.read();
+            if (c < 0) {
+                throw new IOException("Connection closed during handshake");
+            }
+            if (previous == '\r' && c == '\n') {
+                final String text = new String(line.toByteArray(), 0, line.size() - 1, "US-ASCII");
+                line.reset();
+                if (text.length() == 0) {
+                    return ret;
+                }
+                final int colon = text.indexOf(':');
+                if (colon > 0) {
+                    ret.put(text.substring(0, colon).trim().toLowerCase(Locale.US), text.substring(colon + 1).trim());
+                }
+            } else {
+                line.write(c);
+            }
+            previous = c;
+        }
+    }
+
+    private static String acceptKey(String key) throws IOException {
+        try {
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+            final byte[] digest = sha1.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("US-ASCII"));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("No SHA1 available");
+        }
+    }
+
+    /**
+     * Computes the same checksum as the server, for comparing against bytes that were sent.
+     */
+    public static long checksum(long checksum, byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            checksum = checksum * 31 + bytes[i];
+        }
+        return checksum;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final CountDownLatch mConnected;
+    private final Thread mThread;
+    private volatile Socket mClient;
+    private volatile Map<String, String> mRequestHeaders;
+    private long mPayloadBytes;
+    private long mChecksum;
+    private int mFrameCount;
+    private int mFinishedMessageCount;
+    private int mCloseCode = -1;
+    private boolean mPaused;
+}
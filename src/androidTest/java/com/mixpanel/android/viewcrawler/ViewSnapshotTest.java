@@ -24,6 +24,7 @@ import org.json.JSONObject;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -196,6 +197,26 @@ public class ViewSnapshotTest extends AndroidTestCase {
         assertEquals(adhoc3Desc.getInt("id"), TestView.BUTTON_ID);
     }
 
+    public void testParallelSerializationMatchesSerial() throws IOException, JSONException {
+        final JSONArray serialJson = requestSnapshot();
+
+        final ViewSnapshotTable table = mSnapshot.captureViewTable(mRootView);
+        assertEquals(mRootView.mAllViews.size(), table.getNodeCount());
+
+        // Windows much smaller than a node, so every range wraps its window and waits to be drained
+        final int[] windowSizes = { 1, 7, 16 * 1024 };
+        for (final int windowChars : windowSizes) {
+            final StringWriter parallelOut = new StringWriter();
+            mSnapshot.writeViewTable(parallelOut, table, 2, windowChars);
+            final JSONArray parallelJson = new JSONArray(parallelOut.toString());
+
+            assertEquals(serialJson.length(), parallelJson.length());
+            for (int i = 0; i < serialJson.length(); i++) {
+                assertEquals(serialJson.getJSONObject(i).toString(), parallelJson.getJSONObject(i).toString());
+            }
+        }
+    }
+
     private SparseArray<JSONObject> snapshotsByHashcode() throws IOException, JSONException {
         final JSONArray viewsJson = requestSnapshot();
         final Map<Integer, View> viewsByHashcode = new HashMap<Integer, View>(mRootView.mViewsByHashcode);
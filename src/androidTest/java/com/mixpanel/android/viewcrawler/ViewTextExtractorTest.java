@@ -0,0 +1,87 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.test.AndroidTestCase;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+public class ViewTextExtractorTest extends AndroidTestCase {
+    public void setUp() throws Exception {
+        super.setUp();
+        mExtractor = new ViewTextExtractor(20, 2);
+    }
+
+    public void testLoneTextView() {
+        final TextView textView = new TextView(getContext());
+        textView.setText("Hello");
+        assertEquals("Hello", mExtractor.extract(textView));
+        assertEquals("Hello", mExtractor.capture(textView).toText());
+
+        textView.setText("");
+        assertEquals("", mExtractor.extract(textView));
+        assertEquals("", mExtractor.capture(textView).toText());
+    }
+
+    public void testNoText() {
+        final LinearLayout group = new LinearLayout(getContext());
+        group.addView(new ImageView(getContext()));
+        group.addView(textView(""));
+        assertNull(mExtractor.extract(group));
+        assertNull(mExtractor.capture(group).toText());
+        assertNull(mExtractor.extract(new ImageView(getContext())));
+    }
+
+    public void testJoinsChildren() {
+        final LinearLayout group = new LinearLayout(getContext());
+        final LinearLayout nested = new LinearLayout(getContext());
+        group.addView(textView("One"));
+        group.addView(textView(""));
+        group.addView(nested);
+        nested.addView(textView("Two"));
+        group.addView(textView("Three"));
+
+        assertEquals("One, Two, Three", mExtractor.extract(group));
+        assertEquals("One, Two, Three", mExtractor.capture(group).toText());
+    }
+
+    public void testLengthBudget() {
+        final LinearLayout group = new LinearLayout(getContext());
+        group.addView(textView("0123456789"));
+        group.addView(textView("abcdefghijklmnopqrstuvwxyz"));
+        group.addView(textView("Never seen"));
+
+        final String expected = "0123456789, abcdefgh";
+        assertEquals(expected, mExtractor.extract(group));
+        assertEquals(expected, mExtractor.capture(group).toText());
+    }
+
+    public void testDepthBudget() {
+        final LinearLayout group = new LinearLayout(getContext());
+        final LinearLayout depth2 = new LinearLayout(getContext());
+        final LinearLayout depth3 = new LinearLayout(getContext());
+        group.addView(depth2);
+        depth2.addView(textView("Shallow"));
+        depth2.addView(depth3);
+        depth3.addView(textView("Too deep"));
+
+        assertEquals("Shallow", mExtractor.extract(group));
+        assertEquals("Shallow", mExtractor.capture(group).toText());
+    }
+
+    public void testCaptureCopiesEditableText() {
+        final EditText editText = new EditText(getContext());
+        editText.setText("Before");
+        final ViewTextExtractor.Snapshot snapshot = mExtractor.capture(editText);
+        editText.setText("After");
+        assertEquals("Before", snapshot.toText());
+    }
+
+    private TextView textView(String text) {
+        final TextView ret = new TextView(getContext());
+        ret.setText(text);
+        return ret;
+    }
+
+    private ViewTextExtractor mExtractor;
+}
@@ -0,0 +1,287 @@
+package com.mixpanel.android.java_websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Encrypts a non-blocking SocketChannel with an SSLEngine, for use from a Selector loop.<br>
+ * Reads and writes never block. While the TLS handshake is in progress they move the handshake along as far as
+ * the socket allows and return 0, so the caller should keep offering data on every read or write readiness.
+ * {@link #isNeedWrite()} is true while encrypted bytes are waiting for the socket to accept them, and
+ * {@link #isNeedRead()} while decrypted bytes are waiting to be picked up with {@link #readMore(ByteBuffer)}.
+ * Once the handshake completes, the server's certificate is checked against the host with <var>verifier</var>.
+ * Not thread safe, all calls should come from the loop thread.
+ */
+public class SSLSocketChannel implements WrappedByteChannel {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+
+	private final SocketChannel socketchannel;
+
+	private final SSLEngine sslengine;
+
+	private final String host;
+
+	private final HostnameVerifier verifier;
+
+	/** encrypted bytes read from the socket but not yet decrypted, kept ready for writing into */
+	private ByteBuffer netin;
+
+	/** encrypted bytes not yet written to the socket, kept ready for reading from */
+	private ByteBuffer netout;
+
+	/** decrypted bytes not yet returned, kept ready for reading from */
+	private ByteBuffer appin;
+
+	private boolean verified = false;
+
+	public SSLSocketChannel( SocketChannel channel , SSLEngine engine , String host , HostnameVerifier verifier ) throws SSLException {
+		this.socketchannel = channel;
+		this.sslengine = engine;
+		this.host = host;
+		this.verifier = verifier;
+		this.netin = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+		this.netout = ByteBuffer.allocate( engine.getSession().getPacketBufferSize() );
+		this.netout.flip();
+		this.appin = ByteBuffer.allocate( engine.getSession().getApplicationBufferSize() );
+		this.appin.flip();
+		engine.setUseClientMode( true );
+		engine.beginHandshake();
+	}
+
+	@Override
+	public int write( ByteBuffer src ) throws IOException {
+		if( !flushNetOut() || !handshake() ) {
+			return 0;
+		}
+		int consumed = 0;
+		while ( src.hasRemaining() ) {
+			SSLEngineResult result = wrap( src );
+			consumed += result.bytesConsumed();
+			if( result.getStatus() == Status.CLOSED ) {
+				throw new SSLException( "SSLEngine closed" );
+			}
+			if( !flushNetOut() ) {
+				break;
+			}
+		}
+		return consumed;
+	}
+
+	@Override
+	public int read( ByteBuffer dst ) throws IOException {
+		if( appin.hasRemaining() ) {
+			return transfer( appin, dst );
+		}
+
+		int read = socketchannel.read( netin );
+		if( !unwrap() && read == -1 ) {
+			throw new EOFException( "Connection closed during the TLS handshake" );
+		}
+		if( appin.hasRemaining() ) {
+			return transfer( appin, dst );
+		}
+		return read == -1 || sslengine.isInboundDone() ? -1 : 0;
+	}
+
+	@Override
+	public boolean isNeedWrite() {
+		return netout.hasRemaining();
+	}
+
+	@Override
+	public void writeMore() throws IOException {
+		if( flushNetOut() ) {
+			handshake();
+		}
+	}
+
+	@Override
+	public boolean isNeedRead() {
+		return appin.hasRemaining();
+	}
+
+	@Override
+	public int readMore( ByteBuffer dst ) {
+		return transfer( appin, dst );
+	}
+
+	@Override
+	public boolean isBlocking() {
+		return socketchannel.isBlocking();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return socketchannel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			// Best effort at a close_notify, we're not going to wait around for the socket to take it
+			sslengine.closeOutbound();
+			if( flushNetOut() ) {
+				wrap( EMPTY );
+				flushNetOut();
+			}
+		} catch ( IOException e ) {
+			// Closing anyway
+		} finally {
+			socketchannel.close();
+		}
+	}
+
+	/**
+	 * Moves the handshake along as far as it can go without blocking.<br>
+	 * Returns true once there is no handshake in progress.
+	 */
+	private boolean handshake() throws IOException {
+		while ( true ) {
+			HandshakeStatus status = sslengine.getHandshakeStatus();
+			if( status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED ) {
+				verifyHost();
+				return true;
+			} else if( status == HandshakeStatus.NEED_TASK ) {
+				Runnable task;
+				while ( ( task = sslengine.getDelegatedTask() ) != null ) {
+					task.run();
+				}
+			} else if( status == HandshakeStatus.NEED_WRAP ) {
+				if( !flushNetOut() ) {
+					return false;
+				}
+				if( wrap( EMPTY ).getStatus() == Status.CLOSED ) {
+					throw new SSLException( "SSLEngine closed during the handshake" );
+				}
+				if( !flushNetOut() ) {
+					return false;
+				}
+			} else if( status == HandshakeStatus.NEED_UNWRAP ) {
+				Status result = unwrapOnce();
+				if( result == Status.CLOSED ) {
+					throw new SSLException( "SSLEngine closed during the handshake" );
+				} else if( result == Status.BUFFER_UNDERFLOW ) {
+					int read = socketchannel.read( netin );
+					if( read == -1 ) {
+						throw new EOFException( "Connection closed during the TLS handshake" );
+					} else if( read == 0 ) {
+						return false; // wait for the server
+					}
+				}
+			}
+		}
+	}
+
+	private void verifyHost() throws SSLPeerUnverifiedException {
+		if( !verified ) {
+			if( !verifier.verify( host, sslengine.getSession() ) ) {
+				throw new SSLPeerUnverifiedException( "Certificate doesn't match " + host );
+			}
+			verified = true;
+		}
+	}
+
+	/**
+	 * Decrypts every complete record that has been read, handling any handshake messages among them.<br>
+	 * Returns false if it had to stop because a handshake is waiting on the server.
+	 */
+	private boolean unwrap() throws IOException {
+		Status status;
+		do {
+			if( !handshake() ) {
+				return false;
+			}
+			status = unwrapOnce();
+		} while ( status == Status.OK );
+		return true;
+	}
+
+	/** Returns OK if something was decrypted and there may be more to decrypt */
+	private Status unwrapOnce() throws SSLException {
+		appin.compact();
+		netin.flip();
+		SSLEngineResult result;
+		try {
+			result = sslengine.unwrap( netin, appin );
+		} finally {
+			netin.compact();
+			appin.flip();
+		}
+
+		Status status = result.getStatus();
+		if( status == Status.BUFFER_OVERFLOW ) {
+			appin = grow( appin, sslengine.getSession().getApplicationBufferSize() );
+			return Status.OK;
+		} else if( status == Status.BUFFER_UNDERFLOW && !netin.hasRemaining() ) {
+			// A record bigger than our buffer. Make room for the rest of it
+			netin = growForWriting( netin, sslengine.getSession().getPacketBufferSize() );
+		} else if( status == Status.OK && result.bytesConsumed() == 0 && result.bytesProduced() == 0 ) {
+			return Status.BUFFER_UNDERFLOW; // nothing more to do until more arrives
+		}
+		return status;
+	}
+
+	private SSLEngineResult wrap( ByteBuffer src ) throws SSLException {
+		while ( true ) {
+			netout.compact();
+			SSLEngineResult result;
+			try {
+				result = sslengine.wrap( src, netout );
+			} finally {
+				netout.flip();
+			}
+			if( result.getStatus() != Status.BUFFER_OVERFLOW ) {
+				return result;
+			}
+			netout = grow( netout, sslengine.getSession().getPacketBufferSize() );
+		}
+	}
+
+	/** Writes as much of netout as the socket will take. Returns whether all of it was written. */
+	private boolean flushNetOut() throws IOException {
+		while ( netout.hasRemaining() ) {
+			if( socketchannel.write( netout ) == 0 ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns a copy of a buffer that is ready for reading, with at least <var>extra</var> more capacity */
+	private static ByteBuffer grow( ByteBuffer buf, int extra ) {
+		ByteBuffer bigger = ByteBuffer.allocate( buf.capacity() + extra );
+		bigger.put( buf );
+		bigger.flip();
+		return bigger;
+	}
+
+	/** Returns a copy of a buffer that is ready for writing into, with at least <var>extra</var> more capacity */
+	private static ByteBuffer growForWriting( ByteBuffer buf, int extra ) {
+		ByteBuffer bigger = ByteBuffer.allocate( buf.capacity() + extra );
+		buf.flip();
+		bigger.put( buf );
+		return bigger;
+	}
+
+	private static int transfer( ByteBuffer from, ByteBuffer to ) {
+		int count = Math.min( from.remaining(), to.remaining() );
+		if( count > 0 ) {
+			ByteBuffer slice = from.duplicate();
+			slice.limit( slice.position() + count );
+			to.put( slice );
+			from.position( from.position() + count );
+		}
+		return count;
+	}
+}
@@ -3,9 +3,12 @@ package com.mixpanel.android.java_websocket;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.Iterator;
 
 import com.mixpanel.android.java_websocket.WebSocket.Role;
+import com.mixpanel.android.java_websocket.util.ByteBufferPool;
 
 public class SocketChannelIOHelper {
 
@@ -49,6 +52,10 @@ public class SocketChannelIOHelper {
 					c.writeMore();
 				}
 			}
+		} else if( sockchannel instanceof GatheringByteChannel && !( sockchannel instanceof WrappedByteChannel ) ) {
+			if( !gather( ws, (GatheringByteChannel) sockchannel ) ) {
+				return false;
+			}
 		} else {
 			do {// FIXME writing as much as possible is unfair!!
 				/*int written = */sockchannel.write( buffer );
@@ -56,6 +63,7 @@ public class SocketChannelIOHelper {
 					return false;
 				} else {
 					ws.outQueue.poll(); // Buffer finished. Remove it.
+					ByteBufferPool.DEFAULT.release( buffer );
 					buffer = ws.outQueue.peek();
 				}
 			} while ( buffer != null );
@@ -68,4 +76,35 @@ public class SocketChannelIOHelper {
 		}
 		return c != null ? !( (WrappedByteChannel) sockchannel ).isNeedWrite() : true;
 	}
+
+	/**
+	 * Writes queued buffers (typically frame after frame) with gathering writes, so several frames go out with a
+	 * single system call. Returns whether the whole outQueue has been written.
+	 */
+	private static boolean gather( WebSocketImpl ws, GatheringByteChannel channel ) throws IOException {
+		ByteBuffer[] batch = new ByteBuffer[ MAX_GATHER ];
+		while ( true ) {
+			// Only this thread removes from the queue, so its head stays put while we write
+			int count = 0;
+			Iterator<ByteBuffer> it = ws.outQueue.iterator();
+			while ( count < MAX_GATHER && it.hasNext() ) {
+				batch[ count++ ] = it.next();
+			}
+			if( count == 0 ) {
+				return true;
+			}
+
+			channel.write( batch, 0, count );
+			for( int i = 0 ; i < count ; i++ ) {
+				if( batch[ i ].hasRemaining() ) {
+					return false;
+				}
+				ws.outQueue.poll();
+				ByteBufferPool.DEFAULT.release( batch[ i ] );
+				batch[ i ] = null;
+			}
+		}
+	}
+
+	private static final int MAX_GATHER = 16;
 }
@@ -35,6 +35,7 @@ import com.mixpanel.android.java_websocket.handshake.ClientHandshakeBuilder;
 import com.mixpanel.android.java_websocket.handshake.Handshakedata;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshakeBuilder;
+import com.mixpanel.android.java_websocket.util.ByteCountingQueue;
 import com.mixpanel.android.java_websocket.util.Charsetfunctions;
 
 /**
@@ -65,15 +66,20 @@ public class WebSocketImpl implements WebSocket {
 	/**
 	 * Queue of buffers that need to be sent to the client.
 	 */
-	public final BlockingQueue<ByteBuffer> outQueue;
+	public final ByteCountingQueue outQueue;
 	/**
 	 * Queue of buffers that need to be processed
 	 */
 	public final BlockingQueue<ByteBuffer> inQueue;
 
+	private final Object sendlock = new Object();
+
 	/** When true no further frames may be submitted to be sent */
 	private volatile boolean flushandclosestate = false;
 
+	/** Set under sendlock once the draft has released its resources, after which no data frame may be built */
+	private boolean draftreleased = false;
+
 	private READYSTATE readystate = READYSTATE.NOT_YET_CONNECTED;
 
 	/**
@@ -124,7 +130,7 @@ public class WebSocketImpl implements WebSocket {
 	public WebSocketImpl( WebSocketListener listener , Draft draft ) {
 		if( listener == null || ( draft == null && role == Role.SERVER ) )// socket can be null because we want do be able to create the object without already having a bound channel
 			throw new IllegalArgumentException( "parameters must not be null" );
-		this.outQueue = new LinkedBlockingQueue<ByteBuffer>();
+		this.outQueue = new ByteCountingQueue();
 		inQueue = new LinkedBlockingQueue<ByteBuffer>();
 		this.wsl = listener;
 		this.role = Role.CLIENT;
@@ -176,7 +182,8 @@ public class WebSocketImpl implements WebSocket {
 			socketBuffer = socketBufferNew;
 		} else {
 			if( tmpHandshakeBytes.remaining() < socketBufferNew.remaining() ) {
-				ByteBuffer buf = ByteBuffer.allocate( tmpHandshakeBytes.capacity() + socketBufferNew.remaining() );
+				// grow geometrically, so a handshake that trickles in isn't copied once per read
+				ByteBuffer buf = ByteBuffer.allocate( Math.max( tmpHandshakeBytes.capacity() * 2, tmpHandshakeBytes.capacity() + socketBufferNew.remaining() ) );
 				tmpHandshakeBytes.flip();
 				buf.put( tmpHandshakeBytes );
 				tmpHandshakeBytes = buf;
@@ -347,6 +354,11 @@ public class WebSocketImpl implements WebSocket {
 				} else if( curop == Opcode.PONG ) {
 					wsl.onWebsocketPong( this, f );
 					continue;
+				} else if( flushandclosestate || readystate == READYSTATE.CLOSING ) {
+					// Once closing has started only control frames matter, and a message may have been cut short
+					if( DEBUG )
+						System.out.println( "dropped data frame while closing: " + f );
+					continue;
 				} else if( !fin || curop == Opcode.CONTINUOUS ) {
 					if( curop != Opcode.CONTINUOUS ) {
 						if( current_continuous_frame_opcode != null )
@@ -464,8 +476,13 @@ public class WebSocketImpl implements WebSocket {
 		} catch ( RuntimeException e ) {
 			wsl.onWebsocketError( this, e );
 		}
-		if( draft != null )
-			draft.reset();
+		synchronized ( sendlock ) {
+			if( draft != null ) {
+				draft.reset();
+				draft.release();
+			}
+			draftreleased = true;
+		}
 		handshakerequest = null;
 
 		readystate = READYSTATE.CLOSED;
@@ -582,7 +599,14 @@ public class WebSocketImpl implements WebSocket {
 	public void sendFrame( Framedata framedata ) {
 		if( DEBUG )
 			System.out.println( "send frame: " + framedata );
-		write( draft.createBinaryFrame( framedata ) );
+		// With permessage-deflate each frame is compressed against the ones before it, so frames have to be queued in the order they were built
+		synchronized ( sendlock ) {
+			Opcode op = framedata.getOpcode();
+			if( draftreleased && ( op == Opcode.TEXT || op == Opcode.BINARY || op == Opcode.CONTINUOUS ) ) {
+				throw new WebsocketNotConnectedException();
+			}
+			write( draft.createBinaryFrame( framedata ) );
+		}
 	}
 
 	@Override
@@ -590,6 +614,24 @@ public class WebSocketImpl implements WebSocket {
 		return !this.outQueue.isEmpty();
 	}
 
+	/** The number of bytes queued to be sent */
+	public long getBufferedBytes() {
+		return outQueue.getBytes();
+	}
+
+	/** The most bytes that have been queued to be sent at once */
+	public long getMaxBufferedBytes() {
+		return outQueue.getHighWaterBytes();
+	}
+
+	/**
+	 * Blocks the calling thread until no more than <var>maxBytes</var> are queued to be sent,
+	 * or <var>timeoutMillis</var> have passed. Returns false on timeout.
+	 */
+	public boolean awaitBufferedBytesAtMost( long maxBytes, long timeoutMillis ) throws InterruptedException {
+		return outQueue.awaitBytesAtMost( maxBytes, timeoutMillis );
+	}
+
 	private HandshakeState isFlashEdgeCase( ByteBuffer request ) throws IncompleteHandshakeException {
 		request.mark();
 		if( request.limit() > Draft.FLASH_POLICY_REQUEST.length ) {
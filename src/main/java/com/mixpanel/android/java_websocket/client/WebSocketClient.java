@@ -2,6 +2,7 @@ package com.mixpanel.android.java_websocket.client;
 
 import android.annotation.SuppressLint;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -10,13 +11,25 @@ import java.net.Proxy;
 import java.net.Socket;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import com.mixpanel.android.java_websocket.SSLSocketChannel;
+import com.mixpanel.android.java_websocket.SocketChannelIOHelper;
 import com.mixpanel.android.java_websocket.WebSocket;
 import com.mixpanel.android.java_websocket.WebSocketAdapter;
 import com.mixpanel.android.java_websocket.WebSocketImpl;
+import com.mixpanel.android.java_websocket.WrappedByteChannel;
 import com.mixpanel.android.java_websocket.drafts.Draft;
 import com.mixpanel.android.java_websocket.drafts.Draft_17;
 import com.mixpanel.android.java_websocket.exceptions.InvalidHandshakeException;
@@ -26,6 +39,7 @@ import com.mixpanel.android.java_websocket.framing.Framedata.Opcode;
 import com.mixpanel.android.java_websocket.handshake.HandshakeImpl1Client;
 import com.mixpanel.android.java_websocket.handshake.Handshakedata;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
+import com.mixpanel.android.java_websocket.util.ByteBufferPool;
 
 /**
  * A subclass must implement at least <var>onOpen</var>, <var>onClose</var>, and <var>onMessage</var> to be
@@ -61,6 +75,16 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 
 	private int connectTimeout = 0;
 
+	private boolean useSelector = false;
+
+	private SSLContext sslContext = null;
+
+	private SocketChannel socketChannel = null;
+
+	private volatile Selector selector = null;
+
+	private static final int WRITE_BUFFER_SIZE = 16384;
+
 	/** This open a websocket connection as specified by rfc6455 */
 	public WebSocketClient( URI serverURI ) {
 		this( serverURI, new Draft_17() );
@@ -109,10 +133,31 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 	public void connect() {
 		if( writeThread != null )
 			throw new IllegalStateException( "WebSocketClient objects are not reuseable" );
-		writeThread = new Thread( this );
+		writeThread = new Thread( useSelector ? new SelectorLoop() : this );
 		writeThread.start();
 	}
 
+	/**
+	 * Runs the connection from a single thread with a non-blocking SocketChannel and a Selector, rather than
+	 * with a reading thread and a writing thread on a blocking Socket.<br>
+	 * wss connections are encrypted with an SSLEngine from <var>context</var>, and the server's certificate is checked
+	 * with the default HostnameVerifier. <var>context</var> may be null for ws connections.<br>
+	 * This method must be called before <code>connect</code>, and can't be combined with <code>setSocket</code> or <code>setProxy</code>.
+	 */
+	public void useSelector( SSLContext context ) {
+		if( writeThread != null ) {
+			throw new IllegalStateException( "useSelector must be called before connect" );
+		}
+		if( socket != null || proxy != Proxy.NO_PROXY ) {
+			throw new IllegalStateException( "A Selector can't be used with a Socket or a Proxy" );
+		}
+		if( context == null && "wss".equals( uri.getScheme() ) ) {
+			throw new IllegalArgumentException( "wss needs an SSLContext" );
+		}
+		this.useSelector = true;
+		this.sslContext = "wss".equals( uri.getScheme() ) ? context : null;
+	}
+
 	/**
 	 * Same as <code>connect</code> but blocks until the websocket connected or failed to do so.<br>
 	 * Returns whether it succeeded or not.
@@ -168,7 +213,8 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 			if( !socket.isBound() )
 				socket.connect( new InetSocketAddress( uri.getHost(), getPort() ), connectTimeout );
 			istream = socket.getInputStream();
-			ostream = socket.getOutputStream();
+			// Small frames are coalesced here, big ones go straight through to the socket
+			ostream = new BufferedOutputStream( socket.getOutputStream(), WRITE_BUFFER_SIZE );
 
 			sendHandshake();
 		} catch ( /*IOException | SecurityException | UnresolvedAddressException | InvalidHandshakeException | ClosedByInterruptException | SocketTimeoutException */Exception e ) {
@@ -279,6 +325,8 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 		closeLatch.countDown();
 		if( writeThread != null )
 			writeThread.interrupt();
+		if( selector != null )
+			selector.wakeup();
 		try {
 			if( socket != null )
 				socket.close();
@@ -298,7 +346,11 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 
 	@Override
 	public final void onWriteDemand( WebSocket conn ) {
-		// nothing to do
+		// The write thread is always waiting on the queue, but the selector loop has to be woken to notice it
+		Selector s = selector;
+		if( s != null ) {
+			s.wakeup();
+		}
 	}
 
 	@Override
@@ -325,6 +377,8 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 	public InetSocketAddress getLocalSocketAddress( WebSocket conn ) {
 		if( socket != null )
 			return (InetSocketAddress) socket.getLocalSocketAddress();
+		if( socketChannel != null )
+			return (InetSocketAddress) socketChannel.socket().getLocalSocketAddress();
 		return null;
 	}
 
@@ -332,6 +386,8 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 	public InetSocketAddress getRemoteSocketAddress( WebSocket conn ) {
 		if( socket != null )
 			return (InetSocketAddress) socket.getRemoteSocketAddress();
+		if( socketChannel != null )
+			return (InetSocketAddress) socketChannel.socket().getRemoteSocketAddress();
 		return null;
 	}
 
@@ -352,7 +408,12 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 			try {
 				while ( !Thread.interrupted() ) {
 					ByteBuffer buffer = engine.outQueue.take();
-					ostream.write( buffer.array(), 0, buffer.limit() );
+					// write everything that is queued up, and only then flush
+					do {
+						ostream.write( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+						ByteBufferPool.DEFAULT.release( buffer );
+						buffer = engine.outQueue.poll();
+					} while ( buffer != null );
 					ostream.flush();
 				}
 			} catch ( IOException e ) {
@@ -363,6 +424,127 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 		}
 	}
 
+	/**
+	 * Does all of the reading and writing for a connection made with {@link #useSelector(SSLContext)}, from one thread.<br>
+	 * Reads are taken whenever the channel is readable. Writes are made whenever something is queued, and the loop only
+	 * waits for the channel to become writable when the socket (or the TLS layer) couldn't take everything.
+	 * Other threads queue frames and wake the selector through onWriteDemand.
+	 */
+	private class SelectorLoop implements Runnable {
+		@Override
+		public void run() {
+			Thread.currentThread().setName( "WebsocketSelectorThread" );
+			ByteChannel channel;
+			SelectionKey key;
+			try {
+				selector = Selector.open();
+				socketChannel = SocketChannel.open();
+				socketChannel.configureBlocking( false );
+				socketChannel.connect( new InetSocketAddress( uri.getHost(), getPort() ) );
+				key = socketChannel.register( selector, SelectionKey.OP_CONNECT );
+				awaitConnect();
+
+				if( sslContext != null ) {
+					SSLEngine sslEngine = sslContext.createSSLEngine( uri.getHost(), getPort() );
+					channel = new SSLSocketChannel( socketChannel, sslEngine, uri.getHost(), HttpsURLConnection.getDefaultHostnameVerifier() );
+				} else {
+					channel = socketChannel;
+				}
+				engine.channel = channel;
+				engine.key = key;
+				key.interestOps( SelectionKey.OP_READ );
+				sendHandshake();
+			} catch ( /*IOException | SecurityException | UnresolvedAddressException | InvalidHandshakeException */Exception e ) {
+				onWebsocketError( engine, e );
+				engine.closeConnection( CloseFrame.NEVER_CONNECTED, e.getMessage() );
+				if( engine.channel == null && socketChannel != null ) {
+					try {
+						socketChannel.close();
+					} catch ( IOException closeException ) {
+						// already failing
+					}
+				}
+				closeSelector();
+				return;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate( WebSocketImpl.RCVBUF );
+			try {
+				while ( !engine.isClosed() && !Thread.interrupted() ) {
+					boolean flushed = write( channel );
+					key.interestOps( flushed || !needsWritable( channel ) ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+					selector.select();
+					selector.selectedKeys().clear();
+					if( key.isValid() && key.isReadable() ) {
+						read( channel, buffer );
+					}
+				}
+			} catch ( CancelledKeyException e ) {
+				// closed from another thread
+			} catch ( IOException e ) {
+				engine.eot();
+			} catch ( RuntimeException e ) {
+				// this catch case covers internal errors only and indicates a bug in this websocket implementation
+				onError( e );
+				engine.closeConnection( CloseFrame.ABNORMAL_CLOSE, e.getMessage() );
+			} finally {
+				closeSelector();
+			}
+		}
+
+		private void awaitConnect() throws IOException {
+			long deadline = System.currentTimeMillis() + connectTimeout;
+			while ( !socketChannel.finishConnect() ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if( connectTimeout > 0 && remaining <= 0 ) {
+					throw new IOException( "Timed out connecting to " + uri );
+				}
+				selector.select( connectTimeout > 0 ? remaining : 0 );
+				selector.selectedKeys().clear();
+			}
+		}
+
+		private void read( ByteChannel channel, ByteBuffer buffer ) throws IOException {
+			if( SocketChannelIOHelper.read( buffer, engine, channel ) ) {
+				engine.decode( buffer );
+			}
+			if( channel instanceof WrappedByteChannel ) {
+				WrappedByteChannel wrapped = (WrappedByteChannel) channel;
+				while ( wrapped.isNeedRead() && !engine.isClosed() ) {
+					SocketChannelIOHelper.readMore( buffer, engine, wrapped );
+					if( buffer.hasRemaining() ) {
+						engine.decode( buffer );
+					}
+				}
+			}
+		}
+
+		/** Returns whether everything queued has been written */
+		private boolean write( ByteChannel channel ) throws IOException {
+			if( engine.outQueue.isEmpty() && !( channel instanceof WrappedByteChannel && ( (WrappedByteChannel) channel ).isNeedWrite() ) ) {
+				return true;
+			}
+			return SocketChannelIOHelper.batch( engine, channel );
+		}
+
+		// A plain channel that didn't take everything is full. A TLS channel may instead be waiting on the server
+		// to continue a handshake, and then waiting for writability would just spin
+		private boolean needsWritable( ByteChannel channel ) {
+			return !( channel instanceof WrappedByteChannel ) || ( (WrappedByteChannel) channel ).isNeedWrite();
+		}
+
+		private void closeSelector() {
+			if( selector == null ) {
+				return;
+			}
+			try {
+				selector.close();
+			} catch ( IOException e ) {
+				onWebsocketError( engine, e );
+			}
+		}
+	}
+
 	public void setProxy( Proxy proxy ) {
 		if( proxy == null )
 			throw new IllegalArgumentException();
@@ -416,6 +598,21 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 		return engine.hasBufferedData();
 	}
 
+	/** @see WebSocketImpl#getBufferedBytes() */
+	public long getBufferedBytes() {
+		return engine.getBufferedBytes();
+	}
+
+	/** @see WebSocketImpl#getMaxBufferedBytes() */
+	public long getMaxBufferedBytes() {
+		return engine.getMaxBufferedBytes();
+	}
+
+	/** @see WebSocketImpl#awaitBufferedBytesAtMost(long, long) */
+	public boolean awaitBufferedBytesAtMost( long maxBytes, long timeoutMillis ) throws InterruptedException {
+		return engine.awaitBufferedBytesAtMost( maxBytes, timeoutMillis );
+	}
+
 	@Override
 	public void close( int code ) {
 		engine.close();
@@ -156,6 +156,10 @@ public abstract class Draft {
 
 	public abstract void reset();
 
+	/** Frees anything held for the connection, once it is closed and nothing more will be sent or received */
+	public void release() {
+	}
+
 	public List<ByteBuffer> createHandshake( Handshakedata handshakedata, Role ownrole ) {
 		return createHandshake( handshakedata, ownrole, true );
 	}
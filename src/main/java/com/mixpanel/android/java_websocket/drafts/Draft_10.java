@@ -28,6 +28,7 @@ import com.mixpanel.android.java_websocket.handshake.Handshakedata;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshakeBuilder;
 import com.mixpanel.android.java_websocket.util.Base64;
+import com.mixpanel.android.java_websocket.util.ByteBufferPool;
 import com.mixpanel.android.java_websocket.util.Charsetfunctions;
 
 @SuppressLint({"Assert", "UseValueOf"})
@@ -66,8 +67,16 @@ public class Draft_10 extends Draft {
 	private ByteBuffer incompleteframe;
 	private Framedata fragmentedframe = null;
 
+	/** set once permessage-deflate has been negotiated, null otherwise */
+	private PerMessageDeflate permessagedeflate = null;
+
+	/** whether the incoming message whose fragments are being read is compressed */
+	private boolean incomingcompressed = false;
+
 	private final SecureRandom reuseableRandom = new SecureRandom();
 
+	private static final byte RSV1 = 0x40;
+
 	@Override
 	public HandshakeState acceptHandshakeAsClient( ClientHandshake request, ServerHandshake response ) throws InvalidHandshakeException {
 		if( !request.hasFieldValue( "Sec-WebSocket-Key" ) || !response.hasFieldValue( "Sec-WebSocket-Accept" ) )
@@ -91,46 +100,93 @@ public class Draft_10 extends Draft {
 		return HandshakeState.NOT_MATCHED;
 	}
 
+	/**
+	 * Builds the header and the (masked) payload of the frame into a single buffer from {@link ByteBufferPool#DEFAULT},
+	 * so the frame can be written with one call and the buffer reused once it has been written.
+	 * Masking is done while copying the payload, so the payload is copied exactly once.
+	 */
 	@Override
 	public ByteBuffer createBinaryFrame( Framedata framedata ) {
 		ByteBuffer mes = framedata.getPayloadData();
+		ByteBuffer compressed = null;
+		if( permessagedeflate != null && isDataFrame( framedata.getOpcode() ) ) {
+			compressed = permessagedeflate.deflate( mes, framedata.isFin() );
+			mes = compressed;
+		}
 		boolean mask = role == Role.CLIENT; // framedata.getTransfereMasked();
-		int sizebytes = mes.remaining() <= 125 ? 1 : mes.remaining() <= 65535 ? 2 : 8;
-		ByteBuffer buf = ByteBuffer.allocate( 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 ) + mes.remaining() );
+		int payloadlength = mes.remaining();
+		int sizebytes = payloadlength <= 125 ? 1 : payloadlength <= 65535 ? 2 : 8;
+		int headerlength = 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 );
+		ByteBuffer buf = ByteBufferPool.DEFAULT.acquire( headerlength + payloadlength );
 		byte optcode = fromOpcode( framedata.getOpcode() );
 		byte one = (byte) ( framedata.isFin() ? -128 : 0 );
 		one |= optcode;
+		if( compressed != null && framedata.getOpcode() != Opcode.CONTINUOUS ) {
+			one |= RSV1; // marks the whole message as compressed
+		}
 		buf.put( one );
-		byte[] payloadlengthbytes = toByteArray( mes.remaining(), sizebytes );
-		assert ( payloadlengthbytes.length == sizebytes );
 
 		if( sizebytes == 1 ) {
-			buf.put( (byte) ( (byte) payloadlengthbytes[ 0 ] | ( mask ? (byte) -128 : 0 ) ) );
+			buf.put( (byte) ( payloadlength | ( mask ? -128 : 0 ) ) );
 		} else if( sizebytes == 2 ) {
 			buf.put( (byte) ( (byte) 126 | ( mask ? (byte) -128 : 0 ) ) );
-			buf.put( payloadlengthbytes );
+			buf.putShort( (short) payloadlength );
 		} else if( sizebytes == 8 ) {
 			buf.put( (byte) ( (byte) 127 | ( mask ? (byte) -128 : 0 ) ) );
-			buf.put( payloadlengthbytes );
+			buf.putLong( payloadlength );
 		} else
 			throw new RuntimeException( "Size representation not supported/specified" );
 
 		if( mask ) {
-			ByteBuffer maskkey = ByteBuffer.allocate( 4 );
-			maskkey.putInt( reuseableRandom.nextInt() );
-			buf.put( maskkey.array() );
-			for( int i = 0 ; mes.hasRemaining() ; i++ ) {
-				buf.put( (byte) ( mes.get() ^ maskkey.get( i % 4 ) ) );
-			}
+			int maskkey = reuseableRandom.nextInt();
+			buf.putInt( maskkey );
+			maskInto( mes, buf, maskkey );
 		} else
 			buf.put( mes );
-		// translateFrame ( buf.array () , buf.array ().length );
-		assert ( buf.remaining() == 0 ) : buf.remaining();
+		assert ( buf.position() == headerlength + payloadlength ) : buf.position();
 		buf.flip();
+		if( compressed != null ) {
+			ByteBufferPool.DEFAULT.release( compressed );
+		}
 
 		return buf;
 	}
 
+	private static boolean isDataFrame( Opcode opcode ) {
+		return opcode == Opcode.TEXT || opcode == Opcode.BINARY || opcode == Opcode.CONTINUOUS;
+	}
+
+	/** Turns on permessage-deflate for all data frames sent and received from now on */
+	protected void setPerMessageDeflate( PerMessageDeflate deflate ) {
+		this.permessagedeflate = deflate;
+	}
+
+	/** Whether the server agreed to compress messages with permessage-deflate */
+	public boolean isPerMessageDeflateActive() {
+		return permessagedeflate != null;
+	}
+
+	/** Copies the remaining bytes of <var>src</var> into <var>dst</var>, xor-ing them with <var>maskkey</var> as it goes */
+	private static void maskInto( ByteBuffer src, ByteBuffer dst, int maskkey ) {
+		byte[] maskbytes = { (byte) ( maskkey >>> 24 ), (byte) ( maskkey >>> 16 ), (byte) ( maskkey >>> 8 ), (byte) maskkey };
+		int length = src.remaining();
+		if( src.hasArray() && dst.hasArray() ) {
+			byte[] in = src.array();
+			int inoff = src.arrayOffset() + src.position();
+			byte[] out = dst.array();
+			int outoff = dst.arrayOffset() + dst.position();
+			for( int i = 0 ; i < length ; i++ ) {
+				out[ outoff + i ] = (byte) ( in[ inoff + i ] ^ maskbytes[ i & 3 ] );
+			}
+			src.position( src.position() + length );
+			dst.position( dst.position() + length );
+		} else {
+			for( int i = 0 ; i < length ; i++ ) {
+				dst.put( (byte) ( src.get() ^ maskbytes[ i & 3 ] ) );
+			}
+		}
+	}
+
 	@Override
 	public List<Framedata> createFrames( ByteBuffer binary, boolean mask ) {
 		FrameBuilder curframe = new FramedataImpl1();
@@ -212,15 +268,6 @@ public class Draft_10 extends Draft {
 		return response;
 	}
 
-	private byte[] toByteArray( long val, int bytecount ) {
-		byte[] buffer = new byte[ bytecount ];
-		int highest = 8 * bytecount - 8;
-		for( int i = 0 ; i < bytecount ; i++ ) {
-			buffer[ i ] = (byte) ( val >>> ( highest - 8 * i ) );
-		}
-		return buffer;
-	}
-
 	private Opcode toOpcode( byte opcode ) throws InvalidFrameException {
 		switch ( opcode ) {
 			case 0:
@@ -307,7 +354,8 @@ public class Draft_10 extends Draft {
 		byte b1 = buffer.get( /*0*/);
 		boolean FIN = b1 >> 8 != 0;
 		byte rsv = (byte) ( ( b1 & ~(byte) 128 ) >> 4 );
-		if( rsv != 0 )
+		boolean compressed = permessagedeflate != null && rsv == ( RSV1 >> 4 );
+		if( rsv != 0 && !compressed )
 			throw new InvalidFrameException( "bad rsv " + rsv );
 		byte b2 = buffer.get( /*1*/);
 		boolean MASK = ( b2 & -128 ) != 0;
@@ -319,6 +367,9 @@ public class Draft_10 extends Draft {
 				throw new InvalidFrameException( "control frames may no be fragmented" );
 			}
 		}
+		if( compressed && ( optcode != Opcode.TEXT && optcode != Opcode.BINARY ) ) {
+			throw new InvalidFrameException( "only the first frame of a message may be marked compressed" );
+		}
 
 		if( payloadlength >= 0 && payloadlength <= 125 ) {
 		} else {
@@ -370,6 +421,17 @@ public class Draft_10 extends Draft {
 			buffer.position( buffer.position() + payload.limit() );
 		}
 
+		payload.flip();
+		if( optcode == Opcode.TEXT || optcode == Opcode.BINARY ) {
+			incomingcompressed = compressed;
+		}
+		if( incomingcompressed && isDataFrame( optcode ) ) {
+			payload = permessagedeflate.inflate( payload, FIN );
+			if( FIN ) {
+				incomingcompressed = false;
+			}
+		}
+
 		FrameBuilder frame;
 		if( optcode == Opcode.CLOSING ) {
 			frame = new CloseFrameBuilder();
@@ -378,7 +440,6 @@ public class Draft_10 extends Draft {
 			frame.setFin( FIN );
 			frame.setOptcode( optcode );
 		}
-		payload.flip();
 		frame.setPayload( payload );
 		return frame;
 	}
@@ -388,6 +449,18 @@ public class Draft_10 extends Draft {
 		incompleteframe = null;
 	}
 
+	/**
+	 * The compressors go back to the pool here rather than in {@link #reset()}, which runs when the closing handshake starts,
+	 * while frames compressed against the current context may still arrive.
+	 */
+	@Override
+	public void release() {
+		incomingcompressed = false;
+		if( permessagedeflate != null ) {
+			permessagedeflate.release();
+		}
+	}
+
 	@Override
 	public Draft copyInstance() {
 		return new Draft_10();
@@ -3,8 +3,25 @@ package com.mixpanel.android.java_websocket.drafts;
 import com.mixpanel.android.java_websocket.exceptions.InvalidHandshakeException;
 import com.mixpanel.android.java_websocket.handshake.ClientHandshake;
 import com.mixpanel.android.java_websocket.handshake.ClientHandshakeBuilder;
+import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
 
 public class Draft_17 extends Draft_10 {
+
+	private final boolean offerdeflate;
+
+	public Draft_17() {
+		this( false );
+	}
+
+	/**
+	 * @param offerPerMessageDeflate
+	 *            whether to ask the server (as a client) to compress messages with permessage-deflate.
+	 *            It is only asked where {@link PerMessageDeflate#isSupported()}, and only used if the server agrees.
+	 */
+	public Draft_17( boolean offerPerMessageDeflate ) {
+		this.offerdeflate = offerPerMessageDeflate && PerMessageDeflate.isSupported();
+	}
+
 	@Override
 	public HandshakeState acceptHandshakeAsServer( ClientHandshake handshakedata ) throws InvalidHandshakeException {
 		int v = readVersion( handshakedata );
@@ -13,16 +30,31 @@ public class Draft_17 extends Draft_10 {
 		return HandshakeState.NOT_MATCHED;
 	}
 
+	@Override
+	public HandshakeState acceptHandshakeAsClient( ClientHandshake request, ServerHandshake response ) throws InvalidHandshakeException {
+		HandshakeState state = super.acceptHandshakeAsClient( request, response );
+		if( state == HandshakeState.MATCHED && offerdeflate ) {
+			PerMessageDeflate deflate = PerMessageDeflate.fromResponse( response.getFieldValue( "Sec-WebSocket-Extensions" ) );
+			if( deflate != null ) {
+				setPerMessageDeflate( deflate );
+			}
+		}
+		return state;
+	}
+
 	@Override
 	public ClientHandshakeBuilder postProcessHandshakeRequestAsClient( ClientHandshakeBuilder request ) {
 		super.postProcessHandshakeRequestAsClient( request );
 		request.put( "Sec-WebSocket-Version", "13" );// overwriting the previous
+		if( offerdeflate ) {
+			request.put( "Sec-WebSocket-Extensions", PerMessageDeflate.EXTENSION_NAME );
+		}
 		return request;
 	}
 
 	@Override
 	public Draft copyInstance() {
-		return new Draft_17();
+		return new Draft_17( offerdeflate );
 	}
 
 }
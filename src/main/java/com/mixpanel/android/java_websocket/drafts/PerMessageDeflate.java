@@ -0,0 +1,219 @@
+package com.mixpanel.android.java_websocket.drafts;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.mixpanel.android.java_websocket.exceptions.InvalidDataException;
+import com.mixpanel.android.java_websocket.exceptions.InvalidHandshakeException;
+import com.mixpanel.android.java_websocket.framing.CloseFrame;
+import com.mixpanel.android.java_websocket.util.ByteBufferPool;
+import com.mixpanel.android.java_websocket.util.CompressorPool;
+
+/**
+ * The client side of the permessage-deflate extension (RFC 7692).<br>
+ * Each message is compressed as a continuation of the messages before it (context takeover) unless the server
+ * asked otherwise, each fragment is sync flushed so it can go out as soon as it is written, and the empty block
+ * that ends each message is left off as the RFC requires. We never offer client_max_window_bits, since
+ * {@link Deflater} always uses a 32k window, but any window the server picks for itself is fine for {@link Inflater}.<br>
+ * The Deflater and Inflater are borrowed from {@link CompressorPool#DEFAULT} when first needed and given back by {@link #release()}.
+ * Calls are synchronized, so a connection closed from another thread can't hand back a compressor that is still in use.
+ */
+class PerMessageDeflate {
+
+	public static final String EXTENSION_NAME = "permessage-deflate";
+
+	/** The empty stored block a sync flush ends with, which is left off the end of every message */
+	private static final byte[] TAIL = { 0, 0, (byte) 0xff, (byte) 0xff };
+
+	private final boolean servernocontexttakeover;
+
+	private final boolean clientnocontexttakeover;
+
+	private Deflater deflater;
+
+	private Inflater inflater;
+
+	private PerMessageDeflate( boolean serverNoContextTakeover , boolean clientNoContextTakeover ) {
+		this.servernocontexttakeover = serverNoContextTakeover;
+		this.clientnocontexttakeover = clientNoContextTakeover;
+	}
+
+	/** Sync flushing a Deflater is only possible from API 19 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+	/**
+	 * Reads the server's Sec-WebSocket-Extensions response to our offer.<br>
+	 * Returns null if the server didn't accept the extension, and throws if it answered with anything we didn't offer.
+	 */
+	public static PerMessageDeflate fromResponse( String extensions ) throws InvalidHandshakeException {
+		if( extensions == null || extensions.trim().length() == 0 ) {
+			return null;
+		}
+		String[] accepted = extensions.split( "," );
+		if( accepted.length != 1 ) {
+			throw new InvalidHandshakeException( "server accepted more extensions than were offered: " + extensions );
+		}
+		String[] params = accepted[ 0 ].split( ";" );
+		if( !EXTENSION_NAME.equalsIgnoreCase( params[ 0 ].trim() ) ) {
+			throw new InvalidHandshakeException( "server accepted an extension that wasn't offered: " + extensions );
+		}
+
+		boolean servernocontexttakeover = false;
+		boolean clientnocontexttakeover = false;
+		for( int i = 1 ; i < params.length ; i++ ) {
+			String[] pair = params[ i ].split( "=", 2 );
+			String name = pair[ 0 ].trim().toLowerCase( Locale.ENGLISH );
+			String value = pair.length > 1 ? pair[ 1 ].trim().replace( "\"", "" ) : null;
+			if( name.equals( "server_no_context_takeover" ) && value == null ) {
+				servernocontexttakeover = true;
+			} else if( name.equals( "client_no_context_takeover" ) && value == null ) {
+				clientnocontexttakeover = true;
+			} else if( name.equals( "server_max_window_bits" ) && isWindowBits( value ) ) {
+				// Our Inflater's window is big enough for any server window
+			} else {
+				throw new InvalidHandshakeException( "unsupported " + EXTENSION_NAME + " parameter: " + params[ i ].trim() );
+			}
+		}
+		return new PerMessageDeflate( servernocontexttakeover, clientnocontexttakeover );
+	}
+
+	private static boolean isWindowBits( String value ) {
+		if( value == null ) {
+			return false;
+		}
+		try {
+			int bits = Integer.parseInt( value );
+			return bits >= 8 && bits <= 15;
+		} catch ( NumberFormatException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * Compresses the remaining bytes of one fragment of an outgoing message into a buffer from {@link ByteBufferPool#DEFAULT},
+	 * which the caller should release once it is done with it.
+	 */
+	@TargetApi( Build.VERSION_CODES.KITKAT )
+	public synchronized ByteBuffer deflate( ByteBuffer payload, boolean fin ) {
+		if( deflater == null ) {
+			deflater = CompressorPool.DEFAULT.acquireDeflater();
+		}
+
+		int length = payload.remaining();
+		if( payload.hasArray() ) {
+			deflater.setInput( payload.array(), payload.arrayOffset() + payload.position(), length );
+		} else {
+			byte[] copy = new byte[ length ];
+			payload.duplicate().get( copy );
+			deflater.setInput( copy );
+		}
+		payload.position( payload.limit() );
+
+		ByteBuffer out = ByteBufferPool.DEFAULT.acquire( length + ( length >> 4 ) + 64 );
+		while ( true ) {
+			int room = out.remaining();
+			int written = deflater.deflate( out.array(), out.arrayOffset() + out.position(), room, Deflater.SYNC_FLUSH );
+			out.position( out.position() + written );
+			if( written < room ) {
+				break; // Everything, including the flush, fit
+			}
+			ByteBuffer bigger = ByteBufferPool.DEFAULT.acquire( out.capacity() * 2 );
+			out.flip();
+			bigger.put( out );
+			ByteBufferPool.DEFAULT.release( out );
+			out = bigger;
+		}
+
+		if( fin ) {
+			if( endsWithTail( out ) ) {
+				out.position( out.position() - TAIL.length );
+			} else {
+				// Nothing new since the last flush. The receiver will append the tail anyway, so start an empty stored block for it
+				// to finish (the loop above always leaves room for this)
+				out.put( (byte) 0 );
+			}
+			if( clientnocontexttakeover ) {
+				deflater.reset();
+			}
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Decompresses one fragment of an incoming compressed message.
+	 */
+	public synchronized ByteBuffer inflate( ByteBuffer payload, boolean fin ) throws InvalidDataException {
+		if( inflater == null ) {
+			inflater = CompressorPool.DEFAULT.acquireInflater();
+		}
+
+		ByteBuffer out = ByteBuffer.allocate( Math.max( 64, payload.remaining() * 4 ) );
+		try {
+			out = inflateInto( payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), out );
+			payload.position( payload.limit() );
+			if( fin ) {
+				out = inflateInto( TAIL, 0, TAIL.length, out );
+				if( servernocontexttakeover || inflater.finished() ) {
+					inflater.reset();
+				}
+			}
+		} catch ( DataFormatException e ) {
+			throw new InvalidDataException( CloseFrame.PROTOCOL_ERROR, "bad compressed data: " + e.getMessage() );
+		}
+		out.flip();
+		return out;
+	}
+
+	private ByteBuffer inflateInto( byte[] input, int offset, int length, ByteBuffer out ) throws DataFormatException {
+		inflater.setInput( input, offset, length );
+		while ( true ) {
+			int written = inflater.inflate( out.array(), out.position(), out.remaining() );
+			out.position( out.position() + written );
+			if( !out.hasRemaining() ) {
+				// There may be more output even with all of the input used up
+				ByteBuffer bigger = ByteBuffer.allocate( out.capacity() * 2 );
+				out.flip();
+				bigger.put( out );
+				out = bigger;
+			} else if( inflater.finished() || inflater.needsInput() ) {
+				return out;
+			} else if( written == 0 ) {
+				throw new DataFormatException( "inflater stalled" );
+			}
+		}
+	}
+
+	private static boolean endsWithTail( ByteBuffer out ) {
+		int end = out.position();
+		if( end < TAIL.length ) {
+			return false;
+		}
+		for( int i = 0 ; i < TAIL.length ; i++ ) {
+			if( out.get( end - TAIL.length + i ) != TAIL[ i ] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Hands the compressors back to the pool. They are borrowed again if the extension is used afterwards. */
+	public synchronized void release() {
+		if( deflater != null ) {
+			CompressorPool.DEFAULT.release( deflater );
+			deflater = null;
+		}
+		if( inflater != null ) {
+			CompressorPool.DEFAULT.release( inflater );
+			inflater = null;
+		}
+	}
+}
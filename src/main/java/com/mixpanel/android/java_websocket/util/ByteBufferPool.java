@@ -0,0 +1,99 @@
+package com.mixpanel.android.java_websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of heap ByteBuffers, bucketed by power of two capacities.<br>
+ * Buffers handed out by {@link #acquire(int)} may be bigger than requested, and come back cleared.
+ * Buffers must only be {@link #release(ByteBuffer)}d once nothing will read or write them again.
+ * Thread safe.
+ */
+public class ByteBufferPool {
+
+	public static final ByteBufferPool DEFAULT = new ByteBufferPool( 4 );
+
+	/** buffers smaller than this are not worth pooling */
+	public static final int MIN_POOLED_CAPACITY = 1 << 10;
+
+	/** buffers bigger than this are allocated and dropped, so a single huge frame can't pin memory */
+	public static final int MAX_POOLED_CAPACITY = 1 << 20;
+
+	private final ArrayDeque<ByteBuffer>[] buckets;
+
+	private final int maxperbucket;
+
+	private long allocatedbytes = 0;
+
+	@SuppressWarnings("unchecked")
+	public ByteBufferPool( int maxPerBucket ) {
+		this.maxperbucket = maxPerBucket;
+		this.buckets = new ArrayDeque[ bucketFor( MAX_POOLED_CAPACITY ) + 1 ];
+		for( int i = 0 ; i < buckets.length ; i++ ) {
+			buckets[ i ] = new ArrayDeque<ByteBuffer>( maxPerBucket );
+		}
+	}
+
+	/** Returns a cleared buffer with at least <var>capacity</var> bytes of room */
+	public ByteBuffer acquire( int capacity ) {
+		if( capacity > MAX_POOLED_CAPACITY ) {
+			return allocate( capacity );
+		}
+		int bucket = bucketFor( capacity );
+		synchronized ( this ) {
+			ByteBuffer pooled = buckets[ bucket ].pollLast();
+			if( pooled != null ) {
+				pooled.clear();
+				return pooled;
+			}
+		}
+		return allocate( capacityOf( bucket ) );
+	}
+
+	/** Offers <var>buf</var> for reuse. Buffers that didn't come from a pool are accepted if they fit a bucket exactly. */
+	public void release( ByteBuffer buf ) {
+		if( buf == null || !buf.hasArray() || buf.isReadOnly() || buf.arrayOffset() != 0 ) {
+			return;
+		}
+		int capacity = buf.capacity();
+		if( capacity < MIN_POOLED_CAPACITY || capacity > MAX_POOLED_CAPACITY || Integer.bitCount( capacity ) != 1 ) {
+			return;
+		}
+		int bucket = bucketFor( capacity );
+		synchronized ( this ) {
+			if( buckets[ bucket ].size() < maxperbucket ) {
+				buckets[ bucket ].addLast( buf );
+			}
+		}
+	}
+
+	/** The total number of bytes this pool has had to allocate, for measuring how well it is reusing buffers */
+	public synchronized long getAllocatedBytes() {
+		return allocatedbytes;
+	}
+
+	public synchronized void clear() {
+		for( ArrayDeque<ByteBuffer> bucket : buckets ) {
+			bucket.clear();
+		}
+	}
+
+	private ByteBuffer allocate( int capacity ) {
+		synchronized ( this ) {
+			allocatedbytes += capacity;
+		}
+		return ByteBuffer.allocate( capacity );
+	}
+
+	private static int bucketFor( int capacity ) {
+		if( capacity <= MIN_POOLED_CAPACITY ) {
+			return 0;
+		}
+		int shift = 32 - Integer.numberOfLeadingZeros( capacity - 1 ); // ceil(log2(capacity))
+		return shift - Integer.numberOfTrailingZeros( MIN_POOLED_CAPACITY );
+	}
+
+	private static int capacityOf( int bucket ) {
+		return MIN_POOLED_CAPACITY << bucket;
+	}
+}
@@ -0,0 +1,148 @@
+package com.mixpanel.android.java_websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An unbounded queue of outgoing buffers that keeps count of the bytes in it, so producers can
+ * wait for it to drain ({@link #awaitBytesAtMost(long, long)}) instead of piling up data faster than the
+ * connection can send it.<br>
+ * A buffer counts as {@link ByteBuffer#limit()} bytes from when it is queued until it is removed,
+ * whatever its position, since writers remove buffers only after writing them completely.
+ */
+public class ByteCountingQueue extends LinkedBlockingQueue<ByteBuffer> {
+
+	private static final long serialVersionUID = 3185936286946426183L;
+
+	private final Object bytelock = new Object();
+
+	private long bytes = 0;
+
+	private long highwater = 0;
+
+	@Override
+	public boolean offer( ByteBuffer buf ) {
+		if( super.offer( buf ) ) {
+			added( buf );
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean offer( ByteBuffer buf, long timeout, TimeUnit unit ) throws InterruptedException {
+		if( super.offer( buf, timeout, unit ) ) {
+			added( buf );
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void put( ByteBuffer buf ) throws InterruptedException {
+		super.put( buf );
+		added( buf );
+	}
+
+	@Override
+	public ByteBuffer poll() {
+		return removed( super.poll() );
+	}
+
+	@Override
+	public ByteBuffer poll( long timeout, TimeUnit unit ) throws InterruptedException {
+		return removed( super.poll( timeout, unit ) );
+	}
+
+	@Override
+	public ByteBuffer take() throws InterruptedException {
+		return removed( super.take() );
+	}
+
+	@Override
+	public boolean remove( Object o ) {
+		if( super.remove( o ) ) {
+			removed( (ByteBuffer) o );
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public int drainTo( Collection<? super ByteBuffer> c ) {
+		return drainTo( c, Integer.MAX_VALUE );
+	}
+
+	@Override
+	public int drainTo( Collection<? super ByteBuffer> c, int maxElements ) {
+		int drained = 0;
+		ByteBuffer buf;
+		while ( drained < maxElements && ( buf = poll() ) != null ) {
+			c.add( buf );
+			drained++;
+		}
+		return drained;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		synchronized ( bytelock ) {
+			bytes = 0;
+			bytelock.notifyAll();
+		}
+	}
+
+	/** The number of bytes queued but not yet written */
+	public long getBytes() {
+		synchronized ( bytelock ) {
+			return bytes;
+		}
+	}
+
+	/** The most bytes that have ever been queued at once */
+	public long getHighWaterBytes() {
+		synchronized ( bytelock ) {
+			return highwater;
+		}
+	}
+
+	/**
+	 * Blocks until at most <var>maxBytes</var> are queued, or <var>timeoutMillis</var> have passed.<br>
+	 * Returns whether the queue drained far enough.
+	 */
+	public boolean awaitBytesAtMost( long maxBytes, long timeoutMillis ) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized ( bytelock ) {
+			while ( bytes > maxBytes ) {
+				long remaining = deadline - System.currentTimeMillis();
+				if( remaining <= 0 ) {
+					return false;
+				}
+				bytelock.wait( remaining );
+			}
+			return true;
+		}
+	}
+
+	private void added( ByteBuffer buf ) {
+		synchronized ( bytelock ) {
+			bytes += buf.limit();
+			if( bytes > highwater ) {
+				highwater = bytes;
+			}
+		}
+	}
+
+	private ByteBuffer removed( ByteBuffer buf ) {
+		if( buf != null ) {
+			synchronized ( bytelock ) {
+				bytes = Math.max( 0, bytes - buf.limit() );
+				bytelock.notifyAll();
+			}
+		}
+		return buf;
+	}
+}
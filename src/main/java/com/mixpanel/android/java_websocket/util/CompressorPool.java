@@ -0,0 +1,74 @@
+package com.mixpanel.android.java_websocket.util;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A small pool of raw (no zlib header) Deflaters and Inflaters.<br>
+ * Each one holds tens to hundreds of kilobytes of native memory that is only freed by <code>end()</code>,
+ * so connections that come and go hand theirs back here instead of allocating new ones every time.
+ * Thread safe.
+ */
+public class CompressorPool {
+
+	public static final CompressorPool DEFAULT = new CompressorPool( 2 );
+
+	private final ArrayDeque<Deflater> deflaters;
+
+	private final ArrayDeque<Inflater> inflaters;
+
+	private final int maxpooled;
+
+	public CompressorPool( int maxPooled ) {
+		this.maxpooled = maxPooled;
+		this.deflaters = new ArrayDeque<Deflater>( maxPooled );
+		this.inflaters = new ArrayDeque<Inflater>( maxPooled );
+	}
+
+	/** Returns a Deflater with no zlib header or trailer, at the default compression level */
+	public Deflater acquireDeflater() {
+		synchronized ( this ) {
+			Deflater pooled = deflaters.pollLast();
+			if( pooled != null ) {
+				return pooled;
+			}
+		}
+		return new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+	}
+
+	/** Returns an Inflater expecting no zlib header or trailer */
+	public Inflater acquireInflater() {
+		synchronized ( this ) {
+			Inflater pooled = inflaters.pollLast();
+			if( pooled != null ) {
+				return pooled;
+			}
+		}
+		return new Inflater( true );
+	}
+
+	/** Resets <var>deflater</var> for reuse, or ends it if the pool is full. It must not be used afterwards. */
+	public void release( Deflater deflater ) {
+		deflater.reset();
+		synchronized ( this ) {
+			if( deflaters.size() < maxpooled ) {
+				deflaters.addLast( deflater );
+				return;
+			}
+		}
+		deflater.end();
+	}
+
+	/** Resets <var>inflater</var> for reuse, or ends it if the pool is full. It must not be used afterwards. */
+	public void release( Inflater inflater ) {
+		inflater.reset();
+		synchronized ( this ) {
+			if( inflaters.size() < maxpooled ) {
+				inflaters.addLast( inflater );
+				return;
+			}
+		}
+		inflater.end();
+	}
+}
@@ -1,6 +1,8 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -15,6 +17,7 @@ import com.google.android.gms.common.GoogleApiAvailability;
 import com.mixpanel.android.util.Base64Coder;
 import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
 import com.mixpanel.android.util.RemoteService;
 
 import org.json.JSONException;
@@ -24,9 +27,11 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -75,8 +80,43 @@ import javax.net.ssl.SSLSocketFactory;
     /* package */ AnalyticsMessages(final Context context) {
         mContext = context;
         mConfig = getConfig(context);
+        mMetrics = new PipelineMetrics();
+        final int bufferCapacity = mConfig.getEventBufferCapacity();
+        mEventBuffer = bufferCapacity > 0 ? new EventRingBuffer(bufferCapacity) : null;
+        mDrainScheduled = new AtomicBoolean(false);
+        mUrgentDrainScheduled = new AtomicBoolean(false);
         mWorker = createWorker();
         getPoster().checkIsMixpanelBlocked();
+
+        if (null != mEventBuffer) {
+            // The system may kill us soon after trimming memory, so get buffered events into the database
+            mMemoryCallbacks = new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    drainEventBuffer();
+                }
+
+                @Override
+                public void onLowMemory() {
+                    drainEventBuffer();
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                    // Nothing to do
+                }
+            };
+            mContext.registerComponentCallbacks(mMemoryCallbacks);
+        } else {
+            mMemoryCallbacks = null;
+        }
+    }
+
+    // Called when the worker stops, so the context doesn't keep this instance alive through the callbacks
+    private void unregisterMemoryCallbacks() {
+        if (null != mMemoryCallbacks) {
+            mContext.unregisterComponentCallbacks(mMemoryCallbacks);
+        }
     }
 
     protected Worker createWorker() {
@@ -104,13 +144,49 @@ import javax.net.ssl.SSLSocketFactory;
         }
     }
 
+    public PipelineMetrics getPipelineMetrics() {
+        return mMetrics;
+    }
+
+    // Must be thread safe.
     public void eventsMessage(final EventDescription eventDescription) {
+        if (null != mEventBuffer) {
+            if (mEventBuffer.offer(eventDescription)) {
+                if (mEventBuffer.size() >= mEventBuffer.capacity() / 2) {
+                    drainEventBuffer();
+                } else if (mDrainScheduled.compareAndSet(false, true)) {
+                    final Message m = Message.obtain();
+                    m.what = DRAIN_EVENT_BUFFER;
+                    mWorker.runMessageDelayed(m, mConfig.getEventBufferWindow());
+                }
+                return;
+            }
+
+            // The buffer is full. Write out what's in it, and then this event, without waiting any longer.
+            mMetrics.incrementEventBufferSpills();
+            drainEventBuffer();
+        }
+
         final Message m = Message.obtain();
         m.what = ENQUEUE_EVENTS;
         m.obj = eventDescription;
         mWorker.runMessage(m);
     }
 
+    /**
+     * Asks the worker to write any buffered events to the database now, rather than at the
+     * end of the buffering window. The drain goes ahead of anything else waiting for the worker,
+     * but still waits for the worker to finish the step it is on. Safe to call from any thread.
+     */
+    /* package */ void drainEventBuffer() {
+        if (null != mEventBuffer && mEventBuffer.size() > 0 && mUrgentDrainScheduled.compareAndSet(false, true)) {
+            final Message m = Message.obtain();
+            m.what = DRAIN_EVENT_BUFFER;
+            m.arg1 = 1;
+            mWorker.runMessageAtFrontOfQueue(m);
+        }
+    }
+
     // Must be thread safe.
     public void peopleMessage(final PeopleDescription peopleDescription) {
         final Message m = Message.obtain();
@@ -194,7 +270,14 @@ import javax.net.ssl.SSLSocketFactory;
         return mWorker.isDead();
     }
 
-    protected MPDbAdapter makeDbAdapter(Context context) {
+    protected MPQueueStore makeDbAdapter(Context context) {
+        return getQueueStore(context, mConfig);
+    }
+
+    /* package */ static MPQueueStore getQueueStore(Context context, MPConfig config) {
+        if (MPConfig.QUEUE_STORE_JOURNAL.equals(config.getQueueStore())) {
+            return MPJournalStore.getInstance(context);
+        }
         return MPDbAdapter.getInstance(context);
     }
 
@@ -370,12 +453,36 @@ import javax.net.ssl.SSLSocketFactory;
 
     // Sends a message if and only if we are running with Mixpanel Message log enabled.
     // Will be called from the Mixpanel thread.
+    // These are called for every message the worker handles, so they check the level
+    // before building anything. Arguments are only formatted when they'll be logged.
     private void logAboutMessageToMixpanel(String message) {
-        MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")");
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")");
+        }
+    }
+
+    private void logAboutMessageToMixpanel(String format, Object arg) {
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, format + " (Thread {})", arg, Thread.currentThread().getId());
+        }
+    }
+
+    private void logAboutMessageToMixpanel(String format, Object arg1, Object arg2) {
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, format + " (Thread {})", arg1, arg2, Thread.currentThread().getId());
+        }
     }
 
     private void logAboutMessageToMixpanel(String message, Throwable e) {
-        MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")", e);
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")", e);
+        }
+    }
+
+    private void logAboutMessageToMixpanel(String format, Object arg, Throwable e) {
+        if (MPLog.isLoggable(MPLog.VERBOSE)) {
+            MPLog.v(LOGTAG, format + " (Thread " + Thread.currentThread().getId() + ")", arg, e);
+        }
     }
 
     // Worker will manage the (at most single) IO thread associated with
@@ -396,13 +503,33 @@ import javax.net.ssl.SSLSocketFactory;
             synchronized(mHandlerLock) {
                 if (mHandler == null) {
                     // We died under suspicious circumstances. Don't try to send any more events.
-                    logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: " + msg.what);
+                    logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: {}", msg.what);
                 } else {
                     mHandler.sendMessage(msg);
                 }
             }
         }
 
+        public void runMessageAtFrontOfQueue(Message msg) {
+            synchronized(mHandlerLock) {
+                if (mHandler == null) {
+                    logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: {}", msg.what);
+                } else {
+                    mHandler.sendMessageAtFrontOfQueue(msg);
+                }
+            }
+        }
+
+        public void runMessageDelayed(Message msg, long delayMillis) {
+            synchronized(mHandlerLock) {
+                if (mHandler == null) {
+                    logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: {}", msg.what);
+                } else {
+                    mHandler.sendMessageDelayed(msg, delayMillis);
+                }
+            }
+        }
+
         // NOTE that the returned worker will run FOREVER, unless you send a hard kill
         // (which you really shouldn't)
         protected Handler restartWorkerThread() {
@@ -419,6 +546,11 @@ import javax.net.ssl.SSLSocketFactory;
                 mSystemInformation = SystemInformation.getInstance(mContext);
                 mDecideChecker = createDecideChecker();
                 mFlushInterval = mConfig.getFlushInterval();
+                final int bufferCapacity = null == mEventBuffer ? 0 : mEventBuffer.capacity();
+                mDrainedEvents = new EventDescription[bufferCapacity];
+                mBatchEvents = new JSONObject[bufferCapacity];
+                mBatchIsAutomatic = new boolean[bufferCapacity];
+                mQueueQuota = new QueueQuota(mConfig, mMetrics);
             }
 
             protected DecideChecker createDecideChecker() {
@@ -427,13 +559,37 @@ import javax.net.ssl.SSLSocketFactory;
 
             @Override
             public void handleMessage(Message msg) {
+                final boolean traced = MPTrace.beginSection(traceSectionName(msg.what));
+                try {
+                    processMessage(msg);
+                    if (MPTrace.isEnabled() && mDbAdapter != null) {
+                        MPTrace.setCounter(MPTrace.COUNTER_DATABASE_BYTES, mDbAdapter.getStorageSize());
+                    }
+                } finally {
+                    MPTrace.endSection(traced);
+                }
+            }
+
+            private void processMessage(Message msg) {
+                mMetrics.getWorkerQueueWait().recordMicros((SystemClock.uptimeMillis() - msg.getWhen()) * 1000);
+
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    expireRecords();
                 }
 
                 try {
+                    if (msg.what == DRAIN_EVENT_BUFFER) {
+                        // Cleared before draining, so events added while we drain will schedule another drain
+                        if (msg.arg1 == 1) {
+                            mUrgentDrainScheduled.set(false);
+                        } else {
+                            mDrainScheduled.set(false);
+                        }
+                    }
+                    // Every message sees the events tracked before it in the database
+                    writeBufferedEvents();
+
                     int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
                     String token = null;
                     String serviceName = null;
@@ -443,25 +599,25 @@ import javax.net.ssl.SSLSocketFactory;
                         final MPDbAdapter.Table peopleTable = message.isAnonymous() ? MPDbAdapter.Table.ANONYMOUS_PEOPLE : MPDbAdapter.Table.PEOPLE;
 
                         logAboutMessageToMixpanel("Queuing people record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
+                        logAboutMessageToMixpanel("    {}", message);
                         token = message.getToken();
                         serviceName = message.getServiceName();
-                        int numRowsTable = mDbAdapter.addJSON(message.getMessage(), token, serviceName, peopleTable, false);
+                        int numRowsTable = addJSON(message.getMessage(), token, serviceName, peopleTable, false);
                         returnCode = message.isAnonymous() ? 0 : numRowsTable;
                     } else if (msg.what == ENQUEUE_GROUP) {
                         final GroupDescription message = (GroupDescription) msg.obj;
 
                         logAboutMessageToMixpanel("Queuing group record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
+                        logAboutMessageToMixpanel("    {}", message);
                         token = message.getToken();
                         serviceName = message.getServiceName();
-                        returnCode = mDbAdapter.addJSON(message.getMessage(), token, serviceName, MPDbAdapter.Table.GROUPS, false);
+                        returnCode = addJSON(message.getMessage(), token, serviceName, MPDbAdapter.Table.GROUPS, false);
                     } else if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
                         try {
                             final JSONObject message = prepareEventObject(eventDescription);
                             logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
+                            logAboutMessageToMixpanel("    {}", message);
                             token = eventDescription.getToken();
                             serviceName = eventDescription.getServiceName();
 
@@ -469,9 +625,9 @@ import javax.net.ssl.SSLSocketFactory;
                             if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
                                 return;
                             }
-                            returnCode = mDbAdapter.addJSON(message, token, serviceName, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
+                            returnCode = addJSON(message, token, serviceName, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
                         } catch (final JSONException e) {
-                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                            MPLog.e(LOGTAG, "Exception tracking event {}", eventDescription.getEventName(), e);
                         }
                     } else if (msg.what == PUSH_ANONYMOUS_PEOPLE_RECORDS) {
                         final PushAnonymousPeopleDescription pushAnonymousPeopleDescription = (PushAnonymousPeopleDescription) msg.obj;
@@ -486,8 +642,8 @@ import javax.net.ssl.SSLSocketFactory;
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token, serviceName);
                     } else if (msg.what == REWRITE_EVENT_PROPERTIES) {
                         final UpdateEventsPropertiesDescription description = (UpdateEventsPropertiesDescription) msg.obj;
-                        int updatedEvents = mDbAdapter.rewriteEventDataWithProperties(description.getProperties(), description.getToken(), description.getServiceName());
-                        MPLog.d(LOGTAG, updatedEvents + " stored events were updated with new properties.");
+                        int updatedEvents = mDbAdapter.addPendingProperties(description.getProperties(), description.getToken(), description.getServiceName());
+                        MPLog.d(LOGTAG, "{} stored events will be sent with new properties.", updatedEvents);
                     } else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
                         updateFlushFrequency();
@@ -524,6 +680,10 @@ import javax.net.ssl.SSLSocketFactory;
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.PEOPLE, token, serviceName);
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.GROUPS, token, serviceName);
                         mDbAdapter.cleanupAllEvents(MPDbAdapter.Table.ANONYMOUS_PEOPLE, token, serviceName);
+                    } else if (msg.what == DRAIN_EVENT_BUFFER) {
+                        ; // Written above
+                    } else if (msg.what == EXPIRE_RECORDS) {
+                        expireRecords();
                     } else if (msg.what == KILL_WORKER) {
                         MPLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
@@ -531,41 +691,12 @@ import javax.net.ssl.SSLSocketFactory;
                             mHandler = null;
                             Looper.myLooper().quit();
                         }
+                        unregisterMemoryCallbacks();
                     } else {
-                        MPLog.e(LOGTAG, "Unexpected message received by Mixpanel worker: " + msg);
+                        MPLog.e(LOGTAG, "Unexpected message received by Mixpanel worker: {}", msg);
                     }
 
-                    FlushQueueObject fqo = new FlushQueueObject(token, serviceName);
-
-                    ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null && serviceName != null) {
-                        logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
-                        updateFlushFrequency();
-                        sendAllData(mDbAdapter, token, serviceName);
-                        /*
-                        if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
-                            try {
-                                mDecideChecker.runDecideCheck(token, serviceName, getPoster());
-                            } catch (RemoteService.ServiceUnavailableException e) {
-                                mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
-                            }
-                        }*/
-                    } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, fqo)) {
-                        // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
-                        // of delayed flushes already enqueued from inside of this thread.
-                        // Callers outside of this thread can still send
-                        // a flush right here, so we may end up with two flushes
-                        // in our queue, but we're OK with that.
-
-                        logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            final Message flushMessage = Message.obtain();
-                            flushMessage.what = FLUSH_QUEUE;
-                            flushMessage.obj = fqo;
-                            flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
-                        }
-                    }
+                    flushIfNeeded(returnCode, token, serviceName);
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
@@ -577,37 +708,175 @@ import javax.net.ssl.SSLSocketFactory;
                             MPLog.e(LOGTAG, "Could not halt looper", tooLate);
                         }
                     }
+                    unregisterMemoryCallbacks();
+                }
+            }// processMessage
+
+            // Uploads right away if the queue is over the bulk upload limit, or schedules a flush if there isn't one coming
+            private void flushIfNeeded(int returnCode, String token, String serviceName) {
+                final FlushQueueObject fqo = new FlushQueueObject(token, serviceName);
+
+                ///////////////////////////
+                // While sending, buffered events are written between requests, and the upload in progress
+                // takes care of them, so there is no nested upload here.
+                if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null && serviceName != null && !mSending) {
+                    logAboutMessageToMixpanel("Flushing queue due to bulk upload limit ({}) for project {}", returnCode, token);
+                    updateFlushFrequency();
+                    sendAllData(mDbAdapter, token, serviceName);
+                    /*
+                    if (SystemClock.elapsedRealtime() >= mDecideRetryAfter) {
+                        try {
+                            mDecideChecker.runDecideCheck(token, serviceName, getPoster());
+                        } catch (RemoteService.ServiceUnavailableException e) {
+                            mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
+                        }
+                    }*/
+                } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE, fqo)) {
+                    // The !hasMessages(FLUSH_QUEUE, token) check is a courtesy for the common case
+                    // of delayed flushes already enqueued from inside of this thread.
+                    // Callers outside of this thread can still send
+                    // a flush right here, so we may end up with two flushes
+                    // in our queue, but we're OK with that.
+
+                    if (MPLog.isLoggable(MPLog.VERBOSE)) { // Don't box the numbers for nothing
+                        logAboutMessageToMixpanel("Queue depth {} - Adding flush in {}", returnCode, mFlushInterval);
+                    }
+                    if (mFlushInterval >= 0) {
+                        final Message flushMessage = Message.obtain();
+                        flushMessage.what = FLUSH_QUEUE;
+                        flushMessage.obj = fqo;
+                        flushMessage.arg1 = 1;
+                        sendMessageDelayed(flushMessage, mFlushInterval);
+                    }
                 }
-            }// handleMessage
+            }
+
+            // Removes a batch of expired records, and schedules the next batch, or the next check if there are no more
+            private void expireRecords() {
+                final boolean more = mQueueQuota.expire(mDbAdapter);
+                removeMessages(EXPIRE_RECORDS);
+                sendEmptyMessageDelayed(EXPIRE_RECORDS, more ? QueueQuota.EXPIRY_BATCH_DELAY_MILLIS : QueueQuota.EXPIRY_INTERVAL_MILLIS);
+            }
 
             protected long getTrackEngageRetryAfter() {
                 return mTrackEngageRetryAfter;
             }
 
-            private void sendAllData(MPDbAdapter dbAdapter, String token, String serviceName) {
+            // Writes everything in the event buffer to the database, a transaction for each run of events from the same project
+            private void writeBufferedEvents() {
+                if (null == mEventBuffer) {
+                    return;
+                }
+
+                int drained;
+                while ((drained = mEventBuffer.drainTo(mDrainedEvents)) > 0) {
+                    int start = 0;
+                    while (start < drained) {
+                        final String token = mDrainedEvents[start].getToken();
+                        final String serviceName = mDrainedEvents[start].getServiceName();
+                        final DecideMessages decide = mDecideChecker.getDecideMessages(token);
+
+                        int end = start;
+                        int batchSize = 0;
+                        while (end < drained && isSameProject(mDrainedEvents[end], token, serviceName)) {
+                            final EventDescription eventDescription = mDrainedEvents[end];
+                            end++;
+                            if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
+                                continue;
+                            }
+                            try {
+                                mBatchEvents[batchSize] = prepareEventObject(eventDescription);
+                                mBatchIsAutomatic[batchSize] = eventDescription.isAutomatic();
+                                logAboutMessageToMixpanel("Queuing event for sending later");
+                                logAboutMessageToMixpanel("    {}", mBatchEvents[batchSize]);
+                                batchSize++;
+                            } catch (final JSONException e) {
+                                MPLog.e(LOGTAG, "Exception tracking event {}", eventDescription.getEventName(), e);
+                            }
+                        }
+
+                        if (batchSize > 0) {
+                            final int returnCode = addJSON(mBatchEvents, mBatchIsAutomatic, batchSize, token, serviceName);
+                            Arrays.fill(mBatchEvents, 0, batchSize, null);
+                            flushIfNeeded(returnCode, token, serviceName);
+                        }
+                        start = end;
+                    }
+                    Arrays.fill(mDrainedEvents, 0, drained, null);
+                }
+            }
+
+            private boolean isSameProject(EventDescription eventDescription, String token, String serviceName) {
+                return equalOrBothNull(token, eventDescription.getToken()) && equalOrBothNull(serviceName, eventDescription.getServiceName());
+            }
+
+            private boolean equalOrBothNull(String a, String b) {
+                return null == a ? null == b : a.equals(b);
+            }
+
+            private int addJSON(JSONObject[] events, boolean[] isAutomatic, int count, String token, String serviceName) {
+                final long start = System.nanoTime();
+                int returnCode = mDbAdapter.addJSON(events, isAutomatic, count, token, serviceName, MPDbAdapter.Table.EVENTS);
+                if (returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR && mQueueQuota.makeRoom(mDbAdapter)) {
+                    returnCode = mDbAdapter.addJSON(events, isAutomatic, count, token, serviceName, MPDbAdapter.Table.EVENTS);
+                }
+                mMetrics.getDbInsert().recordNanos(System.nanoTime() - start);
+                if (returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) {
+                    mMetrics.addRowsDroppedOutOfMemory(count);
+                } else if (returnCode >= 0) {
+                    returnCode = mQueueQuota.enforceLimits(mDbAdapter, MPDbAdapter.Table.EVENTS, token, serviceName, returnCode, count);
+                    MPTrace.setCounter(MPTrace.COUNTER_QUEUE_DEPTH, returnCode);
+                }
+                return returnCode;
+            }
+
+            private int addJSON(JSONObject message, String token, String serviceName, MPDbAdapter.Table table, boolean isAutomatic) {
+                final long start = System.nanoTime();
+                int returnCode = mDbAdapter.addJSON(message, token, serviceName, table, isAutomatic);
+                if (returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR && mQueueQuota.makeRoom(mDbAdapter)) {
+                    returnCode = mDbAdapter.addJSON(message, token, serviceName, table, isAutomatic);
+                }
+                mMetrics.getDbInsert().recordNanos(System.nanoTime() - start);
+                if (returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) {
+                    mMetrics.incrementRowsDroppedOutOfMemory();
+                } else if (returnCode >= 0) {
+                    returnCode = mQueueQuota.enforceLimits(mDbAdapter, table, token, serviceName, returnCode, 1);
+                    MPTrace.setCounter(MPTrace.COUNTER_QUEUE_DEPTH, returnCode);
+                }
+                return returnCode;
+            }
+
+            private void sendAllData(MPQueueStore dbAdapter, String token, String serviceName) {
                 final RemoteService poster = getPoster();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
                     return;
                 }
 
-                sendData(dbAdapter, token, serviceName, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint(serviceName));
+                mSending = true;
+                try {
+                    sendData(dbAdapter, token, serviceName, MPDbAdapter.Table.EVENTS, mConfig.getEventsEndpoint(serviceName));
+                } finally {
+                    mSending = false;
+                }
                 /*sendData(dbAdapter, token, serviceName, MPDbAdapter.Table.PEOPLE, mConfig.getPeopleEndpoint());
                 sendData(dbAdapter, token, serviceName, MPDbAdapter.Table.GROUPS, mConfig.getGroupsEndpoint());*/
+                mMetrics.notifyFlush();
             }
 
-            private void sendData(MPDbAdapter dbAdapter, String token, String serviceName, MPDbAdapter.Table table, String url) {
+            private void sendData(MPQueueStore dbAdapter, String token, String serviceName, MPDbAdapter.Table table, String url) {
                 final RemoteService poster = getPoster();
                 DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
                 boolean includeAutomaticEvents = true;
                 if (decideMessages == null || decideMessages.isAutomaticEventsEnabled() == null) {
                     includeAutomaticEvents = false;
                 }
-                String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
+                String[] eventsData = generateDataString(dbAdapter, table, token, includeAutomaticEvents);
                 Integer queueCount = 0;
                 if (eventsData != null) {
                     queueCount = Integer.valueOf(eventsData[2]);
                 }
+                MPTrace.setCounter(MPTrace.COUNTER_QUEUE_DEPTH, queueCount);
 
                 while (eventsData != null && queueCount > 0) {
                     final String lastId = eventsData[0];
@@ -617,39 +886,47 @@ import javax.net.ssl.SSLSocketFactory;
                     byte[] response;
                     try {
                         final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
-                        response = poster.performRequest(url, token, rawMessage, socketFactory);
+                        final long requestStart = System.nanoTime();
+                        try {
+                            response = poster.performRequest(url, token, rawMessage, socketFactory);
+                        } finally {
+                            mMetrics.getHttpRequest().recordNanos(System.nanoTime() - requestStart);
+                        }
                         if (null == response) {
                             deleteEvents = false;
-                            logAboutMessageToMixpanel("Response was null, unexpected failure posting to " + url + ".");
+                            logAboutMessageToMixpanel("Response was null, unexpected failure posting to {}.", url);
                         } else {
                             deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            String parsedResponse;
-                            try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
-                            }
+                            mMetrics.addBytesSent(rawMessage);
                             if (mFailedRetries > 0) {
                                 mFailedRetries = 0;
                                 removeMessages(FLUSH_QUEUE, token);
                             }
 
-                            logAboutMessageToMixpanel("Successfully posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToMixpanel("Response was " + parsedResponse);
+                            logAboutMessageToMixpanel("Successfully posted to {}: \n{}", url, rawMessage);
+                            if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                                String parsedResponse;
+                                try {
+                                    parsedResponse = new String(response, "UTF-8");
+                                } catch (UnsupportedEncodingException e) {
+                                    throw new RuntimeException("UTF not supported on this platform?", e);
+                                }
+                                logAboutMessageToMixpanel("Response was {}", parsedResponse);
+                            }
                         }
                     } catch (final OutOfMemoryError e) {
-                        MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
+                        MPLog.e(LOGTAG, "Out of memory when posting to {}.", url, e);
                     } catch (final MalformedURLException e) {
-                        MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
+                        MPLog.e(LOGTAG, "Cannot interpret {} as a URL.", url, e);
                     } catch (final RemoteService.ServiceUnavailableException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                        logAboutMessageToMixpanel("Cannot post message to {}.", url, e);
                         deleteEvents = false;
                         mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
                     } catch (final SocketTimeoutException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                        logAboutMessageToMixpanel("Cannot post message to {}.", url, e);
                         deleteEvents = false;
                     } catch (final IOException e) {
-                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                        logAboutMessageToMixpanel("Cannot post message to {}.", url, e);
                         deleteEvents = false;
                     }
 
@@ -665,17 +942,28 @@ import javax.net.ssl.SSLSocketFactory;
                         flushMessage.obj = new FlushQueueObject(token, serviceName);
                         sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
                         mFailedRetries++;
-                        logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                        mMetrics.incrementRetries();
+                        logAboutMessageToMixpanel("Retrying this batch of events in {} ms", mTrackEngageRetryAfter);
                         break;
                     }
 
-                    eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
+                    // An upload can take many requests, and buffered events shouldn't wait for all of them
+                    writeBufferedEvents();
+
+                    eventsData = generateDataString(dbAdapter, table, token, includeAutomaticEvents);
                     if (eventsData != null) {
                         queueCount = Integer.valueOf(eventsData[2]);
                     }
                 }
             }
 
+            private String[] generateDataString(MPQueueStore dbAdapter, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+                final long start = System.nanoTime();
+                final String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
+                mMetrics.getBatchBuild().recordNanos(System.nanoTime() - start);
+                return eventsData;
+            }
+
             private JSONObject getDefaultEventProperties()
                     throws JSONException {
                 final JSONObject ret = new JSONObject();
@@ -770,7 +1058,7 @@ import javax.net.ssl.SSLSocketFactory;
                 return ret;
             }
 
-            private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
+            /* package */ JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
                 final JSONObject eventObj = new JSONObject();
                 final JSONObject eventProperties = eventDescription.getProperties();
                 final JSONObject sendProperties = getDefaultEventProperties();
@@ -788,7 +1076,12 @@ import javax.net.ssl.SSLSocketFactory;
                 return eventObj;
             }
 
-            private MPDbAdapter mDbAdapter;
+            private MPQueueStore mDbAdapter;
+            private boolean mSending;
+            private final QueueQuota mQueueQuota;
+            private final EventDescription[] mDrainedEvents;
+            private final JSONObject[] mBatchEvents;
+            private final boolean[] mBatchIsAutomatic;
             private final DecideChecker mDecideChecker;
             private final long mFlushInterval;
             private long mDecideRetryAfter;
@@ -806,7 +1099,7 @@ import javax.net.ssl.SSLSocketFactory;
                 mAveFlushFrequency = totalFlushTime / newFlushCount;
 
                 final long seconds = mAveFlushFrequency / 1000;
-                logAboutMessageToMixpanel("Average send frequency approximately " + seconds + " seconds.");
+                logAboutMessageToMixpanel("Average send frequency approximately {} seconds.", seconds);
             }
 
             mLastFlushTime = now;
@@ -824,10 +1117,41 @@ import javax.net.ssl.SSLSocketFactory;
     public long getTrackEngageRetryAfter() {
         return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getTrackEngageRetryAfter();
     }
+
+    // For benchmarks only, do not call from production code. Builds the object that would be stored
+    // for an event, on the calling thread rather than the worker's.
+    /* package */ JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
+        return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).prepareEventObject(eventDescription);
+    }
+
+    // Trace section names for worker messages, so we don't build strings when tracing is off
+    private static String traceSectionName(int what) {
+        switch (what) {
+            case ENQUEUE_PEOPLE: return "Mixpanel.worker.enqueuePeople";
+            case ENQUEUE_EVENTS: return "Mixpanel.worker.enqueueEvents";
+            case FLUSH_QUEUE: return "Mixpanel.worker.flushQueue";
+            case ENQUEUE_GROUP: return "Mixpanel.worker.enqueueGroup";
+            case PUSH_ANONYMOUS_PEOPLE_RECORDS: return "Mixpanel.worker.pushAnonymousPeople";
+            case KILL_WORKER: return "Mixpanel.worker.kill";
+            case EMPTY_QUEUES: return "Mixpanel.worker.emptyQueues";
+            case CLEAR_ANONYMOUS_UPDATES: return "Mixpanel.worker.clearAnonymousUpdates";
+            case REWRITE_EVENT_PROPERTIES: return "Mixpanel.worker.rewriteEventProperties";
+            case INSTALL_DECIDE_CHECK: return "Mixpanel.worker.installDecideCheck";
+            case DRAIN_EVENT_BUFFER: return "Mixpanel.worker.drainEventBuffer";
+            case EXPIRE_RECORDS: return "Mixpanel.worker.expireRecords";
+            default: return "Mixpanel.worker";
+        }
+    }
+
     /////////////////////////////////////////////////////////
 
     // Used across thread boundaries
     private final Worker mWorker;
+    private final PipelineMetrics mMetrics;
+    private final EventRingBuffer mEventBuffer;
+    private final AtomicBoolean mDrainScheduled;
+    private final AtomicBoolean mUrgentDrainScheduled;
+    private final ComponentCallbacks2 mMemoryCallbacks;
     protected final Context mContext;
     protected final MPConfig mConfig;
 
@@ -840,8 +1164,10 @@ import javax.net.ssl.SSLSocketFactory;
     private static final int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
     private static final int EMPTY_QUEUES = 6; // Remove any local (and pending to be flushed) events or people/group updates from the db
     private static final int CLEAR_ANONYMOUS_UPDATES = 7; // Remove anonymous people updates from DB
-    private static final int REWRITE_EVENT_PROPERTIES = 8; // Update or add properties to existing queued events
+    private static final int REWRITE_EVENT_PROPERTIES = 8; // Update or add properties to existing queued events as they're sent
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
+    private static final int DRAIN_EVENT_BUFFER = 13; // Write buffered events to the events DB. arg1 is 1 if the drain was urgent
+    private static final int EXPIRE_RECORDS = 14; // Remove a batch of records older than the data expiration, and check the queue's size
 
     private static final String LOGTAG = "MixpanelAPI.Messages";
 
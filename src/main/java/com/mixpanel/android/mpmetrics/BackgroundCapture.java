@@ -8,7 +8,7 @@ import android.graphics.PorterDuff;
 import android.os.AsyncTask;
 
 import com.mixpanel.android.util.ActivityImageUtils;
-import com.mixpanel.android.util.StackBlurManager;
+import com.mixpanel.android.util.BlurEngine;
 
 /* package */ class BackgroundCapture {
 
@@ -43,10 +43,7 @@ import com.mixpanel.android.util.StackBlurManager;
         protected Void doInBackground(Void ...params) {
             if (null != mSourceImage) {
                 try {
-                    /* TODO there is a better and more efficient way to do this, consider
-                     * https://github.com/500px/500px-android-blur
-                     */
-                    StackBlurManager.process(mSourceImage, 20);
+                    BlurEngine.getInstance(mParentActivity).blur(mSourceImage, BLUR_RADIUS);
                     final Canvas canvas = new Canvas(mSourceImage);
                     canvas.drawColor(GRAY_72PERCENT_OPAQUE, PorterDuff.Mode.SRC_ATOP);
                 } catch (final ArrayIndexOutOfBoundsException e) {
@@ -75,6 +72,7 @@ import com.mixpanel.android.util.StackBlurManager;
     }
 
 
+    private static final int BLUR_RADIUS = 20;
     private static final int GRAY_72PERCENT_OPAQUE = Color.argb(186, 28, 28, 28);
 
     @SuppressWarnings("unused")
@@ -5,11 +5,17 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.view.Display;
 import android.view.WindowManager;
 
 import com.mixpanel.android.util.ImageStore;
+import com.mixpanel.android.util.JSONUtils;
+import com.mixpanel.android.util.MPExecutors;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
 import com.mixpanel.android.util.RemoteService;
 
 import org.json.JSONArray;
@@ -18,14 +24,18 @@ import org.json.JSONObject;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import javax.net.ssl.SSLSocketFactory;
 
@@ -37,8 +47,16 @@ import javax.net.ssl.SSLSocketFactory;
     private final Map<String, DecideMessages> mChecks;
     private final ImageStore mImageStore;
     private final SystemInformation mSystemInformation;
+    private final Set<String> mLoadingImages; // token|serviceName|notification id
+    private volatile long mImageRetryAfter; // SystemClock.elapsedRealtime(), 0 if the image host hasn't asked us to wait
+
+    private static ExecutorService sImageExecutor;
 
     private static final JSONArray EMPTY_JSON_ARRAY = new JSONArray();
+    private static final List<InAppNotification> NO_NOTIFICATIONS = Collections.emptyList();
+
+    private static final int IMAGE_THREADS = 3;
+    private static final long IMAGE_KEEP_ALIVE_SECONDS = 10;
 
     private static final String NOTIFICATIONS = "notifications";
     private static final String EVENT_BINDINGS = "event_bindings";
@@ -69,6 +87,7 @@ import javax.net.ssl.SSLSocketFactory;
         mChecks = new HashMap<String, DecideMessages>();
         mImageStore = createImageStore(context);
         mSystemInformation = SystemInformation.getInstance(context);
+        mLoadingImages = Collections.synchronizedSet(new HashSet<String>());
     }
 
     protected ImageStore createImageStore(final Context context) {
@@ -80,18 +99,34 @@ import javax.net.ssl.SSLSocketFactory;
         mChecks.put(key, check);
     }
 
+    /**
+     * Throws ServiceUnavailableException without asking decide if the image host has asked us to wait,
+     * since the response would only send us back to it for the same images.
+     */
     public void runDecideCheck(final String token, final String serviceName, final RemoteService poster) throws RemoteService.ServiceUnavailableException {
+        final long waitMillis = mImageRetryAfter - SystemClock.elapsedRealtime();
+        if (waitMillis > 0) {
+            throw new RemoteService.ServiceUnavailableException("Notification image host is unavailable",
+                    Long.toString((waitMillis + 999) / 1000));
+        }
+
         String key = String.format("%1$s|%2$s", token, serviceName);
         DecideMessages updates = mChecks.get(key);
         if (updates != null) {
             final String distinctId = updates.getDistinctId();
+            final boolean traced = MPTrace.beginSection(MPTrace.DECIDE_CHECK);
             try {
                 final Result result = runDecideCheck(updates.getToken(), updates.getServiceName(), distinctId, poster);
                 if (result != null) {
-                    updates.reportResults(result.notifications, result.eventTriggeredNotifications, result.eventBindings, result.variants, result.automaticEvents, result.integrations);
+                    // Notifications are reported one at a time, as their images arrive
+                    updates.reportResults(NO_NOTIFICATIONS, NO_NOTIFICATIONS, result.eventBindings, result.variants, result.automaticEvents, result.integrations);
+                    loadNotificationImages(updates, distinctId, result.notifications);
+                    loadNotificationImages(updates, distinctId, result.eventTriggeredNotifications);
                 }
             } catch (final UnintelligibleMessageException e) {
                 MPLog.e(LOGTAG, e.getMessage(), e);
+            } finally {
+                MPTrace.endSection(traced);
             }
         }
     }
@@ -99,23 +134,87 @@ import javax.net.ssl.SSLSocketFactory;
     /* package */ static class UnintelligibleMessageException extends Exception {
         private static final long serialVersionUID = -6501269367559104957L;
 
-        public UnintelligibleMessageException(String message, JSONException cause) {
+        public UnintelligibleMessageException(String message, Exception cause) {
             super(message, cause);
         }
     }
 
-    private void setImages(final Iterator<InAppNotification> notificationIterator) throws RemoteService.ServiceUnavailableException {
-        while (notificationIterator.hasNext()) {
-            final InAppNotification notification = notificationIterator.next();
-            final Bitmap image = getNotificationImage(notification, mContext);
-            if (null == image) {
-                MPLog.i(LOGTAG, "Could not retrieve image for notification " + notification.getId() +
-                        ", will not show the notification.");
-                notificationIterator.remove();
-            } else {
-                notification.setImage(image);
+    /**
+     * Loads the images of notifications we haven't seen before on a small pool of background threads,
+     * so a slow image host doesn't hold up the analytics worker (or the other notifications.)
+     * Each notification is handed to updates once its image has arrived, and never if it can't be loaded.
+     */
+    private void loadNotificationImages(final DecideMessages updates, final String distinctId, final List<InAppNotification> notifications) {
+        for (final InAppNotification notification : notifications) {
+            if (!updates.isNewNotification(notification.getId())) {
+                continue;
+            }
+
+            final String key = updates.getToken() + "|" + updates.getServiceName() + "|" + notification.getId();
+            if (!mLoadingImages.add(key)) {
+                continue; // Already being loaded for an earlier decide response
+            }
+
+            getImageExecutor().execute(new NotificationImageLoader(updates, distinctId, notification, key));
+        }
+    }
+
+    private class NotificationImageLoader implements Runnable {
+        public NotificationImageLoader(DecideMessages updates, String distinctId, InAppNotification notification, String key) {
+            mUpdates = updates;
+            mDistinctId = distinctId;
+            mNotification = notification;
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Bitmap image = getNotificationImage(mNotification, mContext);
+                if (null == image) {
+                    MPLog.i(LOGTAG, "Could not retrieve image for notification " + mNotification.getId() +
+                            ", will not show the notification.");
+                    return;
+                }
+
+                mNotification.setImage(image);
+                final List<InAppNotification> loaded = Collections.singletonList(mNotification);
+                if (mNotification.isEventTriggered()) {
+                    mUpdates.reportNotifications(mDistinctId, NO_NOTIFICATIONS, loaded);
+                } else {
+                    mUpdates.reportNotifications(mDistinctId, loaded, NO_NOTIFICATIONS);
+                }
+            } catch (final RemoteService.ServiceUnavailableException e) {
+                MPLog.i(LOGTAG, "Service unavailable when loading image for notification " + mNotification.getId(), e);
+                noteImageRetryAfter(e);
+            } catch (final OutOfMemoryError e) {
+                MPLog.e(LOGTAG, "Not enough memory to load image for notification " + mNotification.getId(), e);
+            } finally {
+                mLoadingImages.remove(mKey);
             }
         }
+
+        private final DecideMessages mUpdates;
+        private final String mDistinctId;
+        private final InAppNotification mNotification;
+        private final String mKey;
+    }
+
+    // Loaders run in parallel, so keep whichever retry-after ends last
+    /* package */ synchronized void noteImageRetryAfter(RemoteService.ServiceUnavailableException e) {
+        final long retryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000L;
+        if (retryAfter > mImageRetryAfter) {
+            mImageRetryAfter = retryAfter;
+        }
+    }
+
+    private static synchronized ExecutorService getImageExecutor() {
+        if (null == sImageExecutor) {
+            sImageExecutor = MPExecutors.newDaemonPool(
+                "MixpanelAPI.NotificationImages", IMAGE_THREADS, IMAGE_KEEP_ALIVE_SECONDS, Thread.MIN_PRIORITY);
+        }
+
+        return sImageExecutor;
     }
 
     private Result runDecideCheck(final String token, final String serviceName, final String distinctId, final RemoteService poster)
@@ -127,117 +226,129 @@ import javax.net.ssl.SSLSocketFactory;
         Result parsedResult = null;
         if (responseString != null) {
             parsedResult = parseDecideResponse(responseString);
-            setImages(parsedResult.notifications.iterator());
-            setImages(parsedResult.eventTriggeredNotifications.iterator());
         }
 
         return parsedResult;
     }// runDecideCheck
 
-    private static List<InAppNotification> parseInAppNotifications(JSONObject response) {
-        JSONArray notifications = null;
+    private static List<InAppNotification> parseInAppNotifications(JSONArray notifications) {
         final List<InAppNotification> ret = new ArrayList<>();
 
-        if (response.has(NOTIFICATIONS)) {
+        int triggeredCount = 0, normalCount = 0;
+        for (int i = 0; i < notifications.length(); i++) {
             try {
-                notifications = response.getJSONArray(NOTIFICATIONS);
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Mixpanel endpoint returned non-array JSON for " + NOTIFICATIONS + ": " + response);
-            }
-        }
-
-        if (null != notifications) {
-            int triggeredCount = 0, normalCount = 0;
-            for (int i = 0; i < notifications.length(); i++) {
-                try {
-                    final JSONObject notificationJson = notifications.getJSONObject(i);
-                    if (notificationJson.has("display_triggers")) {
-                        if (triggeredCount >= MPConfig.MAX_EVENT_TRIGGERED_NOTIFICATION_CACHE_COUNT) {
-                            continue;
-                        } else {
-                            triggeredCount++;
-                        }
+                final JSONObject notificationJson = notifications.getJSONObject(i);
+                if (notificationJson.has("display_triggers")) {
+                    if (triggeredCount >= MPConfig.MAX_EVENT_TRIGGERED_NOTIFICATION_CACHE_COUNT) {
+                        continue;
                     } else {
-                        if (normalCount >= MPConfig.MAX_NOTIFICATION_CACHE_COUNT) {
-                            continue;
-                        } else  {
-                            normalCount++;
-                        }
+                        triggeredCount++;
                     }
-                    final String notificationType = notificationJson.getString("type");
-                    if (notificationType.equalsIgnoreCase("takeover")) {
-                        final TakeoverInAppNotification notification = new TakeoverInAppNotification(notificationJson);
-                        ret.add(notification);
-                    } else if (notificationType.equalsIgnoreCase("mini")) {
-                        final MiniInAppNotification notification = new MiniInAppNotification(notificationJson);
-                        ret.add(notification);
+                } else {
+                    if (normalCount >= MPConfig.MAX_NOTIFICATION_CACHE_COUNT) {
+                        continue;
+                    } else  {
+                        normalCount++;
                     }
-                } catch (final JSONException e) {
-                    MPLog.e(LOGTAG, "Received a strange response from notifications service: " + notifications.toString(), e);
-                } catch (final BadDecideObjectException e) {
-                    MPLog.e(LOGTAG, "Received a strange response from notifications service: " + notifications.toString(), e);
-                } catch (final OutOfMemoryError e) {
-                    MPLog.e(LOGTAG, "Not enough memory to show load notification from package: " + notifications.toString(), e);
                 }
+                final String notificationType = notificationJson.getString("type");
+                if (notificationType.equalsIgnoreCase("takeover")) {
+                    final TakeoverInAppNotification notification = new TakeoverInAppNotification(notificationJson);
+                    ret.add(notification);
+                } else if (notificationType.equalsIgnoreCase("mini")) {
+                    final MiniInAppNotification notification = new MiniInAppNotification(notificationJson);
+                    ret.add(notification);
+                }
+            } catch (final JSONException e) {
+                MPLog.e(LOGTAG, "Received a strange response from notifications service: " + notifications.toString(), e);
+            } catch (final BadDecideObjectException e) {
+                MPLog.e(LOGTAG, "Received a strange response from notifications service: " + notifications.toString(), e);
+            } catch (final OutOfMemoryError e) {
+                MPLog.e(LOGTAG, "Not enough memory to show load notification from package: " + notifications.toString(), e);
             }
         }
 
         return ret;
     }
 
+    /**
+     * Parses a decide response with a pull parser, reading the top level keys in whatever order they
+     * arrive and only building JSON trees for the sections we keep. Unknown keys (and values of the
+     * wrong type, which are logged) are skipped without being decoded.
+     */
     /* package */ static Result parseDecideResponse(String responseString)
             throws UnintelligibleMessageException {
-        JSONObject response;
         final Result ret = new Result();
+        JSONArray notifications = null;
 
+        final JsonReader reader = new JsonReader(new StringReader(responseString));
         try {
-            response = new JSONObject(responseString);
-        } catch (final JSONException e) {
-            final String message = "Mixpanel endpoint returned unparsable result:\n" + responseString;
-            throw new UnintelligibleMessageException(message, e);
-        }
-
-        for (InAppNotification notif : parseInAppNotifications(response)) {
-            if (notif.isEventTriggered()) {
-                ret.eventTriggeredNotifications.add(notif);
-            } else {
-                ret.notifications.add(notif);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (NOTIFICATIONS.equals(name)) {
+                    notifications = readArraySection(reader, NOTIFICATIONS);
+                } else if (EVENT_BINDINGS.equals(name)) {
+                    final JSONArray eventBindings = readArraySection(reader, EVENT_BINDINGS);
+                    if (null != eventBindings) {
+                        ret.eventBindings = eventBindings;
+                    }
+                } else if (VARIANTS.equals(name)) {
+                    final JSONArray variants = readArraySection(reader, VARIANTS);
+                    if (null != variants) {
+                        ret.variants = variants;
+                    }
+                } else if (AUTOMATIC_EVENTS.equals(name)) {
+                    if (reader.peek() == JsonToken.BOOLEAN) {
+                        ret.automaticEvents = reader.nextBoolean();
+                    } else {
+                        MPLog.e(LOGTAG, "Mixpanel endpoint returned a non boolean value for automatic events: " + reader.peek());
+                        reader.skipValue();
+                    }
+                } else if (INTEGRATIONS.equals(name)) {
+                    ret.integrations = readArraySection(reader, INTEGRATIONS);
+                } else {
+                    reader.skipValue();
+                }
             }
-        }
-
-        if (response.has(EVENT_BINDINGS)) {
+            reader.endObject();
+        } catch (final IOException e) {
+            throw new UnintelligibleMessageException("Mixpanel endpoint returned unparsable result:\n" + responseString, e);
+        } catch (final IllegalStateException e) {
+            throw new UnintelligibleMessageException("Mixpanel endpoint returned unparsable result:\n" + responseString, e);
+        } catch (final JSONException e) {
+            throw new UnintelligibleMessageException("Mixpanel endpoint returned unparsable result:\n" + responseString, e);
+        } finally {
             try {
-                ret.eventBindings = response.getJSONArray(EVENT_BINDINGS);
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Mixpanel endpoint returned non-array JSON for event bindings: " + response);
+                reader.close();
+            } catch (final IOException e) {
+                ; // Can't happen for a StringReader
             }
         }
 
-        if (response.has(VARIANTS)) {
-            try {
-                ret.variants = response.getJSONArray(VARIANTS);
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Mixpanel endpoint returned non-array JSON for variants: " + response);
+        if (null != notifications) {
+            for (InAppNotification notif : parseInAppNotifications(notifications)) {
+                if (notif.isEventTriggered()) {
+                    ret.eventTriggeredNotifications.add(notif);
+                } else {
+                    ret.notifications.add(notif);
+                }
             }
         }
 
-        if (response.has(AUTOMATIC_EVENTS)) {
-            try {
-                ret.automaticEvents = response.getBoolean(AUTOMATIC_EVENTS);
-            } catch (JSONException e) {
-                MPLog.e(LOGTAG, "Mixpanel endpoint returned a non boolean value for automatic events: " + response);
-            }
-        }
+        return ret;
+    }
 
-        if (response.has(INTEGRATIONS)) {
-            try {
-                ret.integrations = response.getJSONArray(INTEGRATIONS);
-            } catch (final JSONException e) {
-                MPLog.e(LOGTAG, "Mixpanel endpoint returned a non-array JSON for integrations: " + response);
-            }
+    // Returns null (and skips the value) if the next value in reader isn't an array
+    private static JSONArray readArraySection(JsonReader reader, String name)
+            throws IOException, JSONException {
+        final JsonToken token = reader.peek();
+        if (token != JsonToken.BEGIN_ARRAY) {
+            MPLog.e(LOGTAG, "Mixpanel endpoint returned non-array JSON (" + token + ") for " + name);
+            reader.skipValue();
+            return null;
         }
-
-        return ret;
+        return JSONUtils.readArray(reader);
     }
 
     private String getDecideResponseFromServer(String unescapedToken, String serviceName, String unescapedDistinctId, RemoteService poster)
@@ -303,15 +414,17 @@ import javax.net.ssl.SSLSocketFactory;
 
         final WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         final Display display = wm.getDefaultDisplay();
-        final int displayWidth = getDisplayWidth(display);
+        final Point displaySize = getDisplaySize(display);
+        final int displayWidth = displaySize.x;
 
         if (notification.getType() == InAppNotification.Type.TAKEOVER && displayWidth >= 720) {
             urls = new String[]{notification.getImage4xUrl(), notification.getImage2xUrl(), notification.getImageUrl()};
         }
 
+        // Notification images are never shown bigger than the display, so there's no point decoding more pixels than that
         for (String url : urls) {
             try {
-                return mImageStore.getImage(url);
+                return mImageStore.getImage(url, displaySize.x, displaySize.y);
             } catch (ImageStore.CantGetImageException e) {
                 MPLog.v(LOGTAG, "Can't load image " + url + " for a notification", e);
             }
@@ -322,14 +435,14 @@ import javax.net.ssl.SSLSocketFactory;
 
     @SuppressWarnings("deprecation")
     @SuppressLint("NewApi")
-    private static int getDisplayWidth(final Display display) {
+    private static Point getDisplaySize(final Display display) {
+        final Point displaySize = new Point();
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB_MR2) {
-            return display.getWidth();
+            displaySize.set(display.getWidth(), display.getHeight());
         } else {
-            final Point displaySize = new Point();
             display.getSize(displaySize);
-            return displaySize.x;
         }
+        return displaySize;
     }
 
     private static byte[] checkDecide(RemoteService poster, Context context, String url)
@@ -32,6 +32,7 @@ import java.util.Set;
         mUnseenNotifications = new LinkedList<>();
         mNotificationIds = new HashSet<>(notificationIds);
         mUnseenEventTriggeredNotifications = new LinkedList<>();
+        mTriggerIndex = TriggerIndex.EMPTY;
         mVariants = null;
         mIntegrations = new HashSet<String>();
     }
@@ -69,22 +70,8 @@ import java.util.Set;
 
         mUpdatesFromMixpanel.setEventBindings(eventBindings);
 
-        for (final InAppNotification n : newNotifications) {
-            final int id = n.getId();
-            if (! mNotificationIds.contains(id)) {
-                mNotificationIds.add(id);
-                mUnseenNotifications.add(n);
-                newContent = true;
-            }
-        }
-
-        for (final InAppNotification n : newTriggeredNotifications) {
-            final int id = n.getId();
-            if (! mNotificationIds.contains(id)) {
-                mNotificationIds.add(id);
-                mUnseenEventTriggeredNotifications.add(n);
-                newContent = true;
-            }
+        if (addNewNotifications(newNotifications, newTriggeredNotifications)) {
+            newContent = true;
         }
 
         // the following logic checks if the variants have been applied by looking up their id's in the HashSet
@@ -100,7 +87,7 @@ import java.util.Set;
                     break;
                 }
             } catch(JSONException e) {
-                MPLog.e(LOGTAG, "Could not convert variants[" + i + "] into a JSONObject while comparing the new variants", e);
+                MPLog.e(LOGTAG, "Could not convert variants[{}] into a JSONObject while comparing the new variants", i, e);
             }
         }
 
@@ -112,7 +99,7 @@ import java.util.Set;
                     JSONObject variant = mVariants.getJSONObject(i);
                     mLoadedVariants.add(variant.getInt("id"));
                 } catch(JSONException e) {
-                    MPLog.e(LOGTAG, "Could not convert variants[" + i + "] into a JSONObject while updating the map", e);
+                    MPLog.e(LOGTAG, "Could not convert variants[{}] into a JSONObject while updating the map", i, e);
                 }
             }
         }
@@ -128,7 +115,7 @@ import java.util.Set;
         mUpdatesFromMixpanel.storeVariants(mVariants);
 
         if (mAutomaticEventsEnabled == null && !automaticEvents) {
-            MPDbAdapter.getInstance(mContext).cleanupAutomaticEvents(mToken, mServiceName);
+            AnalyticsMessages.getQueueStore(mContext, MPConfig.getInstance(mContext)).cleanupAutomaticEvents(mToken, mServiceName);
         }
         mAutomaticEventsEnabled = automaticEvents;
 
@@ -143,19 +130,73 @@ import java.util.Set;
                     newContent = true;
                 }
             } catch(JSONException e) {
-                MPLog.e(LOGTAG, "Got an integration id from " + integrations.toString() + " that wasn't an int", e);
+                MPLog.e(LOGTAG, "Got an integration id from {} that wasn't an int", integrations, e);
             }
         }
 
-        MPLog.v(LOGTAG, "New Decide content has become available. " +
-                    newNotifications.size() + " notifications and " +
-                    variants.length() + " experiments have been added.");
+        MPLog.v(LOGTAG, "New Decide content has become available. {} notifications and {} experiments have been added.",
+                newNotifications.size(), variants.length());
 
         if (newContent && null != mListener) {
             mListener.onNewResults();
         }
     }
 
+    /**
+     * Adds notifications that arrive after the rest of a decide response, once their images
+     * have been loaded. Notifications loaded for a user other than the current one are dropped.
+     */
+    public synchronized void reportNotifications(String distinctId,
+                                                 List<InAppNotification> newNotifications,
+                                                 List<InAppNotification> newTriggeredNotifications) {
+        if (mDistinctId == null ? distinctId != null : !mDistinctId.equals(distinctId)) {
+            MPLog.v(LOGTAG, "Dropping notifications loaded for a previous user.");
+            return;
+        }
+
+        if (addNewNotifications(newNotifications, newTriggeredNotifications) && null != mListener) {
+            mListener.onNewResults();
+        }
+    }
+
+    /**
+     * Returns true if a notification with the given id hasn't been reported yet, so it's worth
+     * loading its image.
+     */
+    public synchronized boolean isNewNotification(int id) {
+        return ! mNotificationIds.contains(id);
+    }
+
+    // Must be called while synchronized. Returns true if any notifications were added.
+    private boolean addNewNotifications(List<InAppNotification> newNotifications,
+                                        List<InAppNotification> newTriggeredNotifications) {
+        boolean newContent = false;
+        for (final InAppNotification n : newNotifications) {
+            final int id = n.getId();
+            if (! mNotificationIds.contains(id)) {
+                mNotificationIds.add(id);
+                mUnseenNotifications.add(n);
+                newContent = true;
+            }
+        }
+
+        boolean newTriggeredContent = false;
+        for (final InAppNotification n : newTriggeredNotifications) {
+            final int id = n.getId();
+            if (! mNotificationIds.contains(id)) {
+                mNotificationIds.add(id);
+                mUnseenEventTriggeredNotifications.add(n);
+                newContent = true;
+                newTriggeredContent = true;
+            }
+        }
+        if (newTriggeredContent) {
+            reindexTriggeredNotifications();
+        }
+
+        return newContent;
+    }
+
     public synchronized JSONArray getVariants() {
         return mVariants;
     }
@@ -169,7 +210,7 @@ import java.util.Set;
         if (replace) {
             mUnseenNotifications.add(n);
         } else {
-            MPLog.v(LOGTAG, "Recording notification " + n + " as seen.");
+            MPLog.v(LOGTAG, "Recording notification {} as seen.", n);
         }
         return n;
     }
@@ -188,26 +229,39 @@ import java.util.Set;
         return notif;
     }
 
-    public synchronized InAppNotification getNotification(AnalyticsMessages.EventDescription eventDescription, boolean replace) {
-        if (mUnseenEventTriggeredNotifications.isEmpty()) {
-            MPLog.v(LOGTAG, "No unseen triggered notifications exist, none will be returned.");
-            return null;
-        }
-        for (int i = 0; i < mUnseenEventTriggeredNotifications.size(); i ++) {
-            final InAppNotification n = mUnseenEventTriggeredNotifications.get(i);
-            if (n.matchesEventDescription(eventDescription)) {
-                if (!replace) {
-                    mUnseenEventTriggeredNotifications.remove(i);
-                    MPLog.v(LOGTAG, "recording triggered notification " + n.getId() +
-                            " as seen " + eventDescription.getEventName());
-                }
+    // Called on every tracked event, so it doesn't lock unless it finds a notification to claim.
+    public InAppNotification getNotification(AnalyticsMessages.EventDescription eventDescription, boolean replace) {
+        while (true) {
+            final TriggerIndex index = mTriggerIndex;
+            if (index.isEmpty()) {
+                MPLog.v(LOGTAG, "No unseen triggered notifications exist, none will be returned.");
+                return null;
+            }
+
+            final InAppNotification n = index.findMatch(eventDescription);
+            if (null == n || replace) {
                 return n;
-            } else {
-                MPLog.v(LOGTAG, "triggered notification " + n.getId() +
-                        " does not match event " + eventDescription.getEventName());
             }
+
+            if (claimTriggeredNotification(n)) {
+                MPLog.v(LOGTAG, "recording triggered notification {} as seen {}", n.getId(), eventDescription.getEventName());
+                return n;
+            }
+            // Otherwise another thread claimed n after we looked it up, try again with the new index
         }
-        return null;
+    }
+
+    private synchronized boolean claimTriggeredNotification(InAppNotification notif) {
+        if (!mUnseenEventTriggeredNotifications.remove(notif)) {
+            return false;
+        }
+        reindexTriggeredNotifications();
+        return true;
+    }
+
+    // Must be called while synchronized, whenever mUnseenEventTriggeredNotifications changes
+    private void reindexTriggeredNotifications() {
+        mTriggerIndex = new TriggerIndex(mUnseenEventTriggeredNotifications);
     }
 
     public synchronized Set<String> getIntegrations() { return mIntegrations; }
@@ -218,6 +272,7 @@ import java.util.Set;
         if (!MPConfig.DEBUG) {
             if (notif.isEventTriggered()) {
                 mUnseenEventTriggeredNotifications.add(notif);
+                reindexTriggeredNotifications();
             } else {
                 mUnseenNotifications.add(notif);
             }
@@ -248,6 +303,8 @@ import java.util.Set;
     private final Set<Integer> mNotificationIds;
     private final List<InAppNotification> mUnseenNotifications;
     private final List<InAppNotification> mUnseenEventTriggeredNotifications;
+    // Immutable, rebuilt from mUnseenEventTriggeredNotifications and swapped in while synchronized
+    private volatile TriggerIndex mTriggerIndex;
     private final OnNewResultsListener mListener;
     private final UpdatesFromMixpanel mUpdatesFromMixpanel;
     private JSONArray mVariants;
@@ -10,7 +10,7 @@ import org.json.JSONObject;
 
 /* package */ class DisplayTrigger implements Parcelable {
     private static final String LOGTAG = "MixpanelAPI.DisplayTrigger";
-    private static final String ANY_EVENT = "$any_event";
+    /* package */ static final String ANY_EVENT = "$any_event";
     private static final String EVENT_KEY = "event";
     private static final String SELECTOR_KEY = "selector";
 
@@ -54,6 +54,10 @@ import org.json.JSONObject;
         dest.writeString(mJSONSelector.toString());
     }
 
+    public String getEventName() {
+        return mEventName;
+    }
+
     public boolean matchesEventDescription(AnalyticsMessages.EventDescription eventDescription) {
         if (null != eventDescription) {
             if (mEventName.equals(ANY_EVENT) ||
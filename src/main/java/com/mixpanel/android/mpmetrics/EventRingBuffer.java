@@ -0,0 +1,86 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size queue of events waiting to be written to the database, with any number of
+ * threads adding events and the Mixpanel worker thread taking them out in batches.
+ *
+ * Adding never locks and never allocates. A producer claims the next sequence number with a
+ * compare and set on the tail, and then publishes its event by storing it in that slot. The
+ * worker takes events in sequence order until it reaches an empty slot, which is either the end
+ * of the queue or a slot that has been claimed but not yet published, and clears each slot before
+ * moving the head past it, so a producer never sees an occupied slot.
+ */
+/* package */ class EventRingBuffer {
+
+    public EventRingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<AnalyticsMessages.EventDescription>(size);
+        mMask = size - 1;
+        mTail = new AtomicLong(0);
+        mHead = 0;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * The number of events added and not yet taken. Only an estimate while other threads are adding.
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead);
+    }
+
+    /**
+     * Safe to call from any thread.
+     *
+     * @return false, without adding the event, if the buffer is full
+     */
+    public boolean offer(AnalyticsMessages.EventDescription event) {
+        final long capacity = mMask + 1;
+        long tail;
+        do {
+            tail = mTail.get();
+            if (tail - mHead >= capacity) {
+                return false;
+            }
+        } while (!mTail.compareAndSet(tail, tail + 1));
+
+        mSlots.set((int) (tail & mMask), event);
+        return true;
+    }
+
+    /**
+     * Moves events, oldest first, into out. Must only be called from a single thread.
+     *
+     * @return the number of events moved, which is at most out.length
+     */
+    public int drainTo(AnalyticsMessages.EventDescription[] out) {
+        long head = mHead;
+        int count = 0;
+        while (count < out.length) {
+            final int index = (int) (head & mMask);
+            final AnalyticsMessages.EventDescription event = mSlots.get(index);
+            if (null == event) {
+                break;
+            }
+            mSlots.set(index, null);
+            out[count] = event;
+            count++;
+            head++;
+        }
+        mHead = head;
+        return count;
+    }
+
+    private final AtomicReferenceArray<AnalyticsMessages.EventDescription> mSlots;
+    private final int mMask;
+    private final AtomicLong mTail;
+    private volatile long mHead;
+}
@@ -184,6 +184,10 @@ public abstract class InAppNotification implements Parcelable {
         return null != mDisplayTriggers && !mDisplayTriggers.isEmpty();
     }
 
+    /* package */ List<DisplayTrigger> getDisplayTriggers() {
+        return mDisplayTriggers;
+    }
+
     public boolean matchesEventDescription(AnalyticsMessages.EventDescription eventDescription) {
         if (isEventTriggered()) {
             for (DisplayTrigger trigger : mDisplayTriggers) {
@@ -0,0 +1,132 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A distribution of latencies, in microseconds, from one stage of the Mixpanel pipeline.
+ *
+ * <p>Values are counted in log-linear buckets, 16 to each power of two, so any percentile
+ * is reported within about 6% of the value that was really recorded. Recording a value never
+ * locks or allocates, so histograms can be updated on every event. Reading them is safe from
+ * any thread, but since other threads may be recording at the same time the count, mean and
+ * percentiles may be very slightly out of step with one another.
+ *
+ * @see PipelineMetrics
+ */
+public class LatencyHistogram {
+
+    /* package */ LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        mTotalCount = new AtomicLong(0);
+        mTotalMicros = new AtomicLong(0);
+        mMaxMicros = new AtomicLong(0);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * @return the mean of all recorded values in microseconds, or 0 if nothing has been recorded
+     */
+    public long getMeanMicros() {
+        final long count = mTotalCount.get();
+        return count == 0 ? 0 : mTotalMicros.get() / count;
+    }
+
+    /**
+     * @return the largest value recorded, in microseconds
+     */
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Returns the value that the given percentage of recorded values are less than or equal to.
+     *
+     * @param percentile between 0 and 100, for example 50 for the median or 99.9
+     * @return the value in microseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, not " + percentile);
+        }
+
+        long total = 0;
+        final long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * (percentile / 100.0)));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueInBucket(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count " + getCount() +
+                ", mean " + getMeanMicros() + "us" +
+                ", p50 " + getPercentileMicros(50) + "us" +
+                ", p99 " + getPercentileMicros(99) + "us" +
+                ", max " + getMaxMicros() + "us";
+    }
+
+    /* package */ void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /* package */ void recordMicros(long micros) {
+        final long value = Math.min(Math.max(micros, 0), MAX_TRACKABLE_MICROS);
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotalMicros.addAndGet(value);
+        mTotalCount.incrementAndGet();
+
+        long max = mMaxMicros.get();
+        while (value > max && !mMaxMicros.compareAndSet(max, value)) {
+            max = mMaxMicros.get();
+        }
+    }
+
+    /* package */ static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /* package */ static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount;
+    private final AtomicLong mTotalMicros;
+    private final AtomicLong mMaxMicros;
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 36; // A little over 19 hours
+    /* package */ static final long MAX_TRACKABLE_MICROS = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+}
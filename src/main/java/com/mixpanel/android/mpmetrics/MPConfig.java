@@ -9,6 +9,7 @@ import android.os.Bundle;
 import com.mixpanel.android.BuildConfig;
 import com.mixpanel.android.util.MPConstants;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
 import com.mixpanel.android.util.OfflineMode;
 
 import java.security.GeneralSecurityException;
@@ -29,12 +30,29 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanel.android.MPConfig.EnableDebugLogging</dt>
  *     <dd>A boolean value. If true, emit more detailed log messages. Defaults to false</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.EnableTracing</dt>
+ *     <dd>A boolean value. If true, the library's work is marked with named sections and counters in Systrace and Perfetto traces. Defaults to false</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.BulkUploadLimit</dt>
  *     <dd>An integer count of messages, the maximum number of messages to queue before an upload attempt. This value should be less than 50.</dd>
  *
  *     <dt>com.mixpanel.android.MPConfig.FlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.EventBufferCapacity</dt>
+ *     <dd>An integer count of events, how many tracked events can be held in memory to be written to the database together. Rounded up to a power of two. Set to 0 to write each event separately. Defaults to 256.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventBufferWindow</dt>
+ *     <dd>An integer number of milliseconds, how long a tracked event waits in memory before the background worker is asked to write it to the database, where it survives the app being killed.
+ *          If the worker is busy the event also waits for the worker's current step, which is at most one upload request, limited by the connect and read timeouts of the upload.
+ *          Events are written sooner when the buffer is half full, and when the app is backgrounded or asked to trim memory. Defaults to 100.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.QueueStore</dt>
+ *     <dd>A string, where events and people updates wait to be sent. "database" keeps them in a SQLite database, "journal"
+ *          appends them to memory-mapped journal files, which is cheaper to write and to clear after an upload.
+ *          Anything already queued in the database is moved into the journal the first time the journal is used.
+ *          Defaults to "database".</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.FlushOnBackground</dt>
  *     <dd>A boolean value. If false, the library will not flush the event and people queues when the app goes into the background. Defaults to true.</dd>
  *
@@ -49,6 +67,14 @@ import javax.net.ssl.SSLSocketFactory;
  *          queue based on the storage capacity of the device, but will always allow queing below this limit. Higher values
  *          will take up more storage even when user storage is very full.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.MaximumDatabaseSize</dt>
+ *     <dd>An integer number of bytes, the most queued data to keep on the device. Past this, automatic events and
+ *          then the oldest records are thrown away to make room for new ones. Defaults to 0, no limit.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaximumQueuedRecords</dt>
+ *     <dd>An integer count of records, the most events, people updates or group updates to keep queued for each
+ *          project. Past this, automatic events and then the oldest records are thrown away. Defaults to 0, no limit.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.ResourcePackageName</dt>
  *     <dd>A string java package name. Defaults to the package name of the Application. Users should set if the package name of their R class is different from the application package name due to application id settings.</dd>
  *
@@ -106,6 +132,9 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanel.android.MPConfig.ImageCacheMaxMemoryFactor</dt>
  *     <dd>An integer value. The LRU cache size that Mixpanel uses to store images is calculated by the available memory divided by this factor. Defaults to 10.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.ImageCacheMaxDiskSize</dt>
+ *     <dd>An integer value. The maximum number of bytes of downloaded images Mixpanel will keep on disk for each image cache. The least recently used images are deleted first. Defaults to 20 Mb.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.DisableViewCrawlerForProjects</dt>
  *     <dd>A resource array list (e.g. @array/my_project_list). AB tests, tweaks and codeless events will be disabled for the projects from that list. Defaults to null.</dd>
  *
@@ -135,6 +164,12 @@ public class MPConfig {
      */
     public static final int UI_FEATURES_MIN_API = 16;
 
+    /**
+     * Values for com.mixpanel.android.MPConfig.QueueStore
+     */
+    public static final String QUEUE_STORE_DATABASE = "database";
+    public static final String QUEUE_STORE_JOURNAL = "journal";
+
     // Name for persistent storage of app referral SharedPreferences
     /* package */ static final String REFERRER_PREFS_NAME = "com.mixpanel.android.mpmetrics.ReferralInfo";
 
@@ -180,6 +215,7 @@ public class MPConfig {
      */
     public synchronized void setSSLSocketFactory(SSLSocketFactory factory) {
         mSSLSocketFactory = factory;
+        mSSLContext = null; // Only the factory knows your settings now
     }
 
     /**
@@ -212,29 +248,52 @@ public class MPConfig {
         // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
         // thing to do, and some other third party libraries change the
         SSLSocketFactory foundSSLFactory;
+        SSLContext foundSSLContext;
         try {
-            final SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, null, null);
-            foundSSLFactory = sslContext.getSocketFactory();
+            foundSSLContext = SSLContext.getInstance("TLS");
+            foundSSLContext.init(null, null, null);
+            foundSSLFactory = foundSSLContext.getSocketFactory();
         } catch (final GeneralSecurityException e) {
             MPLog.i("MixpanelAPI.Conf", "System has no SSL support. Built-in events editor will not be available", e);
+            foundSSLContext = null;
             foundSSLFactory = null;
         }
         mSSLSocketFactory = foundSSLFactory;
+        mSSLContext = foundSSLContext;
 
         DEBUG = metaData.getBoolean("com.mixpanel.android.MPConfig.EnableDebugLogging", false);
         if (DEBUG) {
             MPLog.setLevel(MPLog.VERBOSE);
         }
 
+        mEnableTracing = metaData.getBoolean("com.mixpanel.android.MPConfig.EnableTracing", false);
+        if (mEnableTracing) {
+            MPTrace.setEnabled(true);
+        }
+
         if (metaData.containsKey("com.mixpanel.android.MPConfig.DebugFlushInterval")) {
             MPLog.w(LOGTAG, "We do not support com.mixpanel.android.MPConfig.DebugFlushInterval anymore. There will only be one flush interval. Please, update your AndroidManifest.xml.");
         }
 
         mBulkUploadLimit = metaData.getInt("com.mixpanel.android.MPConfig.BulkUploadLimit", 40); // 40 records default
         mFlushInterval = metaData.getInt("com.mixpanel.android.MPConfig.FlushInterval", 60 * 1000); // one minute default
+        mEventBufferCapacity = metaData.getInt("com.mixpanel.android.MPConfig.EventBufferCapacity", 256);
+        mEventBufferWindow = metaData.getInt("com.mixpanel.android.MPConfig.EventBufferWindow", 100);
         mFlushOnBackground = metaData.getBoolean("com.mixpanel.android.MPConfig.FlushOnBackground", true);
+
+        final String queueStore = metaData.getString("com.mixpanel.android.MPConfig.QueueStore");
+        if (null == queueStore || QUEUE_STORE_DATABASE.equals(queueStore)) {
+            mQueueStore = QUEUE_STORE_DATABASE;
+        } else if (QUEUE_STORE_JOURNAL.equals(queueStore)) {
+            mQueueStore = QUEUE_STORE_JOURNAL;
+        } else {
+            MPLog.w(LOGTAG, "Unknown com.mixpanel.android.MPConfig.QueueStore \"{}\", using \"{}\"", queueStore, QUEUE_STORE_DATABASE);
+            mQueueStore = QUEUE_STORE_DATABASE;
+        }
+
         mMinimumDatabaseLimit = metaData.getInt("com.mixpanel.android.MPConfig.MinimumDatabaseLimit", 20 * 1024 * 1024); // 20 Mb
+        mMaximumDatabaseSize = metaData.getInt("com.mixpanel.android.MPConfig.MaximumDatabaseSize", 0); // no limit
+        mMaximumQueuedRecords = metaData.getInt("com.mixpanel.android.MPConfig.MaximumQueuedRecords", 0); // no limit
         mResourcePackageName = metaData.getString("com.mixpanel.android.MPConfig.ResourcePackageName"); // default is null
         mDisableGestureBindingUI = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableGestureBindingUI", false);
         mDisableEmulatorBindingUI = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableEmulatorBindingUI", false);
@@ -243,7 +302,9 @@ public class MPConfig {
         mDisableDecideChecker = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableDecideChecker", false);
         mDisableExceptionHandler = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableExceptionHandler", false);
         mImageCacheMaxMemoryFactor = metaData.getInt("com.mixpanel.android.MPConfig.ImageCacheMaxMemoryFactor", 10);
+        mImageCacheMaxDiskSize = metaData.getInt("com.mixpanel.android.MPConfig.ImageCacheMaxDiskSize", 20 * 1024 * 1024); // 20 Mb
         mIgnoreInvisibleViewsEditor = metaData.getBoolean("com.mixpanel.android.MPConfig.IgnoreInvisibleViewsVisualEditor", false);
+        mEditorUsesSelector = metaData.getBoolean("com.mixpanel.android.MPConfig.EditorUsesSelector", true);
         mAutoShowMixpanelUpdates = metaData.getBoolean("com.mixpanel.android.MPConfig.AutoShowMixpanelUpdates", true);
         mNotificationDefaults = metaData.getInt("com.mixpanel.android.MPConfig.NotificationDefaults", 0);
         mMinSessionDuration = metaData.getInt("com.mixpanel.android.MPConfig.MinimumSessionDuration", 10 * 1000); // 10 seconds
@@ -342,6 +403,21 @@ public class MPConfig {
         return mFlushInterval;
     }
 
+    // Events held in memory between track() and the database. 0 means events aren't buffered.
+    public int getEventBufferCapacity() {
+        return mEventBufferCapacity;
+    }
+
+    // Milliseconds a buffered event waits before the worker is asked to write it to the database
+    public int getEventBufferWindow() {
+        return mEventBufferWindow;
+    }
+
+    // Where queued records are kept, QUEUE_STORE_DATABASE or QUEUE_STORE_JOURNAL
+    public String getQueueStore() {
+        return mQueueStore;
+    }
+
     // Whether the SDK should flush() queues when the app goes into the background or not.
     public boolean getFlushOnBackground() {
         return mFlushOnBackground;
@@ -354,6 +430,16 @@ public class MPConfig {
 
     public int getMinimumDatabaseLimit() { return mMinimumDatabaseLimit; }
 
+    // Evict records when the queue holds more than this many bytes. 0 means there's no limit.
+    public int getMaximumDatabaseSize() {
+        return mMaximumDatabaseSize;
+    }
+
+    // Evict records when a project has more than this many in a queue. 0 means there's no limit.
+    public int getMaximumQueuedRecords() {
+        return mMaximumQueuedRecords;
+    }
+
     public boolean getDisableGestureBindingUI() {
         return mDisableGestureBindingUI;
     }
@@ -464,6 +550,12 @@ public class MPConfig {
         return mIgnoreInvisibleViewsEditor;
     }
 
+    // When true (the default) the editor connection runs from a single selector thread,
+    // rather than a reading and a writing thread on a blocking socket.
+    public boolean getEditorUsesSelector() {
+        return mEditorUsesSelector;
+    }
+
     public int getNotificationDefaults() {
         return mNotificationDefaults;
     }
@@ -507,6 +599,15 @@ public class MPConfig {
         MPLog.setLevel(DEBUG ? MPLog.VERBOSE : MPLog.NONE);
     }
 
+    public boolean getEnableTracing() {
+        return mEnableTracing;
+    }
+
+    public void setEnableTracing(boolean enableTracing) {
+        mEnableTracing = enableTracing;
+        MPTrace.setEnabled(enableTracing);
+    }
+
     // Pre-configured package name for resources, if they differ from the application package name
     //
     // mContext.getPackageName() actually returns the "application id", which
@@ -528,6 +629,12 @@ public class MPConfig {
         return mSSLSocketFactory;
     }
 
+    // The SSLContext behind the default SSLSocketFactory, for connections that need an SSLEngine.
+    // Null if SSL isn't available, or if you've replaced the factory with setSSLSocketFactory.
+    public synchronized SSLContext getSSLContext() {
+        return mSSLContext;
+    }
+
     // This method is thread safe, and assumes that OfflineMode is also thread safe
     public synchronized OfflineMode getOfflineMode() {
         return mOfflineMode;
@@ -538,6 +645,11 @@ public class MPConfig {
         return mImageCacheMaxMemoryFactor;
     }
 
+    // ImageStore will delete its least recently used files when they take up more than this many bytes
+    public int getImageCacheMaxDiskSize() {
+        return mImageCacheMaxDiskSize;
+    }
+
     ///////////////////////////////////////////////
 
     // Package access for testing only- do not call directly in library code
@@ -561,21 +673,29 @@ public class MPConfig {
                 "    AutoShowMixpanelUpdates " + getAutoShowMixpanelUpdates() + "\n" +
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
+                "    EventBufferCapacity " + getEventBufferCapacity() + "\n" +
+                "    EventBufferWindow " + getEventBufferWindow() + "\n" +
+                "    QueueStore " + getQueueStore() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
                 "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
+                "    MaximumDatabaseSize " + getMaximumDatabaseSize() + "\n" +
+                "    MaximumQueuedRecords " + getMaximumQueuedRecords() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    DisableViewCrawler " + getDisableViewCrawler() + "\n" +
                 "    DisableGestureBindingUI " + getDisableGestureBindingUI() + "\n" +
                 "    DisableEmulatorBindingUI " + getDisableEmulatorBindingUI() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
+                "    EnableTracing " + getEnableTracing() + "\n" +
                 "    TestMode " + getTestMode() + "\n" +
                 "    EventsEndpoint " + getEventsEndpoint("") + "\n" +
                 "    PeopleEndpoint " + getPeopleEndpoint() + "\n" +
                 "    DecideEndpoint " + getDecideEndpoint() + "\n" +
                 "    EditorUrl " + getEditorUrl() + "\n" +
                 "    ImageCacheMaxMemoryFactor " + getImageCacheMaxMemoryFactor() + "\n" +
+                "    ImageCacheMaxDiskSize " + getImageCacheMaxDiskSize() + "\n" +
                 "    DisableDecideChecker " + getDisableDecideChecker() + "\n" +
                 "    IgnoreInvisibleViewsEditor " + getIgnoreInvisibleViewsEditor() + "\n" +
+                "    EditorUsesSelector " + getEditorUsesSelector() + "\n" +
                 "    NotificationDefaults " + getNotificationDefaults() + "\n" +
                 "    MinimumSessionDuration: " + getMinimumSessionDuration() + "\n" +
                 "    SessionTimeoutDuration: " + getSessionTimeoutDuration() + "\n" +
@@ -589,9 +709,14 @@ public class MPConfig {
 
     private final int mBulkUploadLimit;
     private final int mFlushInterval;
+    private final int mEventBufferCapacity;
+    private final int mEventBufferWindow;
+    private final String mQueueStore;
     private final boolean mFlushOnBackground;
     private final long mDataExpiration;
     private final int mMinimumDatabaseLimit;
+    private final int mMaximumDatabaseSize;
+    private final int mMaximumQueuedRecords;
     private final boolean mTestMode;
     private final boolean mDisableGestureBindingUI;
     private final boolean mDisableEmulatorBindingUI;
@@ -608,7 +733,10 @@ public class MPConfig {
     private final String mResourcePackageName;
     private final boolean mDisableDecideChecker;
     private final int mImageCacheMaxMemoryFactor;
+    private final int mImageCacheMaxDiskSize;
     private final boolean mIgnoreInvisibleViewsEditor;
+    private final boolean mEditorUsesSelector;
+    private boolean mEnableTracing;
     private final int mNotificationDefaults;
     private final int mMinSessionDuration;
     private final int mSessionTimeoutDuration;
@@ -619,6 +747,7 @@ public class MPConfig {
 
     // Mutable, with synchronized accessor and mutator
     private SSLSocketFactory mSSLSocketFactory;
+    private SSLContext mSSLContext;
     private OfflineMode mOfflineMode;
 
     private static MPConfig sInstance;
@@ -2,7 +2,11 @@ package com.mixpanel.android.mpmetrics;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.json.JSONArray;
@@ -13,20 +17,24 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
 
 /**
- * SQLite database adapter for MixpanelAPI.
+ * SQLite database adapter for MixpanelAPI, the default {@link MPQueueStore}.
  *
  * <p>Not thread-safe. Instances of this class should only be used
  * by a single thread.
  *
  */
-/* package */ class MPDbAdapter {
+/* package */ class MPDbAdapter implements MPQueueStore {
     private static final String LOGTAG = "MixpanelAPI.Database";
     private static final Map<Context, MPDbAdapter> sInstances = new HashMap<>();
 
@@ -52,6 +60,10 @@ import com.mixpanel.android.util.MPLog;
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
     public static final String KEY_SERVICE_NAME = "service_name";
+    public static final String KEY_MAX_ID = "max_id";
+
+    // Properties waiting to be added to a project's queued events as they're sent. Not a queue, so not in Table.
+    private static final String PENDING_PROPERTIES_TABLE = "pending_properties";
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
@@ -61,8 +73,10 @@ import com.mixpanel.android.util.MPLog;
     private static final int MIN_DB_VERSION = 4;
 
     // If you increment DATABASE_VERSION, don't forget to define migration
-    private static final int DATABASE_VERSION = 8; // current database version
-    private static final int MAX_DB_VERSION = 8; // Max database version onUpdate can migrate to.
+    private static final int DATABASE_VERSION = 9; // current database version
+    private static final int MAX_DB_VERSION = 9; // Max database version onUpdate can migrate to.
+
+    private static final int REWRITE_CHUNK_SIZE = 500; // Records moved in each transaction without JSON functions
 
     private static final String CREATE_EVENTS_TABLE =
        "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
@@ -92,6 +106,12 @@ import com.mixpanel.android.util.MPLog;
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
                     KEY_SERVICE_NAME + " STRING NOT NULL DEFAULT '', " +
                     KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+    private static final String CREATE_PENDING_PROPERTIES_TABLE =
+            "CREATE TABLE " + PENDING_PROPERTIES_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    KEY_DATA + " STRING NOT NULL, " +
+                    KEY_MAX_ID + " INTEGER NOT NULL, " +
+                    KEY_SERVICE_NAME + " STRING NOT NULL DEFAULT '', " +
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
@@ -131,6 +151,7 @@ import com.mixpanel.android.util.MPLog;
             db.execSQL(CREATE_PEOPLE_TABLE);
             db.execSQL(CREATE_GROUPS_TABLE);
             db.execSQL(CREATE_ANONYMOUS_PEOPLE_TABLE);
+            db.execSQL(CREATE_PENDING_PROPERTIES_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
             db.execSQL(PEOPLE_TIME_INDEX);
             db.execSQL(GROUPS_TIME_INDEX);
@@ -147,31 +168,41 @@ import com.mixpanel.android.util.MPLog;
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
                     migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 5) {
                     migrateTableFrom5To6(db);
                     migrateTableFrom6To7(db);
                     migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 6) {
                     migrateTableFrom6To7(db);
                     migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
                 }
 
                 if (oldVersion == 7) {
                     migrateTableFrom7To8(db);
+                    migrateTableFrom8To9(db);
+                }
+
+                if (oldVersion == 8) {
+                    migrateTableFrom8To9(db);
                 }
             } else {
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.GROUPS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.ANONYMOUS_PEOPLE.getName());
+                db.execSQL("DROP TABLE IF EXISTS " + PENDING_PROPERTIES_TABLE);
                 db.execSQL(CREATE_EVENTS_TABLE);
                 db.execSQL(CREATE_PEOPLE_TABLE);
                 db.execSQL(CREATE_GROUPS_TABLE);
                 db.execSQL(CREATE_ANONYMOUS_PEOPLE_TABLE);
+                db.execSQL(CREATE_PENDING_PROPERTIES_TABLE);
                 db.execSQL(EVENTS_TIME_INDEX);
                 db.execSQL(PEOPLE_TIME_INDEX);
                 db.execSQL(GROUPS_TIME_INDEX);
@@ -181,11 +212,45 @@ import com.mixpanel.android.util.MPLog;
 
         public boolean belowMemThreshold() {
             if (mDatabaseFile.exists()) {
-                return Math.max(mDatabaseFile.getUsableSpace(), mConfig.getMinimumDatabaseLimit()) >= mDatabaseFile.length();
+                final long limit = Math.max(mDatabaseFile.getUsableSpace(), mConfig.getMinimumDatabaseLimit());
+                // SQLite doesn't shrink the file when rows are deleted, but it does reuse the space,
+                // so a file over the limit may still have room once records have been evicted.
+                return limit >= mDatabaseFile.length() || limit >= getUsedBytes();
             }
             return true;
         }
 
+        // Whether this SQLite was built with the JSON1 functions, which Android doesn't promise on any API level
+        public boolean hasJsonFunctions(SQLiteDatabase db) {
+            if (null == mHasJsonFunctions) {
+                try {
+                    DatabaseUtils.stringForQuery(db, "SELECT json_set('{}', '$.a', 1)", null);
+                    mHasJsonFunctions = true;
+                } catch (final SQLiteException e) {
+                    MPLog.v(LOGTAG, "SQLite JSON functions are not available, records will be rewritten in Java");
+                    mHasJsonFunctions = false;
+                }
+            }
+            return mHasJsonFunctions;
+        }
+
+        public long getUsedBytes() {
+            if (!mDatabaseFile.exists()) {
+                return 0;
+            }
+            try {
+                final SQLiteDatabase db = getReadableDatabase();
+                final long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+                final long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                return (pages - freePages) * db.getPageSize();
+            } catch (final SQLiteException e) {
+                MPLog.e(LOGTAG, "Could not measure the Mixpanel database", e);
+                return mDatabaseFile.length();
+            } finally {
+                close();
+            }
+        }
+
         private void migrateTableFrom4To5(SQLiteDatabase db) {
             db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " + KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0");
             db.execSQL("ALTER TABLE " + Table.PEOPLE.getName() + " ADD COLUMN " + KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0");
@@ -285,9 +350,14 @@ import com.mixpanel.android.util.MPLog;
             db.execSQL("ALTER TABLE " + Table.ANONYMOUS_PEOPLE.getName() + " ADD COLUMN " + KEY_SERVICE_NAME + " STRING NOT NULL DEFAULT ''");
         }
 
+        private void migrateTableFrom8To9(SQLiteDatabase db) {
+            db.execSQL(CREATE_PENDING_PROPERTIES_TABLE);
+        }
+
         private final File mDatabaseFile;
         private final MPConfig mConfig;
         private final Context mContext;
+        private Boolean mHasJsonFunctions;
     }
 
     public MPDbAdapter(Context context) {
@@ -322,7 +392,24 @@ import com.mixpanel.android.util.MPLog;
      * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
+    @Override
     public int addJSON(JSONObject j, String token, String serviceName, Table table, boolean isAutomaticRecord) {
+        return addJSON(new JSONObject[] { j }, new boolean[] { isAutomaticRecord }, 1, token, serviceName, table);
+    }
+
+    /**
+     * Adds several JSON records for the same project to the table in a single transaction, so
+     * they cost one commit instead of one each.
+     * @param records the records to add, the first count of which are used
+     * @param isAutomaticRecords whether each record is an automatic event
+     * @param count the number of records to add
+     * @param token project token
+     * @param table the table to insert into, one of "events", "people", "groups" or "anonymous_people"
+     * @return the number of rows in the table for the project, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    @Override
+    public int addJSON(JSONObject[] records, boolean[] isAutomaticRecords, int count, String token, String serviceName, Table table) {
         // we are aware of the race condition here, but what can we do..?
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
@@ -332,23 +419,39 @@ import com.mixpanel.android.util.MPLog;
         final String tableName = table.getName();
 
         Cursor c = null;
-        int count = DB_UPDATE_ERROR;
+        SQLiteStatement insert = null;
+        int rows = DB_UPDATE_ERROR;
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_ADD);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
+            insert = db.compileStatement("INSERT INTO " + tableName + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", "
+                    + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ", " + KEY_SERVICE_NAME + ") VALUES (?, ?, ?, ?, ?)");
+            final long now = System.currentTimeMillis();
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            cv.put(KEY_TOKEN, token);
-            cv.put(KEY_SERVICE_NAME, serviceName);
-            db.insert(tableName, null, cv);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, records[i].toString());
+                    insert.bindLong(2, now);
+                    insert.bindLong(3, isAutomaticRecords[i] ? 1 : 0);
+                    bindStringOrNull(insert, 4, token);
+                    bindStringOrNull(insert, 5, serviceName);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
 
             c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "' "
                     + " AND service_name='" + serviceName + "'", null);
             c.moveToFirst();
-            count = c.getInt(0);
+            rows = c.getInt(0);
+        } catch (final SQLiteFullException e) {
+            // Nothing wrong with the database, so keep it, and let the caller evict records to make room
+            MPLog.e(LOGTAG, "The Mixpanel database is full, so data was discarded");
+            rows = DB_OUT_OF_MEMORY_ERROR;
         } catch (final SQLiteException e) {
             MPLog.e(LOGTAG, "Could not add Mixpanel data to table");
 
@@ -360,6 +463,10 @@ import com.mixpanel.android.util.MPLog;
                 c.close();
                 c = null;
             }
+            if (insert != null) {
+                insert.close();
+                insert = null;
+            }
             mDb.deleteDatabase();
         } catch (final OutOfMemoryError e) {
             MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data to table");
@@ -367,9 +474,13 @@ import com.mixpanel.android.util.MPLog;
             if (c != null) {
                 c.close();
             }
+            if (insert != null) {
+                insert.close();
+            }
             mDb.close();
+            MPTrace.endSection(traced);
         }
-        return count;
+        return rows;
     }
 
     /**
@@ -379,149 +490,265 @@ import com.mixpanel.android.util.MPLog;
      * @return the number of rows copied (anonymous updates), or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
-    /* package */ int pushAnonymousUpdatesToPeopleDb(String token, String serviceName, String distinctId) {
+    @Override
+    public int pushAnonymousUpdatesToPeopleDb(String token, String serviceName, String distinctId) {
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
         }
-        Cursor selectCursor = null;
         int count = DB_UPDATE_ERROR;
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_PUSH_ANONYMOUS);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.ANONYMOUS_PEOPLE.getName() + " WHERE "
-                    + KEY_TOKEN + " = '" + token + "' AND "
-                    + KEY_SERVICE_NAME + " = '" + serviceName + "'"
-            );
-
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
-            db.beginTransaction();
-            try {
-                while (selectCursor.moveToNext()) {
-                    try {
-                        ContentValues values = new ContentValues();
-                        values.put(KEY_CREATED_AT, selectCursor.getLong(selectCursor.getColumnIndex(KEY_CREATED_AT)));
-                        values.put(KEY_AUTOMATIC_DATA, selectCursor.getInt(selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA)));
-                        values.put(KEY_TOKEN, selectCursor.getString(selectCursor.getColumnIndex(KEY_TOKEN)));
-                        values.put(KEY_SERVICE_NAME, selectCursor.getString(selectCursor.getColumnIndex(KEY_SERVICE_NAME)));
-
-                        JSONObject updatedData = new JSONObject(selectCursor.getString(selectCursor.getColumnIndex(KEY_DATA)));
-                        updatedData.put("$distinct_id", distinctId);
-                        values.put(KEY_DATA, updatedData.toString());
-                        db.insert(Table.PEOPLE.getName(), null, values);
-                        int rowId = selectCursor.getInt(selectCursor.getColumnIndex("_id"));
-                        db.delete(Table.ANONYMOUS_PEOPLE.getName(), "_id = " + rowId, null);
-                        count++;
-                    } catch (final JSONException e) {
-                        // Ignore this object
-                    }
-                }
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            if (useJsonFunctions(db)) {
+                count = pushAnonymousUpdatesWithJson(db, token, serviceName, distinctId);
+            } else {
+                count = pushAnonymousUpdatesInChunks(db, token, serviceName, distinctId);
             }
+        } catch (final SQLiteFullException e) {
+            // The transaction was rolled back, so the updates are still waiting in the anonymous table
+            MPLog.e(LOGTAG, "The Mixpanel database is full, so anonymous updates could not be pushed");
+            count = DB_OUT_OF_MEMORY_ERROR;
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not push anonymous updates records from " + Table.ANONYMOUS_PEOPLE.getName() + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not push anonymous updates records from {}. Re-initializing database.", Table.ANONYMOUS_PEOPLE.getName(), e);
 
-            if (selectCursor != null) {
-                selectCursor.close();
-                selectCursor = null;
-            }
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
             mDb.deleteDatabase();
         } finally {
-            if (selectCursor != null) {
-                selectCursor.close();
-            }
             mDb.close();
+            MPTrace.endSection(traced);
         }
 
         return count;
     }
 
+    // Copies and deletes every update in two statements, letting SQLite add the distinct id
+    private int pushAnonymousUpdatesWithJson(SQLiteDatabase db, String token, String serviceName, String distinctId) {
+        final String anonymousTable = Table.ANONYMOUS_PEOPLE.getName();
+        SQLiteStatement insert = null;
+        int count;
+
+        db.beginTransaction();
+        try {
+            // Updates queued while we work, if there could be any, wait for the next push
+            final long lastId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(_id), 0) FROM " + anonymousTable
+                    + " WHERE " + projectSelection(token, serviceName), null);
+
+            insert = db.compileStatement("INSERT INTO " + Table.PEOPLE.getName() + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", "
+                    + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ", " + KEY_SERVICE_NAME + ")"
+                    + " SELECT json_set(" + KEY_DATA + ", '$.\"$distinct_id\"', ?), " + KEY_CREATED_AT + ", "
+                    + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ", " + KEY_SERVICE_NAME + " FROM " + anonymousTable
+                    + " WHERE " + KEY_TOKEN + " = ? AND " + KEY_SERVICE_NAME + " = ? AND _id <= ? AND json_valid(" + KEY_DATA + ")"
+                    + " ORDER BY _id");
+            bindStringOrNull(insert, 1, distinctId);
+            bindStringOrNull(insert, 2, token);
+            bindStringOrNull(insert, 3, serviceName);
+            insert.bindLong(4, lastId);
+            count = insert.executeUpdateDelete();
+
+            // Updates that aren't valid JSON could never be sent, so they go too
+            db.delete(anonymousTable, projectSelection(token, serviceName) + " AND _id <= " + lastId, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (null != insert) {
+                insert.close();
+            }
+        }
+        return count;
+    }
+
+    // Without JSON functions, a chunk of updates at a time is read, rewritten and moved in its own transaction
+    private int pushAnonymousUpdatesInChunks(SQLiteDatabase db, String token, String serviceName, String distinctId) {
+        final String anonymousTable = Table.ANONYMOUS_PEOPLE.getName();
+        SQLiteStatement insert = null;
+        int count = 0;
+
+        try {
+            insert = db.compileStatement("INSERT INTO " + Table.PEOPLE.getName() + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", "
+                    + KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ", " + KEY_SERVICE_NAME + ") VALUES (?, ?, ?, ?, ?)");
+
+            long lastId = 0;
+            boolean more = true;
+            while (more) {
+                db.beginTransaction();
+                Cursor selectCursor = null;
+                try {
+                    selectCursor = db.rawQuery("SELECT _id, " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA
+                            + " FROM " + anonymousTable + " WHERE " + projectSelection(token, serviceName) + " AND _id > " + lastId
+                            + " ORDER BY _id LIMIT " + REWRITE_CHUNK_SIZE, null);
+                    final int idIndex = selectCursor.getColumnIndex("_id");
+                    final int dataIndex = selectCursor.getColumnIndex(KEY_DATA);
+                    final int createdAtIndex = selectCursor.getColumnIndex(KEY_CREATED_AT);
+                    final int automaticIndex = selectCursor.getColumnIndex(KEY_AUTOMATIC_DATA);
+
+                    more = selectCursor.getCount() == REWRITE_CHUNK_SIZE;
+                    while (selectCursor.moveToNext()) {
+                        lastId = selectCursor.getLong(idIndex);
+                        try {
+                            final JSONObject updatedData = new JSONObject(selectCursor.getString(dataIndex));
+                            updatedData.put("$distinct_id", distinctId);
+                            insert.bindString(1, updatedData.toString());
+                            insert.bindLong(2, selectCursor.getLong(createdAtIndex));
+                            insert.bindLong(3, selectCursor.getInt(automaticIndex));
+                            bindStringOrNull(insert, 4, token);
+                            bindStringOrNull(insert, 5, serviceName);
+                            insert.executeInsert();
+                            count++;
+                        } catch (final JSONException e) {
+                            // Ignore this object
+                        }
+                    }
+
+                    db.delete(anonymousTable, projectSelection(token, serviceName) + " AND _id <= " + lastId, null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    if (null != selectCursor) {
+                        selectCursor.close();
+                    }
+                    db.endTransaction();
+                }
+            }
+        } finally {
+            if (null != insert) {
+                insert.close();
+            }
+        }
+        return count;
+    }
+
     /**
-     * Copies anonymous people updates to people db after a user has been identified
-     * @param properties Map of properties that will be added to existing events.
+     * Adds properties to every event queued so far for a project, without rewriting them. The properties
+     * are recorded with the id of the newest event they cover, and added to each event as it's read to be sent.
+     * @param properties the properties to add, overriding any already in the events
      * @param token project token
-     * @return the number of rows updated , or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * @return the number of queued events the properties will be added to, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
-    /* package */ int rewriteEventDataWithProperties(Map<String, String> properties, String token, String serviceName) {
+    @Override
+    public int addPendingProperties(Map<String, String> properties, String token, String serviceName) {
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
             return DB_OUT_OF_MEMORY_ERROR;
         }
-        Cursor selectCursor = null;
-        int count = 0;
+        int count = DB_UPDATE_ERROR;
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_ADD_PROPERTIES);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer allAnonymousQuery = new StringBuffer("SELECT * FROM " + Table.EVENTS.getName() + " WHERE "
-                    + KEY_TOKEN + " = '" + token + "' AND "
-                    + KEY_SERVICE_NAME + " = '" + serviceName + "'"
-            );
-
-            selectCursor = db.rawQuery(allAnonymousQuery.toString(), null);
-            db.beginTransaction();
-            try {
-                while (selectCursor.moveToNext()) {
-                    try {
-                        ContentValues values = new ContentValues();
-                        JSONObject updatedData = new JSONObject(selectCursor.getString(selectCursor.getColumnIndex(KEY_DATA)));
-                        JSONObject existingProps = updatedData.getJSONObject("prop");
-                        for (final Map.Entry<String, String> entry : properties.entrySet()) {
-                            final String key = entry.getKey();
-                            final String value = entry.getValue();
-                            existingProps.put(key, value);
-                        }
-                        updatedData.put("prop", existingProps);
-                        values.put(KEY_DATA, updatedData.toString());
-
-                        int rowId = selectCursor.getInt(selectCursor.getColumnIndex("_id"));
-                        db.update(Table.EVENTS.getName(), values, "_id = " + rowId, null);
-                        count++;
-                    } catch (final JSONException e) {
-                        // Ignore this object
-                    }
-                }
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            final String selection = projectSelection(token, serviceName);
+            count = (int) DatabaseUtils.queryNumEntries(db, Table.EVENTS.getName(), selection);
+            if (count > 0) {
+                final ContentValues values = new ContentValues();
+                values.put(KEY_DATA, new JSONObject(properties).toString());
+                values.put(KEY_MAX_ID, DatabaseUtils.longForQuery(db, "SELECT MAX(_id) FROM " + Table.EVENTS.getName() + " WHERE " + selection, null));
+                values.put(KEY_TOKEN, token);
+                values.put(KEY_SERVICE_NAME, serviceName);
+                db.insert(PENDING_PROPERTIES_TABLE, null, values);
             }
+        } catch (final SQLiteFullException e) {
+            MPLog.e(LOGTAG, "The Mixpanel database is full, so new properties for queued events were discarded");
+            count = DB_OUT_OF_MEMORY_ERROR;
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not re-write events history. Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not add properties to queued events. Re-initializing database.", e);
 
-            if (selectCursor != null) {
-                selectCursor.close();
-                selectCursor = null;
-            }
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
             mDb.deleteDatabase();
         } finally {
-            if (selectCursor != null) {
-                selectCursor.close();
-            }
             mDb.close();
+            MPTrace.endSection(traced);
         }
 
         return count;
     }
 
+    // Pending properties are only needed while an event they cover is still queued
+    private static void deleteSpentPendingProperties(SQLiteDatabase db, String token, String serviceName) {
+        final String selection = projectSelection(token, serviceName);
+        db.delete(PENDING_PROPERTIES_TABLE, selection + " AND " + KEY_MAX_ID + " < IFNULL((SELECT MIN(_id) FROM "
+                + Table.EVENTS.getName() + " WHERE " + selection + "), " + KEY_MAX_ID + " + 1)", null);
+    }
+
+    // The pending properties matching selection, oldest first, or null if there are none
+    private static List<PendingProperties> readPendingProperties(SQLiteDatabase db, String selection) {
+        List<PendingProperties> ret = null;
+        final Cursor c = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_SERVICE_NAME + ", " + KEY_MAX_ID + ", " + KEY_DATA
+                + " FROM " + PENDING_PROPERTIES_TABLE + (null == selection ? "" : " WHERE " + selection) + " ORDER BY _id ASC", null);
+        try {
+            while (c.moveToNext()) {
+                try {
+                    final PendingProperties pending = new PendingProperties(c.getString(0), c.getString(1), c.getLong(2), new JSONObject(c.getString(3)));
+                    if (null == ret) {
+                        ret = new ArrayList<PendingProperties>();
+                    }
+                    ret.add(pending);
+                } catch (final JSONException e) {
+                    // Ignore this object
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return ret;
+    }
+
+    // Adds the pending properties that cover an event to it, later properties overriding earlier ones
+    private static void applyPendingProperties(JSONObject event, long id, String token, String serviceName, List<PendingProperties> pending)
+            throws JSONException {
+        for (final PendingProperties properties : pending) {
+            if (id <= properties.maxId && properties.token.equals(token) && properties.serviceName.equals(serviceName)) {
+                putProperties(event, properties.properties);
+            }
+        }
+    }
+
+    /**
+     * Adds properties to an event's "prop" object. An event without properties is left alone.
+     */
+    /* package */ static void putProperties(JSONObject event, JSONObject properties) throws JSONException {
+        final JSONObject existingProps = event.optJSONObject("prop");
+        if (null == existingProps) {
+            return;
+        }
+        final Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            existingProps.put(key, properties.get(key));
+        }
+    }
+
+    private static class PendingProperties {
+        public PendingProperties(String token, String serviceName, long maxId, JSONObject properties) {
+            this.token = token;
+            this.serviceName = serviceName;
+            this.maxId = maxId;
+            this.properties = properties;
+        }
+
+        public final String token;
+        public final String serviceName;
+        public final long maxId;
+        public final JSONObject properties;
+    }
+
     /**
      * Removes events with an _id <= last_id from table
      * @param last_id the last id to delete
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
      * @param includeAutomaticEvents whether or not automatic events should be included in the cleanup
      */
+    @Override
     public void cleanupEvents(String last_id, Table table, String token, String serviceName, boolean includeAutomaticEvents) {
         final String tableName = table.getName();
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND "
@@ -532,8 +759,11 @@ import com.mixpanel.android.util.MPLog;
                 deleteQuery.append(" AND " + KEY_AUTOMATIC_DATA + "=0");
             }
             db.delete(tableName, deleteQuery.toString(), null);
+            if (table == Table.EVENTS) {
+                deleteSpentPendingProperties(db, token, serviceName);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from {}. Re-initializing database.", tableName, e);
 
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
@@ -541,10 +771,11 @@ import com.mixpanel.android.util.MPLog;
             // than to leave it junked up (and maybe filling up the disk.)
             mDb.deleteDatabase();
         } catch (final Exception e) {
-            MPLog.e(LOGTAG, "Unknown exception. Could not clean sent Mixpanel records from " + tableName + ".Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Unknown exception. Could not clean sent Mixpanel records from {}.Re-initializing database.", tableName, e);
             mDb.deleteDatabase();
         } finally {
             mDb.close();
+            MPTrace.endSection(traced);
         }
     }
 
@@ -552,15 +783,88 @@ import com.mixpanel.android.util.MPLog;
      * Removes events before time.
      * @param time the unix epoch in milliseconds to remove events before
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
+     * @return the number of rows removed
      */
-    public void cleanupEvents(long time, Table table) {
+    @Override
+    public int cleanupEvents(long time, Table table) {
         final String tableName = table.getName();
+        int removed = 0;
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            removed = db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from {}. Re-initializing database.", tableName, e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDb.deleteDatabase();
+        } finally {
+            mDb.close();
+            MPTrace.endSection(traced);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes at most limit of the oldest records created before time.
+     * @param time the unix epoch in milliseconds to remove events before
+     * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
+     * @param limit the most records to remove
+     * @return the number of rows removed
+     */
+    @Override
+    public int cleanupEvents(long time, Table table, int limit) {
+        final String tableName = table.getName();
+        int removed = 0;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            removed = db.delete(tableName, "_id IN (SELECT _id FROM " + tableName + " WHERE " + KEY_CREATED_AT + " <= " + time
+                    + " ORDER BY _id ASC LIMIT " + limit + ")", null);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from {}. Re-initializing database.", tableName, e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDb.deleteDatabase();
+        } finally {
+            mDb.close();
+            MPTrace.endSection(traced);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes records to keep the queue within its quota, automatic events first and then the oldest records.
+     * @param table the table to remove records from, one of "events", "people", "groups" or "anonymous_people"
+     * @param token token of the project to remove records from, or null for every project
+     * @param count the most records to remove
+     * @return the number of rows removed
+     */
+    @Override
+    public int evictRecords(Table table, String token, String serviceName, int count) {
+        final String tableName = table.getName();
+        int removed = 0;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            StringBuffer evictQuery = new StringBuffer("SELECT _id FROM " + tableName);
+            if (null != token) {
+                evictQuery.append(" WHERE " + KEY_TOKEN + " = '" + token + "' AND "
+                        + KEY_SERVICE_NAME + " = '" + serviceName + "'");
+            }
+            evictQuery.append(" ORDER BY " + KEY_AUTOMATIC_DATA + " DESC, _id ASC LIMIT " + count);
+            removed = db.delete(tableName, "_id IN (" + evictQuery + ")", null);
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not evict Mixpanel records from {}. Re-initializing database.", tableName, e);
 
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
@@ -569,7 +873,32 @@ import com.mixpanel.android.util.MPLog;
             mDb.deleteDatabase();
         } finally {
             mDb.close();
+            MPTrace.endSection(traced);
         }
+        return removed;
+    }
+
+    /**
+     * @param table the table to count records in, one of "events", "people", "groups" or "anonymous_people"
+     * @param token token of the project to count records for, or null for every project
+     * @return the number of rows
+     */
+    @Override
+    public int countRecords(Table table, String token, String serviceName) {
+        final String tableName = table.getName();
+        int count = 0;
+
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            final String selection = null == token ? null :
+                    KEY_TOKEN + " = '" + token + "' AND " + KEY_SERVICE_NAME + " = '" + serviceName + "'";
+            count = (int) DatabaseUtils.queryNumEntries(db, tableName, selection);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count Mixpanel records in {}", tableName, e);
+        } finally {
+            mDb.close();
+        }
+        return count;
     }
 
     /**
@@ -577,15 +906,20 @@ import com.mixpanel.android.util.MPLog;
      * @param table the table to remove events from, one of "events", "people", "groups" or "anonymous_people"
      * @param token token of the project to remove events from
      */
+    @Override
     public void cleanupAllEvents(Table table, String token, String serviceName) {
         final String tableName = table.getName();
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             db.delete(tableName, KEY_TOKEN + " = '" + token + "' AND "
                     + KEY_SERVICE_NAME + " = '" + serviceName + "'", null);
+            if (table == Table.EVENTS) {
+                deleteSpentPendingProperties(db, token, serviceName);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from {}. Re-initializing database.", tableName, e);
 
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
@@ -594,6 +928,7 @@ import com.mixpanel.android.util.MPLog;
             mDb.deleteDatabase();
         } finally {
             mDb.close();
+            MPTrace.endSection(traced);
         }
     }
 
@@ -601,6 +936,7 @@ import com.mixpanel.android.util.MPLog;
      * Removes automatic events.
      * @param token token of the project you want to remove automatic events from
      */
+    @Override
     public synchronized void cleanupAutomaticEvents(String token, String serviceName) {
         cleanupAutomaticEvents(Table.EVENTS, token, serviceName);
         cleanupAutomaticEvents(Table.PEOPLE, token, serviceName);
@@ -610,13 +946,14 @@ import com.mixpanel.android.util.MPLog;
     private void cleanupAutomaticEvents(Table table, String token, String serviceName) {
         final String tableName = table.getName();
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND "
                     + KEY_TOKEN + " = '" + token + "' AND "
                     + KEY_SERVICE_NAME + " = '" + serviceName + "'", null);
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from {}. Re-initializing database.", tableName, e);
 
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
@@ -625,9 +962,11 @@ import com.mixpanel.android.util.MPLog;
             mDb.deleteDatabase();
         } finally {
             mDb.close();
+            MPTrace.endSection(traced);
         }
     }
 
+    @Override
     public void deleteDB() {
         mDb.deleteDatabase();
     }
@@ -643,6 +982,7 @@ import com.mixpanel.android.util.MPLog;
      * representing the events (or null if none could be successfully retrieved) and the total
      * current number of events in the queue.
      */
+    @Override
     public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
         Cursor c = null;
         Cursor queueCountCursor = null;
@@ -652,6 +992,7 @@ import com.mixpanel.android.util.MPLog;
         final String tableName = table.getName();
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_READ_BATCH);
         try {
             StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
             StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
@@ -667,6 +1008,8 @@ import com.mixpanel.android.util.MPLog;
             queueCountCursor.moveToFirst();
             queueCount = String.valueOf(queueCountCursor.getInt(0));
 
+            final List<PendingProperties> pending = table == Table.EVENTS ?
+                    readPendingProperties(db, KEY_TOKEN + " = '" + token + "'") : null;
             final JSONArray arr = new JSONArray();
 
             while (c.moveToNext()) {
@@ -675,6 +1018,9 @@ import com.mixpanel.android.util.MPLog;
                 }
                 try {
                     final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
+                    if (null != pending) {
+                        applyPendingProperties(j, c.getLong(c.getColumnIndex("_id")), token, c.getString(c.getColumnIndex(KEY_SERVICE_NAME)), pending);
+                    }
                     arr.put(j);
                 } catch (final JSONException e) {
                     // Ignore this object
@@ -685,7 +1031,7 @@ import com.mixpanel.android.util.MPLog;
                 data = arr.toString();
             }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
+            MPLog.e(LOGTAG, "Could not pull records for Mixpanel out of database {}. Waiting to send.", tableName, e);
 
             // We'll dump the DB on write failures, but with reads we can
             // let things ride in hopes the issue clears up.
@@ -701,6 +1047,7 @@ import com.mixpanel.android.util.MPLog;
             if (queueCountCursor != null) {
                 queueCountCursor.close();
             }
+            MPTrace.endSection(traced);
         }
 
         if (last_id != null && data != null) {
@@ -710,12 +1057,103 @@ import com.mixpanel.android.util.MPLog;
         return null;
     }
 
+    // The WHERE clause for one project's records, written the same way as the rest of this class's queries
+    private static String projectSelection(String token, String serviceName) {
+        return KEY_TOKEN + " = '" + token + "' AND " + KEY_SERVICE_NAME + " = '" + serviceName + "'";
+    }
+
+    // ContentValues takes nulls, but SQLiteStatement.bindString doesn't
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (null == value) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * Hands every queued record, in the order it was added within each table, to visitor. Used to move
+     * the queue into another {@link MPQueueStore}.
+     * @param afterIds for each table, by ordinal, the id of the last record already handed over by an earlier,
+     * interrupted visit. Only records with a greater id are visited.
+     * @return false if the records couldn't all be read
+     * @throws IOException if visitor does
+     */
+    /* package */ boolean visitAllRecords(long[] afterIds, RecordVisitor visitor) throws IOException {
+        if (!mDb.mDatabaseFile.exists()) {
+            return true;
+        }
+
+        boolean success = true;
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            // Ids don't carry over, so events get their pending properties on the way out
+            final List<PendingProperties> pending = readPendingProperties(db, null);
+            for (final Table table : Table.values()) {
+                c = db.rawQuery("SELECT * FROM " + table.getName() + " WHERE _id > " + afterIds[table.ordinal()] + " ORDER BY _id ASC", null);
+                final int idIndex = c.getColumnIndex("_id");
+                final int dataIndex = c.getColumnIndex(KEY_DATA);
+                final int createdAtIndex = c.getColumnIndex(KEY_CREATED_AT);
+                final int automaticIndex = c.getColumnIndex(KEY_AUTOMATIC_DATA);
+                final int tokenIndex = c.getColumnIndex(KEY_TOKEN);
+                final int serviceNameIndex = c.getColumnIndex(KEY_SERVICE_NAME);
+                while (c.moveToNext()) {
+                    final long id = c.getLong(idIndex);
+                    final String token = c.getString(tokenIndex);
+                    final String serviceName = c.getString(serviceNameIndex);
+                    String data = c.getString(dataIndex);
+                    if (table == Table.EVENTS && null != pending) {
+                        try {
+                            final JSONObject event = new JSONObject(data);
+                            applyPendingProperties(event, id, token, serviceName, pending);
+                            data = event.toString();
+                        } catch (final JSONException e) {
+                            // Leave it as it was
+                        }
+                    }
+                    visitor.visit(table, id, data, c.getLong(createdAtIndex), c.getInt(automaticIndex) != 0, token, serviceName);
+                }
+                c.close();
+                c = null;
+            }
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not read Mixpanel records to move them out of the database", e);
+            success = false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            mDb.close();
+        }
+        return success;
+    }
+
+    /* package */ interface RecordVisitor {
+        void visit(Table table, long id, String data, long createdAt, boolean isAutomaticRecord, String token, String serviceName) throws IOException;
+    }
+
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
 
+    @Override
+    public long getStorageSize() {
+        return mDb.mDatabaseFile.length();
+    }
+
+    @Override
+    public long getQueuedBytes() {
+        return mDb.getUsedBytes();
+    }
+
     /* For testing use only, do not call from in production code */
     protected boolean belowMemThreshold() {
         return mDb.belowMemThreshold();
     }
+
+    /* For testing use only, do not call from in production code */
+    protected boolean useJsonFunctions(SQLiteDatabase db) {
+        return mDb.hasJsonFunctions(db);
+    }
 }
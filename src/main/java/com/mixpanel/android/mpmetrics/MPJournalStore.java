@@ -0,0 +1,1306 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+
+import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link MPQueueStore} that appends records to a journal of memory-mapped segment files, instead
+ * of inserting, selecting and deleting rows in SQLite.
+ *
+ * <p>Every change is a frame appended to the newest segment: the length of the frame, a CRC32 of its
+ * contents, and one or more operations, each of which either adds a record or removes the records
+ * that match a filter. A frame is all or nothing, so the operations in it behave like a transaction,
+ * and a frame that was only partly written when the app or the device died fails its CRC and is ignored.
+ *
+ * <p>Clearing out the records that were just sent for a project appends one small frame, which moves
+ * that project's read cursor past them. Nothing is deleted from a segment. Once every record in the
+ * oldest segment has been removed, the whole file is deleted, and when a segment is filled, the few
+ * records still live in a mostly empty oldest segment are copied forward so that it can go too.
+ *
+ * <p>Which records are live, and where each one's data is, is kept in memory and rebuilt by reading the
+ * journal when the store is first used. The data itself stays in the mapped files until it's sent.
+ *
+ * <p>Properties for events that are already queued are appended as one more operation, with the id of the
+ * newest event they cover, and added to those events as they're read to be sent.
+ *
+ * <p>Methods are synchronized, because cleanupAutomaticEvents may be called from the decide thread.
+ */
+/* package */ class MPJournalStore implements MPQueueStore {
+    private static final String LOGTAG = "MixpanelAPI.Journal";
+    private static final Map<Context, MPJournalStore> sInstances = new HashMap<>();
+
+    private static final String JOURNAL_NAME = "mixpanel_journal";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    // Segment header: magic, format version, and the next record id when the segment was started
+    private static final int SEGMENT_MAGIC = 0x4d504a4c; // "MPJL"
+    private static final int SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int PREALLOCATION_CHUNK_SIZE = 64 * 1024;
+
+    // Frame header: length of the operations that follow, and their CRC32. A zero length marks the end of a segment.
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final int END_MARKER_SIZE = 4;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_ADD_PROPERTIES = 3;
+    private static final byte OP_MIGRATED = 4;
+
+    private static final int REMOVE_FOR_PROJECT = 1;
+    private static final int REMOVE_AUTOMATIC_ONLY = 2;
+    private static final int REMOVE_MANUAL_ONLY = 4;
+
+    // Same as the LIMIT used by MPDbAdapter.generateDataString
+    private static final int MAX_RECORDS_PER_READ = 50;
+
+    // Records copied from the database per frame when migrating
+    private static final int MIGRATION_FRAME_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public MPJournalStore(Context context) {
+        this(context, JOURNAL_NAME);
+    }
+
+    public MPJournalStore(Context context, String name) {
+        mDirectory = context.getDatabasePath(name);
+        mMinimumDatabaseLimit = MPConfig.getInstance(context).getMinimumDatabaseLimit();
+        mRecords = new EnumMap<MPDbAdapter.Table, TreeMap<Long, Record>>(MPDbAdapter.Table.class);
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            mRecords.put(table, new TreeMap<Long, Record>());
+        }
+        mProjects = new HashMap<String, Map<String, Project>>();
+        mSegments = new ArrayList<Segment>();
+        mPendingOps = new ArrayList<Object>();
+        mCrc = new CRC32();
+        mMigrated = new Migrated[MPDbAdapter.Table.values().length];
+        mFrame = ByteBuffer.allocate(4096);
+        mNextId = 1;
+    }
+
+    /**
+     * The shared journal for the app. The first time it's used, anything queued in the app's
+     * Mixpanel database is moved into it, and the database is deleted.
+     */
+    public static MPJournalStore getInstance(Context context) {
+        synchronized (sInstances) {
+            final Context appContext = context.getApplicationContext();
+            MPJournalStore ret;
+            if (! sInstances.containsKey(appContext)) {
+                ret = new MPJournalStore(appContext);
+                ret.mMigrationSource = MPDbAdapter.getInstance(appContext);
+                sInstances.put(appContext, ret);
+            } else {
+                ret = sInstances.get(appContext);
+            }
+            return ret;
+        }
+    }
+
+    public static File getJournalDirectory(Context context) {
+        return context.getDatabasePath(JOURNAL_NAME);
+    }
+
+    @Override
+    public synchronized int addJSON(JSONObject j, String token, String serviceName, MPDbAdapter.Table table, boolean isAutomaticRecord) {
+        return addJSON(new JSONObject[] { j }, new boolean[] { isAutomaticRecord }, 1, token, serviceName, table);
+    }
+
+    @Override
+    public synchronized int addJSON(JSONObject[] records, boolean[] isAutomaticRecords, int count, String token, String serviceName, MPDbAdapter.Table table) {
+        if (!open()) {
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int queued = MPDbAdapter.DB_UPDATE_ERROR;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_ADD);
+        try {
+            final Project project = getProject(token, serviceName);
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                appendAdd(mNextId++, now, table, isAutomaticRecords[i], project, records[i].toString().getBytes(UTF_8));
+            }
+            commitFrame();
+            queued = project.queued[table.ordinal()];
+        } catch (final IOException e) {
+            // Nothing was written, so what was already queued is still there
+            MPLog.e(LOGTAG, "Could not add Mixpanel data to the journal", e);
+        } catch (final OutOfMemoryError e) {
+            MPLog.e(LOGTAG, "Out of memory when adding Mixpanel data to the journal");
+            discardFrame();
+        } finally {
+            MPTrace.endSection(traced);
+        }
+        return queued;
+    }
+
+    @Override
+    public synchronized int pushAnonymousUpdatesToPeopleDb(String token, String serviceName, String distinctId) {
+        if (!open()) {
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int count = 0;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_PUSH_ANONYMOUS);
+        try {
+            final Project project = getProject(token, serviceName);
+            for (final Record record : mRecords.get(MPDbAdapter.Table.ANONYMOUS_PEOPLE).values()) {
+                if (record.project != project) {
+                    continue;
+                }
+                try {
+                    final JSONObject updatedData = new JSONObject(readData(record));
+                    updatedData.put("$distinct_id", distinctId);
+                    appendAdd(mNextId++, record.createdAt, MPDbAdapter.Table.PEOPLE, record.isAutomatic, project, updatedData.toString().getBytes(UTF_8));
+                    count++;
+                } catch (final JSONException e) {
+                    // Ignore this object
+                }
+            }
+            // In the same frame, so the updates can't end up both anonymous and identified
+            appendRemove(MPDbAdapter.Table.ANONYMOUS_PEOPLE, project, 0, Long.MAX_VALUE, Long.MAX_VALUE);
+            commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not push anonymous updates records from {}", MPDbAdapter.Table.ANONYMOUS_PEOPLE.getName(), e);
+            count = MPDbAdapter.DB_UPDATE_ERROR;
+        } finally {
+            MPTrace.endSection(traced);
+        }
+
+        return count;
+    }
+
+    @Override
+    public synchronized int addPendingProperties(Map<String, String> properties, String token, String serviceName) {
+        if (!open()) {
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int count = MPDbAdapter.DB_UPDATE_ERROR;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_ADD_PROPERTIES);
+        try {
+            final Project project = getProject(token, serviceName);
+            count = project.queued[MPDbAdapter.Table.EVENTS.ordinal()];
+            if (count > 0) {
+                long maxId = 0;
+                for (final Record record : mRecords.get(MPDbAdapter.Table.EVENTS).descendingMap().values()) {
+                    if (record.project == project) {
+                        maxId = record.id;
+                        break;
+                    }
+                }
+
+                // If nothing was queued since the last properties, these replace them, so they have to include them
+                final PendingProperties last = project.pending.isEmpty() ? null : project.pending.get(project.pending.size() - 1);
+                final JSONObject merged = null != last && last.maxId == maxId ? new JSONObject(new String(last.data, UTF_8)) : new JSONObject();
+                for (final Map.Entry<String, String> entry : properties.entrySet()) {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+                appendPendingProperties(project, maxId, merged, merged.toString().getBytes(UTF_8));
+                commitFrame();
+            }
+        } catch (final JSONException e) {
+            MPLog.e(LOGTAG, "Could not add properties to queued events", e);
+            count = MPDbAdapter.DB_UPDATE_ERROR;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not add properties to queued events", e);
+            count = MPDbAdapter.DB_UPDATE_ERROR;
+        } finally {
+            MPTrace.endSection(traced);
+        }
+
+        return count;
+    }
+
+    @Override
+    public synchronized void cleanupEvents(String lastId, MPDbAdapter.Table table, String token, String serviceName, boolean includeAutomaticEvents) {
+        if (!open()) {
+            return;
+        }
+
+        final long maxId;
+        try {
+            maxId = Long.parseLong(lastId);
+        } catch (final NumberFormatException e) {
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from {}, bad id {}", table.getName(), lastId);
+            return;
+        }
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            appendRemove(table, getProject(token, serviceName), includeAutomaticEvents ? 0 : REMOVE_MANUAL_ONLY, maxId, Long.MAX_VALUE);
+            commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from {}", table.getName(), e);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+    }
+
+    @Override
+    public synchronized int cleanupEvents(long time, MPDbAdapter.Table table) {
+        if (!open()) {
+            return 0;
+        }
+        int removed = 0;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            appendRemove(table, null, 0, Long.MAX_VALUE, time);
+            removed = commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from {}", table.getName(), e);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int cleanupEvents(long time, MPDbAdapter.Table table, int limit) {
+        if (!open()) {
+            return 0;
+        }
+        int removed = 0;
+
+        // Records are queued in id order, so the limit-th expired record bounds the removal
+        long maxId = Long.MAX_VALUE;
+        int expired = 0;
+        for (final Record record : mRecords.get(table).values()) {
+            if (record.createdAt <= time && ++expired == limit) {
+                maxId = record.id;
+                break;
+            }
+        }
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            appendRemove(table, null, 0, maxId, time);
+            removed = commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from {}", table.getName(), e);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int evictRecords(MPDbAdapter.Table table, String token, String serviceName, int count) {
+        if (!open()) {
+            return 0;
+        }
+        int removed = 0;
+
+        final Project project = null == token ? null : getProject(token, serviceName);
+        long maxAutomaticId = -1;
+        long maxManualId = -1;
+        int automatic = 0;
+        for (final Record record : mRecords.get(table).values()) {
+            if (automatic == count) {
+                break;
+            }
+            if (record.isAutomatic && (null == project || record.project == project)) {
+                maxAutomaticId = record.id;
+                automatic++;
+            }
+        }
+        int manual = 0;
+        for (final Record record : mRecords.get(table).values()) {
+            if (automatic + manual == count) {
+                break;
+            }
+            if (!record.isAutomatic && (null == project || record.project == project)) {
+                maxManualId = record.id;
+                manual++;
+            }
+        }
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            if (automatic > 0) {
+                appendRemove(table, project, REMOVE_AUTOMATIC_ONLY, maxAutomaticId, Long.MAX_VALUE);
+            }
+            if (manual > 0) {
+                appendRemove(table, project, REMOVE_MANUAL_ONLY, maxManualId, Long.MAX_VALUE);
+            }
+            removed = commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not evict Mixpanel records from {}", table.getName(), e);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int countRecords(MPDbAdapter.Table table, String token, String serviceName) {
+        if (!open()) {
+            return 0;
+        }
+        if (null == token) {
+            return mRecords.get(table).size();
+        }
+        return getProject(token, serviceName).queued[table.ordinal()];
+    }
+
+    @Override
+    public synchronized void cleanupAllEvents(MPDbAdapter.Table table, String token, String serviceName) {
+        if (!open()) {
+            return;
+        }
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            appendRemove(table, getProject(token, serviceName), 0, Long.MAX_VALUE, Long.MAX_VALUE);
+            commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean Mixpanel records from {}", table.getName(), e);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+    }
+
+    @Override
+    public synchronized void cleanupAutomaticEvents(String token, String serviceName) {
+        if (!open()) {
+            return;
+        }
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_CLEANUP);
+        try {
+            final Project project = getProject(token, serviceName);
+            appendRemove(MPDbAdapter.Table.EVENTS, project, REMOVE_AUTOMATIC_ONLY, Long.MAX_VALUE, Long.MAX_VALUE);
+            appendRemove(MPDbAdapter.Table.PEOPLE, project, REMOVE_AUTOMATIC_ONLY, Long.MAX_VALUE, Long.MAX_VALUE);
+            appendRemove(MPDbAdapter.Table.GROUPS, project, REMOVE_AUTOMATIC_ONLY, Long.MAX_VALUE, Long.MAX_VALUE);
+            commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records", e);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+    }
+
+    @Override
+    public synchronized void deleteDB() {
+        open();
+        deleteJournal();
+    }
+
+    @Override
+    public synchronized String[] generateDataString(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+        if (!open()) {
+            return null;
+        }
+
+        String lastId = null;
+        String data = null;
+        int queueCount = 0;
+
+        final boolean traced = MPTrace.beginSection(MPTrace.DB_READ_BATCH);
+        try {
+            // The data was written by JSONObject.toString() and has passed its CRC,
+            // so it can go straight into the array without being parsed again.
+            final StringBuilder array = new StringBuilder();
+            int read = 0;
+            for (final Record record : mRecords.get(table).values()) {
+                if (!equals(record.project.token, token) || (!includeAutomaticEvents && record.isAutomatic)) {
+                    continue;
+                }
+                queueCount++;
+                if (read < MAX_RECORDS_PER_READ) {
+                    array.append(read == 0 ? '[' : ',');
+                    array.append(hasPendingProperties(record) ? readDataWithPendingProperties(record) : readData(record));
+                    lastId = Long.toString(record.id);
+                    read++;
+                }
+            }
+            if (read > 0) {
+                data = array.append(']').toString();
+            }
+        } catch (final OutOfMemoryError e) {
+            MPLog.e(LOGTAG, "Out of memory when reading Mixpanel records from {}. Waiting to send.", table.getName());
+            lastId = null;
+            data = null;
+        } finally {
+            MPTrace.endSection(traced);
+        }
+
+        if (lastId != null && data != null) {
+            final String[] ret = {lastId, data, String.valueOf(queueCount)};
+            return ret;
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized long getStorageSize() {
+        long size = 0;
+        for (final Segment segment : mSegments) {
+            size += segment.buffer.capacity();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized long getQueuedBytes() {
+        long size = 0;
+        for (final Segment segment : mSegments) {
+            size += segment.liveBytes;
+        }
+        return size;
+    }
+
+    /**
+     * Moves every record in database into the journal, keeping the time each was queued, and then
+     * deletes the database. If the journal can't be written the database is left for next time.
+     *
+     * <p>Each frame of moved records also records the id of the last database row in it, so a move
+     * that's interrupted picks up where it stopped instead of queueing the same records twice.
+     */
+    /* package */ synchronized void migrateFrom(MPDbAdapter database) {
+        if (!open()) {
+            return;
+        }
+        if (!database.getDatabaseFile().exists()) {
+            return;
+        }
+
+        MPLog.v(LOGTAG, "Moving queued Mixpanel records from the database into the journal");
+        final boolean readAll;
+        try {
+            final long[] afterIds = new long[mMigrated.length];
+            for (final Migrated migrated : mMigrated) {
+                if (null != migrated) {
+                    afterIds[migrated.table.ordinal()] = migrated.lastId;
+                }
+            }
+            readAll = database.visitAllRecords(afterIds, new MPDbAdapter.RecordVisitor() {
+                @Override
+                public void visit(MPDbAdapter.Table table, long id, String data, long createdAt, boolean isAutomaticRecord, String token, String serviceName) throws IOException {
+                    if (null != mLastMigratedTable && mLastMigratedTable != table) {
+                        appendMigrated(mLastMigratedTable, mLastMigratedId);
+                    }
+                    appendAdd(mNextId++, createdAt, table, isAutomaticRecord, getProject(token, serviceName), data.getBytes(UTF_8));
+                    mLastMigratedTable = table;
+                    mLastMigratedId = id;
+                    if (mFrame.position() >= MIGRATION_FRAME_SIZE) {
+                        appendMigrated(table, id);
+                        commitFrame();
+                        mLastMigratedTable = null;
+                    }
+                }
+            });
+            if (null != mLastMigratedTable) {
+                appendMigrated(mLastMigratedTable, mLastMigratedId);
+            }
+            commitFrame();
+        } catch (final IOException e) {
+            // The records already moved are marked as moved, and the rest will be moved next time
+            MPLog.e(LOGTAG, "Could not move Mixpanel records into the journal, the rest will stay in the database", e);
+            return;
+        } finally {
+            mLastMigratedTable = null;
+        }
+
+        if (!readAll) {
+            MPLog.e(LOGTAG, "Some queued Mixpanel records could not be read from the database and were discarded");
+        }
+        database.deleteDB();
+
+        // A new database starts its ids again from 1
+        try {
+            for (final Migrated migrated : mMigrated) {
+                if (null != migrated) {
+                    appendMigrated(migrated.table, 0);
+                }
+            }
+            commitFrame();
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clear the record of moved Mixpanel records", e);
+        }
+    }
+
+    /* For testing use only, do not call from in production code */
+    protected boolean belowMemThreshold() {
+        // Any write may need a new segment, and a segment is only created once its space is allocated
+        final long usable = usableSpace();
+        if (usable < SEGMENT_SIZE) {
+            return false;
+        }
+        return Math.max(usable, mMinimumDatabaseLimit) >= getStorageSize();
+    }
+
+    // Space free for the journal, measured on the nearest directory that exists, since the journal's own may not yet
+    private long usableSpace() {
+        File directory = mDirectory;
+        while (null != directory && !directory.exists()) {
+            directory = directory.getParentFile();
+        }
+        return null == directory ? 0 : directory.getUsableSpace();
+    }
+
+    /**
+     * Reads the journal into memory the first time the store is used.
+     * @return false if the journal couldn't be read. Nothing is changed on disk, and it will be tried again next time.
+     */
+    private boolean open() {
+        if (mOpen) {
+            return true;
+        }
+        mOpen = true;
+
+        try {
+            final File[] files = mDirectory.listFiles();
+            if (null != files) {
+                final List<Long> sequences = new ArrayList<Long>();
+                for (final File file : files) {
+                    final String name = file.getName();
+                    if (name.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                        } catch (final NumberFormatException e) {
+                            MPLog.w(LOGTAG, "Ignoring unexpected file {} in the Mixpanel journal", name);
+                        }
+                    }
+                }
+                final Long[] sorted = sequences.toArray(new Long[sequences.size()]);
+                Arrays.sort(sorted);
+                for (final Long sequence : sorted) {
+                    final File file = segmentFile(sequence);
+                    final Segment segment = new Segment(file, sequence, map(file, -1));
+                    if (segment.buffer.capacity() < SEGMENT_HEADER_SIZE ||
+                            segment.buffer.getInt(0) != SEGMENT_MAGIC ||
+                            segment.buffer.getInt(4) != SEGMENT_VERSION) {
+                        MPLog.w(LOGTAG, "Ignoring unreadable Mixpanel journal segment {}", file.getName());
+                        file.delete();
+                        continue;
+                    }
+                    mNextId = Math.max(mNextId, segment.buffer.getLong(8));
+                    mSegments.add(segment);
+                    replay(segment);
+                }
+            }
+            prunePendingProperties();
+            deleteEmptySegments();
+        } catch (final IOException e) {
+            // A segment that couldn't be mapped isn't necessarily damaged, so it's left alone
+            MPLog.e(LOGTAG, "Could not read the Mixpanel journal, will try again later", e);
+            forget();
+            mOpen = false;
+            return false;
+        }
+
+        if (null != mMigrationSource) {
+            final MPDbAdapter database = mMigrationSource;
+            mMigrationSource = null;
+            migrateFrom(database);
+        }
+        return true;
+    }
+
+    // Applies each whole, intact frame in the segment, and leaves the segment's position after the last one
+    private void replay(Segment segment) {
+        final MappedByteBuffer buffer = segment.buffer;
+        final int limit = buffer.capacity();
+        int position = SEGMENT_HEADER_SIZE;
+        while (position + FRAME_HEADER_SIZE <= limit) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || length > limit - position - FRAME_HEADER_SIZE - END_MARKER_SIZE) {
+                break;
+            }
+            final int crc = buffer.getInt(position + 4);
+
+            mFrame.clear();
+            ensureFrameCapacity(length);
+            buffer.position(position + FRAME_HEADER_SIZE);
+            buffer.get(mFrame.array(), 0, length);
+            mCrc.reset();
+            mCrc.update(mFrame.array(), 0, length);
+            if ((int) mCrc.getValue() != crc) {
+                MPLog.w(LOGTAG, "Mixpanel journal segment {} ends with an incomplete or damaged frame at {}", segment.file.getName(), position);
+                break;
+            }
+
+            mFrame.limit(length);
+            try {
+                readFrame();
+            } catch (final BufferUnderflowException e) {
+                MPLog.w(LOGTAG, "Mixpanel journal segment {} has an unreadable frame at {}", segment.file.getName(), position);
+                mPendingOps.clear();
+                break;
+            }
+            applyFrame(segment, position + FRAME_HEADER_SIZE);
+            position += FRAME_HEADER_SIZE + length;
+        }
+
+        segment.position = position;
+        if (position + END_MARKER_SIZE <= limit) {
+            // Anything after the last good frame is garbage, and will be overwritten
+            buffer.putInt(position, 0);
+        }
+        mFrame.clear();
+    }
+
+    // Decodes the operations in mFrame into mPendingOps
+    private void readFrame() {
+        while (mFrame.hasRemaining()) {
+            final byte op = mFrame.get();
+            if (op == OP_ADD) {
+                final Record record = new Record();
+                record.id = mFrame.getLong();
+                record.createdAt = mFrame.getLong();
+                record.table = readTable();
+                record.isAutomatic = mFrame.get() != 0;
+                record.project = getProject(readString(), readString());
+                record.dataLength = mFrame.getInt();
+                record.dataOffset = mFrame.position();
+                if (record.dataLength < 0 || record.dataLength > mFrame.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                mFrame.position(record.dataOffset + record.dataLength);
+                mNextId = Math.max(mNextId, record.id + 1);
+                mPendingOps.add(record);
+            } else if (op == OP_REMOVE) {
+                final Removal removal = new Removal();
+                removal.table = readTable();
+                removal.flags = mFrame.get();
+                removal.maxId = mFrame.getLong();
+                removal.maxCreatedAt = mFrame.getLong();
+                if ((removal.flags & REMOVE_FOR_PROJECT) != 0) {
+                    removal.project = getProject(readString(), readString());
+                }
+                mPendingOps.add(removal);
+            } else if (op == OP_ADD_PROPERTIES) {
+                final PendingProperties pending = new PendingProperties();
+                pending.maxId = mFrame.getLong();
+                pending.project = getProject(readString(), readString());
+                final String data = readString();
+                if (null == data) {
+                    throw new BufferUnderflowException();
+                }
+                // The events these cover may be gone from the journal, but their ids mustn't be used again
+                mNextId = Math.max(mNextId, pending.maxId + 1);
+                try {
+                    pending.properties = new JSONObject(data);
+                    pending.data = data.getBytes(UTF_8);
+                    mPendingOps.add(pending);
+                } catch (final JSONException e) {
+                    MPLog.w(LOGTAG, "Ignoring unreadable properties for queued Mixpanel events");
+                }
+            } else if (op == OP_MIGRATED) {
+                final Migrated migrated = new Migrated();
+                migrated.table = readTable();
+                migrated.lastId = mFrame.getLong();
+                mPendingOps.add(migrated);
+            } else {
+                throw new BufferUnderflowException();
+            }
+        }
+    }
+
+    private void appendAdd(long id, long createdAt, MPDbAdapter.Table table, boolean isAutomatic, Project project, byte[] data) {
+        ensureFrameCapacity(1 + 8 + 8 + 1 + 1 + stringSize(project.tokenBytes) + stringSize(project.serviceNameBytes) + 4 + data.length);
+        mFrame.put(OP_ADD);
+        mFrame.putLong(id);
+        mFrame.putLong(createdAt);
+        mFrame.put((byte) table.ordinal());
+        mFrame.put((byte) (isAutomatic ? 1 : 0));
+        putString(project.tokenBytes);
+        putString(project.serviceNameBytes);
+        mFrame.putInt(data.length);
+
+        final Record record = new Record();
+        record.id = id;
+        record.createdAt = createdAt;
+        record.table = table;
+        record.isAutomatic = isAutomatic;
+        record.project = project;
+        record.dataOffset = mFrame.position();
+        record.dataLength = data.length;
+        mFrame.put(data);
+        mPendingOps.add(record);
+    }
+
+    // Removes the records in table, for project if it isn't null, with an id up to maxId queued up to maxCreatedAt
+    private void appendRemove(MPDbAdapter.Table table, Project project, int flags, long maxId, long maxCreatedAt) {
+        if (null != project) {
+            flags |= REMOVE_FOR_PROJECT;
+        }
+        ensureFrameCapacity(1 + 1 + 1 + 8 + 8 + (null == project ? 0 : stringSize(project.tokenBytes) + stringSize(project.serviceNameBytes)));
+        mFrame.put(OP_REMOVE);
+        mFrame.put((byte) table.ordinal());
+        mFrame.put((byte) flags);
+        mFrame.putLong(maxId);
+        mFrame.putLong(maxCreatedAt);
+        if (null != project) {
+            putString(project.tokenBytes);
+            putString(project.serviceNameBytes);
+        }
+
+        final Removal removal = new Removal();
+        removal.table = table;
+        removal.project = project;
+        removal.flags = flags;
+        removal.maxId = maxId;
+        removal.maxCreatedAt = maxCreatedAt;
+        mPendingOps.add(removal);
+    }
+
+    // Adds properties to the project's events with an id up to maxId, as they're read
+    private void appendPendingProperties(Project project, long maxId, JSONObject properties, byte[] data) {
+        ensureFrameCapacity(1 + 8 + stringSize(project.tokenBytes) + stringSize(project.serviceNameBytes) + stringSize(data));
+        mFrame.put(OP_ADD_PROPERTIES);
+        mFrame.putLong(maxId);
+        putString(project.tokenBytes);
+        putString(project.serviceNameBytes);
+        putString(data);
+
+        final PendingProperties pending = new PendingProperties();
+        pending.maxId = maxId;
+        pending.project = project;
+        pending.properties = properties;
+        pending.data = data;
+        mPendingOps.add(pending);
+    }
+
+    // Records that database rows up to lastId in table have been moved into the journal
+    private void appendMigrated(MPDbAdapter.Table table, long lastId) {
+        ensureFrameCapacity(1 + 1 + 8);
+        mFrame.put(OP_MIGRATED);
+        mFrame.put((byte) table.ordinal());
+        mFrame.putLong(lastId);
+
+        final Migrated migrated = new Migrated();
+        migrated.table = table;
+        migrated.lastId = lastId;
+        mPendingOps.add(migrated);
+    }
+
+    /**
+     * Appends the frame built since the last commit to the newest segment, syncs it to disk, and
+     * applies it to the in-memory index. If it throws, nothing was written and the frame is discarded.
+     * @return the number of records removed by the frame
+     */
+    private int commitFrame() throws IOException {
+        if (mPendingOps.isEmpty()) {
+            return 0;
+        }
+
+        final int length = mFrame.position();
+        final int frameSize = FRAME_HEADER_SIZE + length;
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        boolean rolled = false;
+        try {
+            if (null == segment || segment.position + frameSize + END_MARKER_SIZE > segment.buffer.capacity()) {
+                segment = createSegment(frameSize);
+                rolled = true;
+            }
+        } catch (final IOException e) {
+            discardFrame();
+            throw e;
+        }
+
+        final int frameStart = segment.position;
+        final MappedByteBuffer buffer = segment.buffer;
+        mCrc.reset();
+        mCrc.update(mFrame.array(), 0, length);
+        buffer.position(frameStart + FRAME_HEADER_SIZE);
+        buffer.put(mFrame.array(), 0, length);
+        buffer.putInt(frameStart + 4, (int) mCrc.getValue());
+        buffer.putInt(frameStart, length);
+        segment.position = frameStart + frameSize;
+        buffer.putInt(segment.position, 0);
+        buffer.force();
+
+        final int removed = applyFrame(segment, frameStart + FRAME_HEADER_SIZE);
+        prunePendingProperties();
+        deleteEmptySegments();
+        if (rolled && !mCompacting) {
+            try {
+                compactOldestSegment();
+            } catch (final IOException e) {
+                // The frame is already committed, and the oldest segment will just be kept a while longer
+                MPLog.w(LOGTAG, "Could not compact the Mixpanel journal", e);
+            }
+        }
+        return removed;
+    }
+
+    private void discardFrame() {
+        mPendingOps.clear();
+        mFrame.clear();
+    }
+
+    // Applies mPendingOps, read or written at payloadStart in segment, to the index
+    private int applyFrame(Segment segment, int payloadStart) {
+        int removed = 0;
+        for (final Object op : mPendingOps) {
+            if (op instanceof Record) {
+                final Record record = (Record) op;
+                record.segment = segment;
+                record.dataOffset += payloadStart;
+                segment.liveRecords++;
+                segment.liveBytes += record.dataLength;
+
+                final Record previous = mRecords.get(record.table).put(record.id, record);
+                if (null == previous) {
+                    record.project.queued[record.table.ordinal()]++;
+                } else {
+                    previous.segment.liveRecords--;
+                    previous.segment.liveBytes -= previous.dataLength;
+                }
+            } else if (op instanceof PendingProperties) {
+                final PendingProperties pending = (PendingProperties) op;
+                pending.segment = segment;
+                segment.liveRecords++;
+                segment.liveBytes += pending.data.length;
+
+                // Properties covering the same events replace the ones before, or are a copy made by compaction
+                final List<PendingProperties> projectPending = pending.project.pending;
+                int index = 0;
+                while (index < projectPending.size() && projectPending.get(index).maxId != pending.maxId) {
+                    index++;
+                }
+                if (index < projectPending.size()) {
+                    releasePendingProperties(projectPending.set(index, pending));
+                } else {
+                    projectPending.add(pending);
+                }
+            } else if (op instanceof Migrated) {
+                // Kept live, like a record, until the migration is finished, so it isn't deleted with its segment
+                final Migrated migrated = (Migrated) op;
+                final Migrated previous = mMigrated[migrated.table.ordinal()];
+                if (null != previous) {
+                    previous.segment.liveRecords--;
+                }
+                if (migrated.lastId != 0) {
+                    migrated.segment = segment;
+                    segment.liveRecords++;
+                    mMigrated[migrated.table.ordinal()] = migrated;
+                } else {
+                    mMigrated[migrated.table.ordinal()] = null;
+                }
+            } else {
+                final Removal removal = (Removal) op;
+                final TreeMap<Long, Record> records = mRecords.get(removal.table);
+                final Iterator<Record> candidates = removal.maxId == Long.MAX_VALUE ?
+                        records.values().iterator() :
+                        records.headMap(removal.maxId, true).values().iterator();
+                while (candidates.hasNext()) {
+                    final Record record = candidates.next();
+                    if (removal.matches(record)) {
+                        candidates.remove();
+                        record.segment.liveRecords--;
+                        record.segment.liveBytes -= record.dataLength;
+                        record.project.queued[record.table.ordinal()]--;
+                        removed++;
+                    }
+                }
+            }
+        }
+        mPendingOps.clear();
+        mFrame.clear();
+        return removed;
+    }
+
+    // Whole segments are only ever deleted from the front of the journal, so a removal is never
+    // lost while the records it removed are still on disk.
+    private void deleteEmptySegments() {
+        while (mSegments.size() > 1 && mSegments.get(0).liveRecords == 0) {
+            final Segment segment = mSegments.remove(0);
+            if (!segment.file.delete()) {
+                MPLog.w(LOGTAG, "Could not delete Mixpanel journal segment {}", segment.file.getName());
+            }
+        }
+    }
+
+    // A long queued record, like an update waiting for identify(), shouldn't keep an otherwise
+    // empty segment alive, so the last few records in the oldest segment are copied forward.
+    private void compactOldestSegment() throws IOException {
+        if (mSegments.size() < 2) {
+            return;
+        }
+        final Segment oldest = mSegments.get(0);
+        if (oldest.liveBytes * 4 >= oldest.buffer.capacity()) {
+            return;
+        }
+
+        mCompacting = true;
+        try {
+            for (final TreeMap<Long, Record> records : mRecords.values()) {
+                for (final Record record : records.values()) {
+                    if (record.segment == oldest) {
+                        appendAdd(record.id, record.createdAt, record.table, record.isAutomatic, record.project, readDataBytes(record));
+                    }
+                }
+            }
+            for (final Map<String, Project> services : mProjects.values()) {
+                for (final Project project : services.values()) {
+                    for (final PendingProperties pending : project.pending) {
+                        if (pending.segment == oldest) {
+                            appendPendingProperties(project, pending.maxId, pending.properties, pending.data);
+                        }
+                    }
+                }
+            }
+            for (final Migrated migrated : mMigrated) {
+                if (null != migrated && migrated.segment == oldest) {
+                    appendMigrated(migrated.table, migrated.lastId);
+                }
+            }
+            commitFrame();
+        } finally {
+            mCompacting = false;
+        }
+    }
+
+    private Segment createSegment(int frameSize) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create Mixpanel journal directory " + mDirectory);
+        }
+
+        final long sequence = mSegments.isEmpty() ? 1 : mSegments.get(mSegments.size() - 1).sequence + 1;
+        final File file = segmentFile(sequence);
+        file.delete();
+        final int size = Math.max(SEGMENT_SIZE, SEGMENT_HEADER_SIZE + frameSize + END_MARKER_SIZE);
+        if (usableSpace() < size) {
+            throw new IOException("Not enough storage for a new Mixpanel journal segment");
+        }
+        final MappedByteBuffer buffer;
+        try {
+            buffer = map(file, size);
+        } catch (final IOException e) {
+            file.delete();
+            throw e;
+        }
+        final Segment segment = new Segment(file, sequence, buffer);
+        segment.buffer.putInt(0, SEGMENT_MAGIC);
+        segment.buffer.putInt(4, SEGMENT_VERSION);
+        segment.buffer.putLong(8, mNextId);
+        segment.position = SEGMENT_HEADER_SIZE;
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private void deleteJournal() {
+        for (final Segment segment : mSegments) {
+            segment.file.delete();
+        }
+        forget();
+        final File[] leftovers = mDirectory.listFiles();
+        if (null != leftovers) {
+            for (final File file : leftovers) {
+                file.delete();
+            }
+        }
+    }
+
+    // Clears everything read from the journal, without touching the files
+    private void forget() {
+        discardFrame();
+        mSegments.clear();
+        for (final TreeMap<Long, Record> records : mRecords.values()) {
+            records.clear();
+        }
+        mProjects.clear();
+        Arrays.fill(mMigrated, null);
+        mNextId = 1;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(mDirectory, String.format(Locale.US, "%010d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    // Maps the whole file, after writing it out to size if size isn't negative. The mapping outlives the file handle.
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (size >= 0) {
+                // Not setLength(), which leaves a sparse file. Writing through the mapping to a page
+                // with no block behind it on a full disk kills the process with SIGBUS, where
+                // writing the zeros here just throws.
+                raf.setLength(0);
+                final byte[] zeros = new byte[PREALLOCATION_CHUNK_SIZE];
+                for (int written = 0; written < size; written += zeros.length) {
+                    raf.write(zeros, 0, Math.min(zeros.length, size - written));
+                }
+                raf.getFD().sync();
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private String readData(Record record) {
+        return new String(readDataBytes(record), UTF_8);
+    }
+
+    private byte[] readDataBytes(Record record) {
+        final byte[] data = new byte[record.dataLength];
+        final MappedByteBuffer buffer = record.segment.buffer;
+        buffer.position(record.dataOffset);
+        buffer.get(data);
+        return data;
+    }
+
+    // Pending properties are only needed while an event they cover is still queued. Event ids are
+    // never reused, so properties that no longer cover anything can be dropped without writing anything.
+    private void prunePendingProperties() {
+        for (final Map<String, Project> services : mProjects.values()) {
+            for (final Project project : services.values()) {
+                if (project.pending.isEmpty()) {
+                    continue;
+                }
+                final long firstId = firstEventId(project);
+                final Iterator<PendingProperties> pending = project.pending.iterator();
+                while (pending.hasNext()) {
+                    final PendingProperties properties = pending.next();
+                    if (properties.maxId < firstId) {
+                        pending.remove();
+                        releasePendingProperties(properties);
+                    }
+                }
+            }
+        }
+    }
+
+    private void releasePendingProperties(PendingProperties pending) {
+        pending.segment.liveRecords--;
+        pending.segment.liveBytes -= pending.data.length;
+    }
+
+    private long firstEventId(Project project) {
+        if (project.queued[MPDbAdapter.Table.EVENTS.ordinal()] > 0) {
+            for (final Record record : mRecords.get(MPDbAdapter.Table.EVENTS).values()) {
+                if (record.project == project) {
+                    return record.id;
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static boolean hasPendingProperties(Record record) {
+        final List<PendingProperties> pending = record.project.pending;
+        return record.table == MPDbAdapter.Table.EVENTS && !pending.isEmpty() && record.id <= pending.get(pending.size() - 1).maxId;
+    }
+
+    private String readDataWithPendingProperties(Record record) {
+        final String data = readData(record);
+        try {
+            final JSONObject event = new JSONObject(data);
+            for (final PendingProperties pending : record.project.pending) {
+                if (record.id <= pending.maxId) {
+                    MPDbAdapter.putProperties(event, pending.properties);
+                }
+            }
+            return event.toString();
+        } catch (final JSONException e) {
+            return data;
+        }
+    }
+
+    private Project getProject(String token, String serviceName) {
+        Map<String, Project> services = mProjects.get(token);
+        if (null == services) {
+            services = new HashMap<String, Project>();
+            mProjects.put(token, services);
+        }
+        Project project = services.get(serviceName);
+        if (null == project) {
+            project = new Project(token, serviceName);
+            services.put(serviceName, project);
+        }
+        return project;
+    }
+
+    private void ensureFrameCapacity(int bytes) {
+        if (mFrame.remaining() < bytes) {
+            final int needed = mFrame.position() + bytes;
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, mFrame.capacity() * 2));
+            grown.put(mFrame.array(), 0, mFrame.position());
+            mFrame = grown;
+        }
+    }
+
+    private void putString(byte[] bytes) {
+        if (null == bytes) {
+            mFrame.putInt(-1);
+        } else {
+            mFrame.putInt(bytes.length);
+            mFrame.put(bytes);
+        }
+    }
+
+    private String readString() {
+        final int length = mFrame.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > mFrame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final String ret = new String(mFrame.array(), mFrame.position(), length, UTF_8);
+        mFrame.position(mFrame.position() + length);
+        return ret;
+    }
+
+    private MPDbAdapter.Table readTable() {
+        final MPDbAdapter.Table[] tables = MPDbAdapter.Table.values();
+        final int ordinal = mFrame.get();
+        if (ordinal < 0 || ordinal >= tables.length) {
+            throw new BufferUnderflowException();
+        }
+        return tables[ordinal];
+    }
+
+    private static int stringSize(byte[] bytes) {
+        return 4 + (null == bytes ? 0 : bytes.length);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class Segment {
+        public Segment(File file, long sequence, MappedByteBuffer buffer) {
+            this.file = file;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        public final File file;
+        public final long sequence;
+        public final MappedByteBuffer buffer;
+        public int position;
+        public int liveRecords;
+        public long liveBytes;
+    }
+
+    private static class Project {
+        public Project(String token, String serviceName) {
+            this.token = token;
+            this.serviceName = serviceName;
+            this.tokenBytes = null == token ? null : token.getBytes(UTF_8);
+            this.serviceNameBytes = null == serviceName ? null : serviceName.getBytes(UTF_8);
+            this.queued = new int[MPDbAdapter.Table.values().length];
+            this.pending = new ArrayList<PendingProperties>();
+        }
+
+        public final String token;
+        public final String serviceName;
+        public final byte[] tokenBytes;
+        public final byte[] serviceNameBytes;
+        public final int[] queued; // live records for the project, per table
+        public final List<PendingProperties> pending; // oldest first
+    }
+
+    private static class PendingProperties {
+        public long maxId;
+        public Project project;
+        public JSONObject properties;
+        public byte[] data;
+        public Segment segment;
+    }
+
+    // A live record. Until its frame is committed, dataOffset is relative to the start of the frame.
+    private static class Record {
+        public long id;
+        public long createdAt;
+        public MPDbAdapter.Table table;
+        public boolean isAutomatic;
+        public Project project;
+        public Segment segment;
+        public int dataOffset;
+        public int dataLength;
+    }
+
+    private static class Migrated {
+        public MPDbAdapter.Table table;
+        public long lastId;
+        public Segment segment;
+    }
+
+    private static class Removal {
+        public boolean matches(Record record) {
+            if (record.id > maxId || record.createdAt > maxCreatedAt) {
+                return false;
+            }
+            if ((flags & REMOVE_FOR_PROJECT) != 0 && record.project != project) {
+                return false;
+            }
+            if ((flags & REMOVE_AUTOMATIC_ONLY) != 0 && !record.isAutomatic) {
+                return false;
+            }
+            if ((flags & REMOVE_MANUAL_ONLY) != 0 && record.isAutomatic) {
+                return false;
+            }
+            return true;
+        }
+
+        public MPDbAdapter.Table table;
+        public Project project;
+        public int flags;
+        public long maxId;
+        public long maxCreatedAt;
+    }
+
+    private final File mDirectory;
+    private final int mMinimumDatabaseLimit;
+    private final EnumMap<MPDbAdapter.Table, TreeMap<Long, Record>> mRecords;
+    private final Map<String, Map<String, Project>> mProjects;
+    private final List<Segment> mSegments;
+    private final List<Object> mPendingOps;
+    private final CRC32 mCrc;
+    private final Migrated[] mMigrated; // per table, the last database row moved by an unfinished migration
+    private ByteBuffer mFrame;
+    private long mNextId;
+    private boolean mOpen;
+    private boolean mCompacting;
+    private MPDbAdapter mMigrationSource;
+    private MPDbAdapter.Table mLastMigratedTable;
+    private long mLastMigratedId;
+}
@@ -0,0 +1,99 @@
+package com.mixpanel.android.mpmetrics;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * Where events and people updates wait between being tracked and being sent to Mixpanel.
+ *
+ * <p>{@link MPDbAdapter} keeps records in a SQLite database, and {@link MPJournalStore} appends
+ * them to memory-mapped journal files. Which one is used is chosen with the
+ * com.mixpanel.android.MPConfig.QueueStore meta-data.
+ *
+ * <p>Implementations are used by the Mixpanel worker thread, apart from {@link #cleanupAutomaticEvents(String, String)},
+ * which may be called from the decide thread.
+ */
+/* package */ interface MPQueueStore {
+
+    /**
+     * Adds a JSON string representing an event with properties or a person record to the queue.
+     * @return the number of records queued for the project, or MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    int addJSON(JSONObject j, String token, String serviceName, MPDbAdapter.Table table, boolean isAutomaticRecord);
+
+    /**
+     * Adds the first count records, all for the same project, at once.
+     * @return the number of records queued for the project, or MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    int addJSON(JSONObject[] records, boolean[] isAutomaticRecords, int count, String token, String serviceName, MPDbAdapter.Table table);
+
+    /**
+     * Moves the anonymous people updates for a project into the people queue, with the given distinct id.
+     * @return the number of records moved, or MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    int pushAnonymousUpdatesToPeopleDb(String token, String serviceName, String distinctId);
+
+    /**
+     * Adds properties to every event queued so far for a project as it's read to be sent, so that nothing
+     * already queued is rewritten. Events queued later don't get them.
+     * @return the number of events the properties will be added to, or MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    int addPendingProperties(Map<String, String> properties, String token, String serviceName);
+
+    /**
+     * Removes records up to and including lastId, the id returned by {@link #generateDataString(MPDbAdapter.Table, String, boolean)}.
+     */
+    void cleanupEvents(String lastId, MPDbAdapter.Table table, String token, String serviceName, boolean includeAutomaticEvents);
+
+    /**
+     * Removes records queued before time, in milliseconds since the epoch.
+     * @return the number of records removed
+     */
+    int cleanupEvents(long time, MPDbAdapter.Table table);
+
+    /**
+     * Removes at most limit of the oldest records queued before time, in milliseconds since the epoch.
+     * @return the number of records removed
+     */
+    int cleanupEvents(long time, MPDbAdapter.Table table, int limit);
+
+    /**
+     * Removes at most count records for a project, or for every project if token is null. Automatic
+     * records go first, and then the oldest.
+     * @return the number of records removed
+     */
+    int evictRecords(MPDbAdapter.Table table, String token, String serviceName, int count);
+
+    /**
+     * @return the number of records queued for a project, or for every project if token is null
+     */
+    int countRecords(MPDbAdapter.Table table, String token, String serviceName);
+
+    void cleanupAllEvents(MPDbAdapter.Table table, String token, String serviceName);
+
+    void cleanupAutomaticEvents(String token, String serviceName);
+
+    /**
+     * Removes everything, for every project.
+     */
+    void deleteDB();
+
+    /**
+     * Reads the oldest records for a project, to be sent.
+     * @return the id of the last record read, the records as a JSON array and the number of records
+     * queued for the project, or null if there is nothing to send
+     */
+    String[] generateDataString(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents);
+
+    /**
+     * @return how many bytes the queue takes up on disk
+     */
+    long getStorageSize();
+
+    /**
+     * @return how many of the bytes on disk hold queued records. This can be less than
+     * {@link #getStorageSize()}, because space freed by removing records isn't always given back right away.
+     */
+    long getQueuedBytes();
+}
@@ -18,6 +18,7 @@ import com.mixpanel.android.R;
 import com.mixpanel.android.takeoverinapp.TakeoverInAppActivity;
 import com.mixpanel.android.util.ActivityImageUtils;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
 import com.mixpanel.android.viewcrawler.TrackingDebug;
 import com.mixpanel.android.viewcrawler.UpdatesFromMixpanel;
 import com.mixpanel.android.viewcrawler.ViewCrawler;
@@ -444,7 +445,8 @@ public class MixpanelAPI {
         }
         mDecideMessages.setDistinctId(decideId);
 
-        final boolean dbExists = MPDbAdapter.getInstance(mContext).getDatabaseFile().exists();
+        final boolean dbExists = MPDbAdapter.getInstance(mContext).getDatabaseFile().exists() ||
+                MPJournalStore.getJournalDirectory(mContext).exists();
 
         registerMixpanelActivityLifecycleCallbacks();
 
@@ -691,6 +693,16 @@ public class MixpanelAPI {
         mConfig.setEnableLogging(enableLogging);
     }
 
+    /**
+     * Controls whether the library marks its work with sections and counters in Systrace and
+     * Perfetto traces of your app. Tracing costs almost nothing while it is off.
+     *
+     * @param enableTracing If true, emit trace sections and counters. Defaults to false
+     */
+    public void setEnableTracing(boolean enableTracing) {
+        mConfig.setEnableTracing(enableTracing);
+    }
+
     /**
      * Set the base URL used for Mixpanel API requests.
      * Useful if you need to proxy Mixpanel requests. Defaults to https://api.mixpanel.com.
@@ -1243,6 +1255,17 @@ public class MixpanelAPI {
         return mPeople;
     }
 
+    /**
+     * Returns counters and latency histograms for each stage events go through on their way
+     * to Mixpanel, from the call to track to the upload. The metrics are shared by every
+     * MixpanelAPI instance in your application.
+     *
+     * @return the {@link PipelineMetrics} for this application
+     */
+    public PipelineMetrics getPipelineMetrics() {
+        return mMessages.getPipelineMetrics();
+    }
+
     /**
      * Returns a Mixpanel.Group object that can be used to set and increment
      * Group Analytics properties.
@@ -2011,6 +2034,7 @@ public class MixpanelAPI {
     }
 
     /* package */ void onBackground() {
+        mMessages.drainEventBuffer();
         if (mConfig.getFlushOnBackground()) {
             flush();
         }
@@ -2874,6 +2898,8 @@ public class MixpanelAPI {
             return;
         }
 
+        final long trackStart = System.nanoTime();
+
         final Long eventBegin;
         synchronized (mEventTimings) {
             eventBegin = mEventTimings.get(eventName);
@@ -2881,6 +2907,7 @@ public class MixpanelAPI {
             mPersistentIdentity.removeTimeEvent(eventName);
         }
 
+        final boolean traced = MPTrace.beginSection(MPTrace.TRACK);
         try {
             final JSONObject messageProps = new JSONObject();
 
@@ -2928,6 +2955,7 @@ public class MixpanelAPI {
                     new AnalyticsMessages.EventDescription(eventName, messageProps,
                             mToken, mServiceName, isAutomaticEvent, mSessionMetadata.getMetadataForEvent());
             mMessages.eventsMessage(eventDescription);
+            mMessages.getPipelineMetrics().getTrackToEnqueue().recordNanos(System.nanoTime() - trackStart);
 
             if (mMixpanelActivityLifecycleCallbacks.getCurrentActivity() != null) {
                 getPeople().showGivenNotification(mDecideMessages.getNotification(eventDescription, mConfig.getTestMode()), mMixpanelActivityLifecycleCallbacks.getCurrentActivity());
@@ -2938,6 +2966,8 @@ public class MixpanelAPI {
             }
         } catch (final JSONException e) {
             MPLog.e(LOGTAG, "Exception tracking event " + eventName, e);
+        } finally {
+            MPTrace.endSection(traced);
         }
     }
 
@@ -1,10 +1,13 @@
 package com.mixpanel.android.mpmetrics;
 
+import android.annotation.TargetApi;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
+import android.service.notification.StatusBarNotification;
 
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
@@ -163,7 +166,8 @@ public class MixpanelFCMMessagingService extends FirebaseMessagingService {
      * @param mixpanelPushNotification A customized MixpanelPushNotification object.
      */
     public static void showPushNotification(Context context, Intent messageIntent, MixpanelPushNotification mixpanelPushNotification) {
-        Notification notification = mixpanelPushNotification.createNotification(messageIntent);
+        // Show the text right away, and fill in any images that have to be downloaded once they arrive
+        Notification notification = mixpanelPushNotification.createTextNotification(messageIntent);
 
         MixpanelNotificationData data = mixpanelPushNotification.getData();
         String message = data == null ? "null" : data.getMessage();
@@ -174,12 +178,42 @@ public class MixpanelFCMMessagingService extends FirebaseMessagingService {
                 MPLog.e(LOGTAG, "MP FCM notification has error");
             }
             final NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-            if (null != data.getTag()) {
-                notificationManager.notify(data.getTag(), NOTIFICATION_ID, notification);
-            } else {
-                notificationManager.notify(mixpanelPushNotification.getNotificationId(), notification);
+            postNotification(notificationManager, mixpanelPushNotification, notification);
+
+            if (mixpanelPushNotification.hasPendingImages()) {
+                final Notification withImages = mixpanelPushNotification.loadPendingImages(MixpanelPushNotification.IMAGE_LOAD_DEADLINE_MILLIS);
+                if (null != withImages && isStillShowing(notificationManager, mixpanelPushNotification)) {
+                    postNotification(notificationManager, mixpanelPushNotification, withImages);
+                }
+            }
+        }
+    }
+
+    // Posting again with the same tag and id updates a notification in place
+    private static void postNotification(NotificationManager notificationManager, MixpanelPushNotification mixpanelPushNotification, Notification notification) {
+        final MixpanelNotificationData data = mixpanelPushNotification.getData();
+        if (null != data.getTag()) {
+            notificationManager.notify(data.getTag(), NOTIFICATION_ID, notification);
+        } else {
+            notificationManager.notify(mixpanelPushNotification.getNotificationId(), notification);
+        }
+    }
+
+    // So we don't bring back a notification that the user dismissed while its images were loading
+    @TargetApi(Build.VERSION_CODES.M)
+    private static boolean isStillShowing(NotificationManager notificationManager, MixpanelPushNotification mixpanelPushNotification) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return true; // No way to tell
+        }
+
+        final String tag = mixpanelPushNotification.getData().getTag();
+        final int id = null != tag ? NOTIFICATION_ID : mixpanelPushNotification.getNotificationId();
+        for (final StatusBarNotification active : notificationManager.getActiveNotifications()) {
+            if (active.getId() == id && (null == tag ? null == active.getTag() : tag.equals(active.getTag()))) {
+                return true;
             }
         }
+        return false;
     }
 
     protected void cancelNotification(Bundle extras, NotificationManager notificationManager) {
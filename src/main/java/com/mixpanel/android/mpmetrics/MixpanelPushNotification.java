@@ -15,7 +15,9 @@ import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
 
+import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.ImageStore;
+import com.mixpanel.android.util.MPExecutors;
 import com.mixpanel.android.util.MPLog;
 
 import org.json.JSONArray;
@@ -29,6 +31,12 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class MixpanelPushNotification {
     public final static String PUSH_TAP_ACTION = "com.mixpanel.push_notification_tap";
@@ -55,6 +63,19 @@ public class MixpanelPushNotification {
     private MixpanelNotificationData mData;
     private int notificationId;
     private boolean hasOnTapError = false;
+    private boolean mDeferImages = false;
+    private String mPendingLargeIconUrl;
+    private String mPendingExpandableImageUrl;
+
+    private static ImageStore sImageStore;
+    private static ExecutorService sImageExecutor;
+
+    // FCM gives onMessageReceived about ten seconds before the process may be killed
+    /* package */ static final long IMAGE_LOAD_DEADLINE_MILLIS = 8000;
+    private static final int IMAGE_THREADS = 2;
+    private static final long IMAGE_KEEP_ALIVE_SECONDS = 10;
+    // Every push ImageStore uses the same directory, so they share the disk cache
+    private static final String IMAGE_DIRECTORY = "MixpanelAPI.Images.MixpanelPushNotification";
 
     @SuppressWarnings("deprecation")
     public MixpanelPushNotification(Context context) {
@@ -95,6 +116,63 @@ public class MixpanelPushNotification {
 
         buildNotificationFromData();
 
+        return buildNotification();
+    }
+
+    /**
+     * Like {@link #createNotification(Intent)}, but images that have to be downloaded are left out of
+     * the returned notification, so it can be shown right away. Call {@link #loadPendingImages(long)}
+     * afterwards to get a version of the notification with the images.
+     */
+    /* package */ Notification createTextNotification(Intent inboundIntent) {
+        mDeferImages = true;
+        try {
+            return createNotification(inboundIntent);
+        } finally {
+            mDeferImages = false;
+        }
+    }
+
+    /* package */ boolean hasPendingImages() {
+        return null != mPendingLargeIconUrl || null != mPendingExpandableImageUrl;
+    }
+
+    /**
+     * Downloads the images left out by {@link #createTextNotification(Intent)} in parallel, waiting
+     * at most timeoutMillis for both of them. Returns an updated notification with whatever images
+     * arrived in time, or null if none did. Downloads give up at the deadline rather than running on in the background.
+     */
+    /* package */ Notification loadPendingImages(long timeoutMillis) {
+        if (!hasPendingImages()) {
+            return null;
+        }
+
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        final Future<Bitmap> largeIcon = submitImageLoad(mPendingLargeIconUrl, deadline);
+        final Future<Bitmap> expandableImage = submitImageLoad(mPendingExpandableImageUrl, deadline);
+        mPendingLargeIconUrl = null;
+        mPendingExpandableImageUrl = null;
+
+        final Bitmap largeIconBitmap = awaitImage(largeIcon, deadline);
+        final Bitmap expandableImageBitmap = awaitImage(expandableImage, deadline);
+        if (null == largeIconBitmap && null == expandableImageBitmap) {
+            return null;
+        }
+
+        if (null != largeIconBitmap) {
+            mBuilder.setLargeIcon(largeIconBitmap);
+        }
+        if (null != expandableImageBitmap) {
+            setBigPictureStyle(expandableImageBitmap);
+        }
+
+        // The text version has already alerted the user, the update shouldn't alert them again
+        mBuilder.setOnlyAlertOnce(true);
+        return buildNotification();
+    }
+
+    @SuppressWarnings("deprecation")
+    private Notification buildNotification() {
         Notification n;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             n = mBuilder.build();
@@ -109,6 +187,39 @@ public class MixpanelPushNotification {
         return n;
     }
 
+    private Future<Bitmap> submitImageLoad(final String url, final long deadline) {
+        if (null == url) {
+            return null;
+        }
+
+        return getImageExecutor().submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return getBitmapFromUrl(url, deadline);
+            }
+        });
+    }
+
+    private Bitmap awaitImage(Future<Bitmap> image, long deadline) {
+        if (null == image) {
+            return null;
+        }
+
+        try {
+            return image.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            MPLog.d(LOGTAG, "Notification image took too long to load, the notification will be shown without it");
+        } catch (final InterruptedException e) {
+            MPLog.d(LOGTAG, "Interrupted while loading a notification image", e);
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            MPLog.d(LOGTAG, "Could not load a notification image", e.getCause());
+        }
+
+        image.cancel(true);
+        return null;
+    }
+
     /* package */ void parseIntent(Intent inboundIntent) {
         List<MixpanelNotificationData.MixpanelNotificationButtonData> buttons = new ArrayList<>();
         final String message = inboundIntent.getStringExtra("mp_message");
@@ -291,6 +402,10 @@ public class MixpanelPushNotification {
             if (mDrawableIds.knownIdName(mData.getLargeIconName())) {
                 mBuilder.setLargeIcon(getBitmapFromResourceId(mDrawableIds.idFromName(mData.getLargeIconName())));
             } else if (mData.getLargeIconName().startsWith("http")) {
+                if (mDeferImages) {
+                    mPendingLargeIconUrl = mData.getLargeIconName();
+                    return;
+                }
                 Bitmap imageBitmap = getBitmapFromUrl(mData.getLargeIconName());
                 if (imageBitmap != null) {
                     mBuilder.setLargeIcon(imageBitmap);
@@ -304,6 +419,12 @@ public class MixpanelPushNotification {
     protected void maybeSetExpandableNotification() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             if (null != mData.getExpandableImageUrl() && mData.getExpandableImageUrl().startsWith("http")) {
+                if (mDeferImages) {
+                    // Shown until the image arrives
+                    mPendingExpandableImageUrl = mData.getExpandableImageUrl();
+                    setBigTextStyle(mData.getMessage());
+                    return;
+                }
                 try {
                     Bitmap imageBitmap = getBitmapFromUrl(mData.getExpandableImageUrl());
                     if (imageBitmap == null) {
@@ -670,14 +791,40 @@ public class MixpanelPushNotification {
     }
 
     /* package */ Bitmap getBitmapFromUrl(String url) {
-        ImageStore is = new ImageStore(mContext, "MixpanelPushNotification");
         try {
-            return is.getImage(url);
+            return getImageStore(mContext).getImage(url);
+        } catch (ImageStore.CantGetImageException e) {
+            return null;
+        }
+    }
+
+    // Cancelling the load's Future can't interrupt a blocked HTTP read, so the download itself gives up at deadline
+    /* package */ Bitmap getBitmapFromUrl(String url, long deadline) {
+        final ImageStore store = new ImageStore(mContext.getApplicationContext(), IMAGE_DIRECTORY, new HttpService(deadline));
+        try {
+            return store.getImage(url);
         } catch (ImageStore.CantGetImageException e) {
             return null;
         }
     }
 
+    // Shared by every push, so campaign images that repeat are served from the cache
+    private static synchronized ImageStore getImageStore(Context context) {
+        if (null == sImageStore) {
+            sImageStore = new ImageStore(context.getApplicationContext(), IMAGE_DIRECTORY, new HttpService());
+        }
+        return sImageStore;
+    }
+
+    private static synchronized ExecutorService getImageExecutor() {
+        if (null == sImageExecutor) {
+            sImageExecutor = MPExecutors.newDaemonPool(
+                "MixpanelAPI.PushImages", IMAGE_THREADS, IMAGE_KEEP_ALIVE_SECONDS, Thread.NORM_PRIORITY);
+        }
+
+        return sImageExecutor;
+    }
+
     /* package */ ResourceIds getResourceIds(Context context) {
         final MPConfig config = MPConfig.getInstance(context);
         String resourcePackage = config.getResourcePackageName();
@@ -0,0 +1,216 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the path events take from
+ * {@link MixpanelAPI#track(String, org.json.JSONObject)} to Mixpanel's servers.
+ *
+ * <p>There is one PipelineMetrics for each application, shared by every MixpanelAPI instance,
+ * and its values cover everything since the process started. Get it with
+ * {@link MixpanelAPI#getPipelineMetrics()}. The metrics are cheap to collect and are always
+ * collected, so you can read them at any time, for example to log them or attach them to a
+ * bug report, or register an {@link OnFlushListener} to hear about them after each upload.
+ *
+ * <p>The pipeline stages are:
+ * <ul>
+ *     <li>track to enqueue: from the call to track until the event is handed to the worker thread</li>
+ *     <li>worker queue wait: from when a message should have been handled until the worker thread got to it</li>
+ *     <li>db insert: writing an event, people or group update to the local database</li>
+ *     <li>batch build: reading a batch of stored records back out to upload them</li>
+ *     <li>http request: uploading one batch, including any connection retries</li>
+ * </ul>
+ */
+public class PipelineMetrics {
+
+    /**
+     * Called on the Mixpanel worker thread each time it has finished trying to upload
+     * stored data. Implementations should return quickly.
+     */
+    public interface OnFlushListener {
+        void onFlush(PipelineMetrics metrics);
+    }
+
+    /* package */ PipelineMetrics() {
+        mTrackToEnqueue = new LatencyHistogram();
+        mWorkerQueueWait = new LatencyHistogram();
+        mDbInsert = new LatencyHistogram();
+        mBatchBuild = new LatencyHistogram();
+        mHttpRequest = new LatencyHistogram();
+        mBytesSent = new AtomicLong(0);
+        mRetries = new AtomicLong(0);
+        mRowsDroppedOutOfMemory = new AtomicLong(0);
+        mRowsExpired = new AtomicLong(0);
+        mRowsEvicted = new AtomicLong(0);
+        mEventBufferSpills = new AtomicLong(0);
+        mListeners = new CopyOnWriteArrayList<OnFlushListener>();
+    }
+
+    public LatencyHistogram getTrackToEnqueue() {
+        return mTrackToEnqueue;
+    }
+
+    public LatencyHistogram getWorkerQueueWait() {
+        return mWorkerQueueWait;
+    }
+
+    public LatencyHistogram getDbInsert() {
+        return mDbInsert;
+    }
+
+    public LatencyHistogram getBatchBuild() {
+        return mBatchBuild;
+    }
+
+    public LatencyHistogram getHttpRequest() {
+        return mHttpRequest;
+    }
+
+    /**
+     * @return the size of every request body successfully uploaded, in bytes
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * @return the number of times an upload failed and was scheduled to be tried again later
+     */
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return the number of records thrown away because the device was too low on storage to keep them
+     */
+    public long getRowsDroppedOutOfMemory() {
+        return mRowsDroppedOutOfMemory.get();
+    }
+
+    /**
+     * @return the number of events handed straight to the worker thread because the in-memory event buffer was full
+     */
+    public long getEventBufferSpills() {
+        return mEventBufferSpills.get();
+    }
+
+    /**
+     * @return the number of stored records deleted because they were older than the data expiration
+     */
+    public long getRowsExpired() {
+        return mRowsExpired.get();
+    }
+
+    /**
+     * @return the number of stored records deleted to keep the queue within its size and record limits
+     */
+    public long getRowsEvicted() {
+        return mRowsEvicted.get();
+    }
+
+    public void addOnFlushListener(OnFlushListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeOnFlushListener(OnFlushListener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineMetrics {\n" +
+                "    TrackToEnqueue: " + mTrackToEnqueue + "\n" +
+                "    WorkerQueueWait: " + mWorkerQueueWait + "\n" +
+                "    DbInsert: " + mDbInsert + "\n" +
+                "    BatchBuild: " + mBatchBuild + "\n" +
+                "    HttpRequest: " + mHttpRequest + "\n" +
+                "    BytesSent: " + getBytesSent() + "\n" +
+                "    Retries: " + getRetries() + "\n" +
+                "    RowsDroppedOutOfMemory: " + getRowsDroppedOutOfMemory() + "\n" +
+                "    RowsExpired: " + getRowsExpired() + "\n" +
+                "    RowsEvicted: " + getRowsEvicted() + "\n" +
+                "    EventBufferSpills: " + getEventBufferSpills() + "\n" +
+                "}";
+    }
+
+    /* package */ void addBytesSent(String requestBody) {
+        mBytesSent.addAndGet(utf8Length(requestBody));
+    }
+
+    /* package */ void incrementRetries() {
+        mRetries.incrementAndGet();
+    }
+
+    /* package */ void incrementRowsDroppedOutOfMemory() {
+        mRowsDroppedOutOfMemory.incrementAndGet();
+    }
+
+    /* package */ void addRowsDroppedOutOfMemory(int rows) {
+        mRowsDroppedOutOfMemory.addAndGet(rows);
+    }
+
+    /* package */ void incrementEventBufferSpills() {
+        mEventBufferSpills.incrementAndGet();
+    }
+
+    /* package */ void addRowsExpired(int rows) {
+        if (rows > 0) {
+            mRowsExpired.addAndGet(rows);
+        }
+    }
+
+    /* package */ void addRowsEvicted(int rows) {
+        if (rows > 0) {
+            mRowsEvicted.addAndGet(rows);
+        }
+    }
+
+    /* package */ void notifyFlush() {
+        for (final OnFlushListener listener : mListeners) {
+            try {
+                listener.onFlush(this);
+            } catch (final RuntimeException e) {
+                MPLog.e(LOGTAG, "Pipeline metrics listener threw an exception", e);
+            }
+        }
+    }
+
+    // The length String.getBytes("UTF-8") would return, without making the copy
+    private static long utf8Length(String s) {
+        long length = 0;
+        final int chars = s.length();
+        for (int i = 0; i < chars; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private final LatencyHistogram mTrackToEnqueue;
+    private final LatencyHistogram mWorkerQueueWait;
+    private final LatencyHistogram mDbInsert;
+    private final LatencyHistogram mBatchBuild;
+    private final LatencyHistogram mHttpRequest;
+    private final AtomicLong mBytesSent;
+    private final AtomicLong mRetries;
+    private final AtomicLong mRowsDroppedOutOfMemory;
+    private final AtomicLong mRowsExpired;
+    private final AtomicLong mRowsEvicted;
+    private final AtomicLong mEventBufferSpills;
+    private final List<OnFlushListener> mListeners;
+
+    private static final String LOGTAG = "MixpanelAPI.PipelineMetrics";
+}
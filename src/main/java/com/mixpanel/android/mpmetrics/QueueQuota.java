@@ -0,0 +1,117 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+
+/**
+ * Keeps the queue of records waiting to be sent within its limits, so a device that stays offline
+ * for a long time loses its least useful records first instead of all of them at once.
+ *
+ * <p>Records are evicted automatic events first and then oldest first, when a project has more than
+ * com.mixpanel.android.MPConfig.MaximumQueuedRecords in a queue, when the queue takes up more than
+ * com.mixpanel.android.MPConfig.MaximumDatabaseSize bytes, or when the device is too low on storage
+ * to add a new record. Expired records are removed a batch at a time, so a large backlog doesn't
+ * hold up the worker thread.
+ *
+ * <p>Only used on the Mixpanel worker thread.
+ */
+/* package */ class QueueQuota {
+
+    public QueueQuota(MPConfig config, PipelineMetrics metrics) {
+        mConfig = config;
+        mMetrics = metrics;
+        mAddedSinceSizeCheck = 0;
+    }
+
+    /**
+     * Call after records are added to a queue.
+     * @param queued the number of records now queued for the project in table
+     * @param added the number of records just added
+     * @return the number of records queued for the project in table after any evictions
+     */
+    public int enforceLimits(MPQueueStore store, MPDbAdapter.Table table, String token, String serviceName, int queued, int added) {
+        final int maxRecords = mConfig.getMaximumQueuedRecords();
+        if (maxRecords > 0 && queued > maxRecords) {
+            // Evict a little more than needed, so we aren't evicting again on every add
+            final int evicted = store.evictRecords(table, token, serviceName, queued - maxRecords + maxRecords / 10);
+            mMetrics.addRowsEvicted(evicted);
+            MPLog.w(LOGTAG, "Project {} has more than {} queued records, {} were thrown away", token, maxRecords, evicted);
+            queued -= evicted;
+        }
+
+        mAddedSinceSizeCheck += added;
+        if (mAddedSinceSizeCheck >= SIZE_CHECK_INTERVAL) {
+            enforceSize(store);
+        }
+        return queued;
+    }
+
+    /**
+     * Call when a record couldn't be added because the device is too low on storage.
+     * @return true if records were evicted, so adding again might succeed
+     */
+    public boolean makeRoom(MPQueueStore store) {
+        final int evicted = evictFraction(store);
+        if (evicted > 0) {
+            MPLog.w(LOGTAG, "Not enough storage for new Mixpanel data, {} queued records were thrown away to make room", evicted);
+        }
+        return evicted > 0;
+    }
+
+    /**
+     * Removes a batch of expired records from each queue, and checks the size of the queue.
+     * @return true if there may be more expired records to remove
+     */
+    public boolean expire(MPQueueStore store) {
+        final long expiredBefore = System.currentTimeMillis() - mConfig.getDataExpiration();
+        final int expiredEvents = store.cleanupEvents(expiredBefore, MPDbAdapter.Table.EVENTS, EXPIRY_BATCH_SIZE);
+        final int expiredPeople = store.cleanupEvents(expiredBefore, MPDbAdapter.Table.PEOPLE, EXPIRY_BATCH_SIZE);
+        mMetrics.addRowsExpired(expiredEvents);
+        mMetrics.addRowsExpired(expiredPeople);
+
+        enforceSize(store);
+        return expiredEvents == EXPIRY_BATCH_SIZE || expiredPeople == EXPIRY_BATCH_SIZE;
+    }
+
+    private void enforceSize(MPQueueStore store) {
+        mAddedSinceSizeCheck = 0;
+        final int maxBytes = mConfig.getMaximumDatabaseSize();
+        if (maxBytes <= 0) {
+            return;
+        }
+
+        for (int round = 0; round < MAX_EVICTION_ROUNDS && store.getQueuedBytes() > maxBytes; round++) {
+            final int evicted = evictFraction(store);
+            MPLog.w(LOGTAG, "Mixpanel queue is over {} bytes, {} queued records were thrown away", maxBytes, evicted);
+            if (evicted == 0) {
+                break;
+            }
+        }
+    }
+
+    // Evicts about one in EVICTION_FRACTION records from every queue, for every project
+    private int evictFraction(MPQueueStore store) {
+        int evicted = 0;
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            final int count = store.countRecords(table, null, null);
+            if (count > 0) {
+                evicted += store.evictRecords(table, null, null, Math.max(1, count / EVICTION_FRACTION));
+            }
+        }
+        mMetrics.addRowsEvicted(evicted);
+        return evicted;
+    }
+
+    private final MPConfig mConfig;
+    private final PipelineMetrics mMetrics;
+    private int mAddedSinceSizeCheck;
+
+    /* package */ static final long EXPIRY_INTERVAL_MILLIS = 60 * 60 * 1000; // How often to look for expired records
+    /* package */ static final long EXPIRY_BATCH_DELAY_MILLIS = 1000; // How long to wait between batches of a large expiry
+    /* package */ static final int EXPIRY_BATCH_SIZE = 500;
+
+    private static final int SIZE_CHECK_INTERVAL = 100; // Measuring the queue isn't free, so only check every this many records
+    private static final int EVICTION_FRACTION = 10;
+    private static final int MAX_EVICTION_ROUNDS = 3;
+
+    private static final String LOGTAG = "MixpanelAPI.QueueQuota";
+}
@@ -8,8 +8,13 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 /* package */ class SelectorEvaluator {
     private static final String ENGAGE_DATE_FORMAT_STRING = "yyyy-MM-dd'T'HH:mm:ss";
@@ -62,7 +67,18 @@ import java.util.Locale;
         if (!selector.has(OPERATOR_KEY) || !selector.has(CHILDREN_KEY)) {
             throw new IllegalArgumentException("Missing required keys: " + OPERATOR_KEY + " " + CHILDREN_KEY);
         }
-        mSelector = selector;
+
+        // Malformed selectors have always failed when evaluated rather than when constructed,
+        // so compilation errors are saved and thrown from evaluate.
+        Node root;
+        try {
+            root = compileOperator(selector);
+        } catch (final JSONException e) {
+            root = new InvalidNode(e);
+        } catch (final IllegalArgumentException e) {
+            root = new InvalidNode(e);
+        }
+        mRoot = root;
     }
 
     static PropertyType getType(Object value) {
@@ -144,40 +160,293 @@ import java.util.Locale;
         }
     }
 
-    static Double evaluateNumber(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(NUMBER_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for cast operator: " + NUMBER_OPERATOR);
+    private static boolean equals(Object l, Object r) {
+        if (getType(l) == getType(r)) {
+            switch (getType(l)) {
+                case Null:
+                    return true;
+                case Number:
+                    return toNumber(l).equals(toNumber(r));
+                case Boolean:
+                    return toBoolean(l).equals(toBoolean(r));
+                case Datetime:
+                case String:
+                case Array:
+                    return l.equals(r);
+            }
         }
 
-        return toNumber(evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0), properties));
+        return false;
+    }
+
+    // Static evaluation entry points. Each compiles the given node (checking that it is
+    // the expected kind of node) and evaluates it once against properties.
+
+    static Double evaluateNumber(JSONObject node, JSONObject properties) throws JSONException {
+        return (Double) compileExpecting(node, Operator.NUMBER).evaluate(properties);
     }
 
     static Boolean evaluateBoolean(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(BOOLEAN_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for cast operator: " + BOOLEAN_OPERATOR);
+        return (Boolean) compileExpecting(node, Operator.BOOLEAN).evaluate(properties);
+    }
+
+    static Date evaluateDateTime(JSONObject node, JSONObject properties) throws JSONException {
+        return (Date) compileExpecting(node, Operator.DATETIME).evaluate(properties);
+    }
+
+    static JSONArray evaluateList(JSONObject node, JSONObject properties) throws JSONException {
+        return (JSONArray) compileExpecting(node, Operator.LIST).evaluate(properties);
+    }
+
+    static String evaluateString(JSONObject node, JSONObject properties) throws JSONException {
+        return (String) compileExpecting(node, Operator.STRING).evaluate(properties);
+    }
+
+    static Boolean evaluateAnd(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.AND).evaluate(properties);
+    }
+
+    static Boolean evaluateOr(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.OR).evaluate(properties);
+    }
+
+    static Boolean evaluateIn(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.IN, Operator.NOT_IN).evaluate(properties);
+    }
+
+    static Object evaluatePlus(JSONObject node, JSONObject properties) throws JSONException {
+        return compileExpecting(node, Operator.PLUS).evaluate(properties);
+    }
+
+    static Double evaluateArithmetic(JSONObject node, JSONObject properties) throws JSONException {
+        return (Double) compileExpecting(node, Operator.MINUS, Operator.MUL, Operator.DIV, Operator.MOD).evaluate(properties);
+    }
+
+    static Boolean evaluateEquality(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.EQUALS, Operator.NOT_EQUALS).evaluate(properties);
+    }
+
+    static Boolean evaluateComparison(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.GREATER_THAN, Operator.GREATER_THAN_EQUAL,
+                Operator.LESS_THAN, Operator.LESS_THAN_EQUAL).evaluate(properties);
+    }
+
+    static Boolean evaluateDefined(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.DEFINED, Operator.NOT_DEFINED).evaluate(properties);
+    }
+
+    static Boolean evaluateNot(JSONObject node, JSONObject properties) throws JSONException {
+        return (Boolean) compileExpecting(node, Operator.NOT).evaluate(properties);
+    }
+
+    static Date evaluateWindow(JSONObject node) throws JSONException {
+        return compileWindow(node).getDate();
+    }
+
+    static Object evaluateOperand(JSONObject node, JSONObject properties) throws JSONException {
+        checkTimeZone();
+        return compileOperand(node).evaluate(properties);
+    }
+
+    static Object evaluateOperator(JSONObject node, JSONObject properties) throws JSONException {
+        checkTimeZone();
+        return compileOperator(node).evaluate(properties);
+    }
+
+    public boolean evaluate(JSONObject properties) throws JSONException {
+        checkTimeZone();
+        return toBoolean(mRoot.evaluate(properties));
+    }
+
+    // Dates are parsed and formatted in the default time zone, which is checked once per
+    // evaluation rather than on every date operation.
+    private static void checkTimeZone() {
+        sDateCodec.get().updateTimeZone();
+    }
+
+    // Compilation
+
+    private static Node compileExpecting(JSONObject node, Operator... expected) throws JSONException {
+        checkTimeZone();
+        final Operator operator = node.has(OPERATOR_KEY) ? Operator.forToken(node.getString(OPERATOR_KEY)) : null;
+        for (final Operator candidate : expected) {
+            if (candidate == operator) {
+                return compileOperator(node, operator);
+            }
+        }
+        throw new IllegalArgumentException(expected[0].invalidNodeMessage);
+    }
+
+    private static Node compileOperator(JSONObject node) throws JSONException {
+        if (!node.has(OPERATOR_KEY)) {
+            throw new IllegalArgumentException("Missing required keys: " + OPERATOR_KEY);
         }
 
-        return toBoolean(evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0), properties));
+        final String token = node.getString(OPERATOR_KEY);
+        final Operator operator = Operator.forToken(token);
+        if (null == operator) {
+            throw new IllegalArgumentException("Unknown operator: " + token);
+        }
+
+        return compileOperator(node, operator);
     }
 
-    static Date evaluateDateTime(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(DATETIME_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for cast operator: " + DATETIME_OPERATOR);
+    private static Node compileOperator(JSONObject node, Operator operator) throws JSONException {
+        final JSONArray children = node.optJSONArray(CHILDREN_KEY);
+        if (null == children || children.length() != operator.arity) {
+            throw new IllegalArgumentException(operator.invalidNodeMessage);
         }
 
-        final Object value = evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0), properties);
+        final Node first = compileChild(children, 0);
+        final Node second = operator.arity > 1 ? compileChild(children, 1) : null;
+        final Node compiled;
+        switch (operator) {
+            case DATETIME:
+                if (first.isConstant() && getType(first.evaluate(null)) == PropertyType.String) {
+                    // Not folded, since the date depends on the time zone it is parsed in
+                    return new DateLiteralNode((String) first.evaluate(null));
+                }
+                compiled = new CastNode(operator, first);
+                break;
+            case BOOLEAN:
+            case LIST:
+            case NUMBER:
+            case STRING:
+                compiled = new CastNode(operator, first);
+                break;
+            case AND:
+                if (first.isConstant() && !toBoolean(first.evaluate(null))) {
+                    return new ConstantNode(false);
+                }
+                compiled = new AndNode(first, second);
+                break;
+            case OR:
+                if (first.isConstant() && toBoolean(first.evaluate(null))) {
+                    return new ConstantNode(true);
+                }
+                compiled = new OrNode(first, second);
+                break;
+            case IN:
+            case NOT_IN:
+                compiled = new InNode(operator == Operator.NOT_IN, first, second);
+                break;
+            case PLUS:
+                compiled = new PlusNode(first, second);
+                break;
+            case MINUS:
+            case MUL:
+            case DIV:
+            case MOD:
+                compiled = new ArithmeticNode(operator, first, second);
+                break;
+            case EQUALS:
+            case NOT_EQUALS:
+                compiled = new EqualityNode(operator == Operator.NOT_EQUALS, first, second);
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_EQUAL:
+            case LESS_THAN:
+            case LESS_THAN_EQUAL:
+                compiled = new ComparisonNode(operator, first, second);
+                break;
+            case DEFINED:
+            case NOT_DEFINED:
+                compiled = new DefinedNode(operator == Operator.NOT_DEFINED, first);
+                break;
+            case NOT:
+                compiled = new NotNode(first);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operator: " + operator.token);
+        }
+
+        return foldConstants(compiled, first, second);
+    }
+
+    // Errors in children are deferred until (and unless) the child is evaluated,
+    // so that short circuiting operators behave as they would when interpreted.
+    private static Node compileChild(JSONArray children, int index) {
+        try {
+            final JSONObject child = children.getJSONObject(index);
+            if (child.has(PROPERTY_KEY)) {
+                return compileOperand(child);
+            }
+            return compileOperator(child);
+        } catch (final JSONException e) {
+            return new InvalidNode(e);
+        } catch (final IllegalArgumentException e) {
+            return new InvalidNode(e);
+        }
+    }
+
+    private static Node compileOperand(JSONObject node) throws JSONException {
+        if (!node.has(PROPERTY_KEY) || !node.has(VALUE_KEY)) {
+            throw new IllegalArgumentException("Missing required keys: " + PROPERTY_KEY + "/" + VALUE_KEY);
+        }
+
+        switch (node.getString(PROPERTY_KEY)) {
+            case EVENT_KEY:
+                return new EventPropertyNode(node.getString(VALUE_KEY));
+            case LITERAL_KEY:
+                final Object value = node.get(VALUE_KEY);
+                switch (getType(value)) {
+                    case String:
+                        if (((String) value).equalsIgnoreCase(NOW_LITERAL)) {
+                            return new NowNode();
+                        }
+                        return new ConstantNode(value);
+                    case Object:
+                        return compileWindow((JSONObject) value);
+                    default:
+                        return new ConstantNode(value);
+                }
+            default:
+                throw new IllegalArgumentException("Invalid operand: Invalid property type: " + node.getString(PROPERTY_KEY));
+        }
+    }
+
+    private static WindowNode compileWindow(JSONObject node) throws JSONException {
+        final JSONObject window = node.optJSONObject(WINDOW_KEY);
+        if (window == null || !window.has(VALUE_KEY) || !window.has(UNIT_KEY)) {
+            throw new IllegalArgumentException("Invalid window specification for value key " + node.toString());
+        }
+
+        final int value = -1 * window.getInt(VALUE_KEY);
+
+        switch (window.getString(UNIT_KEY)) {
+            case HOUR_KEY:
+                return new WindowNode(Calendar.HOUR, value);
+            case DAY_KEY:
+                return new WindowNode(Calendar.DAY_OF_YEAR, value);
+            case WEEK_KEY:
+                return new WindowNode(Calendar.DAY_OF_YEAR, 7*value);
+            case MONTH_KEY:
+                return new WindowNode(Calendar.DAY_OF_YEAR, 30*value);
+            default:
+                throw new IllegalArgumentException("Invalid unit specification for window " + window.getString(UNIT_KEY));
+        }
+    }
+
+    // Operators over constants are evaluated once, here, rather than on every call to evaluate.
+    private static Node foldConstants(Node compiled, Node first, Node second) {
+        if (!first.isConstant() || (null != second && !second.isConstant())) {
+            return compiled;
+        }
+
+        try {
+            return new ConstantNode(compiled.evaluate(null));
+        } catch (final Exception e) {
+            // Leave the error to be thrown when the selector is evaluated
+            return compiled;
+        }
+    }
+
+    private static Date toDate(Object value) {
         switch (getType(value)) {
             case Number:
                 return new Date(toNumber(value).longValue());
             case String:
-                try {
-                    return (new SimpleDateFormat(ENGAGE_DATE_FORMAT_STRING, Locale.US)).parse((String) value);
-                } catch (ParseException e) {
-                    return null;
-                }
+                return sDateCodec.get().parse((String) value);
             case Datetime:
                 return (Date) value;
             default:
@@ -185,405 +454,572 @@ import java.util.Locale;
         }
     }
 
-    static JSONArray evaluateList(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(LIST_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for cast operator: " + LIST_OPERATOR);
+    private enum Operator {
+        BOOLEAN(BOOLEAN_OPERATOR, 1, "Invalid node for cast operator: " + BOOLEAN_OPERATOR),
+        DATETIME(DATETIME_OPERATOR, 1, "Invalid node for cast operator: " + DATETIME_OPERATOR),
+        LIST(LIST_OPERATOR, 1, "Invalid node for cast operator: " + LIST_OPERATOR),
+        NUMBER(NUMBER_OPERATOR, 1, "Invalid node for cast operator: " + NUMBER_OPERATOR),
+        STRING(STRING_OPERATOR, 1, "Invalid node for cast operator: " + STRING_OPERATOR),
+        AND(AND_OPERATOR, 2, "Invalid node for operator: " + AND_OPERATOR),
+        OR(OR_OPERATOR, 2, "Invalid node for operator: " + OR_OPERATOR),
+        IN(IN_OPERATOR, 2, "Invalid node for operator: (not) " + IN_OPERATOR),
+        NOT_IN(NOT_IN_OPERATOR, 2, "Invalid node for operator: (not) " + IN_OPERATOR),
+        PLUS(PLUS_OPERATOR, 2, "Invalid node for operator: " + PLUS_OPERATOR),
+        MINUS(MINUS_OPERATOR, 2, "Invalid node for arithmetic operator"),
+        MUL(MUL_OPERATOR, 2, "Invalid node for arithmetic operator"),
+        DIV(DIV_OPERATOR, 2, "Invalid node for arithmetic operator"),
+        MOD(MOD_OPERATOR, 2, "Invalid node for arithmetic operator"),
+        EQUALS(EQUALS_OPERATOR, 2, "Invalid node for equality operator"),
+        NOT_EQUALS(NOT_EQUALS_OPERATOR, 2, "Invalid node for equality operator"),
+        GREATER_THAN(GREATER_THAN_OPERATOR, 2, "Invalid node for comparison operator"),
+        GREATER_THAN_EQUAL(GREATER_THAN_EQUAL_OPERATOR, 2, "Invalid node for comparison operator"),
+        LESS_THAN(LESS_THAN_OPERATOR, 2, "Invalid node for comparison operator"),
+        LESS_THAN_EQUAL(LESS_THAN_EQUAL_OPERATOR, 2, "Invalid node for comparison operator"),
+        DEFINED(DEFINED_OPERATOR, 1, "Invalid node for (not) defined operator"),
+        NOT_DEFINED(NOT_DEFINED_OPERATOR, 1, "Invalid node for (not) defined operator"),
+        NOT(NOT_OPERATOR, 1, "Invalid node for operator: " + NOT_OPERATOR);
+
+        Operator(String token, int arity, String invalidNodeMessage) {
+            this.token = token;
+            this.arity = arity;
+            this.invalidNodeMessage = invalidNodeMessage;
         }
 
-        final Object value = evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0), properties);
-        if (getType(value) == PropertyType.Array) {
-            return (JSONArray) value;
+        public static Operator forToken(String token) {
+            return sByToken.get(token);
         }
 
-        return null;
+        public final String token;
+        public final int arity;
+        public final String invalidNodeMessage;
+
+        private static final Map<String, Operator> sByToken = new HashMap<String, Operator>();
+        static {
+            for (final Operator operator : values()) {
+                sByToken.put(operator.token, operator);
+            }
+        }
     }
 
-    static String evaluateString(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(STRING_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for cast operator: " + STRING_OPERATOR);
+    // Compiled selector nodes. Nodes are immutable, and safe to evaluate from any thread.
+
+    private abstract static class Node {
+        public abstract Object evaluate(JSONObject properties) throws JSONException;
+
+        public boolean isConstant() {
+            return false;
         }
-        final Object value = evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0), properties);
-        if (getType(value) == PropertyType.Datetime) {
-            return new SimpleDateFormat(ENGAGE_DATE_FORMAT_STRING, Locale.US).format((Date) value);
+    }
+
+    private static class ConstantNode extends Node {
+        public ConstantNode(Object value) {
+            mValue = value;
         }
 
-        return value != null ? value.toString() : null;
-    }
+        @Override
+        public Object evaluate(JSONObject properties) {
+            return mValue;
+        }
 
-    // Binary Operators
-    static Boolean evaluateAnd(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(AND_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for operator: " + AND_OPERATOR);
+        @Override
+        public boolean isConstant() {
+            return true;
         }
 
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        return toBoolean(evaluateNode(children.getJSONObject(0), properties)) &&
-                toBoolean(evaluateNode(children.getJSONObject(1), properties));
+        private final Object mValue;
     }
 
-    static Boolean evaluateOr(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(OR_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for operator: " + OR_OPERATOR);
+    private static class InvalidNode extends Node {
+        public InvalidNode(Exception error) {
+            mMessage = error.getMessage();
+            mIsJSONError = error instanceof JSONException;
         }
 
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        return toBoolean(evaluateNode(children.getJSONObject(0), properties)) ||
-                toBoolean(evaluateNode(children.getJSONObject(1), properties));
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            if (mIsJSONError) {
+                throw new JSONException(mMessage);
+            }
+            throw new IllegalArgumentException(mMessage);
+        }
+
+        private final String mMessage;
+        private final boolean mIsJSONError;
     }
 
-    static Boolean evaluateIn(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !(node.getString(OPERATOR_KEY).equals(IN_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(NOT_IN_OPERATOR)) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for operator: (not) " + IN_OPERATOR);
-        }
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        final Object l = evaluateNode(children.getJSONObject(0), properties);
-        final Object r = evaluateNode(children.getJSONObject(1), properties);
-
-        Boolean v = false;
-        final String ls = l.toString();
-        switch (getType(r)) {
-            case Array:
-                final JSONArray arr = (JSONArray) r;
-                for (int i = 0; i < arr.length(); i++) {
-                    if (ls.equals(arr.getString(i))) {
-                        v = true;
-                        break;
-                    }
-                }
-                break;
-            case String:
-                v = ((String) r).contains(ls);
-                break;
+    private static class EventPropertyNode extends Node {
+        public EventPropertyNode(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Object evaluate(JSONObject properties) {
+            return properties.opt(mName);
         }
 
-        return node.getString(OPERATOR_KEY).equals(IN_OPERATOR) ? v : !v;
+        private final String mName;
     }
 
-    static Object evaluatePlus(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(PLUS_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for operator: " + PLUS_OPERATOR);
+    private static class NowNode extends Node {
+        @Override
+        public Object evaluate(JSONObject properties) {
+            return new Date();
         }
+    }
 
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        final Object l = evaluateNode(children.getJSONObject(0), properties);
-        final Object r = evaluateNode(children.getJSONObject(1), properties);
+    private static class WindowNode extends Node {
+        public WindowNode(int calendarField, int amount) {
+            mCalendarField = calendarField;
+            mAmount = amount;
+        }
 
-        if (getType(l) == PropertyType.Number && getType(r) == PropertyType.Number) {
-            return toNumber(l) + toNumber(r);
+        @Override
+        public Object evaluate(JSONObject properties) {
+            return getDate();
         }
-        if (getType(l) == PropertyType.String && getType(r) == PropertyType.String) {
-            return l + ((String) r);
+
+        public Date getDate() {
+            Calendar calendar;
+            if (sCalendar == null) {
+                calendar = Calendar.getInstance();
+                calendar.setTime(new Date());
+            } else {
+                calendar = (Calendar) sCalendar.clone();
+            }
+
+            calendar.add(mCalendarField, mAmount);
+            return calendar.getTime();
         }
 
-        return null;
+        private final int mCalendarField;
+        private final int mAmount;
     }
 
-    static Double evaluateArithmetic(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !(node.getString(OPERATOR_KEY).equals(MINUS_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(MUL_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(DIV_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(MOD_OPERATOR)) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for arithmetic operator");
-        }
-
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        final Object l = evaluateNode(children.getJSONObject(0), properties);
-        final Object r = evaluateNode(children.getJSONObject(1), properties);
-
-        if (getType(l) == PropertyType.Number && getType(r) == PropertyType.Number) {
-            final double ld = toNumber(l);
-            final double rd = toNumber(r);
-            switch (node.getString(OPERATOR_KEY)) {
-                case MINUS_OPERATOR:
-                    return ld-rd;
-                case MUL_OPERATOR:
-                    return ld*rd;
-                case DIV_OPERATOR:
-                    if (rd != 0.0) {
-                        return ld/rd;
-                    }
-                    return null;
-                case MOD_OPERATOR:
-                    if (rd == 0.0) {
-                        return null;
-                    }
-                    if (ld == 0.0) {
-                        return 0.0;
-                    }
-                    if ((ld < 0 && rd > 0) || (ld > 0 && rd < 0)) {
-                        return -(Math.floor(ld/rd) * rd-ld);
-                    }
-                    return ld % rd;
-            }
+    /**
+     * A date cast of a string literal. The literal is parsed again only when the default time zone
+     * has changed since it was last parsed.
+     */
+    private static class DateLiteralNode extends Node {
+        public DateLiteralNode(String text) {
+            mText = text;
         }
 
-        return null;
-    }
+        @Override
+        public Object evaluate(JSONObject properties) {
+            final DateCodec codec = sDateCodec.get();
+            final TimeZone zone = codec.getTimeZone();
+            ParsedDate parsed = mParsed;
+            if (null == parsed || (parsed.zone != zone && !parsed.zone.equals(zone))) {
+                parsed = new ParsedDate(zone, codec.parseUncached(mText));
+                mParsed = parsed;
+            }
+            return null == parsed.date ? null : new Date(parsed.date.getTime());
+        }
 
-    private static boolean equals(Object l, Object r) {
-        if (getType(l) == getType(r)) {
-            switch (getType(l)) {
-                case Null:
-                    return true;
-                case Number:
-                    return toNumber(l).equals(toNumber(r));
-                case Boolean:
-                    return toBoolean(l).equals(toBoolean(r));
-                case Datetime:
-                case String:
-                case Array:
-                    return l.equals(r);
+        private static class ParsedDate {
+            public ParsedDate(TimeZone zone, Date date) {
+                this.zone = zone;
+                this.date = date;
             }
+
+            public final TimeZone zone;
+            public final Date date;
         }
 
-        return false;
+        private final String mText;
+        private volatile ParsedDate mParsed;
     }
 
-    static Boolean evaluateEquality(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !(node.getString(OPERATOR_KEY).equals(EQUALS_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(NOT_EQUALS_OPERATOR)) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for equality operator");
+    private static class CastNode extends Node {
+        public CastNode(Operator operator, Node child) {
+            mOperator = operator;
+            mChild = child;
         }
 
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        final Object l = evaluateNode(children.getJSONObject(0), properties);
-        final Object r = evaluateNode(children.getJSONObject(1), properties);
-        Boolean v = false;
-        if (getType(l) == getType(r)) {
-            switch (getType(l)) {
-                case Object:
-                    final JSONObject lo = (JSONObject) l;
-                    final JSONObject ro = (JSONObject) r;
-
-                    if (lo.length() == ro.length()) {
-                        v = true;
-                        String k;
-                        Iterator<String> keys = lo.keys();
-                        while(keys.hasNext()) {
-                            k = keys.next();
-                            if (!equals(lo.get(k), ro.opt(k))) {
-                                v = false;
-                                break;
-                            }
-                        }
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object value = mChild.evaluate(properties);
+            switch (mOperator) {
+                case BOOLEAN:
+                    return toBoolean(value);
+                case DATETIME:
+                    return toDate(value);
+                case LIST:
+                    return getType(value) == PropertyType.Array ? value : null;
+                case NUMBER:
+                    return toNumber(value);
+                case STRING:
+                    if (getType(value) == PropertyType.Datetime) {
+                        return sDateCodec.get().format((Date) value);
                     }
-                    break;
+                    return value != null ? value.toString() : null;
                 default:
-                    v = equals(l, r);
+                    throw new IllegalArgumentException("Invalid node for cast operator: " + mOperator.token);
             }
         }
 
-        return node.getString(OPERATOR_KEY).equals(NOT_EQUALS_OPERATOR) ? !v : v;
+        private final Operator mOperator;
+        private final Node mChild;
     }
 
-    static Boolean evaluateComparison(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !(node.getString(OPERATOR_KEY).equals(GREATER_THAN_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(GREATER_THAN_EQUAL_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(LESS_THAN_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(LESS_THAN_EQUAL_OPERATOR)) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 2) {
-            throw new IllegalArgumentException("Invalid node for comparison operator");
+    private static class AndNode extends Node {
+        public AndNode(Node left, Node right) {
+            mLeft = left;
+            mRight = right;
         }
 
-        JSONArray children = node.getJSONArray(CHILDREN_KEY);
-        final Object l = evaluateNode(children.getJSONObject(0), properties);
-        final Object r = evaluateNode(children.getJSONObject(1), properties);
-        if (getType(l) == getType(r)) {
-            if  (getType(l) == PropertyType.Number || getType(l) == PropertyType.Datetime) {
-                final Double ld = toNumber(l);
-                final Double rd = toNumber(r);
-                switch (node.getString(OPERATOR_KEY)) {
-                    case GREATER_THAN_OPERATOR:
-                        return ld > rd;
-                    case GREATER_THAN_EQUAL_OPERATOR:
-                        return ld >= rd;
-                    case LESS_THAN_OPERATOR:
-                        return ld < rd;
-                    case LESS_THAN_EQUAL_OPERATOR:
-                        return ld <= rd;
-                }
-            } else if (getType(l) == PropertyType.String) {
-                final String ls = (String) l;
-                final String rs = (String) r;
-
-                final int compare = ls.compareTo(rs);
-                switch (node.getString(OPERATOR_KEY)) {
-                    case GREATER_THAN_OPERATOR:
-                        return compare > 0;
-                    case GREATER_THAN_EQUAL_OPERATOR:
-                        return compare >= 0;
-                    case LESS_THAN_OPERATOR:
-                        return compare < 0;
-                    case LESS_THAN_EQUAL_OPERATOR:
-                        return compare <= 0;
-                }
-            }
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            return toBoolean(mLeft.evaluate(properties)) && toBoolean(mRight.evaluate(properties));
         }
 
-        return null;
+        private final Node mLeft;
+        private final Node mRight;
     }
 
-    static Boolean evaluateDefined(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !(node.getString(OPERATOR_KEY).equals(DEFINED_OPERATOR) ||
-                node.getString(OPERATOR_KEY).equals(NOT_DEFINED_OPERATOR)) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for (not) defined operator");
+    private static class OrNode extends Node {
+        public OrNode(Node left, Node right) {
+            mLeft = left;
+            mRight = right;
         }
 
-        final boolean v = evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0),
-                properties) == null ? false : true;
-        return node.getString(OPERATOR_KEY).equals(DEFINED_OPERATOR) ? v : !v;
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            return toBoolean(mLeft.evaluate(properties)) || toBoolean(mRight.evaluate(properties));
+        }
+
+        private final Node mLeft;
+        private final Node mRight;
     }
 
-    static Boolean evaluateNot(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY) || !node.getString(OPERATOR_KEY).equals(NOT_OPERATOR) ||
-                node.optJSONArray(CHILDREN_KEY) == null || node.getJSONArray(CHILDREN_KEY).length() != 1) {
-            throw new IllegalArgumentException("Invalid node for operator: " + NOT_OPERATOR);
+    private static class InNode extends Node {
+        public InNode(boolean negate, Node left, Node right) {
+            mNegate = negate;
+            mLeft = left;
+            mRight = right;
+            mConstantList = right.isConstant() ? hashList(right) : null;
         }
 
-        final Object v = evaluateNode(node.getJSONArray(CHILDREN_KEY).getJSONObject(0), properties);
-        switch (getType(v)) {
-            case Boolean:
-                return !toBoolean(v);
-            case Null:
-                return true;
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object l = mLeft.evaluate(properties);
+            final Object r = mRight.evaluate(properties);
+
+            boolean v = false;
+            final String ls = l.toString();
+            if (null != mConstantList) {
+                v = mConstantList.contains(ls);
+            } else {
+                switch (getType(r)) {
+                    case Array:
+                        final JSONArray arr = (JSONArray) r;
+                        for (int i = 0; i < arr.length(); i++) {
+                            if (ls.equals(arr.getString(i))) {
+                                v = true;
+                                break;
+                            }
+                        }
+                        break;
+                    case String:
+                        v = ((String) r).contains(ls);
+                        break;
+                }
+            }
+
+            return mNegate ? !v : v;
         }
-        return null;
-    }
 
-    static Date evaluateWindow(JSONObject node) throws JSONException {
-        final JSONObject window = node.optJSONObject(WINDOW_KEY);
-        if (window == null || !window.has(VALUE_KEY) || !window.has(UNIT_KEY)) {
-            throw new IllegalArgumentException("Invalid window specification for value key " + node.toString());
+        // Returns null if the constant isn't a list we can hash, which leaves it to be searched on every evaluation
+        private static Set<String> hashList(Node constant) {
+            try {
+                final Object value = constant.evaluate(null);
+                if (getType(value) != PropertyType.Array) {
+                    return null;
+                }
+
+                final JSONArray arr = (JSONArray) value;
+                final Set<String> ret = new HashSet<String>(arr.length() * 2);
+                for (int i = 0; i < arr.length(); i++) {
+                    ret.add(arr.getString(i));
+                }
+                return ret;
+            } catch (final JSONException e) {
+                return null;
+            }
         }
 
-        Calendar calendar;
-        if (sCalendar == null) {
-            calendar = Calendar.getInstance();
-            calendar.setTime(new Date());
-        } else {
-            calendar = (Calendar) sCalendar.clone();
+        private final boolean mNegate;
+        private final Node mLeft;
+        private final Node mRight;
+        private final Set<String> mConstantList;
+    }
+
+    private static class PlusNode extends Node {
+        public PlusNode(Node left, Node right) {
+            mLeft = left;
+            mRight = right;
         }
 
-        final Integer value = -1 * window.getInt(VALUE_KEY);
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object l = mLeft.evaluate(properties);
+            final Object r = mRight.evaluate(properties);
 
-        switch (window.getString(UNIT_KEY)) {
-            case HOUR_KEY:
-                calendar.add(Calendar.HOUR, value);
-                break;
-            case DAY_KEY:
-                calendar.add(Calendar.DAY_OF_YEAR, value);
-                break;
-            case WEEK_KEY:
-                calendar.add(Calendar.DAY_OF_YEAR, 7*value);
-                break;
-            case MONTH_KEY:
-                calendar.add(Calendar.DAY_OF_YEAR, 30*value);
-                break;
-            default:
-                throw new IllegalArgumentException("Invalid unit specification for window " + window.getString(UNIT_KEY));
+            if (getType(l) == PropertyType.Number && getType(r) == PropertyType.Number) {
+                return toNumber(l) + toNumber(r);
+            }
+            if (getType(l) == PropertyType.String && getType(r) == PropertyType.String) {
+                return l + ((String) r);
+            }
+
+            return null;
         }
 
-        return calendar.getTime();
+        private final Node mLeft;
+        private final Node mRight;
     }
 
-    static Object evaluateOperand(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(PROPERTY_KEY) || !node.has(VALUE_KEY)) {
-            throw new IllegalArgumentException("Missing required keys: " + PROPERTY_KEY + "/" + VALUE_KEY);
+    private static class ArithmeticNode extends Node {
+        public ArithmeticNode(Operator operator, Node left, Node right) {
+            mOperator = operator;
+            mLeft = left;
+            mRight = right;
         }
 
-        switch (node.getString(PROPERTY_KEY)) {
-            case EVENT_KEY:
-                return properties.opt(node.getString(VALUE_KEY));
-            case LITERAL_KEY:
-                if (getType(node.get(VALUE_KEY)) == PropertyType.String &&
-                        node.getString(VALUE_KEY).equalsIgnoreCase(NOW_LITERAL)) {
-                    return new Date();
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object l = mLeft.evaluate(properties);
+            final Object r = mRight.evaluate(properties);
+
+            if (getType(l) == PropertyType.Number && getType(r) == PropertyType.Number) {
+                final double ld = toNumber(l);
+                final double rd = toNumber(r);
+                switch (mOperator) {
+                    case MINUS:
+                        return ld-rd;
+                    case MUL:
+                        return ld*rd;
+                    case DIV:
+                        if (rd != 0.0) {
+                            return ld/rd;
+                        }
+                        return null;
+                    case MOD:
+                        if (rd == 0.0) {
+                            return null;
+                        }
+                        if (ld == 0.0) {
+                            return 0.0;
+                        }
+                        if ((ld < 0 && rd > 0) || (ld > 0 && rd < 0)) {
+                            return -(Math.floor(ld/rd) * rd-ld);
+                        }
+                        return ld % rd;
                 }
-                final Object value = node.get(VALUE_KEY);
-                switch (getType(value)) {
+            }
+
+            return null;
+        }
+
+        private final Operator mOperator;
+        private final Node mLeft;
+        private final Node mRight;
+    }
+
+    private static class EqualityNode extends Node {
+        public EqualityNode(boolean negate, Node left, Node right) {
+            mNegate = negate;
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object l = mLeft.evaluate(properties);
+            final Object r = mRight.evaluate(properties);
+            boolean v = false;
+            if (getType(l) == getType(r)) {
+                switch (getType(l)) {
                     case Object:
-                        return evaluateWindow((JSONObject) value);
+                        final JSONObject lo = (JSONObject) l;
+                        final JSONObject ro = (JSONObject) r;
+
+                        if (lo.length() == ro.length()) {
+                            v = true;
+                            String k;
+                            Iterator<String> keys = lo.keys();
+                            while(keys.hasNext()) {
+                                k = keys.next();
+                                if (!SelectorEvaluator.equals(lo.get(k), ro.opt(k))) {
+                                    v = false;
+                                    break;
+                                }
+                            }
+                        }
+                        break;
                     default:
-                        return value;
+                        v = SelectorEvaluator.equals(l, r);
                 }
-            default:
-                throw new IllegalArgumentException("Invalid operand: Invalid property type: " + node.getString(PROPERTY_KEY));
+            }
+
+            return mNegate ? !v : v;
+        }
+
+        private final boolean mNegate;
+        private final Node mLeft;
+        private final Node mRight;
+    }
+
+    private static class ComparisonNode extends Node {
+        public ComparisonNode(Operator operator, Node left, Node right) {
+            mOperator = operator;
+            mLeft = left;
+            mRight = right;
+        }
+
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object l = mLeft.evaluate(properties);
+            final Object r = mRight.evaluate(properties);
+            if (getType(l) == getType(r)) {
+                if  (getType(l) == PropertyType.Number || getType(l) == PropertyType.Datetime) {
+                    final Double ld = toNumber(l);
+                    final Double rd = toNumber(r);
+                    switch (mOperator) {
+                        case GREATER_THAN:
+                            return ld > rd;
+                        case GREATER_THAN_EQUAL:
+                            return ld >= rd;
+                        case LESS_THAN:
+                            return ld < rd;
+                        case LESS_THAN_EQUAL:
+                            return ld <= rd;
+                    }
+                } else if (getType(l) == PropertyType.String) {
+                    final String ls = (String) l;
+                    final String rs = (String) r;
+
+                    final int compare = ls.compareTo(rs);
+                    switch (mOperator) {
+                        case GREATER_THAN:
+                            return compare > 0;
+                        case GREATER_THAN_EQUAL:
+                            return compare >= 0;
+                        case LESS_THAN:
+                            return compare < 0;
+                        case LESS_THAN_EQUAL:
+                            return compare <= 0;
+                    }
+                }
+            }
+
+            return null;
         }
+
+        private final Operator mOperator;
+        private final Node mLeft;
+        private final Node mRight;
     }
 
-    static Object evaluateOperator(JSONObject node, JSONObject properties) throws JSONException {
-        if (!node.has(OPERATOR_KEY)) {
-            throw new IllegalArgumentException("Missing required keys: " + OPERATOR_KEY);
+    private static class DefinedNode extends Node {
+        public DefinedNode(boolean negate, Node child) {
+            mNegate = negate;
+            mChild = child;
         }
 
-        switch (node.getString(OPERATOR_KEY)) {
-            case AND_OPERATOR:
-                return evaluateAnd(node, properties);
-            case OR_OPERATOR:
-                return evaluateOr(node, properties);
-            case IN_OPERATOR:
-            case NOT_IN_OPERATOR:
-                return evaluateIn(node, properties);
-            case PLUS_OPERATOR:
-                return evaluatePlus(node, properties);
-            case MINUS_OPERATOR:
-            case MUL_OPERATOR:
-            case DIV_OPERATOR:
-            case MOD_OPERATOR:
-                return evaluateArithmetic(node, properties);
-            case EQUALS_OPERATOR:
-            case NOT_EQUALS_OPERATOR:
-                return evaluateEquality(node, properties);
-            case GREATER_THAN_OPERATOR:
-            case GREATER_THAN_EQUAL_OPERATOR:
-            case LESS_THAN_OPERATOR:
-            case LESS_THAN_EQUAL_OPERATOR:
-                return evaluateComparison(node, properties);
-            case BOOLEAN_OPERATOR:
-                return evaluateBoolean(node, properties);
-            case DATETIME_OPERATOR:
-                return evaluateDateTime(node, properties);
-            case LIST_OPERATOR:
-                return evaluateList(node, properties);
-            case NUMBER_OPERATOR:
-                return evaluateNumber(node, properties);
-            case STRING_OPERATOR:
-                return evaluateString(node, properties);
-            case DEFINED_OPERATOR:
-            case NOT_DEFINED_OPERATOR:
-                return evaluateDefined(node, properties);
-            case NOT_OPERATOR:
-                return evaluateNot(node, properties);
-            default:
-                throw new IllegalArgumentException("Unknown operator: " + node.getString(OPERATOR_KEY));
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final boolean v = mChild.evaluate(properties) != null;
+            return mNegate ? !v : v;
         }
+
+        private final boolean mNegate;
+        private final Node mChild;
     }
 
-    private static Object evaluateNode(JSONObject node, JSONObject properties) throws JSONException {
-        if (node.has(PROPERTY_KEY)) {
-            return evaluateOperand(node, properties);
+    private static class NotNode extends Node {
+        public NotNode(Node child) {
+            mChild = child;
+        }
+
+        @Override
+        public Object evaluate(JSONObject properties) throws JSONException {
+            final Object v = mChild.evaluate(properties);
+            switch (getType(v)) {
+                case Boolean:
+                    return !toBoolean(v);
+                case Null:
+                    return true;
+            }
+            return null;
         }
 
-        return evaluateOperator(node, properties);
+        private final Node mChild;
     }
 
-    public boolean evaluate(JSONObject properties) throws JSONException {
-        return toBoolean(evaluateOperator(mSelector, properties));
+    /**
+     * SimpleDateFormat is expensive to create and not thread safe, so each thread that
+     * evaluates selectors gets its own, along with the last string it parsed.
+     * Dates are in the device's time zone, so the codec follows changes to the default zone
+     * whenever updateTimeZone is called.
+     */
+    private static class DateCodec {
+        public DateCodec() {
+            mFormat = new SimpleDateFormat(ENGAGE_DATE_FORMAT_STRING, Locale.US);
+            mTimeZone = mFormat.getTimeZone();
+        }
+
+        public Date parse(String text) {
+            if (!text.equals(mLastParsedText)) {
+                mLastParsedDate = parseUncached(text);
+                mLastParsedText = text;
+            }
+            return null == mLastParsedDate ? null : new Date(mLastParsedDate.getTime());
+        }
+
+        // For callers that keep their own parse, so the last parsed string stays cached
+        public Date parseUncached(String text) {
+            try {
+                return mFormat.parse(text);
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+
+        public String format(Date date) {
+            return mFormat.format(date);
+        }
+
+        public TimeZone getTimeZone() {
+            return mTimeZone;
+        }
+
+        public void updateTimeZone() {
+            final TimeZone zone = TimeZone.getDefault();
+            if (!zone.equals(mTimeZone)) {
+                mFormat.setTimeZone(zone);
+                mTimeZone = zone;
+                mLastParsedText = null;
+                mLastParsedDate = null;
+            }
+        }
+
+        private final SimpleDateFormat mFormat;
+        private TimeZone mTimeZone;
+        private String mLastParsedText;
+        private Date mLastParsedDate;
     }
 
-    private final JSONObject mSelector;
+    private final Node mRoot;
     private static Calendar sCalendar; // For testing purposes only!
 
+    private static final ThreadLocal<DateCodec> sDateCodec = new ThreadLocal<DateCodec>() {
+        @Override
+        protected DateCodec initialValue() {
+            return new DateCodec();
+        }
+    };
+
     /* package */ static void setCalendar(Calendar calendar, boolean isTestMode) {
         if (isTestMode) {
             sCalendar = calendar;
@@ -0,0 +1,139 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of event triggered notifications, keyed by the names of the events
+ * that trigger them. Notifications with a "$any_event" trigger are kept in a bucket of their own
+ * that is checked for every event.
+ *
+ * Lookups return the same notification a scan over the original list would have returned,
+ * but only evaluate the selectors of notifications that could be triggered by the event.
+ * Instances are safe to read from any thread.
+ */
+/* package */ class TriggerIndex {
+
+    public static final TriggerIndex EMPTY = new TriggerIndex(Collections.<InAppNotification>emptyList());
+
+    public TriggerIndex(List<InAppNotification> notifications) {
+        final Map<String, BucketBuilder> byEventName = new HashMap<String, BucketBuilder>();
+        final BucketBuilder anyEvent = new BucketBuilder();
+
+        final int notificationCount = notifications.size();
+        for (int position = 0; position < notificationCount; position++) {
+            final InAppNotification notification = notifications.get(position);
+            final List<DisplayTrigger> triggers = notification.getDisplayTriggers();
+            if (null == triggers) {
+                continue;
+            }
+
+            for (final DisplayTrigger trigger : triggers) {
+                final String eventName = trigger.getEventName();
+                final BucketBuilder bucket;
+                if (DisplayTrigger.ANY_EVENT.equals(eventName)) {
+                    bucket = anyEvent;
+                } else {
+                    BucketBuilder named = byEventName.get(eventName);
+                    if (null == named) {
+                        named = new BucketBuilder();
+                        byEventName.put(eventName, named);
+                    }
+                    bucket = named;
+                }
+                bucket.add(position, notification);
+            }
+        }
+
+        mByEventName = new HashMap<String, Bucket>(byEventName.size());
+        for (final Map.Entry<String, BucketBuilder> entry : byEventName.entrySet()) {
+            mByEventName.put(entry.getKey(), entry.getValue().build());
+        }
+        mAnyEvent = anyEvent.build();
+        mSize = notificationCount;
+    }
+
+    public boolean isEmpty() {
+        return 0 == mSize;
+    }
+
+    /**
+     * Returns the first indexed notification (in the order of the list this index was built from)
+     * with a trigger matching eventDescription, or null if there is no such notification.
+     */
+    public InAppNotification findMatch(AnalyticsMessages.EventDescription eventDescription) {
+        final Bucket named = mByEventName.get(eventDescription.getEventName());
+        final Bucket any = mAnyEvent;
+
+        // Merge the two buckets by position, so matches are found in list order
+        int namedIx = 0;
+        int anyIx = 0;
+        final int namedCount = null == named ? 0 : named.positions.length;
+        final int anyCount = any.positions.length;
+        while (namedIx < namedCount || anyIx < anyCount) {
+            final InAppNotification candidate;
+            if (anyIx >= anyCount || (namedIx < namedCount && named.positions[namedIx] < any.positions[anyIx])) {
+                candidate = named.notifications[namedIx++];
+            } else if (namedIx >= namedCount || any.positions[anyIx] < named.positions[namedIx]) {
+                candidate = any.notifications[anyIx++];
+            } else {
+                // Same notification in both buckets
+                candidate = any.notifications[anyIx++];
+                namedIx++;
+            }
+
+            if (candidate.matchesEventDescription(eventDescription)) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private static class Bucket {
+        public Bucket(int[] positions, InAppNotification[] notifications) {
+            this.positions = positions;
+            this.notifications = notifications;
+        }
+
+        public final int[] positions;
+        public final InAppNotification[] notifications;
+    }
+
+    private static class BucketBuilder {
+        public BucketBuilder() {
+            mPositions = new ArrayList<Integer>();
+            mNotifications = new ArrayList<InAppNotification>();
+        }
+
+        // Positions are added in increasing order, so a notification with several triggers
+        // for the same event is only ever the last thing in the bucket
+        public void add(int position, InAppNotification notification) {
+            final int size = mPositions.size();
+            if (size > 0 && mPositions.get(size - 1) == position) {
+                return;
+            }
+            mPositions.add(position);
+            mNotifications.add(notification);
+        }
+
+        public Bucket build() {
+            final int size = mPositions.size();
+            final int[] positions = new int[size];
+            for (int i = 0; i < size; i++) {
+                positions[i] = mPositions.get(i);
+            }
+            return new Bucket(positions, mNotifications.toArray(new InAppNotification[size]));
+        }
+
+        private final List<Integer> mPositions;
+        private final List<InAppNotification> mNotifications;
+    }
+
+    private final Map<String, Bucket> mByEventName;
+    private final Bucket mAnyEvent;
+    private final int mSize;
+}
@@ -0,0 +1,253 @@
+package com.mixpanel.android.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RSRuntimeException;
+import android.renderscript.RenderScript;
+import android.renderscript.ScriptIntrinsicBlur;
+
+/**
+ * Blurs bitmaps in place, using the fastest implementation available on the device.
+ *
+ * On Jelly Bean MR1 and above this is the RenderScript blur intrinsic, which runs on the GPU or
+ * vectorized on the CPU. Elsewhere (or if RenderScript fails to start) the bitmap is scaled down,
+ * blurred with a {@link StackBlurManager}, and scaled back up. Both keep their scratch space
+ * between calls, so engines should be kept and reused rather than created per blur.
+ *
+ * Bitmaps passed to {@link #blur(Bitmap, int)} must be mutable and ARGB_8888. Thread safe.
+ */
+public abstract class BlurEngine {
+
+    /**
+     * Returns a shared engine for this process, creating it if needed.
+     */
+    public static synchronized BlurEngine getInstance(Context context) {
+        if (null == sInstance) {
+            sInstance = create(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a new engine, which should be {@link #release()}d when it is no longer needed.
+     */
+    public static BlurEngine create(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            try {
+                return new RenderScriptBlur(context);
+            } catch (final RSRuntimeException e) {
+                MPLog.i(LOGTAG, "RenderScript is not available, blurs will be done in Java", e);
+            }
+        }
+        return new DownscaledStackBlur(DEFAULT_DOWNSCALE);
+    }
+
+    /**
+     * Blurs bitmap in place with a blur of the given radius, in pixels of bitmap.
+     */
+    public abstract void blur(Bitmap bitmap, int radius);
+
+    /**
+     * Frees any scratch space and native resources held by the engine.
+     */
+    public abstract void release();
+
+    /**
+     * Blurs with the RenderScript intrinsic. The intrinsic can't blur with a radius of more
+     * than 25 pixels, so bigger blurs are run on a downscaled copy.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    /* package */ static class RenderScriptBlur extends BlurEngine {
+        public RenderScriptBlur(Context context) {
+            mRenderScript = RenderScript.create(context);
+            mScript = ScriptIntrinsicBlur.create(mRenderScript, Element.U8_4(mRenderScript));
+            mFallback = null;
+        }
+
+        @Override
+        public synchronized void blur(Bitmap bitmap, int radius) {
+            if (radius < 1) {
+                return;
+            }
+
+            if (null == mRenderScript) {
+                // RenderScript failed or was released, we can still blur in Java
+                if (null == mFallback) {
+                    mFallback = new DownscaledStackBlur(DEFAULT_DOWNSCALE);
+                }
+                mFallback.blur(bitmap, radius);
+                return;
+            }
+
+            try {
+                if (radius > MAX_RADIUS) {
+                    final int scale = (radius + MAX_RADIUS - 1) / MAX_RADIUS;
+                    final Bitmap small = mScaler.scaleDown(bitmap, scale);
+                    blurAllocation(small, radius / scale);
+                    mScaler.scaleUp(small, bitmap);
+                } else {
+                    blurAllocation(bitmap, radius);
+                }
+            } catch (final RSRuntimeException e) {
+                MPLog.w(LOGTAG, "RenderScript blur failed, falling back to a Java blur", e);
+                releaseRenderScript();
+                mFallback = new DownscaledStackBlur(DEFAULT_DOWNSCALE);
+                mFallback.blur(bitmap, radius);
+            }
+        }
+
+        @Override
+        public synchronized void release() {
+            releaseRenderScript();
+            mScaler.release();
+            if (null != mFallback) {
+                mFallback.release();
+                mFallback = null;
+            }
+        }
+
+        // Reuses the output allocation as long as bitmaps keep the same size
+        private void blurAllocation(Bitmap bitmap, int radius) {
+            final Allocation input = Allocation.createFromBitmap(mRenderScript, bitmap,
+                    Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+            try {
+                if (null == mOutput || mOutputWidth != bitmap.getWidth() || mOutputHeight != bitmap.getHeight()) {
+                    if (null != mOutput) {
+                        mOutput.destroy();
+                    }
+                    mOutput = Allocation.createTyped(mRenderScript, input.getType());
+                    mOutputWidth = bitmap.getWidth();
+                    mOutputHeight = bitmap.getHeight();
+                }
+                mScript.setRadius(radius);
+                mScript.setInput(input);
+                mScript.forEach(mOutput);
+                mOutput.copyTo(bitmap);
+            } finally {
+                input.destroy();
+            }
+        }
+
+        private void releaseRenderScript() {
+            if (null != mOutput) {
+                mOutput.destroy();
+                mOutput = null;
+            }
+            if (null != mRenderScript) {
+                mScript.destroy();
+                mRenderScript.destroy();
+                mRenderScript = null;
+            }
+        }
+
+        private RenderScript mRenderScript;
+        private final ScriptIntrinsicBlur mScript;
+        private final Scaler mScaler = new Scaler();
+        private Allocation mOutput;
+        private int mOutputWidth;
+        private int mOutputHeight;
+        private BlurEngine mFallback;
+
+        private static final int MAX_RADIUS = 25;
+    }
+
+    /**
+     * Blurs a copy of the bitmap scaled down by a constant factor with a stack blur, and scales the
+     * result back up. Since a blurred image has no fine detail to lose, this looks nearly the same
+     * as blurring at full size, at a fraction of the cost.
+     */
+    /* package */ static class DownscaledStackBlur extends BlurEngine {
+        public DownscaledStackBlur(int downscale) {
+            mDownscale = downscale;
+            mStackBlur = new StackBlurManager();
+            mScaler = new Scaler();
+        }
+
+        @Override
+        public synchronized void blur(Bitmap bitmap, int radius) {
+            if (radius < 1) {
+                return;
+            }
+
+            // Don't scale so far that the blur disappears
+            final int scale = Math.max(1, Math.min(mDownscale, radius));
+            if (scale == 1) {
+                mStackBlur.blur(bitmap, radius);
+                return;
+            }
+
+            final Bitmap small = mScaler.scaleDown(bitmap, scale);
+            mStackBlur.blur(small, radius / scale);
+            mScaler.scaleUp(small, bitmap);
+        }
+
+        @Override
+        public synchronized void release() {
+            mStackBlur = new StackBlurManager();
+            mScaler.release();
+        }
+
+        private final int mDownscale;
+        private StackBlurManager mStackBlur;
+        private final Scaler mScaler;
+    }
+
+    // Scales bitmaps into a reused scratch bitmap, with bilinear filtering. Not thread safe.
+    private static class Scaler {
+        public Scaler() {
+            mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            mSourceRect = new Rect();
+            mDestRect = new Rect();
+        }
+
+        public Bitmap scaleDown(Bitmap bitmap, int scale) {
+            final int width = Math.max(1, bitmap.getWidth() / scale);
+            final int height = Math.max(1, bitmap.getHeight() / scale);
+            if (null == mScratch || mScratch.getWidth() != width || mScratch.getHeight() != height) {
+                release();
+                mScratch = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                mScratchCanvas = new Canvas(mScratch);
+            }
+
+            mSourceRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            mDestRect.set(0, 0, width, height);
+            mScratchCanvas.drawBitmap(bitmap, mSourceRect, mDestRect, mPaint);
+            return mScratch;
+        }
+
+        public void scaleUp(Bitmap small, Bitmap target) {
+            mSourceRect.set(0, 0, small.getWidth(), small.getHeight());
+            mDestRect.set(0, 0, target.getWidth(), target.getHeight());
+            new Canvas(target).drawBitmap(small, mSourceRect, mDestRect, mPaint);
+        }
+
+        public void release() {
+            if (null != mScratch) {
+                mScratch.recycle();
+                mScratch = null;
+                mScratchCanvas = null;
+            }
+        }
+
+        private final Paint mPaint;
+        private final Rect mSourceRect;
+        private final Rect mDestRect;
+        private Bitmap mScratch;
+        private Canvas mScratchCanvas;
+    }
+
+    private static BlurEngine sInstance;
+
+    // Captures are already taken at half size, so this blurs at 1/8 of the screen's resolution
+    private static final int DEFAULT_DOWNSCALE = 4;
+
+    @SuppressWarnings("unused")
+    private static final String LOGTAG = "MixpanelAPI.BlurEngine";
+}
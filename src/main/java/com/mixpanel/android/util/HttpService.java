@@ -14,10 +14,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -30,6 +32,22 @@ public class HttpService implements RemoteService {
     private static boolean sIsMixpanelBlocked;
     private static final int MIN_UNAVAILABLE_HTTP_RESPONSE_CODE = HttpURLConnection.HTTP_INTERNAL_ERROR;
     private static final int MAX_UNAVAILABLE_HTTP_RESPONSE_CODE = 599;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    public HttpService() {
+        this(NO_DEADLINE);
+    }
+
+    /**
+     * A service whose requests give up at deadline, a System.currentTimeMillis() time. Connect and read
+     * timeouts are cut to the time left, and a response that is still arriving at the deadline is abandoned
+     * with a SocketTimeoutException, since a blocked read can't be interrupted.
+     */
+    public HttpService(long deadline) {
+        mDeadline = deadline;
+    }
 
     @Override
     public void checkIsMixpanelBlocked() {
@@ -91,6 +109,17 @@ public class HttpService implements RemoteService {
 
     @Override
     public byte[] performRequest(String endpointUrl, String token, String jsonPayload, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
+        final boolean traced = MPTrace.beginSection(MPTrace.HTTP_REQUEST);
+        MPTrace.setCounter(MPTrace.COUNTER_REQUESTS_IN_FLIGHT, sRequestsInFlight.incrementAndGet());
+        try {
+            return sendRequest(endpointUrl, token, jsonPayload, socketFactory);
+        } finally {
+            MPTrace.setCounter(MPTrace.COUNTER_REQUESTS_IN_FLIGHT, sRequestsInFlight.decrementAndGet());
+            MPTrace.endSection(traced);
+        }
+    }
+
+    private byte[] sendRequest(String endpointUrl, String token, String jsonPayload, SSLSocketFactory socketFactory) throws ServiceUnavailableException, IOException {
         MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
 
         byte[] response = null;
@@ -110,6 +139,7 @@ public class HttpService implements RemoteService {
             MPLog.d(LOGTAG, "Endpoint url: " + endpointUrl);
 
             try {
+                final int remainingMillis = remainingMillis();
                 final URL url = new URL(endpointUrl);
                 connection = (HttpURLConnection) url.openConnection();
                 if (null != socketFactory && connection instanceof HttpsURLConnection) {
@@ -120,8 +150,8 @@ public class HttpService implements RemoteService {
                     connection.setRequestProperty("jwt", token);
                 }
                 connection.setRequestProperty("label", "app");
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(30000);
+                connection.setConnectTimeout(Math.min(CONNECT_TIMEOUT_MILLIS, remainingMillis));
+                connection.setReadTimeout(Math.min(READ_TIMEOUT_MILLIS, remainingMillis));
                 if (null != jsonPayload) {
                     byte[] bytes = jsonPayload.getBytes("UTF-8");
 
@@ -146,6 +176,9 @@ public class HttpService implements RemoteService {
             } catch (final EOFException e) {
                 MPLog.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
                 retries = retries + 1;
+            } catch (final SocketTimeoutException e) {
+                // Asking for the response code would try to connect again
+                throw e;
             } catch (final IOException e) {
                 if (connection != null && connection.getResponseCode() >= MIN_UNAVAILABLE_HTTP_RESPONSE_CODE && connection.getResponseCode() <= MAX_UNAVAILABLE_HTTP_RESPONSE_CODE) {
                     throw new ServiceUnavailableException("Service Unavailable", connection.getHeaderField("Retry-After"));
@@ -170,7 +203,18 @@ public class HttpService implements RemoteService {
         return response;
     }
 
-    private static byte[] slurp(final InputStream inputStream)
+    private int remainingMillis() throws SocketTimeoutException {
+        if (mDeadline == NO_DEADLINE) {
+            return Integer.MAX_VALUE;
+        }
+        final long remaining = mDeadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Request deadline passed");
+        }
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    private byte[] slurp(final InputStream inputStream)
             throws IOException {
         final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
@@ -179,11 +223,17 @@ public class HttpService implements RemoteService {
 
         while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
             buffer.write(data, 0, nRead);
+            remainingMillis();
         }
 
         buffer.flush();
         return buffer.toByteArray();
     }
 
+    private final long mDeadline;
+
+    // Shared by every HttpService, for the requests in flight trace counter
+    private static final AtomicInteger sRequestsInFlight = new AtomicInteger(0);
+
     private static final String LOGTAG = "MixpanelAPI.Message";
 }
@@ -15,12 +15,29 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 
 import javax.net.ssl.SSLSocketFactory;
 
 /**
- * ABSOLUTELY NOT thread, or even process safe.
- * Writes and reads files and directories at known paths, and uses a shared instance of MessageDigest.
+ * Downloads, stores and decodes images, in three tiers:
+ *
+ * Decoded bitmaps are kept in a memory LRU cache shared by every ImageStore. Downloaded files are kept
+ * on disk in a directory per store, and the least recently used files are deleted when the directory grows
+ * past MPConfig.getImageCacheMaxDiskSize(). Concurrent requests for an image that isn't on disk yet
+ * share a single download.
+ *
+ * Bitmaps can be decoded at a reduced size for a given target size, and each size is cached separately.
+ *
+ * Safe to use from multiple threads, but not from multiple processes.
  */
 public class ImageStore {
     public static class CantGetImageException extends Exception {
@@ -70,66 +87,183 @@ public class ImageStore {
 
     public File getImageFile(String url) throws CantGetImageException {
         final File file = storedFile(url);
-        byte[] bytes = null;
 
         if (file == null || !file.exists()) {
-            try {
-                final SSLSocketFactory factory = mConfig.getSSLSocketFactory();
-                bytes = mPoster.performRequest(url, null, null, factory);
-            } catch (IOException e) {
-                throw new CantGetImageException("Can't download bitmap", e);
-            } catch (RemoteService.ServiceUnavailableException e) {
-                throw new CantGetImageException("Couldn't download image due to service availability", e);
-            }
-
-            if (null != bytes) {
-                if (null != file && bytes.length < MAX_BITMAP_SIZE) {
-                    OutputStream out = null;
-                    try {
-                        out = new FileOutputStream(file);
-                        out.write(bytes);
-                    } catch (FileNotFoundException e) {
-                        throw new CantGetImageException("It appears that ImageStore is misconfigured, or disk storage is unavailable- can't write to bitmap directory", e);
-                    } catch (IOException e) {
-                        throw new CantGetImageException("Can't store bitmap", e);
-                    } finally {
-                        if (null != out) {
-                            try {
-                                out.close();
-                            } catch (IOException e) {
-                                MPLog.w(LOGTAG, "Problem closing output file", e);
-                            }
-                        }
-                    }
-                }
-            }
+            downloadOnce(url, file);
+        } else {
+            // Modification time is our access time for disk LRU eviction
+            final boolean ignored = file.setLastModified(System.currentTimeMillis());
         }
 
         return file;
     }
 
     public Bitmap getImage(String url) throws CantGetImageException {
-        Bitmap cachedBitmap = getBitmapFromMemCache(url);
+        return getImage(url, 0, 0);
+    }
+
+    /**
+     * Returns the image at url, decoded at the smallest power of two reduction that is
+     * still at least targetWidth x targetHeight pixels. A target of 0 x 0 decodes at full size.
+     */
+    public Bitmap getImage(String url, int targetWidth, int targetHeight) throws CantGetImageException {
+        final String cacheKey = memoryCacheKey(url, targetWidth, targetHeight);
+        Bitmap cachedBitmap = getBitmapFromMemCache(cacheKey);
 
         if (cachedBitmap == null) {
             final File imageFile = getImageFile(url);
-            cachedBitmap = decodeImage(imageFile);
-            addBitmapToMemoryCache(url, cachedBitmap);
+            if (null == imageFile) {
+                throw new CantGetImageException("Can't decode images without a place to store them");
+            }
+            cachedBitmap = decodeImage(imageFile, targetWidth, targetHeight);
+            addBitmapToMemoryCache(cacheKey, cachedBitmap);
         }
 
         return cachedBitmap;
     }
 
-    private static Bitmap decodeImage(File file) throws CantGetImageException {
-        BitmapFactory.Options option = new BitmapFactory.Options();
-        option.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(file.getAbsolutePath(), option);
-        float imageSize = (float) option.outHeight * option.outWidth * 4; // 4 bytes per pixel
+    // Downloads url into file, unless another thread is already downloading it, in which case
+    // we wait for (and share the outcome of) that download.
+    private void downloadOnce(String url, File file) throws CantGetImageException {
+        final String key = null == file ? url : file.getAbsolutePath();
+        final Download download = new Download();
+        final Download inFlight = sInFlightDownloads.putIfAbsent(key, download);
+        if (null != inFlight) {
+            inFlight.await();
+            return;
+        }
+
+        try {
+            download(url, file);
+            download.finish(null);
+        } catch (final CantGetImageException e) {
+            download.finish(e);
+            throw e;
+        } catch (final RuntimeException e) {
+            download.finish(new CantGetImageException("Unexpected failure downloading image", e));
+            throw e;
+        } finally {
+            sInFlightDownloads.remove(key, download);
+        }
+    }
+
+    private void download(String url, File file) throws CantGetImageException {
+        byte[] bytes = null;
+        try {
+            final SSLSocketFactory factory = mConfig.getSSLSocketFactory();
+            bytes = mPoster.performRequest(url, null, null, factory);
+        } catch (IOException e) {
+            throw new CantGetImageException("Can't download bitmap", e);
+        } catch (RemoteService.ServiceUnavailableException e) {
+            throw new CantGetImageException("Couldn't download image due to service availability", e);
+        }
+
+        if (null != bytes) {
+            if (null != file && bytes.length < MAX_BITMAP_SIZE) {
+                // Write to a temporary file, so no reader ever sees a partial image
+                final File partial = new File(mDirectory, PARTIAL_FILE_PREFIX + file.getName());
+                OutputStream out = null;
+                try {
+                    out = new FileOutputStream(partial);
+                    out.write(bytes);
+                } catch (FileNotFoundException e) {
+                    throw new CantGetImageException("It appears that ImageStore is misconfigured, or disk storage is unavailable- can't write to bitmap directory", e);
+                } catch (IOException e) {
+                    throw new CantGetImageException("Can't store bitmap", e);
+                } finally {
+                    if (null != out) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            MPLog.w(LOGTAG, "Problem closing output file", e);
+                        }
+                    }
+                }
+
+                if (!partial.renameTo(file)) {
+                    final boolean ignored = partial.delete();
+                    throw new CantGetImageException("Can't store bitmap, rename failed");
+                }
+                trimDiskCache(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used image files in our directory until the directory is within
+     * its size budget. Never deletes keep, the file that was just written.
+     */
+    private void trimDiskCache(File keep) {
+        final long maxBytes = mConfig.getImageCacheMaxDiskSize();
+        synchronized (sDiskLock) {
+            final File[] files = mDirectory.listFiles();
+            if (null == files) {
+                return;
+            }
+
+            long totalBytes = 0;
+            final List<File> images = new ArrayList<File>(files.length);
+            for (final File f : files) {
+                if (f.getName().startsWith(FILE_PREFIX)) {
+                    images.add(f);
+                    totalBytes += f.length();
+                }
+            }
+
+            if (totalBytes <= maxBytes) {
+                return;
+            }
+
+            final Map<File, Long> lastUsed = new HashMap<File, Long>(images.size());
+            for (final File f : images) {
+                lastUsed.put(f, f.lastModified());
+            }
+            Collections.sort(images, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    final long l = lastUsed.get(lhs);
+                    final long r = lastUsed.get(rhs);
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+
+            for (final File f : images) {
+                if (totalBytes <= maxBytes) {
+                    break;
+                }
+                if (f.equals(keep)) {
+                    continue;
+                }
+                final long length = f.length();
+                if (f.delete()) {
+                    totalBytes -= length;
+                }
+            }
+        }
+    }
+
+    private static Bitmap decodeImage(File file, int targetWidth, int targetHeight) throws CantGetImageException {
+        final String path = file.getAbsolutePath();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            final boolean ignored = file.delete();
+            throw new CantGetImageException("Bitmap on disk can't be opened or was corrupt");
+        }
+
+        final int sampleSize = sampleSizeFor(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        final int sampledWidth = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int sampledHeight = (options.outHeight + sampleSize - 1) / sampleSize;
+        float imageSize = (float) sampledWidth * sampledHeight * 4; // 4 bytes per pixel
         if (imageSize > getAvailableMemory()) {
             throw new CantGetImageException("Do not have enough memory for the image");
         }
 
-        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+
+        final Bitmap bitmap = BitmapFactory.decodeFile(path, options);
         if (null == bitmap) {
             final boolean ignored = file.delete();
             throw new CantGetImageException("Bitmap on disk can't be opened or was corrupt");
@@ -138,6 +272,26 @@ public class ImageStore {
         return bitmap;
     }
 
+    // The largest power of two that keeps the decoded image at least as big as the target in both dimensions
+    /* package */ static int sampleSizeFor(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+
+        while ((width / (sampleSize * 2)) >= targetWidth && (height / (sampleSize * 2)) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static String memoryCacheKey(String url, int targetWidth, int targetHeight) {
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return url;
+        }
+        return url + "#" + targetWidth + "x" + targetHeight;
+    }
+
     private static float getAvailableMemory() {
         Runtime runtime = Runtime.getRuntime();
         float used = runtime.totalMemory() - runtime.freeMemory();  // used      = heap - free
@@ -145,13 +299,15 @@ public class ImageStore {
     }
 
     public void clearStorage() {
-        File[] files = mDirectory.listFiles();
-        int length = files.length;
-        for (int i = 0; i < length; i++) {
-            final File file = files[i];
-            final String filename = file.getName();
-            if (filename.startsWith(FILE_PREFIX)) {
-                final boolean ignored = file.delete();
+        synchronized (sDiskLock) {
+            File[] files = mDirectory.listFiles();
+            int length = files.length;
+            for (int i = 0; i < length; i++) {
+                final File file = files[i];
+                final String filename = file.getName();
+                if (filename.startsWith(FILE_PREFIX) || filename.startsWith(PARTIAL_FILE_PREFIX)) {
+                    final boolean ignored = file.delete();
+                }
             }
         }
 
@@ -161,8 +317,21 @@ public class ImageStore {
     public void deleteStorage(String url) {
         final File file = storedFile(url);
         if (null != file) {
-            final boolean ignored = file.delete();
-            removeBitmapFromMemCache(url);
+            synchronized (sDiskLock) {
+                final boolean ignored = file.delete();
+            }
+            removeSizesFromMemCache(url);
+        }
+    }
+
+    // Removes url's image at every size it was decoded at, see memoryCacheKey
+    private static void removeSizesFromMemCache(String url) {
+        removeBitmapFromMemCache(url);
+        final String sizedPrefix = url + "#";
+        for (final String key : sMemoryCache.snapshot().keySet()) {
+            if (key.startsWith(sizedPrefix)) {
+                removeBitmapFromMemCache(key);
+            }
         }
     }
 
@@ -171,35 +340,60 @@ public class ImageStore {
             return null;
         }
 
-        final byte[] hashed = mDigest.digest(url.getBytes());
+        final byte[] hashed;
+        synchronized (mDigest) {
+            hashed = mDigest.digest(url.getBytes());
+        }
         final String safeName = FILE_PREFIX + Base64.encodeToString(hashed, Base64.URL_SAFE | Base64.NO_WRAP);
         return new File(mDirectory, safeName);
     }
 
+    // LruCache is synchronized internally, so these need no locking of their own
+
     public static void addBitmapToMemoryCache(String key, Bitmap bitmap) {
         if (getBitmapFromMemCache(key) == null) {
-            synchronized (sMemoryCache) {
-                sMemoryCache.put(key, bitmap);
-            }
+            sMemoryCache.put(key, bitmap);
         }
     }
 
     public static Bitmap getBitmapFromMemCache(String key) {
-        synchronized (sMemoryCache) {
-            return sMemoryCache.get(key);
-        }
+        return sMemoryCache.get(key);
     }
 
     public static void removeBitmapFromMemCache(String key) {
-        synchronized (sMemoryCache) {
-            sMemoryCache.remove(key);
-        }
+        sMemoryCache.remove(key);
     }
 
     public static void clearMemCache() {
-        synchronized (sMemoryCache) {
-            sMemoryCache.evictAll();
+        sMemoryCache.evictAll();
+    }
+
+    private static class Download {
+        public Download() {
+            mDone = new CountDownLatch(1);
+        }
+
+        public void finish(CantGetImageException error) {
+            mError = error;
+            mDone.countDown();
+        }
+
+        public void await() throws CantGetImageException {
+            try {
+                mDone.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CantGetImageException("Interrupted while waiting for image download", e);
+            }
+
+            final CantGetImageException error = mError;
+            if (null != error) {
+                throw new CantGetImageException(error.getMessage(), error);
+            }
         }
+
+        private final CountDownLatch mDone;
+        private volatile CantGetImageException mError;
     }
 
     private final File mDirectory;
@@ -207,10 +401,13 @@ public class ImageStore {
     private final MessageDigest mDigest;
     private final MPConfig mConfig;
     private static LruCache<String, Bitmap> sMemoryCache;
+    private static final ConcurrentMap<String, Download> sInFlightDownloads = new ConcurrentHashMap<String, Download>();
+    private static final Object sDiskLock = new Object();
 
     private static final String DEFAULT_DIRECTORY_PREFIX = "MixpanelAPI.Images.";
     private static final int MAX_BITMAP_SIZE = 10000000; // 10 MB
     private static final String FILE_PREFIX = "MP_IMG_";
+    private static final String PARTIAL_FILE_PREFIX = "PARTIAL_";
 
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.ImageStore";
@@ -1,8 +1,14 @@
 package com.mixpanel.android.util;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+
 public class JSONUtils {
 
     /***
@@ -24,4 +30,76 @@ public class JSONUtils {
 
         return null;
     }
+
+    /**
+     * Reads the next object from reader into a JSONObject. Used to build org.json
+     * trees for just the parts of a streamed message that we need to keep.
+     */
+    public static JSONObject readObject(JsonReader reader)
+            throws IOException, JSONException {
+        final JSONObject ret = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            ret.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return ret;
+    }
+
+    /**
+     * Reads the next array from reader into a JSONArray.
+     */
+    public static JSONArray readArray(JsonReader reader)
+            throws IOException, JSONException {
+        final JSONArray ret = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ret.put(readValue(reader));
+        }
+        reader.endArray();
+        return ret;
+    }
+
+    /**
+     * Reads the next value from reader, as the value org.json would have produced for it.
+     * Nulls are returned as JSONObject.NULL.
+     */
+    public static Object readValue(JsonReader reader)
+            throws IOException, JSONException {
+        final JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return readNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                throw new JSONException("Unexpected " + token + " in JSON stream");
+        }
+    }
+
+    // Matches the number types of JSONTokener, so values read here compare equal to parsed ones
+    private static Number readNumber(String literal) {
+        if (literal.indexOf('.') == -1 && literal.indexOf('e') == -1 && literal.indexOf('E') == -1) {
+            try {
+                final long longValue = Long.parseLong(literal);
+                if (longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) {
+                    return (int) longValue;
+                }
+                return longValue;
+            } catch (final NumberFormatException e) {
+                // Too big for a long, fall through to double
+            }
+        }
+        return Double.valueOf(literal);
+    }
 }
@@ -0,0 +1,41 @@
+package com.mixpanel.android.util;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread pools for the library's own work. For internal use in the Mixpanel library.
+ */
+public class MPExecutors {
+
+    /**
+     * A pool of at most threadCount daemon threads, so the pool never keeps the app's process alive.
+     * Idle threads exit after keepAliveSeconds, so a pool that's rarely used costs no threads between uses.
+     * Work beyond threadCount tasks waits in an unbounded queue.
+     *
+     * @param threadName name given to every thread in the pool, for thread dumps and traces
+     * @param priority a Thread priority, like Thread.MIN_PRIORITY for work no one is waiting on
+     */
+    public static ThreadPoolExecutor newDaemonPool(final String threadName, int threadCount, long keepAliveSeconds, final int priority) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threadCount, threadCount,
+            keepAliveSeconds, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    thread.setPriority(priority);
+                    return thread;
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private MPExecutors() {}
+}
@@ -4,6 +4,15 @@ import android.util.Log;
 
 import com.mixpanel.android.mpmetrics.MPConfig;
 
+/**
+ * Logging for the library, filtered by a minimum level.
+ *
+ * Every method checks the level before doing anything else. The overloads that take arguments
+ * only build their message when it is going to be logged: each "{}" in the format is replaced
+ * by the next argument's toString(), so passing a JSONObject or a large String costs nothing when
+ * the level is disabled. Primitive arguments are still boxed when the call is made, so hot paths
+ * that log numbers should check {@link #isLoggable(int)} first.
+ */
 public class MPLog {
 
     public static final int VERBOSE = 2;
@@ -19,6 +28,14 @@ public class MPLog {
         sMinLevel = minLevel;
     }
 
+    /**
+     * Whether messages at the given level will be logged, for guarding log calls that have to do
+     * work to build their message.
+     */
+    public static boolean isLoggable(int level) {
+        return sMinLevel <= level;
+    }
+
     public static void v(String tag, String message) {
         if (shouldLog(VERBOSE)) {
             Log.v(tag, message);
@@ -31,6 +48,30 @@ public class MPLog {
         }
     }
 
+    public static void v(String tag, String format, Object arg) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, format(format, 1, arg, null, null));
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, format(format, 3, arg1, arg2, arg3));
+        }
+    }
+
+    public static void v(String tag, String format, Object arg, Throwable throwable) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, format(format, 1, arg, null, null), throwable);
+        }
+    }
+
     public static void d(String tag, String message) {
         if (shouldLog(DEBUG)) {
             Log.d(tag, message);
@@ -43,6 +84,30 @@ public class MPLog {
         }
     }
 
+    public static void d(String tag, String format, Object arg) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, format(format, 1, arg, null, null));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, format(format, 3, arg1, arg2, arg3));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg, Throwable throwable) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, format(format, 1, arg, null, null), throwable);
+        }
+    }
+
     public static void i(String tag, String message) {
         if (shouldLog(INFO)) {
             Log.i(tag, message);
@@ -55,6 +120,30 @@ public class MPLog {
         }
     }
 
+    public static void i(String tag, String format, Object arg) {
+        if (shouldLog(INFO)) {
+            Log.i(tag, format(format, 1, arg, null, null));
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(INFO)) {
+            Log.i(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(INFO)) {
+            Log.i(tag, format(format, 3, arg1, arg2, arg3));
+        }
+    }
+
+    public static void i(String tag, String format, Object arg, Throwable throwable) {
+        if (shouldLog(INFO)) {
+            Log.i(tag, format(format, 1, arg, null, null), throwable);
+        }
+    }
+
     public static void w(String tag, String message) {
         if (shouldLog(WARN)) {
             Log.w(tag, message);
@@ -67,6 +156,30 @@ public class MPLog {
         }
     }
 
+    public static void w(String tag, String format, Object arg) {
+        if (shouldLog(WARN)) {
+            Log.w(tag, format(format, 1, arg, null, null));
+        }
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(WARN)) {
+            Log.w(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(WARN)) {
+            Log.w(tag, format(format, 3, arg1, arg2, arg3));
+        }
+    }
+
+    public static void w(String tag, String format, Object arg, Throwable throwable) {
+        if (shouldLog(WARN)) {
+            Log.w(tag, format(format, 1, arg, null, null), throwable);
+        }
+    }
+
     public static void e(String tag, String message) {
         if (shouldLog(ERROR)) {
             Log.e(tag, message);
@@ -79,6 +192,30 @@ public class MPLog {
         }
     }
 
+    public static void e(String tag, String format, Object arg) {
+        if (shouldLog(ERROR)) {
+            Log.e(tag, format(format, 1, arg, null, null));
+        }
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(ERROR)) {
+            Log.e(tag, format(format, 2, arg1, arg2, null));
+        }
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (shouldLog(ERROR)) {
+            Log.e(tag, format(format, 3, arg1, arg2, arg3));
+        }
+    }
+
+    public static void e(String tag, String format, Object arg, Throwable throwable) {
+        if (shouldLog(ERROR)) {
+            Log.e(tag, format(format, 1, arg, null, null), throwable);
+        }
+    }
+
     public static void wtf(String tag, String message) {
         if (shouldLog(ERROR)) {
             Log.wtf(tag, message);
@@ -94,4 +231,21 @@ public class MPLog {
     private static boolean shouldLog(int level) {
         return sMinLevel <= level;
     }
+
+    // Replaces each "{}" in format with the next argument. Extra placeholders are left as they are.
+    /* package */ static String format(String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        final StringBuilder builder = new StringBuilder(format.length() + 32 * argCount);
+        int start = 0;
+        for (int arg = 0; arg < argCount; arg++) {
+            final int placeholder = format.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            builder.append(format, start, placeholder);
+            builder.append(arg == 0 ? arg1 : arg == 1 ? arg2 : arg3);
+            start = placeholder + 2;
+        }
+        builder.append(format, start, format.length());
+        return builder.toString();
+    }
 }
@@ -0,0 +1,109 @@
+package com.mixpanel.android.util;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Systrace and Perfetto sections and counters for the library's own work, so that time spent in
+ * Mixpanel shows up by name in a system trace of the host app.
+ *
+ * Tracing is off unless it is turned on with the com.mixpanel.android.MPConfig.EnableTracing
+ * meta-data tag or MixpanelAPI.setEnableTracing(boolean). When it is off every method returns after checking
+ * a single static flag, and callers should pass constant section names so nothing is allocated.
+ * Sections need API 18 and counters need API 29; on older devices the calls do nothing.
+ *
+ * Sections must be ended on the thread that began them, so always end them in a finally block.
+ * Tracing can be turned on or off at any time, so a section is ended only if it was begun:
+ *
+ * <pre>
+ * final boolean traced = MPTrace.beginSection(MPTrace.TRACK);
+ * try {
+ *     ...
+ * } finally {
+ *     MPTrace.endSection(traced);
+ * }
+ * </pre>
+ */
+public class MPTrace {
+
+    public static final String TRACK = "Mixpanel.track";
+    public static final String DB_ADD = "Mixpanel.db.addJSON";
+    public static final String DB_PUSH_ANONYMOUS = "Mixpanel.db.pushAnonymousUpdates";
+    public static final String DB_ADD_PROPERTIES = "Mixpanel.db.addPendingProperties";
+    public static final String DB_CLEANUP = "Mixpanel.db.cleanup";
+    public static final String DB_READ_BATCH = "Mixpanel.db.generateDataString";
+    public static final String HTTP_REQUEST = "Mixpanel.http.performRequest";
+    public static final String EDIT_BINDING = "Mixpanel.editBinding.run";
+    public static final String VIEW_SNAPSHOT = "Mixpanel.viewSnapshot";
+    public static final String DECIDE_CHECK = "Mixpanel.decideCheck";
+
+    public static final String COUNTER_QUEUE_DEPTH = "Mixpanel queue depth";
+    public static final String COUNTER_DATABASE_BYTES = "Mixpanel database bytes";
+    public static final String COUNTER_REQUESTS_IN_FLIGHT = "Mixpanel requests in flight";
+
+    private static volatile boolean sEnabled = false;
+    private static Method sSetCounter;
+    private static boolean sLookedUpSetCounter = false;
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns true if a section was begun, which must be passed to the matching endSection.
+     */
+    public static boolean beginSection(String sectionName) {
+        if (sEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(sectionName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Ends the section begun by the matching beginSection, if it began one. The flag isn't checked again,
+     * so turning tracing on or off in between never ends a section this class didn't begin, or leaves one open.
+     */
+    public static void endSection(boolean began) {
+        // began is only ever true at this API level, but lint can't see that
+        if (began && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    public static void setCounter(String counterName, long value) {
+        if (!sEnabled || Build.VERSION.SDK_INT < 29) {
+            return;
+        }
+
+        final Method setCounter = getSetCounter();
+        if (null != setCounter) {
+            try {
+                setCounter.invoke(null, counterName, value);
+            } catch (final Exception e) {
+                MPLog.w(LOGTAG, "Could not set trace counter {}", counterName, e);
+            }
+        }
+    }
+
+    // Trace.setCounter is new in API 29, which is newer than the SDK we build against
+    private static synchronized Method getSetCounter() {
+        if (!sLookedUpSetCounter) {
+            sLookedUpSetCounter = true;
+            try {
+                sSetCounter = Trace.class.getMethod("setCounter", String.class, long.class);
+            } catch (final NoSuchMethodException e) {
+                MPLog.w(LOGTAG, "Trace counters aren't available on this device", e);
+            }
+        }
+        return sSetCounter;
+    }
+
+    private static final String LOGTAG = "MixpanelAPI.Trace";
+}
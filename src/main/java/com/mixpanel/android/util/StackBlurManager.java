@@ -31,37 +31,45 @@ import android.graphics.Bitmap;
  * https://github.com/kikoso/android-stackblur on October 23rd, 2013</p>
  */
 public class StackBlurManager {
+    /**
+     * Blurs source in place, allocating fresh scratch space. Callers that blur more
+     * than once should keep a StackBlurManager and call {@link #blur(Bitmap, int)} instead.
+     */
     public static void process(Bitmap source, int radius) {
+        new StackBlurManager().blur(source, radius);
+    }
+
+    /**
+     * Blurs source in place. Scratch buffers are kept between calls and only reallocated
+     * when a bigger bitmap or a different radius comes along. Not thread safe.
+     */
+    public void blur(Bitmap source, int radius) {
         if (radius < 1) {
             return; // No work to do
         }
         final int width = source.getWidth();
         final int height = source.getHeight();
-        final int[] currentPixels = new int[width * height];
+        final int wh = width * height;
+        ensureCapacity(wh, Math.max(width, height), radius);
+
+        final int[] currentPixels = mPixels;
         source.getPixels(currentPixels, 0, width, 0, 0, width, height);
 
         final int wm = width-1;
         final int hm = height-1;
-        final int wh = width * height;
         final int div = radius + radius + 1;
 
-        final int r[] = new int[wh];
-        final int g[] = new int[wh];
-        final int b[] = new int[wh];
+        final int r[] = mRed;
+        final int g[] = mGreen;
+        final int b[] = mBlue;
         int rsum, gsum, bsum, x, y, i, p, yp;
-        final int vmin[] = new int[Math.max(width, height)];
-
-        int divsum = (div+1)>>1;
-        divsum *= divsum;
-        final int dv[] = new int[256*divsum];
-        for (i = 0; i < 256 * divsum;i++){
-            dv[i] = i / divsum;
-        }
+        final int vmin[] = mVmin;
+        final int dv[] = mDv;
 
         int yw = 0;
         int yi = 0;
 
-        final int[][] stack = new int[div][3];
+        final int[][] stack = mStack;
         int stackpointer;
         int stackstart;
         int[] sir;
@@ -222,5 +230,37 @@ public class StackBlurManager {
             }
         }
         source.setPixels(currentPixels, 0, width, 0, 0, width, height);
-    }// process()
+    }// blur()
+
+    private void ensureCapacity(int pixelCount, int maxDimension, int radius) {
+        if (null == mPixels || mPixels.length < pixelCount) {
+            mPixels = new int[pixelCount];
+            mRed = new int[pixelCount];
+            mGreen = new int[pixelCount];
+            mBlue = new int[pixelCount];
+        }
+        if (null == mVmin || mVmin.length < maxDimension) {
+            mVmin = new int[maxDimension];
+        }
+        if (radius != mRadius) {
+            final int div = radius + radius + 1;
+            int divsum = (div+1)>>1;
+            divsum *= divsum;
+            mDv = new int[256*divsum];
+            for (int i = 0; i < 256 * divsum; i++){
+                mDv[i] = i / divsum;
+            }
+            mStack = new int[div][3];
+            mRadius = radius;
+        }
+    }
+
+    private int[] mPixels;
+    private int[] mRed;
+    private int[] mGreen;
+    private int[] mBlue;
+    private int[] mVmin;
+    private int[] mDv;
+    private int[][] mStack;
+    private int mRadius;
 }
@@ -2,8 +2,6 @@ package com.mixpanel.android.viewcrawler;
 
 import android.os.Handler;
 import android.view.View;
-import android.view.ViewGroup;
-import android.widget.TextView;
 
 import com.mixpanel.android.mpmetrics.MixpanelAPI;
 import com.mixpanel.android.util.MPLog;
@@ -11,14 +9,19 @@ import com.mixpanel.android.util.MPLog;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Handles translating events detected by ViewVisitors into events sent to Mixpanel
  *
- * - Builds properties by interrogating view subtrees
+ * - Builds properties by interrogating view subtrees (see {@link ViewTextExtractor})
  *
  * - Possibly debounces events using the Handler given at construction
  *
@@ -28,18 +31,62 @@ import java.util.Map;
 
     public DynamicEventTracker(MixpanelAPI mixpanel, Handler homeHandler) {
         mMixpanel = mixpanel;
-        mDebouncedEvents = new HashMap<Signature, UnsentEvent>();
+        mSlots = new ConcurrentHashMap<Signature, DebounceSlot>();
+        mNewlyArmed = new ConcurrentLinkedQueue<DebounceSlot>();
+        mTicking = new AtomicBoolean(false);
+        mWheel = new ArrayList<List<DebounceSlot>>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            mWheel.add(new ArrayList<DebounceSlot>());
+        }
+        mSpareBucket = new ArrayList<DebounceSlot>();
         mTask = new SendDebouncedTask();
         mHandler = homeHandler;
+        mTextExtractor = new ViewTextExtractor(MAX_PROPERTY_LENGTH, MAX_TEXT_DEPTH);
     }
 
     @Override
     public void OnEvent(View v, String eventName, boolean debounce) {
         // Will be called on the UI thread
-        final long moment = System.currentTimeMillis();
+        final long moment = currentTimeMillis();
+
+        if (debounce) {
+            final Signature eventSignature = new Signature(v, eventName);
+            DebounceSlot slot = mSlots.get(eventSignature);
+            if (null == slot) {
+                final DebounceSlot fresh = new DebounceSlot(eventSignature);
+                slot = mSlots.putIfAbsent(eventSignature, fresh);
+                if (null == slot) {
+                    slot = fresh;
+                }
+            }
+
+            // Only the latest event for a signature is ever sent, once the signature
+            // has been quiet for DEBOUNCE_TIME_MILLIS.
+            // Text is captured now, but only joined into a String on the handler thread if this event is sent.
+            slot.latest.set(new UnsentEvent(eventName, mTextExtractor.capture(v), moment));
+            slot.lastEventMillis = moment;
+
+            // Only the first event of a burst hands the slot to the handler thread, and only the
+            // first slot armed while the wheel is idle needs to wake it up.
+            if (slot.armed.compareAndSet(false, true)) {
+                mNewlyArmed.add(slot);
+                if (mTicking.compareAndSet(false, true)) {
+                    mHandler.postDelayed(mTask, WHEEL_TICK_MILLIS);
+                }
+            }
+        } else {
+            mMixpanel.track(eventName, propertiesFor(mTextExtractor.extract(v), moment));
+        }
+    }
+
+    // Overridden by tests, to run the wheel on a fake clock
+    /* package */ long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static JSONObject propertiesFor(String text, long moment) {
         final JSONObject properties = new JSONObject();
         try {
-            final String text = textPropertyFromView(v);
             properties.put("$text", text);
             properties.put("$from_binding", true);
 
@@ -49,90 +96,103 @@ import java.util.Map;
         } catch (JSONException e) {
             MPLog.e(LOGTAG, "Can't format properties from view due to JSON issue", e);
         }
-
-        if (debounce) {
-            final Signature eventSignature = new Signature(v, eventName);
-            final UnsentEvent event = new UnsentEvent(eventName, properties, moment);
-
-            // No scheduling mTask without holding a lock on mDebouncedEvents,
-            // so that we don't have a rogue thread spinning away when no events
-            // are coming in.
-            synchronized (mDebouncedEvents) {
-                final boolean needsRestart = mDebouncedEvents.isEmpty();
-                mDebouncedEvents.put(eventSignature, event);
-                if (needsRestart) {
-                    mHandler.postDelayed(mTask, DEBOUNCE_TIME_MILLIS);
-                }
-            }
-        } else {
-            mMixpanel.track(eventName, properties);
-        }
+        return properties;
     }
 
-    // Attempts to send all tasks in mDebouncedEvents that have been waiting for
-    // more than DEBOUNCE_TIME_MILLIS. Will reschedule itself as long as there
-    // are more events waiting (but will *not* wait on an empty set)
+    // Advances a hashed timer wheel of debounce slots, one bucket per WHEEL_TICK_MILLIS, sending
+    // the latest event of each slot that has been quiet for more than DEBOUNCE_TIME_MILLIS.
+    // Slots that saw events since they were scheduled are moved to the bucket of their new deadline.
+    // Will reschedule itself as long as there are slots in the wheel (but will *not* tick an empty wheel)
     private final class SendDebouncedTask implements Runnable {
         @Override
         public void run() {
-            final long now = System.currentTimeMillis();
-            synchronized (mDebouncedEvents) {
-                final Iterator<Map.Entry<Signature, UnsentEvent>> iter = mDebouncedEvents.entrySet().iterator();
-                while (iter.hasNext()) {
-                    final Map.Entry<Signature, UnsentEvent> entry = iter.next();
-                    final UnsentEvent val = entry.getValue();
-                    if (now - val.timeSentMillis > DEBOUNCE_TIME_MILLIS) {
-                        mMixpanel.track(val.eventName, val.properties);
-                        iter.remove();
-                    }
+            final long now = currentTimeMillis();
+            final long nowTick = now / WHEEL_TICK_MILLIS;
+
+            if (0 == mWheelCount) {
+                mWheelTick = nowTick - 1;
+            } else if (nowTick - mWheelTick > WHEEL_SIZE) {
+                // We're more than a full revolution late, everything in the wheel is due.
+                mWheelTick = nowTick - WHEEL_SIZE;
+            }
+
+            DebounceSlot armed;
+            while (null != (armed = mNewlyArmed.poll())) {
+                schedule(armed, armed.lastEventMillis + DEBOUNCE_TIME_MILLIS);
+            }
+
+            while (mWheelTick < nowTick) {
+                mWheelTick++;
+                final int index = (int) (mWheelTick % WHEEL_SIZE);
+                final List<DebounceSlot> bucket = mWheel.get(index);
+                final int bucketSize = bucket.size();
+                if (0 == bucketSize) {
+                    continue;
+                }
+
+                // A slot rescheduled a whole revolution ahead maps back to this index (which happens
+                // when we're catching up on a late tick), so it goes in a fresh list rather than the
+                // one we're expiring.
+                mWheel.set(index, mSpareBucket);
+                mWheelCount -= bucketSize;
+                for (int i = 0; i < bucketSize; i++) {
+                    expire(bucket.get(i), now);
                 }
+                bucket.clear();
+                mSpareBucket = bucket;
+            }
 
-                if (! mDebouncedEvents.isEmpty()) {
-                    // In the average case, this is enough time to catch the next signal
-                    mHandler.postDelayed(this, DEBOUNCE_TIME_MILLIS / 2);
+            if (mWheelCount > 0) {
+                mHandler.postDelayed(this, WHEEL_TICK_MILLIS);
+            } else {
+                mTicking.set(false);
+                // A slot armed after our last poll would have seen mTicking == true and not posted us
+                if (!mNewlyArmed.isEmpty() && mTicking.compareAndSet(false, true)) {
+                    mHandler.postDelayed(this, WHEEL_TICK_MILLIS);
                 }
-            } // synchronized
+            }
         }
-    }
 
-    /**
-     * Recursively scans a view and it's children, looking for user-visible text to
-     * provide as an event property.
-     */
-    private static String textPropertyFromView(View v) {
-        String ret = null;
-
-        if (v instanceof TextView) {
-            final TextView textV = (TextView) v;
-            final CharSequence retSequence = textV.getText();
-            if (null != retSequence) {
-                ret = retSequence.toString();
+        private void expire(DebounceSlot slot, long now) {
+            final long quietUntil = slot.lastEventMillis + DEBOUNCE_TIME_MILLIS;
+            if (quietUntil >= now) {
+                schedule(slot, quietUntil);
+                return;
             }
-        } else if (v instanceof ViewGroup) {
-            final StringBuilder builder = new StringBuilder();
-            final ViewGroup vGroup = (ViewGroup) v;
-            final int childCount = vGroup.getChildCount();
-            boolean textSeen = false;
-            for (int i = 0; i < childCount && builder.length() < MAX_PROPERTY_LENGTH; i++) {
-                final View child = vGroup.getChildAt(i);
-                final String childText = textPropertyFromView(child);
-                if (null != childText && childText.length() > 0) {
-                    if (textSeen) {
-                        builder.append(", ");
-                    }
-                    builder.append(childText);
-                    textSeen = true;
-                }
+
+            // Take the event before disarming, and check its own time, since the UI thread
+            // may have replaced it since we read lastEventMillis.
+            final UnsentEvent event = slot.latest.getAndSet(null);
+            if (null != event && event.timeSentMillis + DEBOUNCE_TIME_MILLIS >= now) {
+                // Put it back unless an even newer event has already replaced it
+                slot.latest.compareAndSet(null, event);
+                schedule(slot, event.timeSentMillis + DEBOUNCE_TIME_MILLIS);
+                return;
+            }
+
+            slot.armed.set(false);
+            // An event that arrived before we disarmed saw armed == true, and is relying on us to send it later.
+            // It's still in latest, and as part of the same burst it replaces the event we took.
+            final long lastChanceQuietUntil = slot.lastEventMillis + DEBOUNCE_TIME_MILLIS;
+            if (lastChanceQuietUntil >= now && slot.armed.compareAndSet(false, true)) {
+                schedule(slot, lastChanceQuietUntil);
+                return;
             }
 
-            if (builder.length() > MAX_PROPERTY_LENGTH) {
-                ret = builder.substring(0, MAX_PROPERTY_LENGTH);
-            } else if (textSeen) {
-                ret = builder.toString();
+            mSlots.remove(slot.signature, slot);
+            if (null != event) {
+                mMixpanel.track(event.eventName, propertiesFor(event.text.toText(), event.timeSentMillis));
             }
         }
 
-        return ret;
+        private void schedule(DebounceSlot slot, long deadlineMillis) {
+            long tick = (deadlineMillis + WHEEL_TICK_MILLIS - 1) / WHEEL_TICK_MILLIS;
+            if (tick <= mWheelTick) {
+                tick = mWheelTick + 1;
+            }
+            mWheel.get((int) (tick % WHEEL_SIZE)).add(slot);
+            mWheelCount++;
+        }
     }
 
     // An event is the same from a debouncing perspective if it comes from the same view,
@@ -160,26 +220,56 @@ import java.util.Map;
     }
 
     private static class UnsentEvent {
-        public UnsentEvent(final String name, final JSONObject props, final long timeSent) {
+        public UnsentEvent(final String name, final ViewTextExtractor.Snapshot text, final long timeSent) {
             eventName = name;
-            properties = props;
+            this.text = text;
             timeSentMillis = timeSent;
         }
 
         public final long timeSentMillis;
         public final String eventName;
-        public final JSONObject properties;
+        public final ViewTextExtractor.Snapshot text;
+    }
+
+    /**
+     * Debounce state for a single Signature. Written without locks by the UI thread,
+     * and expired by the timer wheel on the handler thread.
+     */
+    private static class DebounceSlot {
+        public DebounceSlot(Signature signature) {
+            this.signature = signature;
+            latest = new AtomicReference<UnsentEvent>();
+            armed = new AtomicBoolean(false);
+        }
+
+        public final Signature signature;
+        public final AtomicReference<UnsentEvent> latest;
+        public final AtomicBoolean armed; // true while the slot is in (or on its way to) the wheel
+        public volatile long lastEventMillis;
     }
 
     private final MixpanelAPI mMixpanel;
     private final Handler mHandler;
     private final Runnable mTask;
+    private final ViewTextExtractor mTextExtractor; // Only accessed on the UI thread
+
+    // Every signature seen since its last expiry. Reads from the UI thread are lock-free.
+    private final ConcurrentMap<Signature, DebounceSlot> mSlots;
+    // Slots armed by the UI thread, waiting to be placed in the wheel on the handler thread
+    private final Queue<DebounceSlot> mNewlyArmed;
+    private final AtomicBoolean mTicking;
 
-    // List of debounced events, All accesses must be synchronized
-    private final Map<Signature, UnsentEvent> mDebouncedEvents;
+    // Only accessed on the handler thread
+    private final List<List<DebounceSlot>> mWheel;
+    private List<DebounceSlot> mSpareBucket; // Swapped in for each bucket while it is expired
+    private long mWheelTick;
+    private int mWheelCount;
 
     private static final int MAX_PROPERTY_LENGTH = 128;
+    private static final int MAX_TEXT_DEPTH = 8;
     private static final int DEBOUNCE_TIME_MILLIS = 1000; // 1 second delay before sending
+    private static final int WHEEL_TICK_MILLIS = DEBOUNCE_TIME_MILLIS / 4;
+    private static final int WHEEL_SIZE = 8; // Must span more than DEBOUNCE_TIME_MILLIS + WHEEL_TICK_MILLIS
 
     @SuppressWarnings("Unused")
     private static String LOGTAG = "MixpanelAPI.DynamicEventTracker";
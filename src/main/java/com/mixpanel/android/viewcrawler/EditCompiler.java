@@ -0,0 +1,160 @@
+package com.mixpanel.android.viewcrawler;
+
+import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPPair;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads edits, event bindings and tweaks with an EditProtocol, and keeps what it read so that JSON
+ * applied again in the next pass isn't parsed again. Reusing the result also means EditState sees
+ * the same ViewVisitor, and leaves it bound instead of cleaning it up and applying it again.
+ *
+ * Callers bracket each round of reads with beginPass() and endPass(). Results that weren't read
+ * during a pass are dropped at the end of it, so only what was last applied is kept.
+ * JSON we know we can't use is kept too (as null), so it isn't parsed and logged on every pass.
+ * Edits whose images couldn't be loaded are never kept, so they are tried again next time.
+ *
+ * Results are keyed by the full JSON text rather than a hash of it. Two different changes with the same
+ * hash would quietly apply the wrong edit, and checking a hash against the text needs the text anyway.
+ *
+ * Not thread safe, only used on the ViewCrawler thread.
+ */
+/* package */ class EditCompiler {
+
+    public EditCompiler(EditProtocol protocol) {
+        mProtocol = protocol;
+        mEdits = new CompiledCache<EditProtocol.Edit>();
+        mTweaks = new CompiledCache<MPPair<String, Object>>();
+        mEventBindings = new CompiledCache<ViewVisitor>();
+    }
+
+    public void beginPass() {
+        mEdits.beginPass();
+        mTweaks.beginPass();
+        mEventBindings.beginPass();
+    }
+
+    public void endPass() {
+        mEdits.endPass();
+        mTweaks.endPass();
+        mEventBindings.endPass();
+    }
+
+    /**
+     * Returns the Edit for the given change, or null (and logs) if the change can't be applied.
+     * If newAssetUrls is not null, the urls of any images loaded for a newly read change will be added to it.
+     */
+    public EditProtocol.Edit compileEdit(JSONObject change, List<String> newAssetUrls, String badInstructionsMessage) {
+        final String key = change.toString();
+        if (mEdits.contains(key)) {
+            return mEdits.get(key);
+        }
+
+        EditProtocol.Edit edit = null;
+        try {
+            edit = mProtocol.readEdit(change);
+            if (null != newAssetUrls) {
+                newAssetUrls.addAll(edit.imageUrls);
+            }
+        } catch (final EditProtocol.CantGetEditAssetsException e) {
+            MPLog.v(LOGTAG, "Can't load assets for an edit, won't apply the change now", e);
+            return null; // Not kept, we'll try again next time.
+        } catch (final EditProtocol.InapplicableInstructionsException e) {
+            MPLog.i(LOGTAG, e.getMessage());
+        } catch (final EditProtocol.BadInstructionsException e) {
+            MPLog.e(LOGTAG, badInstructionsMessage, e);
+        }
+
+        mEdits.put(key, edit);
+        return edit;
+    }
+
+    /**
+     * Returns the visitor for the given event binding, or null (and logs) if the binding can't be applied.
+     */
+    public ViewVisitor compileEventBinding(JSONObject binding, ViewVisitor.OnEventListener listener, String badInstructionsMessage) {
+        final String key = binding.toString();
+        if (mEventBindings.contains(key)) {
+            return mEventBindings.get(key);
+        }
+
+        ViewVisitor visitor = null;
+        try {
+            visitor = mProtocol.readEventBinding(binding, listener);
+        } catch (final EditProtocol.InapplicableInstructionsException e) {
+            MPLog.i(LOGTAG, e.getMessage());
+        } catch (final EditProtocol.BadInstructionsException e) {
+            MPLog.e(LOGTAG, badInstructionsMessage, e);
+        }
+
+        mEventBindings.put(key, visitor);
+        return visitor;
+    }
+
+    public MPPair<String, Object> compileTweak(JSONObject tweak) throws EditProtocol.BadInstructionsException {
+        final String key = tweak.toString();
+        MPPair<String, Object> tweakValue = mTweaks.get(key);
+        if (null == tweakValue) {
+            tweakValue = mProtocol.readTweak(tweak);
+            mTweaks.put(key, tweakValue);
+        }
+        return tweakValue;
+    }
+
+    /**
+     * Results keyed by the JSON they were read from. Null values are allowed,
+     * and mark JSON we already know we can't use.
+     */
+    private static class CompiledCache<T> {
+        public CompiledCache() {
+            mEntries = new HashMap<String, T>();
+            mUsed = new HashSet<String>();
+        }
+
+        public void beginPass() {
+            mUsed.clear();
+        }
+
+        public boolean contains(String key) {
+            final boolean found = mEntries.containsKey(key);
+            if (found) {
+                mUsed.add(key);
+            }
+            return found;
+        }
+
+        public T get(String key) {
+            final T found = mEntries.get(key);
+            if (null != found) {
+                mUsed.add(key);
+            }
+            return found;
+        }
+
+        public void put(String key, T value) {
+            mEntries.put(key, value);
+            mUsed.add(key);
+        }
+
+        public void endPass() {
+            mEntries.keySet().retainAll(mUsed);
+        }
+
+        private final Map<String, T> mEntries;
+        private final Set<String> mUsed;
+    }
+
+    private final EditProtocol mProtocol;
+    private final CompiledCache<EditProtocol.Edit> mEdits;
+    private final CompiledCache<MPPair<String, Object>> mTweaks;
+    private final CompiledCache<ViewVisitor> mEventBindings;
+
+    private static final String LOGTAG = "MixpanelAPI.EditCompiler";
+}
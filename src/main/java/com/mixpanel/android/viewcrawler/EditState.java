@@ -6,9 +6,14 @@ import android.os.Looper;
 import android.view.View;
 import android.view.ViewTreeObserver;
 
+import com.mixpanel.android.util.MPTrace;
+
 import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,7 +57,9 @@ import java.util.Set;
      * they should be applied to. Edits to apply to all views should be in a list associated with
      * the key {@code null} (Not the string "null", the actual null value!)
      *
-     * The given edits will completely replace any existing edits.
+     * The given edits will completely replace any existing edits. Edits that are present (as the
+     * same ViewVisitor instance) in both the old and the new set are left bound and applied, rather
+     * than being cleaned up and applied again.
      *
      * setEdits can be called from any thread, although the changes will occur (eventually) on the
      * UI thread of the application, and may not appear immediately.
@@ -61,13 +68,21 @@ import java.util.Set;
      */
     // Must be thread-safe
     public void setEdits(Map<String, List<ViewVisitor>> newEdits) {
-        // Delete images that are no longer needed
+        final Set<ViewVisitor> retained = Collections.newSetFromMap(new IdentityHashMap<ViewVisitor, Boolean>());
+        for (final List<ViewVisitor> visitors : newEdits.values()) {
+            retained.addAll(visitors);
+        }
 
+        // Delete images that are no longer needed
         synchronized (mCurrentEdits) {
-            for (final EditBinding stale : mCurrentEdits) {
-                stale.kill();
+            final Iterator<EditBinding> bindings = mCurrentEdits.iterator();
+            while (bindings.hasNext()) {
+                final EditBinding binding = bindings.next();
+                if (!retained.contains(binding.getEdit())) {
+                    binding.kill();
+                    bindings.remove();
+                }
             }
-            mCurrentEdits.clear();
         }
 
         synchronized(mIntendedEdits) {
@@ -96,32 +111,45 @@ import java.util.Set;
         for (final Activity activity : getAll()) {
             final String activityName = activity.getClass().getCanonicalName();
             final View rootView = activity.getWindow().getDecorView().getRootView();
+            applyIntendedEdits(rootView, activityName);
+        }
+    }
 
-            final List<ViewVisitor> specificChanges;
-            final List<ViewVisitor> wildcardChanges;
-            synchronized (mIntendedEdits) {
-                specificChanges = mIntendedEdits.get(activityName);
-                wildcardChanges = mIntendedEdits.get(null);
-            }
+    // Must be called on UI Thread
+    /* package */ void applyIntendedEdits(View rootView, String activityName) {
+        final List<ViewVisitor> specificChanges;
+        final List<ViewVisitor> wildcardChanges;
+        synchronized (mIntendedEdits) {
+            specificChanges = mIntendedEdits.get(activityName);
+            wildcardChanges = mIntendedEdits.get(null);
+        }
 
-            if (null != specificChanges) {
-                applyChangesFromList(rootView, specificChanges);
-            }
+        if (null != specificChanges) {
+            applyChangesFromList(rootView, specificChanges);
+        }
 
-            if (null != wildcardChanges) {
-                applyChangesFromList(rootView, wildcardChanges);
-            }
+        if (null != wildcardChanges) {
+            applyChangesFromList(rootView, wildcardChanges);
         }
     }
 
     // Must be called on UI Thread
     private void applyChangesFromList(View rootView, List<ViewVisitor> changes) {
         synchronized (mCurrentEdits) {
+            final Set<ViewVisitor> alreadyBound = Collections.newSetFromMap(new IdentityHashMap<ViewVisitor, Boolean>());
+            for (final EditBinding binding : mCurrentEdits) {
+                if (binding.isBoundTo(rootView)) {
+                    alreadyBound.add(binding.getEdit());
+                }
+            }
+
             final int size = changes.size();
             for (int i = 0; i < size; i++) {
                 final ViewVisitor visitor = changes.get(i);
-                final EditBinding binding = new EditBinding(rootView, visitor, mUiThreadHandler);
-                mCurrentEdits.add(binding);
+                if (alreadyBound.add(visitor)) {
+                    final EditBinding binding = new EditBinding(rootView, visitor, mUiThreadHandler);
+                    mCurrentEdits.add(binding);
+                }
             }
         }
     }
@@ -160,7 +188,12 @@ import java.util.Set;
             }
             // ELSE View is alive and we are alive
 
-            mEdit.visit(viewRoot);
+            final boolean traced = MPTrace.beginSection(MPTrace.EDIT_BINDING);
+            try {
+                mEdit.visit(viewRoot);
+            } finally {
+                MPTrace.endSection(traced);
+            }
             mHandler.removeCallbacks(this);
             mHandler.postDelayed(this, 1000);
         }
@@ -170,6 +203,14 @@ import java.util.Set;
             mHandler.post(this);
         }
 
+        public ViewVisitor getEdit() {
+            return mEdit;
+        }
+
+        public boolean isBoundTo(View viewRoot) {
+            return !mDying && mViewRoot.get() == viewRoot;
+        }
+
         @SuppressWarnings("deprecation")
         private void cleanUp() {
             if (mAlive) {
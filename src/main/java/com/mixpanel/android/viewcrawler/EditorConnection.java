@@ -1,11 +1,18 @@
 package com.mixpanel.android.viewcrawler;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import com.mixpanel.android.java_websocket.client.WebSocketClient;
+import com.mixpanel.android.java_websocket.drafts.Draft;
+import com.mixpanel.android.java_websocket.drafts.Draft_10;
 import com.mixpanel.android.java_websocket.drafts.Draft_17;
 import com.mixpanel.android.java_websocket.exceptions.NotSendableException;
 import com.mixpanel.android.java_websocket.exceptions.WebsocketNotConnectedException;
+import com.mixpanel.android.java_websocket.framing.CloseFrame;
 import com.mixpanel.android.java_websocket.framing.Framedata;
 import com.mixpanel.android.java_websocket.handshake.ServerHandshake;
+import com.mixpanel.android.util.JSONUtils;
 import com.mixpanel.android.util.MPLog;
 
 import org.json.JSONException;
@@ -14,9 +21,14 @@ import org.json.JSONObject;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.net.Socket;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * EditorClient should handle all communication to and from the socket. It should be fairly naive and
@@ -30,6 +42,23 @@ import java.nio.ByteBuffer;
         public EditorConnectionException(Throwable cause) {
             super(cause.getMessage()); // IOException(cause) is only available in API level 9!
         }
+
+        public EditorConnectionException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when writing a snapshot that the editor has already asked to replace with a newer one.
+     * A partial snapshot can't be ended as valid JSON, so if any of it was sent, closing its stream
+     * closes the connection rather than finishing the message.
+     */
+    public class SnapshotSupersededException extends EditorConnectionException {
+        private static final long serialVersionUID = 2722520464525312447L;
+
+        public SnapshotSupersededException() {
+            super("A newer snapshot was requested");
+        }
     }
 
     public interface Editor {
@@ -44,10 +73,32 @@ import java.nio.ByteBuffer;
 
     public EditorConnection(URI uri, Editor service, Socket sslSocket)
             throws EditorConnectionException {
+        this(uri, service, sslSocket, null);
+    }
+
+    /**
+     * Connects with a single selector thread and a non-blocking channel, rather than a reading and a
+     * writing thread on a blocking socket. sslContext may be null for ws:// URIs.
+     */
+    public EditorConnection(URI uri, Editor service, SSLContext sslContext)
+            throws EditorConnectionException {
+        this(uri, service, null, sslContext);
+    }
+
+    private EditorConnection(URI uri, Editor service, Socket sslSocket, SSLContext sslContext)
+            throws EditorConnectionException {
         mService = service;
         mURI = uri;
+        mSnapshotRequests = new AtomicInteger(0);
+        mBlockedMillis = new AtomicLong(0);
+        mDroppedSnapshots = new AtomicInteger(0);
         try {
-            mClient = new EditorClient(uri, CONNECT_TIMEOUT, sslSocket);
+            mClient = new EditorClient(uri, CONNECT_TIMEOUT);
+            if (null != sslSocket) {
+                mClient.setSocket(sslSocket);
+            } else {
+                mClient.useSelector(sslContext);
+            }
             mClient.connectBlocking();
         } catch (final InterruptedException e) {
             throw new EditorConnectionException(e);
@@ -63,37 +114,82 @@ import java.nio.ByteBuffer;
     }
 
     public BufferedOutputStream getBufferedOutputStream() {
-        return new BufferedOutputStream(new WebSocketOutputStream());
+        // Each buffer full becomes one frame. Sized so header plus payload fit a 64k pooled frame buffer
+        return new BufferedOutputStream(new WebSocketOutputStream(NO_SNAPSHOT), FRAGMENT_SIZE);
+    }
+
+    /**
+     * Like {@link #getBufferedOutputStream()}, but for a snapshot response. Writes to the returned stream throw
+     * SnapshotSupersededException once the editor sends another snapshot request, so a stale snapshot
+     * doesn't hold up the newer one.
+     */
+    public BufferedOutputStream getSnapshotOutputStream() {
+        return new BufferedOutputStream(new WebSocketOutputStream(mSnapshotRequests.get()), FRAGMENT_SIZE);
+    }
+
+    /**
+     * True if the editor has sent a snapshot request since the last one was handed to the Editor,
+     * so the last request doesn't need an answer anymore.
+     */
+    public boolean isSnapshotSuperseded(int snapshotRequest) {
+        return snapshotRequest != mSnapshotRequests.get();
+    }
+
+    /** True if the editor agreed to compress messages with permessage-deflate */
+    public boolean isCompressed() {
+        final Draft draft = mClient.getConnection().getDraft();
+        return draft instanceof Draft_10 && ((Draft_10) draft).isPerMessageDeflateActive();
+    }
+
+    /** The number of bytes queued on the websocket but not yet sent */
+    public long getBufferedBytes() {
+        return mClient.getBufferedBytes();
+    }
+
+    /** The most bytes that have been queued on the websocket at once */
+    public long getMaxBufferedBytes() {
+        return mClient.getMaxBufferedBytes();
+    }
+
+    /** Total time writers have spent waiting for the websocket queue to drain */
+    public long getBlockedMillis() {
+        return mBlockedMillis.get();
+    }
+
+    /** The number of snapshots given up on, because they were superseded or the editor stopped reading */
+    public int getDroppedSnapshots() {
+        return mDroppedSnapshots.get();
     }
 
     private class EditorClient extends WebSocketClient {
-        public EditorClient(URI uri, int connectTimeout, Socket sslSocket) throws InterruptedException {
-            super(uri, new Draft_17(), null, connectTimeout);
-            setSocket(sslSocket);
+        public EditorClient(URI uri, int connectTimeout) {
+            // Snapshots are mostly JSON and base64, so compress them if the editor will let us
+            super(uri, new Draft_17(true), null, connectTimeout);
         }
 
         @Override
         public void onOpen(ServerHandshake handshakedata) {
-            MPLog.v(LOGTAG, "Websocket connected");
+            MPLog.v(LOGTAG, "Websocket connected" + (isCompressed() ? ", messages will be compressed" : ""));
         }
 
         @Override
         public void onMessage(String message) {
             MPLog.v(LOGTAG, "Received message from editor:\n" + message);
             try {
-                final JSONObject messageJson = new JSONObject(message);
+                final JSONObject messageJson = readMessage(message);
                 final String type = messageJson.getString("type");
-                if (type.equals("device_info_request")) {
+                if (type.equals(TYPE_DEVICE_INFO_REQUEST)) {
                     mService.sendDeviceInfo();
-                } else if (type.equals("snapshot_request")) {
+                } else if (type.equals(TYPE_SNAPSHOT_REQUEST)) {
+                    mSnapshotRequests.incrementAndGet();
                     mService.sendSnapshot(messageJson);
-                } else if (type.equals("change_request")) {
+                } else if (type.equals(TYPE_CHANGE_REQUEST)) {
                     mService.performEdit(messageJson);
-                } else if (type.equals("event_binding_request")) {
+                } else if (type.equals(TYPE_EVENT_BINDING_REQUEST)) {
                     mService.bindEvents(messageJson);
-                } else if (type.equals("clear_request")) {
+                } else if (type.equals(TYPE_CLEAR_REQUEST)) {
                     mService.clearEdits(messageJson);
-                } else if (type.equals("tweak_request")) {
+                } else if (type.equals(TYPE_TWEAK_REQUEST)) {
                     mService.setTweaks(messageJson);
                 }
             } catch (final JSONException e) {
@@ -117,7 +213,109 @@ import java.nio.ByteBuffer;
         }
     }
 
+    /**
+     * Pulls the type and payload out of an editor message without building the whole message.
+     * Payload keys that the handler for the message type never reads are skipped rather than decoded,
+     * as are any other top level keys. The returned object has the same shape as the original message,
+     * minus the skipped parts.
+     */
+    /* package */ static JSONObject readMessage(String message)
+            throws JSONException {
+        final JsonReader reader = new JsonReader(new StringReader(message));
+        try {
+            String type = null;
+            JSONObject payload = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("type".equals(name) && reader.peek() == JsonToken.STRING) {
+                    type = reader.nextString();
+                } else if ("payload".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    payload = readPayload(reader, type);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            final JSONObject ret = new JSONObject();
+            ret.put("type", type);
+            ret.putOpt("payload", payload);
+            return ret;
+        } catch (final IOException e) {
+            throw messageException(e);
+        } catch (final IllegalStateException e) {
+            throw messageException(e);
+        } finally {
+            try {
+                reader.close();
+            } catch (final IOException e) {
+                ; // Can't happen for a StringReader
+            }
+        }
+    }
+
+    // If type isn't known yet (the editor sent the payload first) the whole payload is decoded
+    private static JSONObject readPayload(JsonReader reader, String type)
+            throws IOException, JSONException {
+        if (null == type) {
+            return JSONUtils.readObject(reader);
+        }
+
+        final String neededKey = payloadKeyFor(type);
+        final JSONObject ret = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (name.equals(neededKey)) {
+                ret.put(name, JSONUtils.readValue(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return ret;
+    }
+
+    // The only payload key read by the handler for each message type, or null if the handler ignores the payload
+    private static String payloadKeyFor(String type) {
+        if (type.equals(TYPE_SNAPSHOT_REQUEST)) {
+            return "config";
+        } else if (type.equals(TYPE_CHANGE_REQUEST) || type.equals(TYPE_CLEAR_REQUEST)) {
+            return "actions";
+        } else if (type.equals(TYPE_EVENT_BINDING_REQUEST)) {
+            return "events";
+        } else if (type.equals(TYPE_TWEAK_REQUEST)) {
+            return "tweaks";
+        }
+        return null;
+    }
+
+    private static JSONException messageException(Exception cause) {
+        final JSONException ret = new JSONException("Can't read editor message: " + cause.getMessage());
+        ret.initCause(cause);
+        return ret;
+    }
+
+    /**
+     * Writes each write as one fragment of a TEXT message, and closing ends the message.
+     * When more than SEND_HIGH_WATER_BYTES are waiting to go out, writers block until the queue drains to
+     * SEND_LOW_WATER_BYTES, so a slow connection can't make us buffer a whole snapshot in memory.
+     * A writer that can't make progress in SEND_TIMEOUT_MILLIS gives up with an exception.
+     *
+     * Once a write has failed the message is never ended, since the editor would take the truncated
+     * JSON for a whole message. If nothing was sent yet, closing sends nothing. Otherwise closing
+     * closes the connection, which tells the editor to throw away the partial message.
+     */
     private class WebSocketOutputStream extends OutputStream {
+        public WebSocketOutputStream(int snapshotRequest) {
+            mSnapshotRequest = snapshotRequest;
+            mClosed = false;
+            mAborted = false;
+            mStarted = false;
+        }
+
         @Override
         public void write(int b)
             throws EditorConnectionException {
@@ -136,19 +334,43 @@ import java.nio.ByteBuffer;
         @Override
         public void write(byte[] b, int off, int len)
             throws EditorConnectionException {
-            final ByteBuffer message = ByteBuffer.wrap(b, off, len);
+            if (mAborted) {
+                throw new EditorConnectionException("Message was abandoned");
+            }
+            boolean sent = false;
             try {
+                checkSuperseded();
+                awaitRoom();
+                final ByteBuffer message = ByteBuffer.wrap(b, off, len);
+                // Set first, the fragment may be partly queued even if sending throws
+                mStarted = true;
                 mClient.sendFragmentedFrame(Framedata.Opcode.TEXT, message, false);
+                sent = true;
             } catch (final WebsocketNotConnectedException e) {
                 throw new EditorConnectionException(e);
             } catch (final NotSendableException e) {
                 throw new EditorConnectionException(e);
+            } finally {
+                if (!sent) {
+                    mAborted = true;
+                }
             }
         }
 
         @Override
         public void close()
             throws EditorConnectionException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mAborted) {
+                if (mStarted) {
+                    MPLog.w(LOGTAG, "Closing connection to end an abandoned message");
+                    mClient.close(CloseFrame.GOING_AWAY, "Message abandoned");
+                }
+                return;
+            }
             try {
                 mClient.sendFragmentedFrame(Framedata.Opcode.TEXT, EMPTY_BYTE_BUFFER, true);
             } catch (final WebsocketNotConnectedException e) {
@@ -157,14 +379,78 @@ import java.nio.ByteBuffer;
                 throw new EditorConnectionException(e);
             }
         }
+
+        private void checkSuperseded() throws SnapshotSupersededException {
+            if (mSnapshotRequest != NO_SNAPSHOT && isSnapshotSuperseded(mSnapshotRequest)) {
+                dropped();
+                throw new SnapshotSupersededException();
+            }
+        }
+
+        private void awaitRoom() throws EditorConnectionException {
+            if (mClient.getBufferedBytes() <= SEND_HIGH_WATER_BYTES) {
+                return;
+            }
+
+            final long start = System.currentTimeMillis();
+            try {
+                // Wait in slices, so a stale snapshot notices a newer request without waiting for the queue to drain
+                while (!mClient.awaitBufferedBytesAtMost(SEND_LOW_WATER_BYTES, SEND_WAIT_SLICE_MILLIS)) {
+                    checkSuperseded();
+                    if (!mClient.isOpen()) {
+                        throw new EditorConnectionException("Connection closed while waiting to send");
+                    }
+                    if (System.currentTimeMillis() - start >= SEND_TIMEOUT_MILLIS) {
+                        if (mSnapshotRequest != NO_SNAPSHOT) {
+                            dropped();
+                        }
+                        throw new EditorConnectionException("Editor isn't reading, gave up after " + SEND_TIMEOUT_MILLIS + "ms");
+                    }
+                }
+            } catch (final InterruptedException e) {
+                throw new EditorConnectionException(e);
+            } finally {
+                mBlockedMillis.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+
+        private void dropped() {
+            if (!mDropped) {
+                mDropped = true;
+                mDroppedSnapshots.incrementAndGet();
+            }
+        }
+
+        private final int mSnapshotRequest;
+        private boolean mClosed;
+        private boolean mDropped;
+        private boolean mAborted;
+        private boolean mStarted;
     }
 
     private final Editor mService;
     private final EditorClient mClient;
     private final URI mURI;
+    private final AtomicInteger mSnapshotRequests;
+    private final AtomicLong mBlockedMillis;
+    private final AtomicInteger mDroppedSnapshots;
+
+    private static final String TYPE_DEVICE_INFO_REQUEST = "device_info_request";
+    private static final String TYPE_SNAPSHOT_REQUEST = "snapshot_request";
+    private static final String TYPE_CHANGE_REQUEST = "change_request";
+    private static final String TYPE_EVENT_BINDING_REQUEST = "event_binding_request";
+    private static final String TYPE_CLEAR_REQUEST = "clear_request";
+    private static final String TYPE_TWEAK_REQUEST = "tweak_request";
 
     private static final int CONNECT_TIMEOUT = 5000;
+    private static final int MAX_FRAME_HEADER_SIZE = 14;
+    private static final int FRAGMENT_SIZE = 64 * 1024 - MAX_FRAME_HEADER_SIZE;
     private static final ByteBuffer EMPTY_BYTE_BUFFER = ByteBuffer.allocate(0);
+    private static final int NO_SNAPSHOT = -1;
+    private static final long SEND_HIGH_WATER_BYTES = 16 * 64 * 1024;
+    private static final long SEND_LOW_WATER_BYTES = 4 * 64 * 1024;
+    private static final long SEND_WAIT_SLICE_MILLIS = 100;
+    private static final long SEND_TIMEOUT_MILLIS = 10000;
 
     private static final String LOGTAG = "MixpanelAPI.EditorCnctn";
 }
@@ -51,6 +51,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -311,6 +312,7 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
             mEmptyExperiments = new HashSet<MPPair<Integer, Integer>>();
             mPersistentEventBindings = new HashSet<MPPair<String, JSONObject>>();
             mSeenExperiments = new HashSet<MPPair<Integer, Integer>>();
+            mCompiler = new EditCompiler(mProtocol);
             mStartLock = new ReentrantLock();
             mStartLock.lock();
         }
@@ -488,14 +490,20 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
                 return;
             }
 
-            final String url = MPConfig.getInstance(mContext).getEditorUrl() + mToken;
+            final String url = mConfig.getEditorUrl() + mToken;
+            final SSLContext sslContext = mConfig.getSSLContext();
             try {
-                final Socket sslSocket = socketFactory.createSocket();
-                mEditorConnection = new EditorConnection(new URI(url), new Editor(), sslSocket);
+                if (mConfig.getEditorUsesSelector() && null != sslContext) {
+                    mEditorConnection = new EditorConnection(new URI(url), new Editor(), sslContext);
+                } else {
+                    // A custom SSLSocketFactory can only give us sockets
+                    final Socket sslSocket = socketFactory.createSocket();
+                    mEditorConnection = new EditorConnection(new URI(url), new Editor(), sslSocket);
+                }
             } catch (final URISyntaxException e) {
-                MPLog.e(LOGTAG, "Error parsing URI " + url + " for editor websocket", e);
+                MPLog.e(LOGTAG, "Error parsing URI {} for editor websocket", url, e);
             } catch (final EditorConnection.EditorConnectionException e) {
-                MPLog.e(LOGTAG, "Error connecting to URI " + url, e);
+                MPLog.e(LOGTAG, "Error connecting to URI {}", url, e);
             } catch (final IOException e) {
                 MPLog.i(LOGTAG, "Can't create SSL Socket to connect to editor service", e);
             }
@@ -634,7 +642,13 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
             }
             // ELSE config is valid:
 
-            final OutputStream out = mEditorConnection.getBufferedOutputStream();
+            // The editor only wants the latest snapshot. Any config above has been applied, so skip straight to the newer request
+            if (hasMessages(MESSAGE_SEND_STATE_FOR_EDITING)) {
+                MPLog.v(LOGTAG, "Skipping snapshot, a newer snapshot request is waiting");
+                return;
+            }
+
+            final OutputStream out = mEditorConnection.getSnapshotOutputStream();
             final OutputStreamWriter writer = new OutputStreamWriter(out);
 
             try {
@@ -653,15 +667,29 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
 
                 writer.write("}"); // } payload
                 writer.write("}"); // } whole message
+            } catch (final EditorConnection.SnapshotSupersededException e) {
+                MPLog.v(LOGTAG, "Abandoning snapshot, the editor asked for a newer one");
             } catch (final IOException e) {
                 MPLog.e(LOGTAG, "Can't write snapshot request to server", e);
             } finally {
                 try {
                     writer.close();
                 } catch (final IOException e) {
-                    MPLog.e(LOGTAG, "Can't close writer.", e);
+                    // The writer doesn't close its stream if its last write fails, and an abandoned message must be closed out
+                    try {
+                        out.close();
+                    } catch (final IOException closeException) {
+                        MPLog.e(LOGTAG, "Can't close snapshot stream.", closeException);
+                    }
                 }
             }
+
+            if (MPLog.isLoggable(MPLog.VERBOSE)) {
+                MPLog.v(LOGTAG, "Snapshot finished in " + (System.currentTimeMillis() - startSnapshot) + "ms. Send queue " +
+                        mEditorConnection.getBufferedBytes() + " bytes (peak " + mEditorConnection.getMaxBufferedBytes() +
+                        "), blocked " + mEditorConnection.getBlockedMillis() + "ms total, " +
+                        mEditorConnection.getDroppedSnapshots() + " snapshots dropped");
+            }
         }
 
         /**
@@ -840,7 +868,7 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
                     final String targetActivity = JSONUtils.optionalStringKey(event, "target_activity");
                     mEditorEventBindings.put(event.get("path").toString(), new MPPair<String, JSONObject>(targetActivity, event));
                 } catch (final JSONException e) {
-                    MPLog.e(LOGTAG, "Bad event binding received from editor in " + eventBindings.toString(), e);
+                    MPLog.e(LOGTAG, "Bad event binding received from editor in {}", eventBindings, e);
                 }
             }
 
@@ -883,20 +911,16 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
             final Set<MPPair<Integer, Integer>> toTrack = new HashSet<MPPair<Integer, Integer>>();
             Set<String> updatedTweaks = new HashSet<>();
 
+            mCompiler.beginPass();
+
             {
                 for (VariantChange changeInfo : mAppliedVisualChanges) {
-                    try {
-                        final EditProtocol.Edit edit = mProtocol.readEdit(changeInfo.change);
+                    final EditProtocol.Edit edit = mCompiler.compileEdit(changeInfo.change, null, "Bad persistent change request cannot be applied.");
+                    if (null != edit) {
                         newVisitors.add(new MPPair<String, ViewVisitor>(changeInfo.activityName, edit.visitor));
                         if (!mSeenExperiments.contains(changeInfo.variantId)) {
                             toTrack.add(changeInfo.variantId);
                         }
-                    } catch (final EditProtocol.CantGetEditAssetsException e) {
-                        MPLog.v(LOGTAG, "Can't load assets for an edit, won't apply the change now", e);
-                    } catch (final EditProtocol.InapplicableInstructionsException e) {
-                        MPLog.i(LOGTAG, e.getMessage());
-                    } catch (final EditProtocol.BadInstructionsException e) {
-                        MPLog.e(LOGTAG, "Bad persistent change request cannot be applied.", e);
                     }
                 }
             }
@@ -904,7 +928,7 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
             {
                 for (VariantTweak tweakInfo : mAppliedTweaks) {
                     try {
-                        final MPPair<String, Object> tweakValue = mProtocol.readTweak(tweakInfo.tweak);
+                        final MPPair<String, Object> tweakValue = mCompiler.compileTweak(tweakInfo.tweak);
 
                         if (!mSeenExperiments.contains(tweakInfo.variantId)) {
                             toTrack.add(tweakInfo.variantId);
@@ -939,16 +963,9 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
 
             {
                 for (MPPair<String, JSONObject> changeInfo : mEditorChanges.values()) {
-                    try {
-                        final EditProtocol.Edit edit = mProtocol.readEdit(changeInfo.second);
+                    final EditProtocol.Edit edit = mCompiler.compileEdit(changeInfo.second, mEditorAssetUrls, "Bad editor change request cannot be applied.");
+                    if (null != edit) {
                         newVisitors.add(new MPPair<String, ViewVisitor>(changeInfo.first, edit.visitor));
-                        mEditorAssetUrls.addAll(edit.imageUrls);
-                    } catch (final EditProtocol.CantGetEditAssetsException e) {
-                        MPLog.v(LOGTAG, "Can't load assets for an edit, won't apply the change now", e);
-                    } catch (final EditProtocol.InapplicableInstructionsException e) {
-                        MPLog.i(LOGTAG, e.getMessage());
-                    } catch (final EditProtocol.BadInstructionsException e) {
-                        MPLog.e(LOGTAG, "Bad editor change request cannot be applied.", e);
                     }
                 }
             }
@@ -965,13 +982,9 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
             {
                 if (mEditorEventBindings.size() == 0 && mOriginalEventBindings.size() == 0) {
                     for (MPPair<String, JSONObject> changeInfo : mPersistentEventBindings) {
-                        try {
-                            final ViewVisitor visitor = mProtocol.readEventBinding(changeInfo.second, mDynamicEventTracker);
+                        final ViewVisitor visitor = mCompiler.compileEventBinding(changeInfo.second, mDynamicEventTracker, "Bad persistent event binding cannot be applied.");
+                        if (null != visitor) {
                             newVisitors.add(new MPPair<String, ViewVisitor>(changeInfo.first, visitor));
-                        } catch (final EditProtocol.InapplicableInstructionsException e) {
-                            MPLog.i(LOGTAG, e.getMessage());
-                        } catch (final EditProtocol.BadInstructionsException e) {
-                            MPLog.e(LOGTAG, "Bad persistent event binding cannot be applied.", e);
                         }
                     }
                 }
@@ -979,17 +992,16 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
 
             {
                 for (MPPair<String, JSONObject> changeInfo : mEditorEventBindings.values()) {
-                    try {
-                        final ViewVisitor visitor = mProtocol.readEventBinding(changeInfo.second, mDynamicEventTracker);
+                    final ViewVisitor visitor = mCompiler.compileEventBinding(changeInfo.second, mDynamicEventTracker, "Bad editor event binding cannot be applied.");
+                    if (null != visitor) {
                         newVisitors.add(new MPPair<String, ViewVisitor>(changeInfo.first, visitor));
-                    } catch (final EditProtocol.InapplicableInstructionsException e) {
-                        MPLog.i(LOGTAG, e.getMessage());
-                    } catch (final EditProtocol.BadInstructionsException e) {
-                        MPLog.e(LOGTAG, "Bad editor event binding cannot be applied.", e);
                     }
                 }
             }
 
+            // Anything we didn't use in this pass was removed, and won't be applied again.
+            mCompiler.endPass();
+
             final Map<String, List<ViewVisitor>> editMap = new HashMap<String, List<ViewVisitor>>();
             final int totalEdits = newVisitors.size();
             for (int i = 0; i < totalEdits; i++) {
@@ -1077,6 +1089,7 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug, ViewVisi
         private final Set<MPPair<String,JSONObject>> mPersistentEventBindings;
         private final Set<MPPair<String,JSONObject>> mOriginalEventBindings;
         private final Set<MPPair<Integer, Integer>> mSeenExperiments;
+        private final EditCompiler mCompiler;
     }
 
     private class Editor implements EditorConnection.Editor {
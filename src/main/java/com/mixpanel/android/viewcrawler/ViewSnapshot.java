@@ -4,35 +4,32 @@ package com.mixpanel.android.viewcrawler;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
-import android.content.res.ColorStateList;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Rect;
-import android.graphics.drawable.ColorDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Base64;
 import android.util.Base64OutputStream;
 import android.util.DisplayMetrics;
 import android.util.JsonWriter;
-import android.util.LruCache;
 import android.view.View;
-import android.view.ViewGroup;
-import android.widget.RelativeLayout;
+import android.view.ViewTreeObserver;
 
 import com.mixpanel.android.mpmetrics.MPConfig;
 import com.mixpanel.android.mpmetrics.ResourceIds;
+import com.mixpanel.android.util.MPExecutors;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.MPTrace;
 
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
@@ -40,7 +37,10 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -54,15 +54,28 @@ import java.util.concurrent.TimeoutException;
         mResourceIds = resourceIds;
         mMainThreadHandler = new Handler(Looper.getMainLooper());
         mRootViewFinder = new RootViewFinder();
-        mClassnameCache = new ClassNameCache(MAX_CLASS_NAME_CACHE_SIZE);
+        mClassHierarchyCache = new ViewSnapshotTable.ClassHierarchyCache(MAX_CLASS_NAME_CACHE_SIZE);
     }
 
     /**
      * Take a snapshot of each activity in liveActivities. The given UIThreadSet will be accessed
      * on the main UI thread, and should contain a set with elements for every activity to be
      * snapshotted. Given stream out will be written on the calling thread.
+     *
+     * View attributes are copied into a {@link ViewSnapshotTable} on the main UI thread, a frame's
+     * worth at a time, and serialized afterwards off of the main thread, so the UI thread
+     * is never held while we write to the (possibly slow) output stream.
      */
     public void snapshots(UIThreadSet<Activity> liveActivities, OutputStream out) throws IOException {
+        final boolean traced = MPTrace.beginSection(MPTrace.VIEW_SNAPSHOT);
+        try {
+            writeSnapshots(liveActivities, out);
+        } finally {
+            MPTrace.endSection(traced);
+        }
+    }
+
+    private void writeSnapshots(UIThreadSet<Activity> liveActivities, OutputStream out) throws IOException {
         mRootViewFinder.findInActivities(liveActivities);
         final FutureTask<List<RootViewInfo>> infoFuture = new FutureTask<List<RootViewInfo>>(mRootViewFinder);
         mMainThreadHandler.post(infoFuture);
@@ -87,6 +100,7 @@ import java.util.concurrent.TimeoutException;
                 writer.write(",");
             }
             final RootViewInfo info = infoList.get(i);
+            final ViewSnapshotTable table = captureOnMainThread(info.rootView);
             writer.write("{");
             writer.write("\"activity\":");
             writer.write(JSONObject.quote(info.activityName));
@@ -96,13 +110,15 @@ import java.util.concurrent.TimeoutException;
             writer.write(",");
             writer.write("\"serialized_objects\":");
             {
-                final JsonWriter j = new JsonWriter(writer);
-                j.beginObject();
-                j.name("rootObject").value(info.rootView.hashCode());
-                j.name("objects");
-                snapshotViewHierarchy(j, info.rootView);
-                j.endObject();
-                j.flush();
+                writer.write("{\"rootObject\":");
+                writer.write(Integer.toString(info.rootView.hashCode()));
+                writer.write(",\"objects\":");
+                if (null == table) {
+                    writer.write("[]");
+                } else {
+                    writeViewTable(writer, table, SERIALIZER_MIN_NODES_PER_TASK, SERIALIZER_WINDOW_CHARS);
+                }
+                writer.write("}");
             }
             writer.write(",");
             writer.write("\"screenshot\":");
@@ -122,169 +138,337 @@ import java.util.concurrent.TimeoutException;
 
     /* package */ void snapshotViewHierarchy(JsonWriter j, View rootView)
         throws IOException {
+        final ViewSnapshotTable table = captureViewTable(rootView);
         j.beginArray();
-        snapshotView(j, rootView);
+        table.writeNodes(j, 0, table.getNodeCount());
         j.endArray();
     }
 
-    private void snapshotView(JsonWriter j, View view)
-            throws IOException {
-        if (view.getVisibility() == View.INVISIBLE && mConfig.getIgnoreInvisibleViewsEditor()) {
+    // Captures the whole hierarchy on the calling thread, without a frame budget
+    /* package */ ViewSnapshotTable captureViewTable(View rootView) {
+        return newTableBuilder(rootView).captureAll();
+    }
+
+    /**
+     * Writes the nodes of table as a JSON array to out. Tables with at least twice minNodesPerTask nodes
+     * are split into contiguous ranges that are serialized concurrently and written in order.
+     * Each range is serialized through a window of windowChars, so at most that much of
+     * a range is held in memory while out catches up.
+     */
+    /* package */ void writeViewTable(Writer out, ViewSnapshotTable table, int minNodesPerTask, int windowChars)
+        throws IOException {
+        final int nodeCount = table.getNodeCount();
+        final int taskCount = Math.min(SERIALIZER_MAX_TASKS, nodeCount / Math.max(1, minNodesPerTask));
+        final ExecutorService serializer = taskCount > 1 ? getSerializerExecutor() : null;
+
+        if (null == serializer) {
+            final JsonWriter j = new JsonWriter(out);
+            j.beginArray();
+            table.writeNodes(j, 0, nodeCount);
+            j.endArray();
+            j.flush();
             return;
         }
 
-        final int viewId = view.getId();
-        final String viewIdName;
-        if (-1 == viewId) {
-            viewIdName = null;
-        } else {
-            viewIdName = mResourceIds.nameForId(viewId);
+        // Ranges are never empty, and are drained in the order they were submitted. The pool starts tasks
+        // in that order too, so the range being drained has always started, and later ranges can wait for room.
+        final List<RangeSerializer> ranges = new ArrayList<RangeSerializer>(taskCount);
+        final List<Future<Void>> chunks = new ArrayList<Future<Void>>(taskCount);
+        final int nodesPerTask = (nodeCount + taskCount - 1) / taskCount;
+        for (int start = 0; start < nodeCount; start += nodesPerTask) {
+            final int end = Math.min(nodeCount, start + nodesPerTask);
+            final RangeSerializer range = new RangeSerializer(table, start, end, windowChars);
+            ranges.add(range);
+            chunks.add(serializer.submit(range));
+        }
+
+        final char[] scratch = new char[windowChars];
+        boolean complete = false;
+        out.write("[");
+        try {
+            final int rangeCount = ranges.size();
+            for (int i = 0; i < rangeCount; i++) {
+                if (i > 0) {
+                    out.write(",");
+                }
+                ranges.get(i).drainTo(out, scratch);
+                chunks.get(i).get(); // Throws if the range failed part way through
+            }
+            complete = true;
+        } catch (final InterruptedException e) {
+            throw new IOException("Interrupted while serializing view snapshot");
+        } catch (final ExecutionException e) {
+            throw new IOException("Failed to serialize view snapshot", e.getCause());
+        } finally {
+            if (!complete) {
+                // Including when out throws, so no serializer is left waiting for room that will never come
+                cancelAll(chunks);
+            }
         }
+        out.write("]");
+    }
 
-        j.beginObject();
-        j.name("hashCode").value(view.hashCode());
-        j.name("id").value(viewId);
-        j.name("mp_id_name").value(viewIdName);
+    private ViewSnapshotTable.Builder newTableBuilder(View rootView) {
+        return new ViewSnapshotTable.Builder(rootView, mProperties, mResourceIds, mClassHierarchyCache, mConfig.getIgnoreInvisibleViewsEditor());
+    }
 
-        final CharSequence description = view.getContentDescription();
-        if (null == description) {
-            j.name("contentDescription").nullValue();
-        } else {
-            j.name("contentDescription").value(description.toString());
+    /**
+     * Copies the hierarchy under rootView on the main thread, one frame budget per posted
+     * slice, and waits for the result. Returns null if the copy doesn't complete in time.
+     */
+    private ViewSnapshotTable captureOnMainThread(View rootView) {
+        final BudgetedCapture capture = new BudgetedCapture(rootView);
+        mMainThreadHandler.post(capture);
+
+        try {
+            return capture.await(CAPTURE_TIMEOUT_MILLIS);
+        } catch (final InterruptedException e) {
+            MPLog.d(LOGTAG, "View capture interrupted, no views will be sent.", e);
+        } catch (final TimeoutException e) {
+            MPLog.i(LOGTAG, "View capture took more than " + CAPTURE_TIMEOUT_MILLIS + " milliseconds. No views will be sent.", e);
+        } catch (final ExecutionException e) {
+            MPLog.e(LOGTAG, "Exception thrown during view capture", e);
+        } finally {
+            capture.cancel();
         }
 
-        final Object tag = view.getTag();
-        if (null == tag) {
-            j.name("tag").nullValue();
-        } else if (tag instanceof CharSequence) {
-            j.name("tag").value(tag.toString());
+        return null;
+    }
+
+    private static void cancelAll(List<Future<Void>> chunks) {
+        for (final Future<Void> chunk : chunks) {
+            chunk.cancel(true);
         }
+    }
 
-        j.name("top").value(view.getTop());
-        j.name("left").value(view.getLeft());
-        j.name("width").value(view.getWidth());
-        j.name("height").value(view.getHeight());
-        j.name("scrollX").value(view.getScrollX());
-        j.name("scrollY").value(view.getScrollY());
-        j.name("visibility").value(view.getVisibility());
+    // Returns null on single core devices, where there is nothing to gain by splitting the work
+    private static synchronized ExecutorService getSerializerExecutor() {
+        if (Runtime.getRuntime().availableProcessors() < 2) {
+            return null;
+        }
 
-        float translationX = 0;
-        float translationY = 0;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            translationX = view.getTranslationX();
-            translationY = view.getTranslationY();
+        if (null == sSerializerExecutor) {
+            sSerializerExecutor = MPExecutors.newDaemonPool(
+                "MixpanelAPI.SnapshotSerializer", SERIALIZER_THREADS, SERIALIZER_KEEP_ALIVE_SECONDS, Thread.MIN_PRIORITY);
         }
 
-        j.name("translationX").value(translationX);
-        j.name("translationY").value(translationY);
+        return sSerializerExecutor;
+    }
+
+    /**
+     * Runs a ViewSnapshotTable.Builder on the main thread, reposting itself after each frame budget
+     * until the capture is complete (or cancelled.)
+     *
+     * The hierarchy can change between slices, so any layout or scroll in the window while the capture
+     * is running starts it over, rather than building a table that is half before and half after the change.
+     * A window that keeps changing (say, under an animation) is captured in a single pass after
+     * MAX_CAPTURE_RESTARTS restarts, which holds the main thread longer but is still consistent.
+     */
+    private class BudgetedCapture implements Runnable,
+            ViewTreeObserver.OnGlobalLayoutListener, ViewTreeObserver.OnScrollChangedListener {
+        public BudgetedCapture(View rootView) {
+            mRootView = rootView;
+            mDone = new CountDownLatch(1);
+        }
 
-        j.name("classes");
-        j.beginArray();
-        Class<?> klass = view.getClass();
-        do {
-            j.value(mClassnameCache.get(klass));
-            klass = klass.getSuperclass();
-        } while (klass != Object.class && klass != null);
-        j.endArray();
+        @Override
+        public void run() {
+            if (mCancelled || 0 == mDone.getCount()) {
+                detach();
+                return;
+            }
 
-        addProperties(j, view);
+            try {
+                if (null == mBuilder || mChanged) {
+                    if (null != mBuilder) {
+                        mRestarts++;
+                        MPLog.v(LOGTAG, "View hierarchy changed during capture, starting over");
+                    }
+                    attach();
+                    mBuilder = newTableBuilder(mRootView);
+                    mChanged = false;
+                }
 
-        ViewGroup.LayoutParams layoutParams = view.getLayoutParams();
-        if (layoutParams instanceof RelativeLayout.LayoutParams) {
-            RelativeLayout.LayoutParams relativeLayoutParams = (RelativeLayout.LayoutParams) layoutParams;
-            int[] rules = relativeLayoutParams.getRules();
-            j.name("layoutRules");
-            j.beginArray();
-            for (int rule : rules) {
-                j.value(rule);
+                final long budgetNanos = mRestarts < MAX_CAPTURE_RESTARTS ? CAPTURE_FRAME_BUDGET_NANOS : Long.MAX_VALUE / 2;
+                if (mBuilder.captureSome(budgetNanos)) {
+                    mResult = mBuilder.build();
+                    finish();
+                } else {
+                    mMainThreadHandler.post(this);
+                }
+            } catch (final RuntimeException e) {
+                mError = e;
+                finish();
             }
-            j.endArray();
         }
 
-        j.name("subviews");
-        j.beginArray();
-        if (view instanceof ViewGroup) {
-            final ViewGroup group = (ViewGroup) view;
-            final int childCount = group.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                final View child = group.getChildAt(i);
-                // child can be null when views are getting disposed.
-                if (null != child) {
-                    j.value(child.hashCode());
-                }
+        @Override
+        public void onGlobalLayout() {
+            mChanged = true;
+        }
+
+        @Override
+        public void onScrollChanged() {
+            mChanged = true;
+        }
+
+        public ViewSnapshotTable await(long timeoutMillis)
+            throws InterruptedException, TimeoutException, ExecutionException {
+            if (!mDone.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException();
+            }
+            if (null != mError) {
+                throw new ExecutionException(mError);
             }
+            return mResult;
         }
-        j.endArray();
-        j.endObject();
-
-        if (view instanceof ViewGroup) {
-            final ViewGroup group = (ViewGroup) view;
-            final int childCount = group.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                final View child = group.getChildAt(i);
-                // child can be null when views are getting disposed.
-                if (null != child) {
-                    snapshotView(j, child);
-                }
+
+        // May be called from any thread. The listeners can only be removed on the main thread,
+        // so that is left to one more run.
+        public void cancel() {
+            mCancelled = true;
+            if (0 != mDone.getCount()) {
+                mMainThreadHandler.post(this);
+            }
+        }
+
+        private void finish() {
+            detach();
+            mDone.countDown();
+        }
+
+        private void attach() {
+            if (null == mObserver) {
+                mObserver = mRootView.getViewTreeObserver();
+                mObserver.addOnGlobalLayoutListener(this);
+                mObserver.addOnScrollChangedListener(this);
+            }
+        }
+
+        private void detach() {
+            if (null != mObserver) {
+                // A dead observer has handed its listeners to the view's current one
+                final ViewTreeObserver observer = mObserver.isAlive() ? mObserver : mRootView.getViewTreeObserver();
+                observer.removeOnGlobalLayoutListener(this);
+                observer.removeOnScrollChangedListener(this);
+                mObserver = null;
             }
         }
+
+        private final View mRootView;
+        private final CountDownLatch mDone;
+        private volatile boolean mCancelled;
+        private volatile ViewSnapshotTable mResult;
+        private volatile RuntimeException mError;
+
+        // Only accessed on the main thread
+        private ViewSnapshotTable.Builder mBuilder;
+        private ViewTreeObserver mObserver;
+        private boolean mChanged;
+        private int mRestarts;
     }
 
-    private void addProperties(JsonWriter j, View v)
-        throws IOException {
-        final Class<?> viewClass = v.getClass();
-        for (final PropertyDescription desc : mProperties) {
-            if (desc.targetClass.isAssignableFrom(viewClass) && null != desc.accessor) {
-                final Object value = desc.accessor.applyMethod(v);
-                if (null == value) {
-                    // Don't produce anything in this case
-                } else if (value instanceof Number) {
-                    j.name(desc.name).value((Number) value);
-                } else if (value instanceof Boolean) {
-                    j.name(desc.name).value((Boolean) value);
-                } else if (value instanceof ColorStateList) {
-                    j.name(desc.name).value((Integer) ((ColorStateList) value).getDefaultColor());
-                } else if (value instanceof Drawable) {
-                    final Drawable drawable = (Drawable) value;
-                    final Rect bounds = drawable.getBounds();
-                    j.name(desc.name);
-                    j.beginObject();
-                        j.name("classes");
-                        j.beginArray();
-                            Class klass = drawable.getClass();
-                            while (klass != Object.class) {
-                                j.value(klass.getCanonicalName());
-                                klass = klass.getSuperclass();
-                            }
-                        j.endArray();
-                        j.name("dimensions");
-                        j.beginObject();
-                            j.name("left").value(bounds.left);
-                            j.name("right").value(bounds.right);
-                            j.name("top").value(bounds.top);
-                            j.name("bottom").value(bounds.bottom);
-                        j.endObject();
-                        if (drawable instanceof ColorDrawable) {
-                            final ColorDrawable colorDrawable = (ColorDrawable) drawable;
-                            j.name("color").value(colorDrawable.getColor());
-                        }
-                    j.endObject();
-                } else {
-                    j.name(desc.name).value(value.toString());
+    /**
+     * Serializes a range of table nodes into a window of characters, which writeViewTable drains in order.
+     * When the window is full the serializer waits for it to be drained, so a whole range is never held
+     * in memory. The objects are comma separated, without the enclosing brackets.
+     */
+    private static class RangeSerializer extends Writer implements Callable<Void> {
+        public RangeSerializer(ViewSnapshotTable table, int start, int end, int windowChars) {
+            mTable = table;
+            mStart = start;
+            mEnd = end;
+            mWindow = new char[windowChars];
+            mSkippedBracket = false;
+            mFinished = false;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            try {
+                final JsonWriter j = new JsonWriter(this);
+                j.beginArray(); // The bracket itself is dropped by write()
+                mTable.writeNodes(j, mStart, mEnd);
+                j.flush(); // Never closed, so the closing bracket is never written
+            } finally {
+                synchronized (this) {
+                    mFinished = true;
+                    notifyAll();
                 }
             }
+            return null;
+        }
+
+        // Called by the JsonWriter on the serializer thread
+        @Override
+        public synchronized void write(char[] chars, int off, int len) throws IOException {
+            if (!mSkippedBracket && len > 0) {
+                mSkippedBracket = true;
+                off++;
+                len--;
+            }
+
+            while (len > 0) {
+                try {
+                    while (mCount == mWindow.length) {
+                        wait();
+                    }
+                } catch (final InterruptedException e) {
+                    throw new InterruptedIOException("View snapshot was abandoned");
+                }
+
+                final int tail = (mHead + mCount) % mWindow.length;
+                final int n = Math.min(len, Math.min(mWindow.length - mCount, mWindow.length - tail));
+                System.arraycopy(chars, off, mWindow, tail, n);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
         }
-    }
 
-    private static class ClassNameCache extends LruCache<Class<?>, String> {
-        public ClassNameCache(int maxSize) {
-            super(maxSize);
+        @Override
+        public void flush() {
+            // Nothing is buffered outside of the window
         }
 
         @Override
-        protected String create(Class<?> klass) {
-            return klass.getCanonicalName();
+        public void close() {
+            // Ending the range is up to call()
         }
+
+        /**
+         * Copies everything the serializer writes to out, using scratch rather than holding the window
+         * while out is written, and returns once the serializer is finished.
+         */
+        public void drainTo(Writer out, char[] scratch) throws IOException, InterruptedException {
+            while (true) {
+                final int n;
+                synchronized (this) {
+                    while (0 == mCount && !mFinished) {
+                        wait();
+                    }
+                    if (0 == mCount) {
+                        return;
+                    }
+                    n = Math.min(scratch.length, Math.min(mCount, mWindow.length - mHead));
+                    System.arraycopy(mWindow, mHead, scratch, 0, n);
+                    mHead = (mHead + n) % mWindow.length;
+                    mCount -= n;
+                    notifyAll();
+                }
+                out.write(scratch, 0, n);
+            }
+        }
+
+        private final ViewSnapshotTable mTable;
+        private final int mStart;
+        private final int mEnd;
+        private final char[] mWindow;
+        private int mHead;
+        private int mCount;
+        private boolean mSkippedBracket;
+        private boolean mFinished;
     }
 
     private static class RootViewFinder implements Callable<List<RootViewInfo>> {
@@ -446,11 +630,21 @@ import java.util.concurrent.TimeoutException;
     private final MPConfig mConfig;
     private final RootViewFinder mRootViewFinder;
     private final List<PropertyDescription> mProperties;
-    private final ClassNameCache mClassnameCache;
+    private final ViewSnapshotTable.ClassHierarchyCache mClassHierarchyCache;
     private final Handler mMainThreadHandler;
     private final ResourceIds mResourceIds;
 
+    private static ExecutorService sSerializerExecutor;
+
     private static final int MAX_CLASS_NAME_CACHE_SIZE = 255;
+    private static final long CAPTURE_FRAME_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+    private static final long CAPTURE_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_CAPTURE_RESTARTS = 3;
+    private static final int SERIALIZER_THREADS = 2;
+    private static final int SERIALIZER_MAX_TASKS = 8;
+    private static final int SERIALIZER_MIN_NODES_PER_TASK = 256;
+    private static final long SERIALIZER_KEEP_ALIVE_SECONDS = 10;
+    private static final int SERIALIZER_WINDOW_CHARS = 16 * 1024;
 
     @SuppressWarnings("unused")
     private static final String LOGTAG = "MixpanelAPI.Snapshot";
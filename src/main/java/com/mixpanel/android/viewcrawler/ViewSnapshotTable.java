@@ -0,0 +1,484 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.annotation.TargetApi;
+import android.content.res.ColorStateList;
+import android.graphics.Rect;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.util.JsonWriter;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.RelativeLayout;
+
+import com.mixpanel.android.mpmetrics.MPConfig;
+import com.mixpanel.android.mpmetrics.ResourceIds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable copy of the attributes of a view hierarchy that the editor snapshot needs.
+ *
+ * Views are stored in pre-order (the same order they are written to the editor) in parallel,
+ * primitive-backed columns, so the table can be captured in small slices on the UI thread
+ * with a {@link Builder} and then serialized on any thread, in any number of index ranges,
+ * without touching a View again.
+ */
+@TargetApi(MPConfig.UI_FEATURES_MIN_API)
+/* package */ class ViewSnapshotTable {
+
+    private ViewSnapshotTable(Builder builder) {
+        mRootHashCode = builder.mRootHashCode;
+        mNodeCount = builder.mNodeCount;
+        mPropertyNames = builder.mPropertyNames;
+        mHashCodes = builder.mHashCodes;
+        mIds = builder.mIds;
+        mFlags = builder.mFlags;
+        mGeometry = builder.mGeometry;
+        mTranslations = builder.mTranslations;
+        mIdNames = builder.mIdNames;
+        mContentDescriptions = builder.mContentDescriptions;
+        mTags = builder.mTags;
+        mClasses = builder.mClasses;
+        mLayoutRules = builder.mLayoutRules;
+        mFirstChild = builder.mFirstChild;
+        mChildCounts = builder.mChildCounts;
+        mChildHashCodes = builder.mChildHashCodes;
+        mPropertyValues = builder.mPropertyValues;
+    }
+
+    public int getRootHashCode() {
+        return mRootHashCode;
+    }
+
+    public int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Writes the nodes with indexes in [start, end) as consecutive JSON objects. Safe to call
+     * concurrently from multiple threads with disjoint (or overlapping) ranges.
+     */
+    public void writeNodes(JsonWriter j, int start, int end) throws IOException {
+        final int propertyCount = mPropertyNames.length;
+        for (int node = start; node < end; node++) {
+            final int geometry = node * GEOMETRY_STRIDE;
+            final int flags = mFlags[node];
+
+            j.beginObject();
+            j.name("hashCode").value(mHashCodes[node]);
+            j.name("id").value(mIds[node]);
+            j.name("mp_id_name").value(mIdNames[node]);
+            j.name("contentDescription").value(mContentDescriptions[node]);
+
+            if ((flags & FLAG_HAS_TAG) != 0) {
+                j.name("tag").value(mTags[node]);
+            }
+
+            j.name("top").value(mGeometry[geometry + GEOMETRY_TOP]);
+            j.name("left").value(mGeometry[geometry + GEOMETRY_LEFT]);
+            j.name("width").value(mGeometry[geometry + GEOMETRY_WIDTH]);
+            j.name("height").value(mGeometry[geometry + GEOMETRY_HEIGHT]);
+            j.name("scrollX").value(mGeometry[geometry + GEOMETRY_SCROLL_X]);
+            j.name("scrollY").value(mGeometry[geometry + GEOMETRY_SCROLL_Y]);
+            j.name("visibility").value(mGeometry[geometry + GEOMETRY_VISIBILITY]);
+            j.name("translationX").value(mTranslations[node * 2]);
+            j.name("translationY").value(mTranslations[node * 2 + 1]);
+
+            j.name("classes");
+            j.beginArray();
+            for (final String className : mClasses[node]) {
+                j.value(className);
+            }
+            j.endArray();
+
+            final int propertyOffset = node * propertyCount;
+            for (int i = 0; i < propertyCount; i++) {
+                final Object value = mPropertyValues[propertyOffset + i];
+                if (null != value) {
+                    writeProperty(j, mPropertyNames[i], value);
+                }
+            }
+
+            final int[] rules = mLayoutRules[node];
+            if (null != rules) {
+                j.name("layoutRules");
+                j.beginArray();
+                for (final int rule : rules) {
+                    j.value(rule);
+                }
+                j.endArray();
+            }
+
+            j.name("subviews");
+            j.beginArray();
+            final int firstChild = mFirstChild[node];
+            final int childEnd = firstChild + mChildCounts[node];
+            for (int child = firstChild; child < childEnd; child++) {
+                j.value(mChildHashCodes[child]);
+            }
+            j.endArray();
+            j.endObject();
+        }
+    }
+
+    private static void writeProperty(JsonWriter j, String name, Object value) throws IOException {
+        if (value instanceof Number) {
+            j.name(name).value((Number) value);
+        } else if (value instanceof Boolean) {
+            j.name(name).value((Boolean) value);
+        } else if (value instanceof DrawableDescription) {
+            final DrawableDescription drawable = (DrawableDescription) value;
+            j.name(name);
+            j.beginObject();
+                j.name("classes");
+                j.beginArray();
+                    for (final String className : drawable.classes) {
+                        j.value(className);
+                    }
+                j.endArray();
+                j.name("dimensions");
+                j.beginObject();
+                    j.name("left").value(drawable.left);
+                    j.name("right").value(drawable.right);
+                    j.name("top").value(drawable.top);
+                    j.name("bottom").value(drawable.bottom);
+                j.endObject();
+                if (drawable.hasColor) {
+                    j.name("color").value(drawable.color);
+                }
+            j.endObject();
+        } else {
+            j.name(name).value(value.toString());
+        }
+    }
+
+    /**
+     * Copies view attributes into a new table. Builders are not thread safe, and must
+     * only be used on the UI thread (or whatever thread owns the captured views.)
+     *
+     * Capture is incremental- callers can call {@link #captureSome(long)} once per frame until it
+     * returns true, so that large hierarchies don't hold the UI thread for more than a frame at a time.
+     */
+    public static class Builder {
+        public Builder(View rootView, List<PropertyDescription> properties, ResourceIds resourceIds,
+                       ClassHierarchyCache classCache, boolean ignoreInvisibleViews) {
+            mProperties = properties;
+            mResourceIds = resourceIds;
+            mClassCache = classCache;
+            mIgnoreInvisibleViews = ignoreInvisibleViews;
+            mRootHashCode = rootView.hashCode();
+
+            final int propertyCount = properties.size();
+            mPropertyNames = new String[propertyCount];
+            for (int i = 0; i < propertyCount; i++) {
+                mPropertyNames[i] = properties.get(i).name;
+            }
+
+            mPending = new ArrayList<View>();
+            mPending.add(rootView);
+
+            mHashCodes = new int[INITIAL_CAPACITY];
+            mIds = new int[INITIAL_CAPACITY];
+            mFlags = new int[INITIAL_CAPACITY];
+            mGeometry = new int[INITIAL_CAPACITY * GEOMETRY_STRIDE];
+            mTranslations = new float[INITIAL_CAPACITY * 2];
+            mIdNames = new String[INITIAL_CAPACITY];
+            mContentDescriptions = new String[INITIAL_CAPACITY];
+            mTags = new String[INITIAL_CAPACITY];
+            mClasses = new String[INITIAL_CAPACITY][];
+            mLayoutRules = new int[INITIAL_CAPACITY][];
+            mFirstChild = new int[INITIAL_CAPACITY];
+            mChildCounts = new int[INITIAL_CAPACITY];
+            mChildHashCodes = new int[INITIAL_CAPACITY];
+            mPropertyValues = new Object[INITIAL_CAPACITY * propertyCount];
+        }
+
+        /**
+         * Captures views until the hierarchy is exhausted or budgetNanos have elapsed.
+         *
+         * @return true if the whole hierarchy has been captured.
+         */
+        public boolean captureSome(long budgetNanos) {
+            final long deadline = System.nanoTime() + budgetNanos;
+            int sinceClockCheck = 0;
+            while (!mPending.isEmpty()) {
+                final View view = mPending.remove(mPending.size() - 1);
+                captureView(view);
+
+                sinceClockCheck++;
+                if (sinceClockCheck == VIEWS_PER_CLOCK_CHECK) {
+                    sinceClockCheck = 0;
+                    if (System.nanoTime() > deadline) {
+                        break;
+                    }
+                }
+            }
+
+            return mPending.isEmpty();
+        }
+
+        /**
+         * Captures the entire remaining hierarchy on the calling thread.
+         */
+        public ViewSnapshotTable captureAll() {
+            captureSome(Long.MAX_VALUE / 2);
+            return build();
+        }
+
+        public ViewSnapshotTable build() {
+            if (!mPending.isEmpty()) {
+                throw new IllegalStateException("Can't build a view table before the capture is complete");
+            }
+            return new ViewSnapshotTable(this);
+        }
+
+        private void captureView(View view) {
+            if (view.getVisibility() == View.INVISIBLE && mIgnoreInvisibleViews) {
+                return;
+            }
+
+            ensureCapacity(mNodeCount + 1);
+            final int node = mNodeCount;
+            final int geometry = node * GEOMETRY_STRIDE;
+
+            final int viewId = view.getId();
+            mHashCodes[node] = view.hashCode();
+            mIds[node] = viewId;
+            mIdNames[node] = -1 == viewId ? null : mResourceIds.nameForId(viewId);
+
+            final CharSequence description = view.getContentDescription();
+            mContentDescriptions[node] = null == description ? null : description.toString();
+
+            int flags = 0;
+            final Object tag = view.getTag();
+            if (null == tag) {
+                flags |= FLAG_HAS_TAG;
+                mTags[node] = null;
+            } else if (tag instanceof CharSequence) {
+                flags |= FLAG_HAS_TAG;
+                mTags[node] = tag.toString();
+            } else {
+                mTags[node] = null;
+            }
+            mFlags[node] = flags;
+
+            mGeometry[geometry + GEOMETRY_TOP] = view.getTop();
+            mGeometry[geometry + GEOMETRY_LEFT] = view.getLeft();
+            mGeometry[geometry + GEOMETRY_WIDTH] = view.getWidth();
+            mGeometry[geometry + GEOMETRY_HEIGHT] = view.getHeight();
+            mGeometry[geometry + GEOMETRY_SCROLL_X] = view.getScrollX();
+            mGeometry[geometry + GEOMETRY_SCROLL_Y] = view.getScrollY();
+            mGeometry[geometry + GEOMETRY_VISIBILITY] = view.getVisibility();
+
+            float translationX = 0;
+            float translationY = 0;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                translationX = view.getTranslationX();
+                translationY = view.getTranslationY();
+            }
+            mTranslations[node * 2] = translationX;
+            mTranslations[node * 2 + 1] = translationY;
+
+            mClasses[node] = mClassCache.get(view.getClass());
+            captureProperties(node, view);
+
+            final ViewGroup.LayoutParams layoutParams = view.getLayoutParams();
+            if (layoutParams instanceof RelativeLayout.LayoutParams) {
+                // getRules() returns the live rules array, so we need our own copy
+                final int[] rules = ((RelativeLayout.LayoutParams) layoutParams).getRules();
+                mLayoutRules[node] = Arrays.copyOf(rules, rules.length);
+            } else {
+                mLayoutRules[node] = null;
+            }
+
+            mFirstChild[node] = mChildHashCodeCount;
+            mChildCounts[node] = 0;
+            if (view instanceof ViewGroup) {
+                final ViewGroup group = (ViewGroup) view;
+                final int childCount = group.getChildCount();
+                final int pendingBase = mPending.size();
+                for (int i = 0; i < childCount; i++) {
+                    final View child = group.getChildAt(i);
+                    // child can be null when views are getting disposed.
+                    if (null != child) {
+                        ensureChildCapacity(mChildHashCodeCount + 1);
+                        mChildHashCodes[mChildHashCodeCount] = child.hashCode();
+                        mChildHashCodeCount++;
+                        mChildCounts[node]++;
+                        mPending.add(child);
+                    }
+                }
+                // Children are popped from the end of the pending list, so reverse them
+                // to keep the table in the same pre-order as the view hierarchy.
+                for (int lo = pendingBase, hi = mPending.size() - 1; lo < hi; lo++, hi--) {
+                    final View swap = mPending.get(lo);
+                    mPending.set(lo, mPending.get(hi));
+                    mPending.set(hi, swap);
+                }
+            }
+
+            mNodeCount++;
+        }
+
+        private void captureProperties(int node, View view) {
+            final Class<?> viewClass = view.getClass();
+            final int propertyCount = mPropertyNames.length;
+            final int propertyOffset = node * propertyCount;
+            for (int i = 0; i < propertyCount; i++) {
+                final PropertyDescription desc = mProperties.get(i);
+                Object captured = null;
+                if (desc.targetClass.isAssignableFrom(viewClass) && null != desc.accessor) {
+                    final Object value = desc.accessor.applyMethod(view);
+                    if (null == value) {
+                        // Don't produce anything in this case
+                    } else if (value instanceof Number || value instanceof Boolean) {
+                        captured = value;
+                    } else if (value instanceof ColorStateList) {
+                        captured = ((ColorStateList) value).getDefaultColor();
+                    } else if (value instanceof Drawable) {
+                        captured = new DrawableDescription((Drawable) value, mClassCache);
+                    } else {
+                        captured = value.toString();
+                    }
+                }
+                mPropertyValues[propertyOffset + i] = captured;
+            }
+        }
+
+        private void ensureCapacity(int nodes) {
+            final int capacity = mHashCodes.length;
+            if (nodes <= capacity) {
+                return;
+            }
+
+            final int newCapacity = Math.max(nodes, capacity * 2);
+            mHashCodes = Arrays.copyOf(mHashCodes, newCapacity);
+            mIds = Arrays.copyOf(mIds, newCapacity);
+            mFlags = Arrays.copyOf(mFlags, newCapacity);
+            mGeometry = Arrays.copyOf(mGeometry, newCapacity * GEOMETRY_STRIDE);
+            mTranslations = Arrays.copyOf(mTranslations, newCapacity * 2);
+            mIdNames = Arrays.copyOf(mIdNames, newCapacity);
+            mContentDescriptions = Arrays.copyOf(mContentDescriptions, newCapacity);
+            mTags = Arrays.copyOf(mTags, newCapacity);
+            mClasses = Arrays.copyOf(mClasses, newCapacity);
+            mLayoutRules = Arrays.copyOf(mLayoutRules, newCapacity);
+            mFirstChild = Arrays.copyOf(mFirstChild, newCapacity);
+            mChildCounts = Arrays.copyOf(mChildCounts, newCapacity);
+            mPropertyValues = Arrays.copyOf(mPropertyValues, newCapacity * mPropertyNames.length);
+        }
+
+        private void ensureChildCapacity(int children) {
+            if (children > mChildHashCodes.length) {
+                mChildHashCodes = Arrays.copyOf(mChildHashCodes, Math.max(children, mChildHashCodes.length * 2));
+            }
+        }
+
+        private final List<PropertyDescription> mProperties;
+        private final ResourceIds mResourceIds;
+        private final ClassHierarchyCache mClassCache;
+        private final boolean mIgnoreInvisibleViews;
+        private final List<View> mPending;
+
+        private final int mRootHashCode;
+        private final String[] mPropertyNames;
+        private int mNodeCount;
+        private int mChildHashCodeCount;
+        private int[] mHashCodes;
+        private int[] mIds;
+        private int[] mFlags;
+        private int[] mGeometry;
+        private float[] mTranslations;
+        private String[] mIdNames;
+        private String[] mContentDescriptions;
+        private String[] mTags;
+        private String[][] mClasses;
+        private int[][] mLayoutRules;
+        private int[] mFirstChild;
+        private int[] mChildCounts;
+        private int[] mChildHashCodes;
+        private Object[] mPropertyValues;
+    }
+
+    /**
+     * Caches the canonical names of a class and all of its superclasses (not including Object)
+     */
+    public static class ClassHierarchyCache extends LruCache<Class<?>, String[]> {
+        public ClassHierarchyCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected String[] create(Class<?> klass) {
+            final List<String> names = new ArrayList<String>();
+            Class<?> current = klass;
+            do {
+                names.add(current.getCanonicalName());
+                current = current.getSuperclass();
+            } while (current != Object.class && current != null);
+            return names.toArray(new String[names.size()]);
+        }
+    }
+
+    private static class DrawableDescription {
+        public DrawableDescription(Drawable drawable, ClassHierarchyCache classCache) {
+            final Rect bounds = drawable.getBounds();
+            classes = classCache.get(drawable.getClass());
+            left = bounds.left;
+            right = bounds.right;
+            top = bounds.top;
+            bottom = bounds.bottom;
+            if (drawable instanceof ColorDrawable) {
+                hasColor = true;
+                color = ((ColorDrawable) drawable).getColor();
+            } else {
+                hasColor = false;
+                color = 0;
+            }
+        }
+
+        public final String[] classes;
+        public final int left;
+        public final int right;
+        public final int top;
+        public final int bottom;
+        public final boolean hasColor;
+        public final int color;
+    }
+
+    private final int mRootHashCode;
+    private final int mNodeCount;
+    private final String[] mPropertyNames;
+    private final int[] mHashCodes;
+    private final int[] mIds;
+    private final int[] mFlags;
+    private final int[] mGeometry;
+    private final float[] mTranslations;
+    private final String[] mIdNames;
+    private final String[] mContentDescriptions;
+    private final String[] mTags;
+    private final String[][] mClasses;
+    private final int[][] mLayoutRules;
+    private final int[] mFirstChild;
+    private final int[] mChildCounts;
+    private final int[] mChildHashCodes;
+    private final Object[] mPropertyValues;
+
+    private static final int FLAG_HAS_TAG = 1;
+
+    private static final int GEOMETRY_TOP = 0;
+    private static final int GEOMETRY_LEFT = 1;
+    private static final int GEOMETRY_WIDTH = 2;
+    private static final int GEOMETRY_HEIGHT = 3;
+    private static final int GEOMETRY_SCROLL_X = 4;
+    private static final int GEOMETRY_SCROLL_Y = 5;
+    private static final int GEOMETRY_VISIBILITY = 6;
+    private static final int GEOMETRY_STRIDE = 7;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int VIEWS_PER_CLOCK_CHECK = 8;
+}
@@ -0,0 +1,198 @@
+package com.mixpanel.android.viewcrawler;
+
+import android.text.SpannedString;
+import android.text.TextUtils;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans a view and it's children, looking for user-visible text to provide as an event property.
+ *
+ * Text from every TextView in the subtree is joined with ", ", but the scan never descends more than maxDepth
+ * levels below the given view, and stops as soon as maxLength characters have been found. Text is appended
+ * directly into a reused buffer, so no intermediate Strings are built for children.
+ *
+ * Instances are not thread safe, and {@link #extract(View)} and {@link #capture(View)} must only
+ * be called on the UI thread. The {@link Snapshot}s returned by capture can be turned into text
+ * later, on any thread.
+ */
+/* package */ class ViewTextExtractor {
+
+    public ViewTextExtractor(int maxLength, int maxDepth) {
+        mMaxLength = maxLength;
+        mMaxDepth = maxDepth;
+        mBuilder = new StringBuilder(maxLength);
+        mBuilderSink = new BuilderSink();
+    }
+
+    /**
+     * Returns the text of v, or null if v and its children have no text.
+     */
+    public String extract(View v) {
+        mBuilder.setLength(0);
+        mBuilderSink.full = false;
+        if (!scan(v, mBuilderSink)) {
+            return null;
+        }
+        return mBuilder.toString();
+    }
+
+    /**
+     * Captures the text of v without joining it, so that the work of building the
+     * final String can be deferred (or skipped, if the text is never used.)
+     */
+    public Snapshot capture(View v) {
+        final SnapshotSink sink = new SnapshotSink(mMaxLength);
+        final boolean hasText = scan(v, sink);
+        return new Snapshot(hasText, sink.parts);
+    }
+
+    /**
+     * Captured text of a view subtree. Immutable, and safe to use from any thread.
+     */
+    public static class Snapshot {
+        private Snapshot(boolean hasText, List<CharSequence> parts) {
+            mHasText = hasText;
+            mParts = parts;
+        }
+
+        /**
+         * Returns the joined text, or null if there was no text in the captured views.
+         */
+        public String toText() {
+            if (!mHasText) {
+                return null;
+            }
+
+            final int partCount = mParts.size();
+            if (partCount == 1) {
+                return mParts.get(0).toString();
+            }
+
+            int length = 0;
+            for (int i = 0; i < partCount; i++) {
+                length += mParts.get(i).length() + SEPARATOR.length();
+            }
+            final StringBuilder builder = new StringBuilder(length);
+            for (int i = 0; i < partCount; i++) {
+                if (i > 0) {
+                    builder.append(SEPARATOR);
+                }
+                builder.append(mParts.get(i));
+            }
+            return builder.toString();
+        }
+
+        private final boolean mHasText;
+        private final List<CharSequence> mParts;
+    }
+
+    // Returns true if any text (even empty text, for a lone TextView) was found
+    private boolean scan(View v, TextSink sink) {
+        if (v instanceof TextView) {
+            final CharSequence text = ((TextView) v).getText();
+            if (null == text) {
+                return false;
+            }
+            sink.append(text, false);
+            return true;
+        } else if (v instanceof ViewGroup) {
+            return scanChildren((ViewGroup) v, 1, sink, false);
+        }
+
+        return false;
+    }
+
+    private boolean scanChildren(ViewGroup group, int depth, TextSink sink, boolean textSeen) {
+        final int childCount = group.getChildCount();
+        for (int i = 0; i < childCount && sink.hasRoom(); i++) {
+            final View child = group.getChildAt(i);
+            if (child instanceof TextView) {
+                final CharSequence text = ((TextView) child).getText();
+                if (null != text && text.length() > 0) {
+                    sink.append(text, textSeen);
+                    textSeen = true;
+                }
+            } else if (child instanceof ViewGroup && depth < mMaxDepth) {
+                textSeen = scanChildren((ViewGroup) child, depth + 1, sink, textSeen);
+            }
+        }
+
+        return textSeen;
+    }
+
+    private abstract static class TextSink {
+        public abstract void append(CharSequence text, boolean separate);
+        public abstract boolean hasRoom();
+    }
+
+    private class BuilderSink extends TextSink {
+        @Override
+        public void append(CharSequence text, boolean separate) {
+            if (separate) {
+                if (mMaxLength - mBuilder.length() <= SEPARATOR.length()) {
+                    full = true;
+                    return;
+                }
+                mBuilder.append(SEPARATOR);
+            }
+
+            final int room = mMaxLength - mBuilder.length();
+            mBuilder.append(text, 0, Math.min(room, text.length()));
+        }
+
+        @Override
+        public boolean hasRoom() {
+            return !full && mBuilder.length() < mMaxLength;
+        }
+
+        public boolean full;
+    }
+
+    private static class SnapshotSink extends TextSink {
+        public SnapshotSink(int maxLength) {
+            mRemaining = maxLength;
+            parts = new ArrayList<CharSequence>(2);
+        }
+
+        @Override
+        public void append(CharSequence text, boolean separate) {
+            if (separate) {
+                if (mRemaining <= SEPARATOR.length()) {
+                    mRemaining = 0;
+                    return;
+                }
+                mRemaining -= SEPARATOR.length();
+            }
+
+            final int length = Math.min(mRemaining, text.length());
+            mRemaining -= length;
+            if (length == text.length() && (text instanceof String || text instanceof SpannedString)) {
+                // Immutable, safe to keep a reference to
+                parts.add(text);
+            } else {
+                // Probably an Editable, which will change under us after we return
+                parts.add(TextUtils.substring(text, 0, length));
+            }
+        }
+
+        @Override
+        public boolean hasRoom() {
+            return mRemaining > 0;
+        }
+
+        public final List<CharSequence> parts;
+        private int mRemaining;
+    }
+
+    private final int mMaxLength;
+    private final int mMaxDepth;
+    private final StringBuilder mBuilder;
+    private final BuilderSink mBuilderSink;
+
+    private static final String SEPARATOR = ", ";
+}